@@ -6,7 +6,20 @@ import com.psich.bot.integrations.DiscordWebhookIntegration;
 import com.psich.bot.listeners.ChatListener;
 import com.psich.bot.listeners.GameEventListener;
 import com.psich.bot.services.AIManager;
+import com.psich.bot.services.AdmissionController;
+import com.psich.bot.services.ChatPartitions;
+import com.psich.bot.services.ContextBuilder;
+import com.psich.bot.services.ContextRenderer;
+import com.psich.bot.services.ConversationService;
+import com.psich.bot.services.IngestionPipeline;
+import com.psich.bot.services.LongTermMemory;
+import com.psich.bot.services.QuotaCoordinator;
+import com.psich.bot.services.ResponseDispatcher;
+import com.psich.bot.services.SpontaneityGovernor;
 import com.psich.bot.services.StorageService;
+import com.psich.bot.services.SummaryService;
+import com.psich.bot.services.TickMonitor;
+import com.psich.bot.services.TokenEstimator;
 import com.psich.bot.utils.ConfigManager;
 import org.bukkit.plugin.java.JavaPlugin;
 
@@ -16,6 +29,18 @@ public class PsichBot extends JavaPlugin {
     private ConfigManager configManager;
     private StorageService storageService;
     private AIManager aiManager;
+    private ConversationService conversationService;
+    private AdmissionController admissionController;
+    private SpontaneityGovernor spontaneityGovernor;
+    private TickMonitor tickMonitor;
+    private IngestionPipeline ingestionPipeline;
+    private ChatPartitions chatPartitions;
+    private ContextRenderer contextRenderer;
+    private TokenEstimator tokenEstimator;
+    private QuotaCoordinator quotaCoordinator;
+    private ResponseDispatcher responseDispatcher;
+    private SummaryService summaryService;
+    private LongTermMemory longTermMemory;
     private DiscordSRVIntegration discordSRVIntegration;
     
     @Override
@@ -28,11 +53,34 @@ public class PsichBot extends JavaPlugin {
         // Инициализируем компоненты
         configManager = new ConfigManager(this);
         storageService = new StorageService(this);
-        aiManager = new AIManager(configManager);
+        storageService.start();
+        tokenEstimator = new TokenEstimator();
+        if (configManager.isQuotaEnabled()) {
+            quotaCoordinator = new QuotaCoordinator(this, configManager, tokenEstimator);
+        }
+        aiManager = new AIManager(configManager, tokenEstimator, quotaCoordinator);
+        conversationService = new ConversationService(configManager);
+        contextRenderer = new ContextRenderer(new ContextBuilder(configManager, tokenEstimator));
+        admissionController = new AdmissionController(this, configManager);
+        spontaneityGovernor = new SpontaneityGovernor(configManager);
+        tickMonitor = new TickMonitor(this, configManager);
+        tickMonitor.start();
+        // Конвейер создаем до слушателей - они регистрируют в нем свои обработчики
+        ingestionPipeline = new IngestionPipeline(this);
+        chatPartitions = new ChatPartitions(this, configManager);
+        responseDispatcher = new ResponseDispatcher(this);
+        responseDispatcher.start();
+        summaryService = new SummaryService(this, configManager);
+        summaryService.start();
+        longTermMemory = new LongTermMemory(this, configManager);
+        longTermMemory.start();
         
         // Регистрируем слушателей
         getServer().getPluginManager().registerEvents(new ChatListener(this), this);
         getServer().getPluginManager().registerEvents(new GameEventListener(this), this);
+        // После /reload игроки уже онлайн - их профили читаем сразу
+        getServer().getOnlinePlayers().forEach(player ->
+                storageService.prefetchProfile(chatPartitions.forPlayer(player), player.getUniqueId().toString()));
         
         // Регистрируем команды
         getCommand("psich").setExecutor(new PsichCommand(this));
@@ -46,14 +94,29 @@ public class PsichBot extends JavaPlugin {
             getLogger().info("Интеграция с DiscordSRV активирована - бот будет отвечать на сообщения из Discord!");
         }
         
+        // Все обработчики зарегистрированы, запускаем поток конвейера
+        ingestionPipeline.start();
+        
         getLogger().info("Плагин PsichBot успешно загружен!");
     }
     
     @Override
     public void onDisable() {
+        if (admissionController != null) {
+            admissionController.shutdown();
+        }
+        if (responseDispatcher != null) {
+            responseDispatcher.shutdown();
+        }
+        if (ingestionPipeline != null) {
+            ingestionPipeline.shutdown();
+        }
         if (storageService != null) {
             storageService.forceSave();
         }
+        if (longTermMemory != null) {
+            longTermMemory.shutdown();
+        }
         getLogger().info("Плагин PsichBot выгружен!");
     }
     
@@ -73,6 +136,57 @@ public class PsichBot extends JavaPlugin {
         return aiManager;
     }
     
+    public ConversationService getConversationService() {
+        return conversationService;
+    }
+    
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+    
+    public SpontaneityGovernor getSpontaneityGovernor() {
+        return spontaneityGovernor;
+    }
+    
+    public TickMonitor getTickMonitor() {
+        return tickMonitor;
+    }
+    
+    public IngestionPipeline getIngestionPipeline() {
+        return ingestionPipeline;
+    }
+    
+    public ChatPartitions getChatPartitions() {
+        return chatPartitions;
+    }
+    
+    public ResponseDispatcher getResponseDispatcher() {
+        return responseDispatcher;
+    }
+    
+    public ContextRenderer getContextRenderer() {
+        return contextRenderer;
+    }
+    
+    public TokenEstimator getTokenEstimator() {
+        return tokenEstimator;
+    }
+    
+    /**
+     * @return null, если лимиты ключей не учитываются (ai.quota.enabled)
+     */
+    public QuotaCoordinator getQuotaCoordinator() {
+        return quotaCoordinator;
+    }
+    
+    public SummaryService getSummaryService() {
+        return summaryService;
+    }
+    
+    public LongTermMemory getLongTermMemory() {
+        return longTermMemory;
+    }
+    
     public void reload() {
         reloadConfig();
         configManager.reload();
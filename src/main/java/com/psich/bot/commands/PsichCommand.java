@@ -1,13 +1,23 @@
 package com.psich.bot.commands;
 
 import com.psich.bot.PsichBot;
+import com.psich.bot.services.StorageService;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
 public class PsichCommand implements CommandExecutor {
     
+    // Сколько последних сообщений показывает /psich log
+    private static final int LOG_LIMIT = 20;
+    
     private final PsichBot plugin;
     
     public PsichCommand(PsichBot plugin) {
@@ -16,26 +26,41 @@ public class PsichCommand implements CommandExecutor {
     
     @Override
     public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
-        String botName = plugin.getConfigManager().getBotName();
-        if (args.length == 0) {
-            sender.sendMessage("§e[" + botName + "] §7Используй: /psich help");
-            return true;
-        }
+        long started = System.nanoTime();
+        try {
+            String botName = plugin.getConfigManager().getBotName();
+            if (args.length == 0) {
+                sender.sendMessage("§e[" + botName + "] §7Используй: /psich help");
+                return true;
+            }
         
-        String subCommand = args[0].toLowerCase();
+            String subCommand = args[0].toLowerCase();
         
-        switch (subCommand) {
-            case "help":
-                return handleHelp(sender);
-            case "mute":
-                return handleMute(sender);
-            case "reload":
-                return handleReload(sender);
-            case "reset":
-                return handleReset(sender);
-            default:
-                sender.sendMessage("§e[" + botName + "] §7Неизвестная команда. Используй: /psich help");
-                return true;
+            switch (subCommand) {
+                case "help":
+                    return handleHelp(sender);
+                case "mute":
+                    return handleMute(sender, args);
+                case "reload":
+                    return handleReload(sender);
+                case "reset":
+                    return handleReset(sender, args);
+                case "status":
+                    return handleStatus(sender);
+                case "export":
+                    return handleExport(sender);
+                case "bench":
+                    return handleBench(sender);
+                case "log":
+                    return handleLog(sender, args);
+                case "memory":
+                    return handleMemory(sender);
+                default:
+                    sender.sendMessage("§e[" + botName + "] §7Неизвестная команда. Используй: /psich help");
+                    return true;
+            }
+        } finally {
+            plugin.getTickMonitor().recordMainThreadWork(started);
         }
     }
     
@@ -49,25 +74,34 @@ public class PsichCommand implements CommandExecutor {
         sender.sendMessage("");
         if (sender.hasPermission("psich.admin")) {
             sender.sendMessage("§cАдминистративные команды:");
-            sender.sendMessage("§e/psich mute §7- Включить/выключить режим тишины");
+            sender.sendMessage("§e/psich mute [раздел] §7- Включить/выключить режим тишины (по умолчанию - твой раздел чата)");
             sender.sendMessage("§e/psich reload §7- Перезагрузить конфигурацию");
-            sender.sendMessage("§e/psich reset §7- Сбросить историю чата");
+            sender.sendMessage("§e/psich reset [раздел] §7- Сбросить историю чата (по умолчанию - твой раздел)");
+            sender.sendMessage("§e/psich status §7- Состояние бота: шансы спонтанности, очередь AI-запросов");
+            sender.sendMessage("§e/psich export §7- Выгрузить данные в data/export (JSON)");
+            sender.sendMessage("§e/psich bench §7- Сравнить загрузку снимка из JSON и snapshot.bin");
+            sender.sendMessage("§e/psich log <ник> [часы] §7- Сообщения игрока в твоем разделе за последние часы (по умолчанию 24)");
+            sender.sendMessage("§e/psich memory §7- Сколько памяти занимают истории чатов и профили");
         }
         return true;
     }
     
-    private boolean handleMute(CommandSender sender) {
+    private boolean handleMute(CommandSender sender, String[] args) {
         String botName = plugin.getConfigManager().getBotName();
         if (!sender.hasPermission("psich.admin")) {
             sender.sendMessage("§c[" + botName + "] §7У вас нет прав на использование этой команды.");
             return true;
         }
         
-        String chatId = "global";
-        plugin.getStorageService().toggleMute(chatId);
-        boolean isMuted = plugin.getStorageService().isMuted(chatId);
-        
-        sender.sendMessage("§e[" + botName + "] §7" + (isMuted ? "Окей молчу" : "Я тут"));
+        String chatId = partitionArg(sender, args);
+        if (chatId == null) {
+            return true;
+        }
+        // Хранилище меняется в потоке раздела, ответ отправляем из главного потока
+        plugin.getIngestionPipeline().execute(chatId, () -> {
+            boolean isMuted = plugin.getStorageService().toggleMute(chatId);
+            reply(sender, "§e[" + botName + "] §7" + (isMuted ? "Окей молчу" : "Я тут") + " §8(" + chatId + ")");
+        });
         return true;
     }
     
@@ -83,17 +117,195 @@ public class PsichCommand implements CommandExecutor {
         return true;
     }
     
-    private boolean handleReset(CommandSender sender) {
+    private boolean handleReset(CommandSender sender, String[] args) {
+        String botName = plugin.getConfigManager().getBotName();
+        if (!sender.hasPermission("psich.admin")) {
+            sender.sendMessage("§c[" + botName + "] §7У вас нет прав на использование этой команды.");
+            return true;
+        }
+        
+        String chatId = partitionArg(sender, args);
+        if (chatId == null) {
+            return true;
+        }
+        plugin.getIngestionPipeline().execute(chatId, () -> {
+            plugin.getStorageService().clearHistory(chatId);
+            reply(sender, "§e[" + botName + "] §7Окей, всё забыл, ну было и было §8(" + chatId + ")");
+        });
+        return true;
+    }
+    
+    private boolean handleStatus(CommandSender sender) {
+        String botName = plugin.getConfigManager().getBotName();
+        if (!sender.hasPermission("psich.admin")) {
+            sender.sendMessage("§c[" + botName + "] §7У вас нет прав на использование этой команды.");
+            return true;
+        }
+        
+        sender.sendMessage("§6=== Состояние бота " + botName + " ===");
+        sender.sendMessage("§6Нагрузка:");
+        for (String line : plugin.getTickMonitor().getStatusLines()) {
+            sender.sendMessage(line);
+        }
+        sender.sendMessage("§7Активных бесед: §f" + plugin.getConversationService().getActiveSessionCount());
+        sender.sendMessage("§6Спонтанность:");
+        for (String line : plugin.getSpontaneityGovernor().getStatusLines()) {
+            sender.sendMessage(line);
+        }
+        sender.sendMessage("§6Очередь AI-запросов:");
+        for (String line : plugin.getAdmissionController().getStatusLines()) {
+            sender.sendMessage(line);
+        }
+        sender.sendMessage("§6Конвейер событий:");
+        sender.sendMessage("§7Разделы: §f" + String.join(", ", plugin.getStorageService().getChatIds())
+                + "§7, потоков §f" + plugin.getIngestionPipeline().getThreadCount());
+        sender.sendMessage("§7В очереди: §f" + plugin.getIngestionPipeline().getQueueDepth()
+                + "§7, обработано §f" + plugin.getIngestionPipeline().getProcessedCount()
+                + "§7, отброшено §f" + plugin.getIngestionPipeline().getDroppedCount());
+        sender.sendMessage("§6Оценка токенов:");
+        for (String line : plugin.getTokenEstimator().getStatusLines()) {
+            sender.sendMessage(line);
+        }
+        if (plugin.getQuotaCoordinator() != null) {
+            for (String line : plugin.getQuotaCoordinator().getStatusLines()) {
+                sender.sendMessage(line);
+            }
+        }
+        sender.sendMessage("§6Хранилище:");
+        for (String line : plugin.getStorageService().getStatusLines()) {
+            sender.sendMessage(line);
+        }
+        sender.sendMessage("§6Память:");
+        for (String line : plugin.getLongTermMemory().getStatusLines()) {
+            sender.sendMessage(line);
+        }
+        return true;
+    }
+    
+    private boolean handleExport(CommandSender sender) {
         String botName = plugin.getConfigManager().getBotName();
         if (!sender.hasPermission("psich.admin")) {
             sender.sendMessage("§c[" + botName + "] §7У вас нет прав на использование этой команды.");
             return true;
         }
         
-        String chatId = "global";
-        plugin.getStorageService().clearHistory(chatId);
-        sender.sendMessage("§e[" + botName + "] §7Окей, всё забыл, ну было и было");
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+            try {
+                File folder = plugin.getStorageService().exportJson();
+                reply(sender, "§e[" + botName + "] §7Данные выгружены в §f" + folder.getPath());
+            } catch (Exception e) {
+                reply(sender, "§c[" + botName + "] §7Ошибка выгрузки: " + e.getMessage());
+            }
+        });
         return true;
     }
+    
+    private boolean handleBench(CommandSender sender) {
+        String botName = plugin.getConfigManager().getBotName();
+        if (!sender.hasPermission("psich.admin")) {
+            sender.sendMessage("§c[" + botName + "] §7У вас нет прав на использование этой команды.");
+            return true;
+        }
+        
+        sender.sendMessage("§e[" + botName + "] §7Замеряю загрузку снимка, это может занять время...");
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+            try {
+                List<String> lines = plugin.getStorageService().benchmarkSnapshots();
+                reply(sender, "§6=== Загрузка снимка ===");
+                lines.forEach(line -> reply(sender, line));
+            } catch (Exception e) {
+                reply(sender, "§c[" + botName + "] §7Ошибка замера: " + e.getMessage());
+            }
+        });
+        return true;
+    }
+    
+    private boolean handleLog(CommandSender sender, String[] args) {
+        String botName = plugin.getConfigManager().getBotName();
+        if (!sender.hasPermission("psich.admin")) {
+            sender.sendMessage("§c[" + botName + "] §7У вас нет прав на использование этой команды.");
+            return true;
+        }
+        if (args.length < 2) {
+            sender.sendMessage("§e[" + botName + "] §7Используй: /psich log <ник> [часы]");
+            return true;
+        }
+        double hours = 24;
+        if (args.length > 2) {
+            try {
+                hours = Double.parseDouble(args[2]);
+            } catch (NumberFormatException e) {
+                sender.sendMessage("§c[" + botName + "] §7Часы должны быть числом");
+                return true;
+            }
+        }
+        
+        String chatId = plugin.getChatPartitions().forSender(sender);
+        String playerId = null;
+        for (Map.Entry<String, String> user : plugin.getStorageService().getChat(chatId).getUsers().entrySet()) {
+            if (user.getValue().equalsIgnoreCase(args[1])) {
+                playerId = user.getKey();
+                break;
+            }
+        }
+        if (playerId == null) {
+            sender.sendMessage("§e[" + botName + "] §7Игрок §f" + args[1] + "§7 мне не писал");
+            return true;
+        }
+        
+        String id = playerId;
+        long to = System.currentTimeMillis();
+        long from = to - (long) (hours * 3_600_000);
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+            List<StorageService.ChatMessage> messages = plugin.getStorageService()
+                    .queryHistory(chatId, id, from, to, LOG_LIMIT);
+            SimpleDateFormat format = new SimpleDateFormat("dd.MM HH:mm");
+            reply(sender, "§6=== " + args[1] + ": " + messages.size() + " сообщ. ===");
+            for (StorageService.ChatMessage message : messages) {
+                reply(sender, "§8[" + format.format(new Date(message.getTime())) + "] §7" + message.getRole()
+                        + ": §f" + message.getText());
+            }
+        });
+        return true;
+    }
+    
+    private boolean handleMemory(CommandSender sender) {
+        String botName = plugin.getConfigManager().getBotName();
+        if (!sender.hasPermission("psich.admin")) {
+            sender.sendMessage("§c[" + botName + "] §7У вас нет прав на использование этой команды.");
+            return true;
+        }
+        
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+            List<String> lines = plugin.getStorageService().getMemoryLines();
+            reply(sender, "§6=== Память " + botName + " ===");
+            lines.forEach(line -> reply(sender, line));
+        });
+        return true;
+    }
+    
+    /**
+     * Раздел чата из второго аргумента команды, без него - раздел отправителя
+     *
+     * @return null, если такого раздела нет (отправителю уже ответили)
+     */
+    private String partitionArg(CommandSender sender, String[] args) {
+        if (args.length <= 1) {
+            return plugin.getChatPartitions().forSender(sender);
+        }
+        String chatId = args[1];
+        if (!plugin.getChatPartitions().isKnown(chatId)) {
+            sender.sendMessage("§c[" + plugin.getConfigManager().getBotName() + "] §7Раздел §f" + chatId
+                    + "§7 не найден. Примеры: §fglobal§7, §fworld:<мир>§7, §fchannel:<канал>");
+            return null;
+        }
+        return chatId;
+    }
+    
+    /**
+     * Отправляет сообщение отправителю команды из главного потока
+     */
+    private void reply(CommandSender sender, String message) {
+        plugin.getServer().getScheduler().runTask(plugin, () -> sender.sendMessage(message));
+    }
 }
-
@@ -1,15 +1,20 @@
 package com.psich.bot.integrations;
 
 import com.psich.bot.PsichBot;
+import com.psich.bot.services.AdmissionController;
+import com.psich.bot.services.ContextBuilder;
+import com.psich.bot.services.HistoryRing;
+import com.psich.bot.services.IngestionPipeline.IngestEvent;
 import com.psich.bot.services.StorageService;
+import com.psich.bot.services.TickMonitor;
 import github.scarsz.discordsrv.api.Subscribe;
 import github.scarsz.discordsrv.api.events.DiscordGuildMessagePostProcessEvent;
 import org.bukkit.Bukkit;
-import org.bukkit.scheduler.BukkitRunnable;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 /**
@@ -19,7 +24,6 @@ import java.util.regex.Pattern;
 public class DiscordSRVIntegration {
 
     private final PsichBot plugin;
-    private final Random random = new Random();
     private final Pattern triggerPattern;
     private boolean discordSRVAvailable = false;
     private Object discordSRVApi;
@@ -29,6 +33,7 @@ public class DiscordSRVIntegration {
         String trigger = plugin.getConfigManager().getTrigger();
         this.triggerPattern = Pattern
                 .compile("(?i)(?<![а-яёa-z0-9_])(" + Pattern.quote(trigger) + "|psych)(?![а-яёa-z0-9_])");
+        plugin.getIngestionPipeline().registerHandler(IngestEvent.Type.DISCORD_CHAT, this::processDiscordMessage);
     }
 
     /**
@@ -135,8 +140,12 @@ public class DiscordSRVIntegration {
                 plugin.getLogger().info("[DEBUG] Сообщение из Discord от " + authorName + ": " + originalMessage);
             }
 
-            // Обрабатываем сообщение
-            processDiscordMessage(authorName, originalMessage);
+            // Раздел: общий чат сервера или свой для канала (partitions.discord)
+            String chatId = plugin.getChatPartitions().forDiscord(
+                    event.getChannel() != null ? event.getChannel().getName() : null, event.getChannel());
+
+            // Только фиксируем событие - обработка идет в потоке конвейера
+            plugin.getIngestionPipeline().submit(IngestEvent.discordChat(chatId, authorName, originalMessage));
         } catch (Exception e) {
             if (plugin.getConfigManager().isDebug()) {
                 plugin.getLogger()
@@ -147,19 +156,20 @@ public class DiscordSRVIntegration {
     }
 
     /**
-     * Обрабатывает сообщение из Discord
+     * Обрабатывает сообщение из Discord (выполняется в потоке конвейера)
      */
-    private void processDiscordMessage(String authorName, String message) {
+    private void processDiscordMessage(IngestEvent event) {
+        String authorName = event.getPlayerName();
+        String message = event.getText();
         if (message == null || message.trim().isEmpty()) {
             return;
         }
 
-        String chatId = "global";
+        String chatId = event.getChatId();
 
         // Игнорируем сообщения от бота
         String botName = plugin.getConfigManager().getBotName();
-        String cleanMessage = message.replaceAll("§[0-9a-fk-or]", "");
-        if (cleanMessage.startsWith("[" + botName + "]") || cleanMessage.startsWith("<" + botName + ">")) {
+        if (plugin.getResponseDispatcher().isOwnMessage(message)) {
             plugin.getStorageService().addToHistory(chatId, botName, message);
             return;
         }
@@ -173,10 +183,10 @@ public class DiscordSRVIntegration {
             return;
         }
 
-        // Сохраняем сообщение в историю
-        plugin.getStorageService().addToHistory(chatId, playerName, actualMessage);
         // Используем фиктивный UUID для Discord пользователей
         String playerId = "discord-" + playerName.toLowerCase().replaceAll("[^a-z0-9]", "");
+        // Сохраняем сообщение в историю
+        plugin.getStorageService().addToHistory(chatId, playerName, actualMessage, playerId);
         plugin.getStorageService().trackUser(chatId, playerId, playerName);
 
         // Проверяем, не в муте ли чат
@@ -187,35 +197,49 @@ public class DiscordSRVIntegration {
         String lowerMessage = actualMessage.toLowerCase();
         boolean hasTrigger = triggerPattern.matcher(lowerMessage).find();
 
+        // Прямое обращение перехватывает беседу у остальных игроков,
+        // без триггера проверяем, не продолжение ли это разговора с ботом
+        boolean isFollowUp = false;
+        if (hasTrigger) {
+            plugin.getConversationService().onBotAddressed(chatId, playerId);
+        } else {
+            isFollowUp = plugin.getConversationService().isFollowUp(chatId, playerId, actualMessage,
+                    getOtherUserNames(chatId, playerId));
+        }
+
         // Проверяем, нужен ли поиск в интернете (ключевые слова: найди, поищи, гугл)
-        boolean requiresSearch = hasTrigger && (lowerMessage.contains("найди") ||
+        boolean requiresSearch = (hasTrigger || isFollowUp) && (lowerMessage.contains("найди") ||
                 lowerMessage.contains("поищи"));
 
-        // Если прямое обращение - обрабатываем
-        if (hasTrigger) {
+        // Если прямое обращение или продолжение беседы - обрабатываем
+        if (hasTrigger || isFollowUp) {
             if (plugin.getConfigManager().isDebug()) {
                 plugin.getLogger()
-                        .info("[DEBUG] Прямое обращение к боту из Discord от " + playerName + ": " + actualMessage);
+                        .info("[DEBUG] " + (hasTrigger ? "Прямое обращение к боту" : "Продолжение беседы")
+                                + " из Discord от " + playerName + ": " + actualMessage);
                 if (requiresSearch) {
                     plugin.getLogger().info("[DEBUG] Обнаружен запрос на поиск в интернете из Discord");
                 }
             }
+            // Профиль - текущая версия, история - неизменяемый снимок
+            final HistoryRing.Window history = plugin.getStorageService().getHistoryWindow(chatId);
+            final StorageService.UserProfile userProfile = plugin.getStorageService().getProfile(chatId, playerId);
             final boolean finalRequiresSearch = requiresSearch;
-            new BukkitRunnable() {
-                @Override
-                public void run() {
-                    try {
-                        processMessage(chatId, playerId, playerName, actualMessage, true, finalRequiresSearch);
-                    } catch (Exception e) {
-                        plugin.getLogger().severe("Ошибка обработки сообщения из Discord: " + e.getMessage());
-                        e.printStackTrace();
-                    }
+            plugin.getAdmissionController().submit(AdmissionController.Priority.DISCORD_MENTION, chatId, playerId,
+                    "ответ в Discord " + playerName, () -> {
+                try {
+                    processMessage(chatId, playerId, playerName, actualMessage, history, userProfile, true,
+                            finalRequiresSearch, event.getTimestamp());
+                } catch (Exception e) {
+                    plugin.getLogger().severe("Ошибка обработки сообщения из Discord: " + e.getMessage());
+                    e.printStackTrace();
                 }
-            }.runTaskAsynchronously(plugin);
+            });
         } else {
             // Спонтанный ответ с шансом для сообщений из Discord
             if (actualMessage.length() >= plugin.getConfigManager().getMinMessageLength() &&
-                    random.nextDouble() < plugin.getConfigManager().getSpontaneousChanceMessage()) {
+                    plugin.getSpontaneityGovernor().rollMessage() &&
+                    !plugin.getTickMonitor().shouldShed(TickMonitor.Work.SPONTANEOUS_CHECK)) {
 
                 if (plugin.getConfigManager().isDebug()) {
                     plugin.getLogger()
@@ -223,57 +247,61 @@ public class DiscordSRVIntegration {
                 }
 
                 // Анализируем последние 15 сообщений асинхронно
-                final List<StorageService.ChatMessage> history = plugin.getStorageService().getHistory(chatId);
-                final int historySize = Math.min(15, history.size());
-                final List<StorageService.ChatMessage> recentHistory = history.subList(
-                        Math.max(0, history.size() - historySize),
-                        history.size());
-
-                final String historyBlock = recentHistory.stream()
-                        .map(m -> m.getRole() + ": " + m.getText())
-                        .reduce((a, b) -> a + "\n" + b)
-                        .orElse("");
+                final HistoryRing.Window history = plugin.getStorageService().getHistoryWindow(chatId);
+                final StorageService.UserProfile userProfile = plugin.getStorageService().getProfile(chatId,
+                        playerId);
+                final String historyBlock = plugin.getContextRenderer().render(chatId, history,
+                        ContextBuilder.Task.SHOULD_ANSWER, null);
 
                 // Проверяем shouldAnswer асинхронно
-                new BukkitRunnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            boolean shouldAnswer = plugin.getAIManager().shouldAnswer(historyBlock);
-                            if (plugin.getConfigManager().isDebug()) {
-                                plugin.getLogger()
-                                        .info("[DEBUG] AI решил " + (shouldAnswer ? "ответить" : "не отвечать")
-                                                + " на спонтанное сообщение из Discord");
-                            }
-
-                            if (shouldAnswer) {
-                                // Обрабатываем сообщение
-                                processMessage(chatId, playerId, playerName, actualMessage, false);
-                            }
-                        } catch (Exception e) {
+                plugin.getAdmissionController().submit(AdmissionController.Priority.SPONTANEOUS, chatId, playerId,
+                        "shouldAnswer Discord " + playerName, () -> {
+                    try {
+                        boolean shouldAnswer = plugin.getAIManager().shouldAnswer(historyBlock);
+                        if (plugin.getConfigManager().isDebug()) {
                             plugin.getLogger()
-                                    .warning("Ошибка при проверке shouldAnswer для Discord: " + e.getMessage());
-                            if (plugin.getConfigManager().isDebug()) {
-                                e.printStackTrace();
-                            }
+                                    .info("[DEBUG] AI решил " + (shouldAnswer ? "ответить" : "не отвечать")
+                                            + " на спонтанное сообщение из Discord");
+                        }
+
+                        if (shouldAnswer) {
+                            // Обрабатываем сообщение
+                            processMessage(chatId, playerId, playerName, actualMessage, history, userProfile, false,
+                                    false, event.getTimestamp());
+                        }
+                    } catch (Exception e) {
+                        plugin.getLogger()
+                                .warning("Ошибка при проверке shouldAnswer для Discord: " + e.getMessage());
+                        if (plugin.getConfigManager().isDebug()) {
+                            e.printStackTrace();
                         }
                     }
-                }.runTaskAsynchronously(plugin);
+                });
             }
         }
     }
 
     /**
-     * Обрабатывает сообщение и генерирует ответ (использует тот же метод, что и
-     * ChatListener)
+     * Возвращает имена остальных участников чата (для определения, к кому
+     * обращается пользователь)
      */
-    private void processMessage(String chatId, String playerId, String playerName, String message,
-            boolean isDirectlyCalled) {
-        processMessage(chatId, playerId, playerName, message, isDirectlyCalled, false);
+    private List<String> getOtherUserNames(String chatId, String playerId) {
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, String> user : plugin.getStorageService().getChat(chatId).getUsers().entrySet()) {
+            if (!user.getKey().equals(playerId)) {
+                names.add(user.getValue());
+            }
+        }
+        return names;
     }
 
+    /**
+     * Обрабатывает сообщение и генерирует ответ (использует тот же метод, что и
+     * ChatListener)
+     */
     private void processMessage(String chatId, String playerId, String playerName, String message,
-            boolean isDirectlyCalled, boolean requiresSearch) {
+            HistoryRing.Window history, StorageService.UserProfile userProfile,
+            boolean isDirectlyCalled, boolean requiresSearch, long receivedAt) {
         try {
             if (plugin.getConfigManager().isDebug()) {
                 plugin.getLogger()
@@ -283,12 +311,6 @@ public class DiscordSRVIntegration {
                         .info("[DEBUG] Режим: " + (isDirectlyCalled ? "прямое обращение" : "спонтанный ответ"));
             }
 
-            // Получаем профиль пользователя
-            StorageService.UserProfile userProfile = plugin.getStorageService().getProfile(chatId, playerId);
-
-            // Получаем историю
-            List<StorageService.ChatMessage> history = plugin.getStorageService().getHistory(chatId);
-
             // Если сообщение только триггер, добавляем контекст
             String processedMessage = message;
             String botName = plugin.getConfigManager().getBotName();
@@ -298,8 +320,13 @@ public class DiscordSRVIntegration {
             }
 
             // Генерируем ответ
+            // Сводка старой переписки и подходящие сообщения из долгой памяти
+            // идут перед последними сообщениями
+            final String summary = plugin.getStorageService().getSummary(chatId);
+            final List<String> recalled = plugin.getLongTermMemory().recall(chatId, playerId, message);
             String response = plugin.getAIManager().getResponse(
-                    history,
+                    providerName -> plugin.getContextRenderer().render(chatId, history, summary, recalled,
+                            ContextBuilder.Task.RESPONSE, providerName),
                     processedMessage,
                     playerName,
                     userProfile,
@@ -311,11 +338,11 @@ public class DiscordSRVIntegration {
                 return;
             }
 
-            // Отправляем ответ
-            sendResponse(chatId, response);
+            // Бот ответил пользователю - дальше он может продолжить разговор без триггера
+            plugin.getConversationService().openSession(chatId, playerId, message, response);
 
-            // Сохраняем ответ в историю
-            plugin.getStorageService().addToHistory(chatId, plugin.getConfigManager().getBotName(), response);
+            // Отправляем ответ, после отправки он запишется в историю
+            plugin.getResponseDispatcher().dispatch(chatId, playerId, response, receivedAt);
 
         } catch (Exception e) {
             plugin.getLogger().severe("Критическая ошибка AI при обработке сообщения из Discord: " + e.getMessage());
@@ -323,115 +350,6 @@ public class DiscordSRVIntegration {
         }
     }
 
-    /**
-     * Отправляет ответ бота в игру и Discord
-     */
-    private void sendResponse(String chatId, String response) {
-        final String fullResponse = response;
-        final double delaySeconds = plugin.getConfigManager().getResponseDelay();
-
-        // Вычисляем задержку в тиках (1 секунда = 20 тиков при 20 TPS)
-        long delayTicks = delaySeconds > 0 ? (long) (delaySeconds * 20) : 0;
-
-        // Используем runTaskLater для задержки вместо Thread.sleep
-        new BukkitRunnable() {
-            @Override
-            public void run() {
-                sendMessageParts(chatId, fullResponse, 0, 1);
-            }
-        }.runTaskLater(plugin, delayTicks);
-    }
-
-    /**
-     * Отправляет части сообщения с задержками через runTaskLater (не блокирует
-     * главный поток)
-     * 
-     * @param chatId       ID чата
-     * @param fullResponse Полный ответ для отправки
-     * @param startIndex   Индекс символа, с которого начинать отправку
-     * @param partNumber   Номер части (начинается с 1)
-     */
-    private void sendMessageParts(String chatId, String fullResponse, int startIndex, int partNumber) {
-        final int maxLength = 250;
-        final int maxParts = 2; // Максимум 2 сообщения
-
-        if (partNumber > maxParts || startIndex >= fullResponse.length()) {
-            // Все части отправлены
-            return;
-        }
-
-        // Берем следующую часть
-        String remaining = fullResponse.substring(startIndex);
-        String part;
-        int nextStartIndex;
-
-        if (remaining.length() <= maxLength) {
-            part = remaining;
-            nextStartIndex = fullResponse.length(); // Все отправлено
-        } else {
-            // Ищем последний пробел перед лимитом для красивого разрыва
-            int breakPoint = maxLength;
-            int lastSpace = remaining.lastIndexOf(' ', breakPoint);
-            if (lastSpace > maxLength * 0.7) { // Если пробел не слишком далеко
-                breakPoint = lastSpace;
-            }
-            part = remaining.substring(0, breakPoint);
-            nextStartIndex = startIndex + breakPoint;
-        }
-
-        // Формируем сообщение
-        String botName = plugin.getConfigManager().getBotName();
-        String colorCode = plugin.getConfigManager().getNameColorCode();
-        String messageToSend;
-        if (plugin.getConfigManager().isSendAsPlayer()) {
-            messageToSend = colorCode + "<" + botName + "> §f" + part;
-        } else {
-            messageToSend = colorCode + "[" + botName + "] §f" + part;
-        }
-
-        if (plugin.getConfigManager().isDebug()) {
-            plugin.getLogger().info("[DEBUG] Отправка сообщения #" + partNumber + " (длина части: "
-                    + part.length() + " символов, общая длина: " + messageToSend.length() + " символов)");
-        }
-
-        // Проверяем, не превышает ли сообщение лимит Minecraft (256 символов)
-        if (messageToSend.length() > 256) {
-            plugin.getLogger().warning("[WARNING] Сообщение превышает лимит Minecraft (256 символов): "
-                    + messageToSend.length() + " символов. Обрезаем до 256.");
-            messageToSend = messageToSend.substring(0, 256);
-        }
-
-        // Отправляем в игру
-        plugin.getServer().broadcastMessage(messageToSend);
-
-        // Отправляем в Discord через Webhook (если настроено)
-        if (plugin.getConfigManager().isDiscordEnabled()
-                && !plugin.getConfigManager().getDiscordWebhookUrl().isEmpty()) {
-            String cleanMessage = messageToSend.replaceAll("§[0-9a-fk-or]", "");
-            String botNameEscaped = botName.replaceAll("[\\[\\]<>]", "\\\\$0"); // Экранируем для regex
-            final String discordMessage = cleanMessage.replaceAll("^\\s*[<\\[]" + botNameEscaped + "[>\\]]\\s*", "")
-                    .trim();
-            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
-                DiscordWebhookIntegration.sendMessage(
-                        plugin.getConfigManager().getDiscordWebhookUrl(),
-                        discordMessage,
-                        plugin.getConfigManager().getDiscordUsername(),
-                        plugin.getConfigManager().getDiscordAvatarUrl());
-            });
-        }
-
-        // Если есть еще части для отправки, планируем следующую с задержкой 2 тика
-        // (100мс)
-        if (nextStartIndex < fullResponse.length() && partNumber < maxParts) {
-            new BukkitRunnable() {
-                @Override
-                public void run() {
-                    sendMessageParts(chatId, fullResponse, nextStartIndex, partNumber + 1);
-                }
-            }.runTaskLater(plugin, 2); // 2 тика = 100мс при 20 TPS
-        }
-    }
-
     public boolean isAvailable() {
         return discordSRVAvailable;
     }
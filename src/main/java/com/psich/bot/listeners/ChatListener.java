@@ -1,22 +1,26 @@
 package com.psich.bot.listeners;
 
 import com.psich.bot.PsichBot;
-import com.psich.bot.integrations.DiscordWebhookIntegration;
+import com.psich.bot.services.AdmissionController;
+import com.psich.bot.services.ChatPartitions;
+import com.psich.bot.services.ContextBuilder;
+import com.psich.bot.services.HistoryRing;
+import com.psich.bot.services.IngestionPipeline.IngestEvent;
 import com.psich.bot.services.StorageService;
+import com.psich.bot.services.TickMonitor;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.AsyncPlayerChatEvent;
-import org.bukkit.scheduler.BukkitRunnable;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 public class ChatListener implements Listener {
 
     private final PsichBot plugin;
-    private final Random random = new Random();
     private final Pattern triggerPattern;
 
     public ChatListener(PsichBot plugin) {
@@ -25,6 +29,7 @@ public class ChatListener implements Listener {
         // Создаем regex для поиска триггера как отдельного слова
         this.triggerPattern = Pattern
                 .compile("(?i)(?<![а-яёa-z0-9_])(" + Pattern.quote(trigger) + "|psych)(?![а-яёa-z0-9_])");
+        plugin.getIngestionPipeline().registerHandler(IngestEvent.Type.CHAT, this::handleChat);
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
@@ -33,10 +38,24 @@ public class ChatListener implements Listener {
         if (event.getPlayer() == null)
             return;
 
-        String message = event.getMessage();
-        String playerName = event.getPlayer().getName();
-        String playerId = event.getPlayer().getUniqueId().toString();
-        String chatId = "global"; // В Minecraft один глобальный чат
+        // Только фиксируем событие - вся обработка идет в потоке конвейера.
+        // Раздел (общий чат, мир или канал) определяем сейчас, пока игрок в этом мире
+        ChatPartitions.Route route = plugin.getChatPartitions().route(event.getPlayer(), event.getMessage());
+        plugin.getIngestionPipeline().submit(IngestEvent.chat(
+                route.getChatId(),
+                event.getPlayer().getUniqueId().toString(),
+                event.getPlayer().getName(),
+                route.getText()));
+    }
+
+    /**
+     * Обрабатывает сообщение из чата (выполняется в потоке конвейера)
+     */
+    private void handleChat(IngestEvent event) {
+        String message = event.getText();
+        String playerName = event.getPlayerName();
+        String playerId = event.getPlayerId();
+        String chatId = event.getChatId();
 
         // Игнорируем пустые сообщения
         if (message == null || message.trim().isEmpty())
@@ -46,15 +65,14 @@ public class ChatListener implements Listener {
         // сообщения от самого бота
         // Это предотвращает бесконечные ответы самому себе
         String botName = plugin.getConfigManager().getBotName();
-        String cleanMessageForCheck = message.replaceAll("§[0-9a-fk-or]", ""); // Убираем цветовые коды для проверки
-        if (cleanMessageForCheck.startsWith("[" + botName + "]") || cleanMessageForCheck.startsWith("<" + botName + ">")) {
+        if (plugin.getResponseDispatcher().isOwnMessage(message)) {
             // Это сообщение от бота, сохраняем в историю, но не обрабатываем триггер
             plugin.getStorageService().addToHistory(chatId, botName, message);
             return; // Не обрабатываем сообщения от самого бота
         }
 
         // Сохраняем сообщение в историю
-        plugin.getStorageService().addToHistory(chatId, playerName, message);
+        plugin.getStorageService().addToHistory(chatId, playerName, message, playerId);
         plugin.getStorageService().trackUser(chatId, playerId, playerName);
 
         // Проверяем, не в муте ли чат
@@ -65,179 +83,123 @@ public class ChatListener implements Listener {
         String cleanText = message.toLowerCase();
         boolean hasTrigger = triggerPattern.matcher(cleanText).find();
 
+        // Прямое обращение перехватывает беседу у остальных игроков,
+        // без триггера проверяем, не продолжение ли это разговора с ботом
+        boolean isFollowUp = false;
+        if (hasTrigger) {
+            plugin.getConversationService().onBotAddressed(chatId, playerId);
+        } else {
+            isFollowUp = plugin.getConversationService().isFollowUp(chatId, playerId, message,
+                    getOtherUserNames(chatId, playerId));
+        }
+
         // Проверяем, нужен ли поиск в интернете (ключевые слова: найди, поищи, гугл)
-        boolean requiresSearch = hasTrigger && (cleanText.contains("найди") ||
+        boolean requiresSearch = (hasTrigger || isFollowUp) && (cleanText.contains("найди") ||
                 cleanText.contains("поищи"));
 
-        // Если прямое обращение - сразу обрабатываем асинхронно
-        if (hasTrigger) {
+        // Если прямое обращение или продолжение беседы - сразу обрабатываем асинхронно
+        if (hasTrigger || isFollowUp) {
             if (plugin.getConfigManager().isDebug()) {
-                plugin.getLogger().info("[DEBUG] Прямое обращение к боту от " + playerName + ": " + message);
+                plugin.getLogger().info("[DEBUG] " + (hasTrigger ? "Прямое обращение к боту" : "Продолжение беседы")
+                        + " от " + playerName + ": " + message);
                 if (requiresSearch) {
                     plugin.getLogger().info("[DEBUG] Обнаружен запрос на поиск в интернете");
                 }
             }
+            // Профиль - текущая версия, история - неизменяемый снимок
+            final HistoryRing.Window history = plugin.getStorageService().getHistoryWindow(chatId);
+            final StorageService.UserProfile userProfile = plugin.getStorageService().getProfile(chatId, playerId);
             // Отвечаем асинхронно
             final boolean finalRequiresSearch = requiresSearch;
-            new BukkitRunnable() {
-                @Override
-                public void run() {
-                    try {
-                        processMessage(chatId, playerId, playerName, message, true, finalRequiresSearch);
-                    } catch (Exception e) {
-                        plugin.getLogger().severe("Ошибка обработки сообщения: " + e.getMessage());
-                        e.printStackTrace();
-                    }
+            plugin.getAdmissionController().submit(AdmissionController.Priority.DIRECT_MENTION, chatId, playerId,
+                    "ответ " + playerName, () -> {
+                try {
+                    processMessage(chatId, playerId, playerName, message, history, userProfile, true,
+                            finalRequiresSearch, event.getTimestamp());
+                } catch (Exception e) {
+                    plugin.getLogger().severe("Ошибка обработки сообщения: " + e.getMessage());
+                    e.printStackTrace();
                 }
-            }.runTaskAsynchronously(plugin);
+            });
         } else {
-            // Спонтанный ответ с шансом - проверяем асинхронно
+            // Спонтанный ответ с шансом - проверяем асинхронно. Сброс нагрузки
+            // решается до броска, чтобы сброшенные сообщения не попадали в статистику регулятора
             if (message.length() >= plugin.getConfigManager().getMinMessageLength() &&
-                    random.nextDouble() < plugin.getConfigManager().getSpontaneousChanceMessage()) {
+                    !plugin.getTickMonitor().shouldShed(TickMonitor.Work.SPONTANEOUS_CHECK) &&
+                    plugin.getSpontaneityGovernor().rollMessage()) {
 
                 if (plugin.getConfigManager().isDebug()) {
                     plugin.getLogger().info("[DEBUG] Проверка спонтанного ответа для сообщения от " + playerName);
                 }
 
-                // Анализируем последние 15 сообщений асинхронно
-                final List<StorageService.ChatMessage> history = plugin.getStorageService().getHistory(chatId);
-                final int historySize = Math.min(15, history.size());
-                final List<StorageService.ChatMessage> recentHistory = history.subList(
-                        Math.max(0, history.size() - historySize),
-                        history.size());
+                final HistoryRing.Window history = plugin.getStorageService().getHistoryWindow(chatId);
+                final StorageService.UserProfile userProfile = plugin.getStorageService().getProfile(chatId,
+                        playerId);
 
-                final String historyBlock = recentHistory.stream()
-                        .map(m -> m.getRole() + ": " + m.getText())
-                        .reduce((a, b) -> a + "\n" + b)
-                        .orElse("");
+                // Анализируем последние 15 сообщений асинхронно
+                final String historyBlock = plugin.getContextRenderer().render(chatId, history,
+                        ContextBuilder.Task.SHOULD_ANSWER, null);
 
                 // Проверяем shouldAnswer асинхронно
-                new BukkitRunnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            boolean shouldAnswer = plugin.getAIManager().shouldAnswer(historyBlock);
-                            if (plugin.getConfigManager().isDebug()) {
-                                plugin.getLogger()
-                                        .info("[DEBUG] AI решил " + (shouldAnswer ? "ответить" : "не отвечать")
-                                                + " на спонтанное сообщение");
-                            }
-
-                            if (shouldAnswer) {
-                                // Обрабатываем сообщение
-                                processMessage(chatId, playerId, playerName, message, false);
-                            }
-                        } catch (Exception e) {
-                            plugin.getLogger().warning("Ошибка при проверке shouldAnswer: " + e.getMessage());
-                            if (plugin.getConfigManager().isDebug()) {
-                                e.printStackTrace();
-                            }
+                plugin.getAdmissionController().submit(AdmissionController.Priority.SPONTANEOUS, chatId, playerId,
+                        "shouldAnswer " + playerName, () -> {
+                    try {
+                        boolean shouldAnswer = plugin.getAIManager().shouldAnswer(historyBlock);
+                        if (plugin.getConfigManager().isDebug()) {
+                            plugin.getLogger()
+                                    .info("[DEBUG] AI решил " + (shouldAnswer ? "ответить" : "не отвечать")
+                                            + " на спонтанное сообщение");
+                        }
+
+                        if (shouldAnswer) {
+                            // Обрабатываем сообщение
+                            processMessage(chatId, playerId, playerName, message, history, userProfile, false,
+                                    false, event.getTimestamp());
+                        }
+                    } catch (Exception e) {
+                        plugin.getLogger().warning("Ошибка при проверке shouldAnswer: " + e.getMessage());
+                        if (plugin.getConfigManager().isDebug()) {
+                            e.printStackTrace();
                         }
                     }
-                }.runTaskAsynchronously(plugin);
+                });
             }
         }
     }
 
-    private void processMessage(String chatId, String playerId, String playerName, String message,
-            boolean isDirectlyCalled) {
-        processMessage(chatId, playerId, playerName, message, isDirectlyCalled, false);
-    }
-
     /**
-     * Отправляет части сообщения с задержками через runTaskLater (не блокирует
-     * главный поток)
-     * 
-     * @param chatId       ID чата
-     * @param fullResponse Полный ответ для отправки
-     * @param startIndex   Индекс символа, с которого начинать отправку
-     * @param partNumber   Номер части (начинается с 1)
+     * Возвращает имена остальных участников чата (для определения, к кому
+     * обращается игрок)
      */
-    private void sendMessageParts(String chatId, String fullResponse, int startIndex, int partNumber) {
-        final int maxLength = 250;
-        final int maxParts = 2; // Максимум 2 сообщения
-
-        if (partNumber > maxParts || startIndex >= fullResponse.length()) {
-            // Все части отправлены, сохраняем в историю
-            plugin.getStorageService().addToHistory(chatId, plugin.getConfigManager().getBotName(), fullResponse);
-            return;
-        }
-
-        // Берем следующую часть
-        String remaining = fullResponse.substring(startIndex);
-        String part;
-        int nextStartIndex;
-
-        if (remaining.length() <= maxLength) {
-            part = remaining;
-            nextStartIndex = fullResponse.length(); // Все отправлено
-        } else {
-            // Ищем последний пробел перед лимитом для красивого разрыва
-            int breakPoint = maxLength;
-            int lastSpace = remaining.lastIndexOf(' ', breakPoint);
-            if (lastSpace > maxLength * 0.7) { // Если пробел не слишком далеко
-                breakPoint = lastSpace;
+    private List<String> getOtherUserNames(String chatId, String playerId) {
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, String> user : plugin.getStorageService().getChat(chatId).getUsers().entrySet()) {
+            if (!user.getKey().equals(playerId)) {
+                names.add(user.getValue());
             }
-            part = remaining.substring(0, breakPoint);
-            nextStartIndex = startIndex + breakPoint;
-        }
-
-        // Формируем сообщение
-        String botName = plugin.getConfigManager().getBotName();
-        String colorCode = plugin.getConfigManager().getNameColorCode();
-        String messageToSend;
-        if (plugin.getConfigManager().isSendAsPlayer()) {
-            // Формат игрока: <Имя> сообщение
-            messageToSend = colorCode + "<" + botName + "> §f" + part;
-        } else {
-            // Формат консоли: [Имя] сообщение
-            messageToSend = colorCode + "[" + botName + "] §f" + part;
-        }
-
-        // Отправляем сообщение в игру
-        plugin.getServer().broadcastMessage(messageToSend);
-
-        // Отправляем сообщение в Discord через Webhook (если настроено)
-        if (plugin.getConfigManager().isDiscordEnabled()
-                && !plugin.getConfigManager().getDiscordWebhookUrl().isEmpty()) {
-            // Убираем цветовые коды Minecraft для Discord
-            String cleanMessage = messageToSend.replaceAll("§[0-9a-fk-or]", "");
-            // Убираем префикс "<Имя>" или "[Имя]" из сообщения для Discord
-            String botNameEscaped = botName.replaceAll("[\\[\\]<>]", "\\\\$0"); // Экранируем для regex
-            final String discordMessage = cleanMessage.replaceAll("^\\s*[<\\[]" + botNameEscaped + "[>\\]]\\s*", "")
-                    .trim();
-            // Отправляем в Discord асинхронно
-            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
-                DiscordWebhookIntegration.sendMessage(
-                        plugin.getConfigManager().getDiscordWebhookUrl(),
-                        discordMessage,
-                        plugin.getConfigManager().getDiscordUsername(),
-                        plugin.getConfigManager().getDiscordAvatarUrl());
-            });
-        }
-
-        if (plugin.getConfigManager().isDebug()) {
-            plugin.getLogger().info("[DEBUG] Отправлено сообщение #" + partNumber + " (длина: "
-                    + part.length() + " символов)");
         }
+        return names;
+    }
 
-        // Если есть еще части для отправки, планируем следующую с задержкой 2 тика
-        // (100мс)
-        if (nextStartIndex < fullResponse.length() && partNumber < maxParts) {
-            new BukkitRunnable() {
-                @Override
-                public void run() {
-                    sendMessageParts(chatId, fullResponse, nextStartIndex, partNumber + 1);
-                }
-            }.runTaskLater(plugin, 2); // 2 тика = 100мс при 20 TPS
-        } else {
-            // Все части отправлены, сохраняем в историю
-            plugin.getStorageService().addToHistory(chatId, plugin.getConfigManager().getBotName(), fullResponse);
+    /**
+     * Последние обмены с игроком для анализа репутации
+     */
+    private String renderPlayerExchanges(String chatId, String playerId, String botReply) {
+        HistoryRing.Window exchanges = plugin.getStorageService().getPlayerHistoryWindow(chatId, playerId);
+        // Без кэша рендера: иначе в нем осталась бы запись на каждого игрока, которого анализировали
+        String context = plugin.getContextRenderer().renderUncached(exchanges, ContextBuilder.Task.ANALYSIS, null);
+        // Ответ бота пишется в историю после отправки в чат и мог еще не попасть туда
+        List<StorageService.ChatMessage> messages = exchanges.getMessages();
+        if (messages.isEmpty() || !messages.get(messages.size() - 1).getText().equals(botReply)) {
+            context = (context.isEmpty() ? "" : context + "\n") + plugin.getConfigManager().getBotName() + ": "
+                    + botReply;
         }
+        return context;
     }
 
     private void processMessage(String chatId, String playerId, String playerName, String message,
-            boolean isDirectlyCalled, boolean requiresSearch) {
+            HistoryRing.Window history, StorageService.UserProfile userProfile,
+            boolean isDirectlyCalled, boolean requiresSearch, long receivedAt) {
         try {
             if (plugin.getConfigManager().isDebug()) {
                 plugin.getLogger()
@@ -246,9 +208,6 @@ public class ChatListener implements Listener {
                         .info("[DEBUG] Режим: " + (isDirectlyCalled ? "прямое обращение" : "спонтанный ответ"));
             }
 
-            // Получаем профиль игрока
-            StorageService.UserProfile userProfile = plugin.getStorageService().getProfile(chatId, playerId);
-
             if (plugin.getConfigManager().isDebug()) {
                 plugin.getLogger().info("[DEBUG] Профиль игрока: репутация=" + userProfile.getRelationship()
                         + ", факты="
@@ -257,9 +216,6 @@ public class ChatListener implements Listener {
                                 : "нет"));
             }
 
-            // Получаем историю
-            List<StorageService.ChatMessage> history = plugin.getStorageService().getHistory(chatId);
-
             if (plugin.getConfigManager().isDebug()) {
                 plugin.getLogger().info("[DEBUG] Размер истории: " + history.size() + " сообщений");
             }
@@ -277,8 +233,13 @@ public class ChatListener implements Listener {
                 plugin.getLogger().info("[DEBUG] Запрос к AI для генерации ответа...");
             }
 
+            // Сводка старой переписки и подходящие сообщения из долгой памяти
+            // идут перед последними сообщениями
+            final String summary = plugin.getStorageService().getSummary(chatId);
+            final List<String> recalled = plugin.getLongTermMemory().recall(chatId, playerId, message);
             String response = plugin.getAIManager().getResponse(
-                    history,
+                    providerName -> plugin.getContextRenderer().render(chatId, history, summary, recalled,
+                            ContextBuilder.Task.RESPONSE, providerName),
                     processedMessage,
                     playerName,
                     userProfile,
@@ -295,79 +256,53 @@ public class ChatListener implements Listener {
                 return;
             }
 
-            // Разбиваем ответ на части по 256 символов (лимит Minecraft)
-            // Ограничение: максимум 2 сообщения подряд (510 символов)
-            final String fullResponse = response;
-            final double delaySeconds = plugin.getConfigManager().getResponseDelay();
-
-            // Вычисляем задержку в тиках (1 секунда = 20 тиков при 20 TPS)
-            long delayTicks = delaySeconds > 0 ? (long) (delaySeconds * 20) : 0;
-
-            // Используем runTaskLater для задержки вместо Thread.sleep
-            new BukkitRunnable() {
-                @Override
-                public void run() {
-                    sendMessageParts(chatId, fullResponse, 0, 1);
-                }
-            }.runTaskLater(plugin, delayTicks);
-
-            // Анализируем репутацию игрока
-            List<StorageService.ChatMessage> recentHistory = history.size() > 5
-                    ? history.subList(history.size() - 5, history.size())
-                    : history;
+            // Бот ответил игроку - дальше он может продолжить разговор без триггера
+            plugin.getConversationService().openSession(chatId, playerId, message, response);
 
-            String contextForAnalysis = recentHistory.stream()
-                    .map(m -> m.getRole() + ": " + m.getText())
-                    .reduce((a, b) -> a + "\n" + b)
-                    .orElse("");
+            // Отправка частями с задержкой и запись ответа в историю
+            final String fullResponse = response;
+            plugin.getResponseDispatcher().dispatch(chatId, playerId, fullResponse, receivedAt);
 
             // Асинхронный анализ репутации
-            new BukkitRunnable() {
-                @Override
-                public void run() {
-                    try {
-                        if (plugin.getConfigManager().isDebug()) {
-                            plugin.getLogger().info("[DEBUG] Начинаем анализ репутации для " + playerName);
-                        }
-                        StorageService.UserProfile updated = plugin.getAIManager().analyzeUserImmediate(
-                                contextForAnalysis,
-                                userProfile);
-                        if (updated != null) {
-                            if (plugin.getConfigManager().isDebug()) {
-                                int oldRep = userProfile.getRelationship();
-                                int newRep = updated.getRelationship();
-                                plugin.getLogger().info(
-                                        "[DEBUG] Репутация " + playerName + " изменена: " + oldRep + " -> " + newRep);
-                            }
-                            plugin.getStorageService().updateProfile(chatId, playerId, updated);
-                            plugin.getStorageService().save();
-                        }
-                    } catch (Exception e) {
-                        plugin.getLogger().warning("Ошибка анализа репутации: " + e.getMessage());
-                        if (plugin.getConfigManager().isDebug()) {
-                            plugin.getLogger().warning("[DEBUG] Ошибка анализа репутации: " + e.getMessage());
-                            e.printStackTrace();
-                        }
+            plugin.getAdmissionController().submit(AdmissionController.Priority.ANALYSIS, chatId, playerId,
+                    "репутация " + playerName, () -> {
+                try {
+                    if (plugin.getConfigManager().isDebug()) {
+                        plugin.getLogger().info("[DEBUG] Начинаем анализ репутации для " + playerName);
+                    }
+                    // Анализируем только переписку с этим игроком, а не весь чат
+                    String contextForAnalysis = renderPlayerExchanges(chatId, playerId, fullResponse);
+                    StorageService.ProfileDelta delta = plugin.getAIManager().analyzeUserImmediate(
+                            contextForAnalysis,
+                            userProfile);
+                    if (plugin.getConfigManager().isDebug()) {
+                        plugin.getLogger().info("[DEBUG] Репутация " + playerName + ": "
+                                + (delta.getRelationshipDelta() >= 0 ? "+" : "") + delta.getRelationshipDelta()
+                                + ", фактов добавлено " + delta.getAddedFacts().size()
+                                + ", удалено " + delta.getRemovedFacts().size());
+                    }
+                    // Применяем изменения к актуальной версии профиля: параллельный
+                    // анализ того же игрока мог уже сдвинуть репутацию
+                    if (!delta.isEmpty()) {
+                        plugin.getIngestionPipeline().execute(chatId, () -> {
+                            plugin.getStorageService().applyProfileDelta(chatId, playerId, delta);
+                        });
+                    }
+                } catch (Exception e) {
+                    plugin.getLogger().warning("Ошибка анализа репутации: " + e.getMessage());
+                    if (plugin.getConfigManager().isDebug()) {
+                        plugin.getLogger().warning("[DEBUG] Ошибка анализа репутации: " + e.getMessage());
+                        e.printStackTrace();
                     }
                 }
-            }.runTaskAsynchronously(plugin);
+            });
 
         } catch (Exception e) {
             plugin.getLogger().severe("Критическая ошибка AI: " + e.getMessage());
             e.printStackTrace();
 
             // Отправляем сообщение об ошибке
-            final String botName = plugin.getConfigManager().getBotName();
-            final String errorColorCode = plugin.getConfigManager().getNameColorCode();
-            final String errorPrefix = plugin.getConfigManager().isSendAsPlayer() ? "<" + botName + ">" : "[" + botName + "]";
-            final String errorMessage = errorColorCode + errorPrefix
-                    + " §7У меня шестеренки встали. Какая-то дичь в коде";
-            new BukkitRunnable() {
-                @Override
-                public void run() {
-                    plugin.getServer().broadcastMessage(errorMessage);
-                }
-            }.runTask(plugin);
+            plugin.getResponseDispatcher().notice(chatId, "У меня шестеренки встали. Какая-то дичь в коде");
         }
     }
 }
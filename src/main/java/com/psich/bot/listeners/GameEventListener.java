@@ -1,8 +1,13 @@
 package com.psich.bot.listeners;
 
 import com.psich.bot.PsichBot;
-import com.psich.bot.integrations.DiscordWebhookIntegration;
+import com.psich.bot.services.AdmissionController;
+import com.psich.bot.services.ContextBuilder;
+import com.psich.bot.services.HistoryRing;
+import com.psich.bot.services.IngestionPipeline;
+import com.psich.bot.services.IngestionPipeline.IngestEvent;
 import com.psich.bot.services.StorageService;
+import com.psich.bot.services.TickMonitor;
 import org.bukkit.advancement.Advancement;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
@@ -11,10 +16,9 @@ import org.bukkit.event.entity.PlayerDeathEvent;
 import org.bukkit.event.player.PlayerAdvancementDoneEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
-import org.bukkit.scheduler.BukkitRunnable;
 
 import java.util.List;
-import java.util.Random;
+
 
 /**
  * Слушатель игровых событий (смерть, достижения, подключение, отключение)
@@ -22,25 +26,41 @@ import java.util.Random;
 public class GameEventListener implements Listener {
 
     private final PsichBot plugin;
-    private final Random random = new Random();
 
     public GameEventListener(PsichBot plugin) {
         this.plugin = plugin;
+        IngestionPipeline pipeline = plugin.getIngestionPipeline();
+        pipeline.registerHandler(IngestEvent.Type.DEATH, this::handleDeath);
+        pipeline.registerHandler(IngestEvent.Type.ADVANCEMENT, this::handleAdvancement);
+        pipeline.registerHandler(IngestEvent.Type.JOIN, this::handleJoin);
+        pipeline.registerHandler(IngestEvent.Type.QUIT, this::handleQuit);
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onPlayerDeath(PlayerDeathEvent event) {
-        if (event.getEntity() == null) {
-            return;
+        long started = System.nanoTime();
+        try {
+            if (event.getEntity() == null) {
+                return;
+            }
+            // Только фиксируем событие - обработка идет в потоке конвейера
+            plugin.getIngestionPipeline().submit(IngestEvent.death(
+                    plugin.getChatPartitions().forPlayer(event.getEntity()),
+                    event.getEntity().getUniqueId().toString(), event.getEntity().getName(),
+                    event.getDeathMessage()));
+        } finally {
+            plugin.getTickMonitor().recordMainThreadWork(started);
         }
+    }
 
-        String playerName = event.getEntity().getName();
-        String playerId = event.getEntity().getUniqueId().toString();
-        String chatId = "global";
-        String deathMessage = event.getDeathMessage();
+    private void handleDeath(IngestEvent event) {
+        String playerName = event.getPlayerName();
+        String playerId = event.getPlayerId();
+        String chatId = event.getChatId();
+        String deathMessage = event.getText();
 
         // Проверяем шанс реакции на событие
-        if (random.nextDouble() < plugin.getConfigManager().getSpontaneousChanceDeath()) {
+        if (plugin.getSpontaneityGovernor().rollEvent(plugin.getConfigManager().getSpontaneousChanceDeath())) {
             // Шанс выпал, продолжаем обработку
         } else {
             if (plugin.getConfigManager().isDebug()) {
@@ -56,6 +76,11 @@ public class GameEventListener implements Listener {
             return;
         }
 
+        // При перегрузке сервера реакции на события - первое, от чего отказываемся
+        if (plugin.getTickMonitor().shouldShed(TickMonitor.Work.EVENT_REACTION)) {
+            return;
+        }
+
         if (plugin.getConfigManager().isDebug()) {
             plugin.getLogger().info("[DEBUG] Проверка реакции на смерть игрока " + playerName);
         }
@@ -65,70 +90,75 @@ public class GameEventListener implements Listener {
                 + (deathMessage != null ? " - " + deathMessage : " умер");
 
         // Получаем историю чата для контекста
-        final List<StorageService.ChatMessage> history = plugin.getStorageService().getHistory(chatId);
-        final int historySize = Math.min(15, history.size());
-        final List<StorageService.ChatMessage> recentHistory = history.subList(
-                Math.max(0, history.size() - historySize),
-                history.size());
-
-        final String historyBlock = recentHistory.stream()
-                .map(m -> m.getRole() + ": " + m.getText())
-                .reduce((a, b) -> a + "\n" + b)
-                .orElse("");
+        final HistoryRing.Window history = plugin.getStorageService().getHistoryWindow(chatId);
+        final StorageService.UserProfile profile = plugin.getStorageService().getProfile(chatId, playerId);
+        final String historyBlock = plugin.getContextRenderer().render(chatId, history,
+                        ContextBuilder.Task.SHOULD_ANSWER, null);
 
         // Проверяем shouldAnswer асинхронно
-        new BukkitRunnable() {
-            @Override
-            public void run() {
-                try {
-                    String fullContext = historyBlock + "\n" + eventContext;
-                    boolean shouldAnswer = plugin.getAIManager().shouldAnswer(fullContext);
-                    if (plugin.getConfigManager().isDebug()) {
-                        plugin.getLogger().info("[DEBUG] AI решил " + (shouldAnswer ? "ответить" : "не отвечать")
-                                + " на смерть игрока");
-                    }
-
-                    if (shouldAnswer) {
-                        // Обрабатываем событие
-                        processEvent(chatId, playerId, playerName, eventContext, "death");
-                    }
-                } catch (Exception e) {
-                    plugin.getLogger()
-                            .warning("Ошибка при проверке shouldAnswer для события смерти: " + e.getMessage());
-                    if (plugin.getConfigManager().isDebug()) {
-                        e.printStackTrace();
-                    }
+        plugin.getAdmissionController().submit(AdmissionController.Priority.EVENT, chatId, playerId,
+                "событие " + playerName, () -> {
+            try {
+                String fullContext = historyBlock + "\n" + eventContext;
+                boolean shouldAnswer = plugin.getAIManager().shouldAnswer(fullContext);
+                if (plugin.getConfigManager().isDebug()) {
+                    plugin.getLogger().info("[DEBUG] AI решил " + (shouldAnswer ? "ответить" : "не отвечать")
+                            + " на смерть игрока");
+                }
+
+                if (shouldAnswer) {
+                    // Обрабатываем событие
+                    processEvent(chatId, playerId, playerName, eventContext, "death", history, profile,
+                            event.getTimestamp());
+                }
+            } catch (Exception e) {
+                plugin.getLogger()
+                        .warning("Ошибка при проверке shouldAnswer для события смерти: " + e.getMessage());
+                if (plugin.getConfigManager().isDebug()) {
+                    e.printStackTrace();
                 }
             }
-        }.runTaskAsynchronously(plugin);
+        });
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onPlayerAdvancement(PlayerAdvancementDoneEvent event) {
-        if (event.getPlayer() == null || event.getAdvancement() == null) {
-            return;
-        }
-
-        String playerName = event.getPlayer().getName();
-        String playerId = event.getPlayer().getUniqueId().toString();
-        String chatId = "global";
-        Advancement advancement = event.getAdvancement();
+        long started = System.nanoTime();
+        try {
+            if (event.getPlayer() == null || event.getAdvancement() == null) {
+                return;
+            }
+            Advancement advancement = event.getAdvancement();
+            String advancementKey = advancement.getKey().getKey();
 
-        String advancementKey = advancement.getKey().getKey();
+            // Пропускаем root достижения и рецепты (recipes/*)
+            if (advancementKey.contains("root") || advancementKey.startsWith("recipes/")) {
+                return;
+            }
 
-        // Пропускаем root достижения и рецепты (recipes/*)
-        if (advancementKey.contains("root") || advancementKey.startsWith("recipes/")) {
-            return;
+            // Только фиксируем событие - обработка идет в потоке конвейера
+            plugin.getIngestionPipeline().submit(IngestEvent.advancement(
+                    plugin.getChatPartitions().forPlayer(event.getPlayer()),
+                    event.getPlayer().getUniqueId().toString(), event.getPlayer().getName(), advancementKey,
+                    advancement.getDisplay() != null ? advancement.getDisplay().title() : null));
+        } finally {
+            plugin.getTickMonitor().recordMainThreadWork(started);
         }
+    }
+
+    private void handleAdvancement(IngestEvent event) {
+        String playerName = event.getPlayerName();
+        String playerId = event.getPlayerId();
+        String chatId = event.getChatId();
 
         // Получаем название достижения
-        String advancementName = advancementKey;
-        if (advancement.getDisplay() != null && advancement.getDisplay().title() != null) {
-            advancementName = advancement.getDisplay().title().toString();
+        String advancementName = event.getText();
+        if (event.getTitle() != null) {
+            advancementName = event.getTitle().toString();
         }
 
         // Проверяем шанс реакции на событие
-        if (random.nextDouble() < plugin.getConfigManager().getSpontaneousChanceAdvancement()) {
+        if (plugin.getSpontaneityGovernor().rollEvent(plugin.getConfigManager().getSpontaneousChanceAdvancement())) {
             // Шанс выпал, продолжаем обработку
         } else {
             if (plugin.getConfigManager().isDebug()) {
@@ -144,6 +174,11 @@ public class GameEventListener implements Listener {
             return;
         }
 
+        // При перегрузке сервера реакции на события - первое, от чего отказываемся
+        if (plugin.getTickMonitor().shouldShed(TickMonitor.Work.EVENT_REACTION)) {
+            return;
+        }
+
         if (plugin.getConfigManager().isDebug()) {
             plugin.getLogger().info("[DEBUG] Проверка реакции на достижение игрока " + playerName);
         }
@@ -152,58 +187,65 @@ public class GameEventListener implements Listener {
         final String eventContext = "Событие: Игрок " + playerName + " получил достижение: " + advancementName;
 
         // Получаем историю чата для контекста
-        final List<StorageService.ChatMessage> history = plugin.getStorageService().getHistory(chatId);
-        final int historySize = Math.min(15, history.size());
-        final List<StorageService.ChatMessage> recentHistory = history.subList(
-                Math.max(0, history.size() - historySize),
-                history.size());
-
-        final String historyBlock = recentHistory.stream()
-                .map(m -> m.getRole() + ": " + m.getText())
-                .reduce((a, b) -> a + "\n" + b)
-                .orElse("");
+        final HistoryRing.Window history = plugin.getStorageService().getHistoryWindow(chatId);
+        final StorageService.UserProfile profile = plugin.getStorageService().getProfile(chatId, playerId);
+        final String historyBlock = plugin.getContextRenderer().render(chatId, history,
+                        ContextBuilder.Task.SHOULD_ANSWER, null);
 
         // Проверяем shouldAnswer асинхронно
-        new BukkitRunnable() {
-            @Override
-            public void run() {
-                try {
-                    String fullContext = historyBlock + "\n" + eventContext;
-                    boolean shouldAnswer = plugin.getAIManager().shouldAnswer(fullContext);
-                    if (plugin.getConfigManager().isDebug()) {
-                        plugin.getLogger().info("[DEBUG] AI решил " + (shouldAnswer ? "ответить" : "не отвечать")
-                                + " на достижение игрока");
-                    }
-
-                    if (shouldAnswer) {
-                        // Обрабатываем событие
-                        processEvent(chatId, playerId, playerName, eventContext, "advancement");
-                    }
-                } catch (Exception e) {
-                    plugin.getLogger().warning("Ошибка при проверке shouldAnswer для достижения: " + e.getMessage());
-                    if (plugin.getConfigManager().isDebug()) {
-                        e.printStackTrace();
-                    }
+        plugin.getAdmissionController().submit(AdmissionController.Priority.EVENT, chatId, playerId,
+                "событие " + playerName, () -> {
+            try {
+                String fullContext = historyBlock + "\n" + eventContext;
+                boolean shouldAnswer = plugin.getAIManager().shouldAnswer(fullContext);
+                if (plugin.getConfigManager().isDebug()) {
+                    plugin.getLogger().info("[DEBUG] AI решил " + (shouldAnswer ? "ответить" : "не отвечать")
+                            + " на достижение игрока");
+                }
+
+                if (shouldAnswer) {
+                    // Обрабатываем событие
+                    processEvent(chatId, playerId, playerName, eventContext, "advancement", history, profile,
+                            event.getTimestamp());
+                }
+            } catch (Exception e) {
+                plugin.getLogger().warning("Ошибка при проверке shouldAnswer для достижения: " + e.getMessage());
+                if (plugin.getConfigManager().isDebug()) {
+                    e.printStackTrace();
                 }
             }
-        }.runTaskAsynchronously(plugin);
+        });
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onPlayerJoin(PlayerJoinEvent event) {
-        if (event.getPlayer() == null) {
-            return;
+        long started = System.nanoTime();
+        try {
+            if (event.getPlayer() == null) {
+                return;
+            }
+            String chatId = plugin.getChatPartitions().forPlayer(event.getPlayer());
+            // Профиль читаем заранее, чтобы первое обращение игрока не ждало диск
+            plugin.getStorageService().prefetchProfile(chatId, event.getPlayer().getUniqueId().toString());
+            // Только фиксируем событие - обработка идет в потоке конвейера
+            plugin.getIngestionPipeline().submit(IngestEvent.join(chatId,
+                    event.getPlayer().getUniqueId().toString(), event.getPlayer().getName(),
+                    !event.getPlayer().hasPlayedBefore()));
+        } finally {
+            plugin.getTickMonitor().recordMainThreadWork(started);
         }
+    }
 
-        String playerName = event.getPlayer().getName();
-        String playerId = event.getPlayer().getUniqueId().toString();
-        String chatId = "global";
+    private void handleJoin(IngestEvent event) {
+        String playerName = event.getPlayerName();
+        String playerId = event.getPlayerId();
+        String chatId = event.getChatId();
 
         // Проверяем, первый ли раз игрок на сервере
-        boolean isFirstJoin = !event.getPlayer().hasPlayedBefore();
+        boolean isFirstJoin = event.isFirstJoin();
 
         // Проверяем шанс реакции на событие
-        if (random.nextDouble() < plugin.getConfigManager().getSpontaneousChanceJoinQuit()) {
+        if (plugin.getSpontaneityGovernor().rollEvent(plugin.getConfigManager().getSpontaneousChanceJoinQuit())) {
             // Шанс выпал, продолжаем обработку
         } else {
             if (plugin.getConfigManager().isDebug()) {
@@ -219,6 +261,11 @@ public class GameEventListener implements Listener {
             return;
         }
 
+        // При перегрузке сервера реакции на события - первое, от чего отказываемся
+        if (plugin.getTickMonitor().shouldShed(TickMonitor.Work.EVENT_REACTION)) {
+            return;
+        }
+
         if (plugin.getConfigManager().isDebug()) {
             plugin.getLogger().info("[DEBUG] Проверка реакции на подключение игрока " + playerName
                     + (isFirstJoin ? " (первый раз)" : ""));
@@ -230,56 +277,61 @@ public class GameEventListener implements Listener {
                 : "Событие: Игрок " + playerName + " присоединился к серверу";
 
         // Получаем историю чата для контекста
-        final List<StorageService.ChatMessage> history = plugin.getStorageService().getHistory(chatId);
-        final int historySize = Math.min(15, history.size());
-        final List<StorageService.ChatMessage> recentHistory = history.subList(
-                Math.max(0, history.size() - historySize),
-                history.size());
-
-        final String historyBlock = recentHistory.stream()
-                .map(m -> m.getRole() + ": " + m.getText())
-                .reduce((a, b) -> a + "\n" + b)
-                .orElse("");
+        final HistoryRing.Window history = plugin.getStorageService().getHistoryWindow(chatId);
+        final StorageService.UserProfile profile = plugin.getStorageService().getProfile(chatId, playerId);
+        final String historyBlock = plugin.getContextRenderer().render(chatId, history,
+                        ContextBuilder.Task.SHOULD_ANSWER, null);
 
         // Проверяем shouldAnswer асинхронно
-        new BukkitRunnable() {
-            @Override
-            public void run() {
-                try {
-                    String fullContext = historyBlock + "\n" + eventContext;
-                    boolean shouldAnswer = plugin.getAIManager().shouldAnswer(fullContext);
-                    if (plugin.getConfigManager().isDebug()) {
-                        plugin.getLogger().info("[DEBUG] AI решил " + (shouldAnswer ? "ответить" : "не отвечать")
-                                + " на подключение игрока");
-                    }
-
-                    if (shouldAnswer) {
-                        // Обрабатываем событие
-                        processEvent(chatId, playerId, playerName, eventContext, "join");
-                    }
-                } catch (Exception e) {
-                    plugin.getLogger()
-                            .warning("Ошибка при проверке shouldAnswer для события подключения: " + e.getMessage());
-                    if (plugin.getConfigManager().isDebug()) {
-                        e.printStackTrace();
-                    }
+        plugin.getAdmissionController().submit(AdmissionController.Priority.EVENT, chatId, playerId,
+                "событие " + playerName, () -> {
+            try {
+                String fullContext = historyBlock + "\n" + eventContext;
+                boolean shouldAnswer = plugin.getAIManager().shouldAnswer(fullContext);
+                if (plugin.getConfigManager().isDebug()) {
+                    plugin.getLogger().info("[DEBUG] AI решил " + (shouldAnswer ? "ответить" : "не отвечать")
+                            + " на подключение игрока");
+                }
+
+                if (shouldAnswer) {
+                    // Обрабатываем событие
+                    processEvent(chatId, playerId, playerName, eventContext, "join", history, profile,
+                            event.getTimestamp());
+                }
+            } catch (Exception e) {
+                plugin.getLogger()
+                        .warning("Ошибка при проверке shouldAnswer для события подключения: " + e.getMessage());
+                if (plugin.getConfigManager().isDebug()) {
+                    e.printStackTrace();
                 }
             }
-        }.runTaskAsynchronously(plugin);
+        });
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onPlayerQuit(PlayerQuitEvent event) {
-        if (event.getPlayer() == null) {
-            return;
+        long started = System.nanoTime();
+        try {
+            if (event.getPlayer() == null) {
+                return;
+            }
+            String chatId = plugin.getChatPartitions().forPlayer(event.getPlayer());
+            plugin.getStorageService().releaseProfile(chatId, event.getPlayer().getUniqueId().toString());
+            // Только фиксируем событие - обработка идет в потоке конвейера
+            plugin.getIngestionPipeline().submit(IngestEvent.quit(chatId,
+                    event.getPlayer().getUniqueId().toString(), event.getPlayer().getName()));
+        } finally {
+            plugin.getTickMonitor().recordMainThreadWork(started);
         }
+    }
 
-        String playerName = event.getPlayer().getName();
-        String playerId = event.getPlayer().getUniqueId().toString();
-        String chatId = "global";
+    private void handleQuit(IngestEvent event) {
+        String playerName = event.getPlayerName();
+        String playerId = event.getPlayerId();
+        String chatId = event.getChatId();
 
         // Проверяем шанс реакции на событие
-        if (random.nextDouble() < plugin.getConfigManager().getSpontaneousChanceJoinQuit()) {
+        if (plugin.getSpontaneityGovernor().rollEvent(plugin.getConfigManager().getSpontaneousChanceJoinQuit())) {
             // Шанс выпал, продолжаем обработку
         } else {
             if (plugin.getConfigManager().isDebug()) {
@@ -295,6 +347,11 @@ public class GameEventListener implements Listener {
             return;
         }
 
+        // При перегрузке сервера реакции на события - первое, от чего отказываемся
+        if (plugin.getTickMonitor().shouldShed(TickMonitor.Work.EVENT_REACTION)) {
+            return;
+        }
+
         if (plugin.getConfigManager().isDebug()) {
             plugin.getLogger().info("[DEBUG] Проверка реакции на отключение игрока " + playerName);
         }
@@ -303,73 +360,53 @@ public class GameEventListener implements Listener {
         final String eventContext = "Событие: Игрок " + playerName + " отключился от сервера";
 
         // Получаем историю чата для контекста
-        final List<StorageService.ChatMessage> history = plugin.getStorageService().getHistory(chatId);
-        final int historySize = Math.min(15, history.size());
-        final List<StorageService.ChatMessage> recentHistory = history.subList(
-                Math.max(0, history.size() - historySize),
-                history.size());
-
-        final String historyBlock = recentHistory.stream()
-                .map(m -> m.getRole() + ": " + m.getText())
-                .reduce((a, b) -> a + "\n" + b)
-                .orElse("");
+        final HistoryRing.Window history = plugin.getStorageService().getHistoryWindow(chatId);
+        final StorageService.UserProfile profile = plugin.getStorageService().getProfile(chatId, playerId);
+        final String historyBlock = plugin.getContextRenderer().render(chatId, history,
+                        ContextBuilder.Task.SHOULD_ANSWER, null);
 
         // Проверяем shouldAnswer асинхронно
-        new BukkitRunnable() {
-            @Override
-            public void run() {
-                try {
-                    String fullContext = historyBlock + "\n" + eventContext;
-                    boolean shouldAnswer = plugin.getAIManager().shouldAnswer(fullContext);
-                    if (plugin.getConfigManager().isDebug()) {
-                        plugin.getLogger().info("[DEBUG] AI решил " + (shouldAnswer ? "ответить" : "не отвечать")
-                                + " на отключение игрока");
-                    }
-
-                    if (shouldAnswer) {
-                        // Обрабатываем событие
-                        processEvent(chatId, playerId, playerName, eventContext, "quit");
-                    }
-                } catch (Exception e) {
-                    plugin.getLogger()
-                            .warning("Ошибка при проверке shouldAnswer для события отключения: " + e.getMessage());
-                    if (plugin.getConfigManager().isDebug()) {
-                        e.printStackTrace();
-                    }
+        plugin.getAdmissionController().submit(AdmissionController.Priority.EVENT, chatId, playerId,
+                "событие " + playerName, () -> {
+            try {
+                String fullContext = historyBlock + "\n" + eventContext;
+                boolean shouldAnswer = plugin.getAIManager().shouldAnswer(fullContext);
+                if (plugin.getConfigManager().isDebug()) {
+                    plugin.getLogger().info("[DEBUG] AI решил " + (shouldAnswer ? "ответить" : "не отвечать")
+                            + " на отключение игрока");
+                }
+
+                if (shouldAnswer) {
+                    // Обрабатываем событие
+                    processEvent(chatId, playerId, playerName, eventContext, "quit", history, profile,
+                            event.getTimestamp());
+                }
+            } catch (Exception e) {
+                plugin.getLogger()
+                        .warning("Ошибка при проверке shouldAnswer для события отключения: " + e.getMessage());
+                if (plugin.getConfigManager().isDebug()) {
+                    e.printStackTrace();
                 }
             }
-        }.runTaskAsynchronously(plugin);
+        });
     }
 
     /**
      * Обрабатывает игровое событие и генерирует ответ
      */
     private void processEvent(String chatId, String playerId, String playerName, String eventContext,
-            String eventType) {
+            String eventType, HistoryRing.Window history, StorageService.UserProfile profile, long receivedAt) {
         try {
-            // Получаем историю чата
-            List<StorageService.ChatMessage> history = plugin.getStorageService().getHistory(chatId);
-            int contextSize = plugin.getConfigManager().getContextSize();
-            int historySize = Math.min(contextSize, history.size());
-            List<StorageService.ChatMessage> recentHistory = history.subList(
-                    Math.max(0, history.size() - historySize),
-                    history.size());
-
-            // Формируем контекст
-            String contextStr = recentHistory.stream()
-                    .map(m -> m.getRole() + ": " + m.getText())
-                    .reduce((a, b) -> a + "\n" + b)
-                    .orElse("");
-
-            // Добавляем информацию о событии в контекст
-            contextStr += "\n" + eventContext;
-
-            // Получаем профиль игрока
-            StorageService.UserProfile profile = plugin.getStorageService().getProfile(chatId, playerId);
+            // Формируем контекст (не больше context-size последних сообщений)
+            int contextSize = Math.min(plugin.getConfigManager().getContextSize(),
+                    ContextBuilder.Task.RESPONSE.getMaxMessages());
+            final String summary = plugin.getStorageService().getSummary(chatId);
+            final List<String> recalled = plugin.getLongTermMemory().recall(chatId, playerId, eventContext);
 
             // Генерируем ответ через AI
             String response = plugin.getAIManager().getResponse(
-                    recentHistory,
+                    providerName -> plugin.getContextRenderer().render(chatId, history, summary, recalled,
+                            contextSize, ContextBuilder.Task.RESPONSE, providerName),
                     eventContext, // Используем событие как "сообщение"
                     playerName,
                     profile,
@@ -380,12 +417,12 @@ public class GameEventListener implements Listener {
                 return;
             }
 
-            // Отправляем ответ в игру и Discord
-            sendResponse(chatId, response);
+            // Сохраняем событие в историю (в потоке конвейера), ответ запишется после отправки
+            plugin.getIngestionPipeline().execute(chatId,
+                    () -> plugin.getStorageService().addToHistory(chatId, playerName, eventContext, playerId));
 
-            // Сохраняем событие и ответ в историю
-            plugin.getStorageService().addToHistory(chatId, playerName, eventContext);
-            plugin.getStorageService().addToHistory(chatId, plugin.getConfigManager().getBotName(), response);
+            // Отправляем ответ в игру и Discord
+            plugin.getResponseDispatcher().dispatch(chatId, playerId, response, receivedAt);
 
         } catch (Exception e) {
             plugin.getLogger().severe("Ошибка обработки события: " + e.getMessage());
@@ -394,100 +431,4 @@ public class GameEventListener implements Listener {
             }
         }
     }
-
-    /**
-     * Отправляет ответ бота в игру и Discord
-     */
-    private void sendResponse(String chatId, String response) {
-        final String fullResponse = response;
-        final double delaySeconds = plugin.getConfigManager().getResponseDelay();
-
-        // Вычисляем задержку в тиках (1 секунда = 20 тиков при 20 TPS)
-        long delayTicks = delaySeconds > 0 ? (long) (delaySeconds * 20) : 0;
-
-        // Используем runTaskLater для задержки вместо Thread.sleep
-        new BukkitRunnable() {
-            @Override
-            public void run() {
-                sendMessageParts(chatId, fullResponse, 0, 1);
-            }
-        }.runTaskLater(plugin, delayTicks);
-    }
-
-    /**
-     * Отправляет части сообщения с задержками через runTaskLater (не блокирует
-     * главный поток)
-     * 
-     * @param chatId       ID чата
-     * @param fullResponse Полный ответ для отправки
-     * @param startIndex   Индекс символа, с которого начинать отправку
-     * @param partNumber   Номер части (начинается с 1)
-     */
-    private void sendMessageParts(String chatId, String fullResponse, int startIndex, int partNumber) {
-        final int maxLength = 250;
-        final int maxParts = 2; // Максимум 2 сообщения
-
-        if (partNumber > maxParts || startIndex >= fullResponse.length()) {
-            // Все части отправлены
-            return;
-        }
-
-        // Берем следующую часть
-        String remaining = fullResponse.substring(startIndex);
-        String part;
-        int nextStartIndex;
-
-        if (remaining.length() <= maxLength) {
-            part = remaining;
-            nextStartIndex = fullResponse.length(); // Все отправлено
-        } else {
-            // Ищем последний пробел перед лимитом для красивого разрыва
-            int breakPoint = maxLength;
-            int lastSpace = remaining.lastIndexOf(' ', breakPoint);
-            if (lastSpace > maxLength * 0.7) { // Если пробел не слишком далеко
-                breakPoint = lastSpace;
-            }
-            part = remaining.substring(0, breakPoint);
-            nextStartIndex = startIndex + breakPoint;
-        }
-
-        // Формируем сообщение
-        String botName = plugin.getConfigManager().getBotName();
-        String colorCode = plugin.getConfigManager().getNameColorCode();
-        String messageToSend;
-        if (plugin.getConfigManager().isSendAsPlayer()) {
-            messageToSend = colorCode + "<" + botName + "> §f" + part;
-        } else {
-            messageToSend = colorCode + "[" + botName + "] §f" + part;
-        }
-
-        // Отправляем в игру
-        plugin.getServer().broadcastMessage(messageToSend);
-
-        // Отправляем в Discord
-        if (plugin.getConfigManager().isDiscordEnabled()
-                && !plugin.getConfigManager().getDiscordWebhookUrl().isEmpty()) {
-            String cleanMessage = messageToSend.replaceAll("§[0-9a-fk-or]", "");
-            String botNameEscaped = botName.replaceAll("[\\[\\]<>]", "\\\\$0"); // Экранируем для regex
-            final String discordMessage = cleanMessage.replaceAll("^\\s*[<\\[]" + botNameEscaped + "[>\\]]\\s*", "").trim();
-            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
-                DiscordWebhookIntegration.sendMessage(
-                        plugin.getConfigManager().getDiscordWebhookUrl(),
-                        discordMessage,
-                        plugin.getConfigManager().getDiscordUsername(),
-                        plugin.getConfigManager().getDiscordAvatarUrl());
-            });
-        }
-
-        // Если есть еще части для отправки, планируем следующую с задержкой 2 тика
-        // (100мс)
-        if (nextStartIndex < fullResponse.length() && partNumber < maxParts) {
-            new BukkitRunnable() {
-                @Override
-                public void run() {
-                    sendMessageParts(chatId, fullResponse, nextStartIndex, partNumber + 1);
-                }
-            }.runTaskLater(plugin, 2); // 2 тика = 100мс при 20 TPS
-        }
-    }
 }
@@ -8,6 +8,7 @@ import org.bukkit.plugin.java.JavaPlugin;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.function.Function;
 
 public class AIManager {
 
@@ -15,7 +16,10 @@ public class AIManager {
     private final List<BaseProvider> providers;
     private final Random random = new Random();
 
-    public AIManager(ConfigManager config) {
+    /**
+     * @param quotaCoordinator учет лимитов ключей (null - ключи меняются только после 429)
+     */
+    public AIManager(ConfigManager config, TokenEstimator tokenEstimator, QuotaCoordinator quotaCoordinator) {
         this.config = config;
         this.providers = new ArrayList<>();
 
@@ -49,6 +53,12 @@ public class AIManager {
                     .info("DeepSeek провайдер инициализирован с " + config.getDeepseekKeys().size() + " ключами");
         }
 
+        // Фактический расход токенов из ответов уточняет оценку контекста
+        for (BaseProvider provider : providers) {
+            provider.setUsageListener(tokenEstimator::calibrate);
+            provider.setQuotaCoordinator(quotaCoordinator);
+        }
+
         // Логируем статус прокси
         if (config.isProxyEnabled()) {
             JavaPlugin.getPlugin(com.psich.bot.PsichBot.class).getLogger()
@@ -241,47 +251,28 @@ public class AIManager {
         }
     }
 
-    public String getResponse(List<StorageService.ChatMessage> history,
+    /**
+     * @param contextForProvider последние сообщения чата под бюджет токенов
+     *                           провайдера (по имени провайдера, см. ContextRenderer)
+     */
+    public String getResponse(Function<String, String> contextForProvider,
             String currentMessage,
             String senderName,
             StorageService.UserProfile userProfile,
             boolean isSpontaneous) throws Exception {
-        return getResponse(history, currentMessage, senderName, userProfile, isSpontaneous, false);
+        return getResponse(contextForProvider, currentMessage, senderName, userProfile, isSpontaneous, false);
     }
 
-    public String getResponse(List<StorageService.ChatMessage> history,
+    public String getResponse(Function<String, String> contextForProvider,
             String currentMessage,
             String senderName,
             StorageService.UserProfile userProfile,
             boolean isSpontaneous,
             boolean requiresSearch) throws Exception {
+        // В досье только факты, относящиеся к сообщению
+        String personalInfo = ContextRenderer.renderDossier(userProfile, currentMessage,
+                config.getFactsDossierSize());
         return executeWithFallback((provider) -> {
-            // Берем последние 20 сообщений
-            List<StorageService.ChatMessage> relevantHistory = history.size() > 20
-                    ? history.subList(history.size() - 20, history.size())
-                    : history;
-
-            String contextStr = relevantHistory.stream()
-                    .map(m -> m.getRole() + ": " + m.getText())
-                    .reduce((a, b) -> a + "\n" + b)
-                    .orElse("");
-
-            String personalInfo = "";
-            if (userProfile != null) {
-                int score = userProfile.getRelationship();
-                String relationText = "";
-                if (score <= 20) {
-                    relationText = "СТАТУС: ВРАГ (" + score + "/100). Отвечай грубо, с сарказмом.";
-                } else if (score <= 40) {
-                    relationText = "СТАТУС: ХОЛОД (" + score + "/100). Язви, не доверяй.";
-                } else if (score >= 80) {
-                    relationText = "СТАТУС: БРАТАН (" + score + "/100). Поддерживай, шути по-доброму.";
-                }
-
-                personalInfo = "\n--- ДОСЬЕ ---\nФакты: "
-                        + (userProfile.getFacts() != null ? userProfile.getFacts() : "Нет") + "\n" + relationText
-                        + "\n-----------------\n";
-            }
 
             String systemPrompt = Prompts.getSystemPrompt();
 
@@ -304,7 +295,7 @@ public class AIManager {
             String fullPrompt = Prompts.getMainChatPrompt(
                     isSpontaneous,
                     currentMessage,
-                    contextStr,
+                    contextForProvider.apply(provider.getName()),
                     personalInfo,
                     senderName,
                     botName) + searchInstruction;
@@ -420,10 +411,45 @@ public class AIManager {
         }
     }
 
-    public StorageService.UserProfile analyzeUserImmediate(String lastMessages,
+    /**
+     * Сворачивает вытесненные из истории сообщения в сводку чата.
+     * Сначала пробует дешевую модель, как и shouldAnswer.
+     */
+    public String summarize(String previousSummary, String messages) throws Exception {
+        String prompt = Prompts.getSummaryPrompt(previousSummary, messages, config.getBotName(),
+                config.getSummaryMaxChars());
+        BaseProvider simpleProvider = selectSimpleProvider();
+        if (simpleProvider != null) {
+            try {
+                BaseProvider.GenerateOptions options = new BaseProvider.GenerateOptions();
+                options.setMaxTokens(600);
+                return simpleProvider.generate(prompt, options).trim();
+            } catch (Exception error) {
+                if (config.isDebug()) {
+                    JavaPlugin.getPlugin(com.psich.bot.PsichBot.class).getLogger()
+                            .warning("[DEBUG] Простой провайдер " + simpleProvider.getName()
+                                    + " не смог сделать сводку, используем fallback: " + error.getMessage());
+                }
+            }
+        }
+        return executeWithFallback((provider) -> {
+            BaseProvider.GenerateOptions options = new BaseProvider.GenerateOptions();
+            options.setMaxTokens(600);
+            return provider.generate(prompt, options);
+        }, false, false).trim();
+    }
+
+    /**
+     * Анализ репутации: возвращает изменения профиля (сдвиг репутации, новые и
+     * устаревшие факты), а не переписанный профиль целиком
+     */
+    public StorageService.ProfileDelta analyzeUserImmediate(String lastMessages,
             StorageService.UserProfile currentProfile) throws Exception {
+        // Анализу показываем только факты, относящиеся к диалогу
+        List<StorageService.FactEntry> shownFacts = FactSelector.select(currentProfile.getFactEntries(),
+                lastMessages, config.getFactsAnalysisSize());
         String result = executeWithFallback((provider) -> {
-            String prompt = Prompts.getAnalyzeImmediatePrompt(currentProfile, lastMessages);
+            String prompt = Prompts.getAnalyzeImmediatePrompt(currentProfile, shownFacts, lastMessages);
             BaseProvider.GenerateOptions options = new BaseProvider.GenerateOptions();
             options.setMaxTokens(1000);
             options.setExpectJson(true);
@@ -431,7 +457,7 @@ public class AIManager {
         }, false, false);
 
         // Парсим JSON ответ
-        return Prompts.parseProfileJson(result, currentProfile);
+        return Prompts.parseProfileDelta(result, currentProfile, shownFacts);
     }
 
     @FunctionalInterface
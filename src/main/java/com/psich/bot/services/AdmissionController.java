@@ -0,0 +1,340 @@
+package com.psich.bot.services;
+
+import com.psich.bot.PsichBot;
+import com.psich.bot.utils.ConfigManager;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Единая точка входа для всей AI-работы плагина.
+ * Ограничивает число одновременных запросов к AI, выполняет задачи по
+ * приоритету, ограничивает частоту запросов от одного игрока и от одного
+ * раздела чата (шумный мир не занимает очередь остальных) и отбрасывает
+ * низкоприоритетные задачи, которые слишком долго ждали в очереди.
+ */
+public class AdmissionController {
+
+    /**
+     * Классы приоритета (в порядке убывания важности)
+     */
+    public enum Priority {
+        DIRECT_MENTION("direct", "прямое обращение", 60),
+        DISCORD_MENTION("discord", "обращение из Discord", 60),
+        SPONTANEOUS("spontaneous", "спонтанный ответ", 15),
+        EVENT("event", "игровое событие", 15),
+        ANALYSIS("analysis", "анализ репутации", 120);
+
+        private final String configKey;
+        private final String displayName;
+        private final int defaultMaxAgeSeconds;
+
+        Priority(String configKey, String displayName, int defaultMaxAgeSeconds) {
+            this.configKey = configKey;
+            this.displayName = displayName;
+            this.defaultMaxAgeSeconds = defaultMaxAgeSeconds;
+        }
+
+        public String getConfigKey() {
+            return configKey;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        public int getDefaultMaxAgeSeconds() {
+            return defaultMaxAgeSeconds;
+        }
+    }
+
+    private static final int PRIORITIES = Priority.values().length;
+    private static final long BUCKET_IDLE_MILLIS = 10 * 60 * 1000L;
+
+    private final PsichBot plugin;
+    private final ConfigManager config;
+    private final PriorityBlockingQueue<Job> queue;
+    private final List<Thread> workers = new ArrayList<>();
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> chatBuckets = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final AtomicLongArray queued = new AtomicLongArray(PRIORITIES);
+    private final AtomicLongArray completed = new AtomicLongArray(PRIORITIES);
+    private final AtomicLongArray droppedRateLimit = new AtomicLongArray(PRIORITIES);
+    private final AtomicLongArray droppedQueueFull = new AtomicLongArray(PRIORITIES);
+    private final AtomicLongArray droppedStale = new AtomicLongArray(PRIORITIES);
+
+    private volatile boolean running = true;
+
+    public AdmissionController(PsichBot plugin, ConfigManager config) {
+        this.plugin = plugin;
+        this.config = config;
+        this.queue = new PriorityBlockingQueue<>(32, Comparator
+                .comparingInt((Job job) -> job.priority.ordinal())
+                .thenComparingLong(job -> job.sequence));
+
+        int threads = Math.max(1, config.getAdmissionMaxConcurrent());
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::workerLoop, "PsichBot-AI-" + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Ставит задачу в очередь
+     *
+     * @param priority    класс приоритета
+     * @param chatId      раздел чата (null - без лимита на раздел)
+     * @param playerId    игрок, от имени которого выполняется задача (null - без
+     *                    лимита на игрока)
+     * @param description краткое описание для логов
+     * @param task        сама задача
+     * @return false, если задача отклонена (лимит игрока или раздела, переполнение очереди)
+     */
+    public boolean submit(Priority priority, String chatId, String playerId, String description, Runnable task) {
+        if (!running) {
+            return false;
+        }
+
+        // Анализ репутации идет следом за уже принятым ответом, поэтому не тратит лимиты
+        boolean limited = priority != Priority.ANALYSIS;
+        if (playerId != null && limited && !acquireToken(playerId)) {
+            droppedRateLimit.incrementAndGet(priority.ordinal());
+            debug("Отклонено (лимит игрока): " + description);
+            return false;
+        }
+        if (chatId != null && limited && !acquireChatToken(chatId)) {
+            if (playerId != null) {
+                refundToken(buckets, playerId, config.getAdmissionPlayerBurst());
+            }
+            droppedRateLimit.incrementAndGet(priority.ordinal());
+            debug("Отклонено (лимит раздела " + chatId + "): " + description);
+            return false;
+        }
+
+        if (queue.size() >= config.getAdmissionMaxQueueSize() && !evictLowerThan(priority)) {
+            // Задача не выполнится - игрок и раздел не должны платить за нее лимитом
+            if (playerId != null && limited) {
+                refundToken(buckets, playerId, config.getAdmissionPlayerBurst());
+            }
+            if (chatId != null && limited) {
+                refundToken(chatBuckets, chatId, config.getAdmissionChatBurst());
+            }
+            droppedQueueFull.incrementAndGet(priority.ordinal());
+            debug("Отклонено (очередь переполнена): " + description);
+            return false;
+        }
+
+        queued.incrementAndGet(priority.ordinal());
+        queue.add(new Job(priority, sequence.incrementAndGet(), description, task));
+        return true;
+    }
+
+    /**
+     * Останавливает обработчики и ждет их завершения (не дольше 5 секунд), чтобы
+     * задача в работе не записала профиль после закрытия хранилища
+     */
+    public void shutdown() {
+        running = false;
+        queue.clear();
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        for (Thread worker : workers) {
+            try {
+                worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (worker.isAlive()) {
+                plugin.getLogger().warning("Обработчик " + worker.getName() + " не завершился за 5 секунд");
+            }
+        }
+    }
+
+    public long getQueueDepth(Priority priority) {
+        return queued.get(priority.ordinal());
+    }
+
+    public long getDropCount(Priority priority) {
+        int i = priority.ordinal();
+        return droppedRateLimit.get(i) + droppedQueueFull.get(i) + droppedStale.get(i);
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * Строки статистики для команды /psich status
+     */
+    public List<String> getStatusLines() {
+        List<String> lines = new ArrayList<>();
+        lines.add("§7Активно: §f" + active.get() + "/" + workers.size()
+                + " §7в очереди: §f" + queue.size());
+        for (Priority priority : Priority.values()) {
+            int i = priority.ordinal();
+            lines.add("§7• " + priority.getDisplayName() + ": §fочередь " + queued.get(i)
+                    + "§7, выполнено §f" + completed.get(i)
+                    + "§7, отброшено §f" + getDropCount(priority)
+                    + " §8(лимит " + droppedRateLimit.get(i)
+                    + ", переполнение " + droppedQueueFull.get(i)
+                    + ", устарело " + droppedStale.get(i) + ")");
+        }
+        return lines;
+    }
+
+    private void workerLoop() {
+        while (running) {
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            queued.decrementAndGet(job.priority.ordinal());
+
+            long waitedMillis = System.currentTimeMillis() - job.createdAt;
+            long maxAgeMillis = config.getAdmissionMaxQueueAge(job.priority.getConfigKey(),
+                    job.priority.getDefaultMaxAgeSeconds()) * 1000L;
+            if (waitedMillis > maxAgeMillis) {
+                droppedStale.incrementAndGet(job.priority.ordinal());
+                debug("Отброшено (ждало " + waitedMillis + " мс): " + job.description);
+                continue;
+            }
+
+            active.incrementAndGet();
+            try {
+                job.task.run();
+            } catch (Exception e) {
+                plugin.getLogger().severe("Ошибка AI задачи (" + job.description + "): " + e.getMessage());
+                if (config.isDebug()) {
+                    e.printStackTrace();
+                }
+            } finally {
+                active.decrementAndGet();
+                completed.incrementAndGet(job.priority.ordinal());
+            }
+        }
+    }
+
+    /**
+     * Вытесняет из очереди самую старую задачу с приоритетом ниже переданного
+     */
+    private boolean evictLowerThan(Priority priority) {
+        Job victim = null;
+        for (Job job : queue) {
+            if (job.priority.ordinal() <= priority.ordinal()) {
+                continue;
+            }
+            if (victim == null || job.priority.ordinal() > victim.priority.ordinal()
+                    || (job.priority == victim.priority && job.sequence < victim.sequence)) {
+                victim = job;
+            }
+        }
+        if (victim != null && queue.remove(victim)) {
+            queued.decrementAndGet(victim.priority.ordinal());
+            droppedQueueFull.incrementAndGet(victim.priority.ordinal());
+            debug("Вытеснено из очереди: " + victim.description);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean acquireToken(String playerId) {
+        long now = System.currentTimeMillis();
+        if (buckets.size() > 1000) {
+            buckets.values().removeIf(bucket -> now - bucket.lastRefill > BUCKET_IDLE_MILLIS);
+        }
+        TokenBucket bucket = buckets.computeIfAbsent(playerId,
+                k -> new TokenBucket(config.getAdmissionPlayerBurst(), now));
+        return bucket.tryAcquire(config.getAdmissionPlayerBurst(),
+                config.getAdmissionPlayerRefillPerMinute(), now);
+    }
+
+    private boolean acquireChatToken(String chatId) {
+        int burst = config.getAdmissionChatBurst();
+        if (burst <= 0) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (chatBuckets.size() > 1000) {
+            chatBuckets.values().removeIf(bucket -> now - bucket.lastRefill > BUCKET_IDLE_MILLIS);
+        }
+        TokenBucket bucket = chatBuckets.computeIfAbsent(chatId, k -> new TokenBucket(burst, now));
+        return bucket.tryAcquire(burst, config.getAdmissionChatRefillPerMinute(), now);
+    }
+
+    /**
+     * Возвращает токен, списанный за отклоненную задачу
+     */
+    private static void refundToken(Map<String, TokenBucket> buckets, String id, int capacity) {
+        TokenBucket bucket = buckets.get(id);
+        if (bucket != null) {
+            bucket.refund(capacity);
+        }
+    }
+
+    private void debug(String message) {
+        if (config.isDebug()) {
+            plugin.getLogger().info("[DEBUG] [Очередь AI] " + message);
+        }
+    }
+
+    private static class Job {
+        private final Priority priority;
+        private final long sequence;
+        private final long createdAt = System.currentTimeMillis();
+        private final String description;
+        private final Runnable task;
+
+        private Job(Priority priority, long sequence, String description, Runnable task) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.description = description;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Token bucket: запас запросов игрока, пополняемый с постоянной скоростью
+     */
+    private static class TokenBucket {
+        private double tokens;
+        private long lastRefill;
+
+        private TokenBucket(int capacity, long now) {
+            this.tokens = capacity;
+            this.lastRefill = now;
+        }
+
+        private synchronized boolean tryAcquire(int capacity, double refillPerMinute, long now) {
+            double refill = (now - lastRefill) / 60000.0 * refillPerMinute;
+            tokens = Math.min(capacity, tokens + refill);
+            lastRefill = now;
+            if (tokens >= 1.0) {
+                tokens -= 1.0;
+                return true;
+            }
+            return false;
+        }
+
+        private synchronized void refund(int capacity) {
+            tokens = Math.min(capacity, tokens + 1.0);
+        }
+    }
+}
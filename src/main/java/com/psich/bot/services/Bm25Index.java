@@ -0,0 +1,326 @@
+package com.psich.bot.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Инвертированный индекс с ранжированием BM25 для одного чата.
+ * Хранит только номера документов, их длины и смещения в файле архива -
+ * сами тексты читаются с диска только для найденных строк. Списки
+ * документов по словам хранятся в примитивных массивах и растут по мере
+ * добавления сообщений, так что индекс обновляется без перестройки.
+ * Документы добавляются по возрастанию смещения, а удаляются только старые -
+ * с начала (срок хранения).
+ */
+public class Bm25Index {
+
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+    // Сообщения, связанные с тем, кто спрашивает, чуть важнее остальных
+    private static final float PLAYER_BOOST = 1.5f;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Postings> terms = new HashMap<>();
+    private final Map<String, Integer> playerKeys = new HashMap<>();
+
+    // Данные документов по номеру (минус base - номер самого старого)
+    private long[] offsets = new long[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private int[] players = new int[INITIAL_CAPACITY];
+    private int base = 0;
+    private int size = 0;
+    private long totalLength = 0;
+
+    /**
+     * Добавляет документ
+     *
+     * @param offset   смещение записи в файле архива (не меньше, чем у прежних документов)
+     * @param playerId игрок, к которому относится сообщение (или null)
+     * @param tokens   слова документа (Keywords.tokenize)
+     */
+    public void add(long offset, String playerId, List<String> tokens) {
+        lock.writeLock().lock();
+        try {
+            if (size == offsets.length) {
+                int capacity = size * 2;
+                offsets = Arrays.copyOf(offsets, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                players = Arrays.copyOf(players, capacity);
+            }
+            int i = size++;
+            int doc = base + i;
+            offsets[i] = offset;
+            lengths[i] = tokens.size();
+            players[i] = playerId != null ? playerKeys.computeIfAbsent(playerId, k -> playerKeys.size()) : -1;
+            totalLength += tokens.size();
+            for (String token : tokens) {
+                terms.computeIfAbsent(token, k -> new Postings()).add(doc);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Лучшие документы по запросу
+     *
+     * @param playerId    игрок, чьи сообщения получают небольшой приоритет (или null)
+     * @param maxPostings сколько последних документов смотреть по каждому слову -
+     *                    ограничивает время поиска по очень частым словам
+     */
+    public List<Hit> search(List<String> queryTokens, String playerId, int limit, int maxPostings) {
+        if (queryTokens.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        lock.readLock().lock();
+        try {
+            if (size == 0) {
+                return Collections.emptyList();
+            }
+            Integer playerKey = playerId != null ? playerKeys.get(playerId) : null;
+            float averageLength = Math.max(1f, (float) totalLength / size);
+            ScoreMap scores = new ScoreMap();
+
+            for (String token : new LinkedHashSet<>(queryTokens)) {
+                Postings postings = terms.get(token);
+                if (postings == null) {
+                    continue;
+                }
+                int df = postings.size;
+                float idf = (float) Math.log(1 + (size - df + 0.5) / (df + 0.5));
+                int from = Math.max(0, postings.size - maxPostings);
+                for (int i = from; i < postings.size; i++) {
+                    int doc = postings.docs[i];
+                    int tf = postings.freqs[i];
+                    float norm = K1 * (1 - B + B * lengths[doc - base] / averageLength);
+                    scores.add(doc, idf * tf * (K1 + 1) / (tf + norm));
+                }
+            }
+
+            // Отбираем лучшие через кучу размера limit
+            PriorityQueue<Hit> best = new PriorityQueue<>(limit + 1, (a, b) -> Float.compare(a.score, b.score));
+            for (int i = 0; i < scores.keys.length; i++) {
+                if (scores.used[i]) {
+                    int doc = scores.keys[i];
+                    float score = scores.values[i];
+                    if (playerKey != null && players[doc - base] == playerKey) {
+                        score *= PLAYER_BOOST;
+                    }
+                    best.add(new Hit(doc, offsets[doc - base], score));
+                    if (best.size() > limit) {
+                        best.poll();
+                    }
+                }
+            }
+            List<Hit> result = new ArrayList<>(best);
+            result.sort((a, b) -> Float.compare(b.score, a.score));
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Удаляет документы со смещением меньше offset
+     *
+     * @return число удаленных документов
+     */
+    public int removeBefore(long offset) {
+        lock.writeLock().lock();
+        try {
+            int count = Arrays.binarySearch(offsets, 0, size, offset);
+            if (count < 0) {
+                count = -count - 1;
+            } else {
+                // Первый из документов с этим смещением
+                while (count > 0 && offsets[count - 1] == offset) {
+                    count--;
+                }
+            }
+            if (count == 0) {
+                return 0;
+            }
+            for (int i = 0; i < count; i++) {
+                totalLength -= lengths[i];
+            }
+            size -= count;
+            int capacity = capacity(size, offsets.length);
+            offsets = shift(offsets, count, size, capacity);
+            lengths = shift(lengths, count, size, capacity);
+            players = shift(players, count, size, capacity);
+            base += count;
+            Iterator<Postings> it = terms.values().iterator();
+            while (it.hasNext()) {
+                Postings postings = it.next();
+                postings.removeBefore(base);
+                if (postings.size == 0) {
+                    it.remove();
+                }
+            }
+            return count;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            terms.clear();
+            playerKeys.clear();
+            // Номера документов не начинаются заново - найденные до очистки не совпадут с новыми
+            base += size;
+            size = 0;
+            totalLength = 0;
+            offsets = new long[INITIAL_CAPACITY];
+            lengths = new int[INITIAL_CAPACITY];
+            players = new int[INITIAL_CAPACITY];
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int getDocumentCount() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getTermCount() {
+        lock.readLock().lock();
+        try {
+            return terms.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Вместимость массивов после удаления: уменьшаем, когда занята меньше четверти
+     */
+    private static int capacity(int size, int current) {
+        return size * 4 < current ? Math.max(INITIAL_CAPACITY, size * 2) : current;
+    }
+
+    private static long[] shift(long[] array, int from, int length, int capacity) {
+        long[] target = capacity == array.length ? array : new long[capacity];
+        System.arraycopy(array, from, target, 0, length);
+        return target;
+    }
+
+    private static int[] shift(int[] array, int from, int length, int capacity) {
+        int[] target = capacity == array.length ? array : new int[capacity];
+        System.arraycopy(array, from, target, 0, length);
+        return target;
+    }
+
+    /**
+     * Найденный документ
+     */
+    public static final class Hit {
+        private final int doc;
+        private final long offset;
+        private final float score;
+
+        private Hit(int doc, long offset, float score) {
+            this.doc = doc;
+            this.offset = offset;
+            this.score = score;
+        }
+
+        public int getDoc() { return doc; }
+        public long getOffset() { return offset; }
+        public float getScore() { return score; }
+    }
+
+    /**
+     * Документы со словом (по возрастанию номера) и частота слова в каждом
+     */
+    private static final class Postings {
+        private int[] docs = new int[4];
+        private int[] freqs = new int[4];
+        private int size = 0;
+
+        private void add(int doc) {
+            if (size > 0 && docs[size - 1] == doc) {
+                freqs[size - 1]++;
+                return;
+            }
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2);
+            }
+            docs[size] = doc;
+            freqs[size] = 1;
+            size++;
+        }
+
+        private void removeBefore(int doc) {
+            int from = Arrays.binarySearch(docs, 0, size, doc);
+            if (from < 0) {
+                from = -from - 1;
+            }
+            if (from == 0) {
+                return;
+            }
+            size -= from;
+            int capacity = size * 4 < docs.length ? Math.max(4, size * 2) : docs.length;
+            docs = shift(docs, from, size, capacity);
+            freqs = shift(freqs, from, size, capacity);
+        }
+    }
+
+    /**
+     * Сумма очков по документам (открытая адресация, без упаковки чисел)
+     */
+    private static final class ScoreMap {
+        private int[] keys = new int[64];
+        private float[] values = new float[64];
+        private boolean[] used = new boolean[64];
+        private int count = 0;
+
+        private void add(int key, float value) {
+            if (count * 2 >= keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int i = (key * 0x9E3779B9) >>> 7 & mask;
+            while (used[i] && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (!used[i]) {
+                used[i] = true;
+                keys[i] = key;
+                count++;
+            }
+            values[i] += value;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            float[] oldValues = values;
+            boolean[] oldUsed = used;
+            keys = new int[oldKeys.length * 2];
+            values = new float[oldKeys.length * 2];
+            used = new boolean[oldKeys.length * 2];
+            count = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    add(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,502 @@
+package com.psich.bot.services;
+
+import com.psich.bot.services.StorageService.ChatMessage;
+import com.psich.bot.utils.ConfigManager;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Архив переписки (data/archive/<чат>/).
+ * Сообщения, вытесненные из истории чата, дописываются в текущий сегмент
+ * <начало>.log; раз в archive.segment-hours он запечатывается в <начало>.seg -
+ * блоки по 64 КБ, сжатые Deflate, у каждого в заголовке интервал времени.
+ * Сегменты читаются через отображение в память, блоки вне запрошенного
+ * времени не распаковываются. Сегменты старше archive.retention-days удаляются.
+ * Запись на диск делает фоновый поток хранилища (StorageService.flush).
+ * Долгая память (LongTermMemory) хранит те же сообщения отдельно: ее индексу
+ * нужно читать строку по смещению без распаковки блока, и она есть и при SQLite.
+ */
+public class ChatArchive {
+
+    private static final String ACTIVE = ".log";
+    private static final String SEALED = ".seg";
+    private static final int MAGIC = 0x50534152;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 6;
+    // count, minTime, maxTime, rawLength, compressedLength
+    private static final int BLOCK_HEADER_SIZE = 4 + 8 + 8 + 4 + 4;
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final File folder;
+    private final ConfigManager config;
+    private final Logger logger;
+    private final Map<String, ChatSegments> chats = new ConcurrentHashMap<>();
+
+    public ChatArchive(File folder, ConfigManager config, Logger logger) {
+        this.folder = folder;
+        this.config = config;
+        this.logger = logger;
+        File[] dirs = folder.listFiles(File::isDirectory);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                chats.put(dir.getName(), new ChatSegments(dir));
+            }
+        }
+    }
+
+    /**
+     * Добавляет сообщение в очередь на запись (слушатель вытеснения из истории)
+     */
+    public void append(String chatId, ChatMessage message) {
+        chat(chatId).append(message);
+    }
+
+    /**
+     * Дописывает накопленное, запечатывает сегменты, которым пора, и удаляет
+     * устаревшие (фоновый поток хранилища)
+     */
+    public void flush() {
+        long now = System.currentTimeMillis();
+        for (ChatSegments chat : chats.values()) {
+            try {
+                chat.flush(now);
+            } catch (IOException e) {
+                logger.warning("Ошибка записи архива " + chat.dir.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Удаляет архив чата (при /psich reset)
+     */
+    public void clear(String chatId) {
+        ChatSegments chat = chats.get(key(chatId));
+        if (chat != null) {
+            chat.clear();
+        }
+    }
+
+    /**
+     * Проходит по сообщениям чата за период от старых к новым, пока visitor
+     * возвращает true. Сообщения читаются по одному, в памяти не копятся.
+     *
+     * @param playerId только сообщения этого игрока (null - все)
+     */
+    public void scan(String chatId, String playerId, long fromTime, long toTime, Predicate<ChatMessage> visitor) {
+        ChatSegments chat = chats.get(key(chatId));
+        if (chat == null) {
+            return;
+        }
+        try {
+            chat.scan(playerId, fromTime, toTime, visitor);
+        } catch (IOException e) {
+            logger.warning("Ошибка чтения архива " + chat.dir.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Последние limit сообщений за период (от старых к новым)
+     */
+    public List<ChatMessage> query(String chatId, String playerId, long fromTime, long toTime, int limit) {
+        Deque<ChatMessage> last = new ArrayDeque<>();
+        scan(chatId, playerId, fromTime, toTime, message -> {
+            last.addLast(message);
+            if (last.size() > limit) {
+                last.removeFirst();
+            }
+            return true;
+        });
+        return new ArrayList<>(last);
+    }
+
+    public List<String> getStatusLines() {
+        long bytes = 0;
+        int segments = 0;
+        for (ChatSegments chat : chats.values()) {
+            File[] files = chat.dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    bytes += file.length();
+                    segments++;
+                }
+            }
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add("§7Архив: §f" + bytes / 1024 + "§7 КБ в §f" + segments + "§7 сегментах, чатов §f" + chats.size());
+        return lines;
+    }
+
+    private ChatSegments chat(String chatId) {
+        return chats.computeIfAbsent(key(chatId), k -> new ChatSegments(new File(folder, k)));
+    }
+
+    private static String key(String chatId) {
+        return chatId.replaceAll("[^a-zA-Z0-9_-]", "_");
+    }
+
+    /**
+     * Сегменты одного чата
+     */
+    private final class ChatSegments {
+        final File dir;
+        // Порядок работы с файлами: запись, запечатывание и чтение не пересекаются.
+        // Берется раньше монитора самого объекта, чтобы append не ждал диск
+        private final Object fileMonitor = new Object();
+        // Записи, еще не сброшенные на диск
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream(4096);
+        private final DataOutputStream pendingOut = new DataOutputStream(pending);
+        // Начало текущего сегмента (0 - сегмента еще нет)
+        private long activeStart = 0;
+
+        ChatSegments(File dir) {
+            this.dir = dir;
+            for (long start : starts(ACTIVE)) {
+                File file = segmentFile(start, ACTIVE);
+                if (activeStart == 0) {
+                    activeStart = start;
+                    repair(file);
+                } else {
+                    // Больше одного .log бывает после сбоя при запечатывании
+                    try {
+                        seal(start);
+                    } catch (IOException e) {
+                        logger.warning("Не удалось запечатать " + file.getName() + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        synchronized void append(ChatMessage message) {
+            try {
+                pendingOut.writeLong(message.getTime());
+                writeString(pendingOut, message.getPlayerId());
+                writeString(pendingOut, message.getRole());
+                writeString(pendingOut, message.getText());
+            } catch (IOException e) {
+                // ByteArrayOutputStream не бросает IOException
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void flush(long now) throws IOException {
+            synchronized (fileMonitor) {
+                flushPending(now);
+                long segmentMillis = config.getArchiveSegmentMillis();
+                if (activeStart != 0 && now - activeStart >= segmentMillis) {
+                    long sealed = activeStart;
+                    activeStart = 0;
+                    seal(sealed);
+                }
+                long retention = config.getArchiveRetentionMillis();
+                if (retention > 0) {
+                    for (long start : starts(SEALED)) {
+                        // Сегмент целиком старше срока хранения
+                        if (start + segmentMillis < now - retention && !segmentFile(start, SEALED).delete()) {
+                            logger.warning("Не удалось удалить сегмент архива " + start + SEALED);
+                        }
+                    }
+                }
+            }
+        }
+
+        void clear() {
+            synchronized (fileMonitor) {
+                synchronized (this) {
+                    pending.reset();
+                }
+                activeStart = 0;
+                File[] files = dir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (!file.delete()) {
+                            logger.warning("Не удалось удалить сегмент архива " + file.getName());
+                        }
+                    }
+                }
+            }
+        }
+
+        private void flushPending(long now) throws IOException {
+            byte[] bytes;
+            synchronized (this) {
+                if (pending.size() == 0) {
+                    return;
+                }
+                bytes = pending.toByteArray();
+                pending.reset();
+            }
+            if (activeStart == 0) {
+                activeStart = now;
+            }
+            dir.mkdirs();
+            try (FileChannel channel = FileChannel.open(segmentFile(activeStart, ACTIVE).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+        }
+
+        /**
+         * Сжимает .log в .seg блоками и удаляет .log
+         */
+        private void seal(long start) throws IOException {
+            File active = segmentFile(start, ACTIVE);
+            File sealed = segmentFile(start, SEALED);
+            File temp = new File(dir, start + SEALED + ".tmp");
+            repair(active);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (FileChannel in = FileChannel.open(active.toPath(), StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out),
+                        1 << 16));
+                data.writeInt(MAGIC);
+                data.writeShort(VERSION);
+                MappedByteBuffer records = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+                byte[] compressed = new byte[BLOCK_SIZE * 2];
+                while (records.hasRemaining()) {
+                    // Набираем блок из целых записей
+                    int blockStart = records.position();
+                    int count = 0;
+                    long minTime = Long.MAX_VALUE;
+                    long maxTime = Long.MIN_VALUE;
+                    while (records.hasRemaining() && records.position() - blockStart < BLOCK_SIZE) {
+                        long time = records.getLong(records.position());
+                        minTime = Math.min(minTime, time);
+                        maxTime = Math.max(maxTime, time);
+                        records.position(recordEnd(records, records.position()));
+                        count++;
+                    }
+                    int rawLength = records.position() - blockStart;
+                    deflater.reset();
+                    deflater.setInput(records.slice(blockStart, rawLength));
+                    deflater.finish();
+                    ByteArrayOutputStream block = new ByteArrayOutputStream(rawLength / 2 + 64);
+                    while (!deflater.finished()) {
+                        int length = deflater.deflate(compressed);
+                        block.write(compressed, 0, length);
+                    }
+                    data.writeInt(count);
+                    data.writeLong(minTime);
+                    data.writeLong(maxTime);
+                    data.writeInt(rawLength);
+                    data.writeInt(block.size());
+                    block.writeTo(data);
+                }
+                data.flush();
+                out.force(true);
+            } finally {
+                deflater.end();
+            }
+            try {
+                Files.move(temp.toPath(), sealed.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.move(temp.toPath(), sealed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (!active.delete()) {
+                logger.warning("Не удалось удалить запечатанный сегмент " + active.getName());
+            }
+        }
+
+        void scan(String playerId, long fromTime, long toTime, Predicate<ChatMessage> visitor) throws IOException {
+            synchronized (fileMonitor) {
+                flushPending(System.currentTimeMillis());
+                List<long[]> files = new ArrayList<>();
+                for (long start : starts(SEALED)) {
+                    files.add(new long[] { start, 1 });
+                }
+                for (long start : starts(ACTIVE)) {
+                    files.add(new long[] { start, 0 });
+                }
+                files.sort((a, b) -> Long.compare(a[0], b[0]));
+                for (long[] file : files) {
+                    boolean more = file[1] == 1
+                            ? scanSealed(segmentFile(file[0], SEALED), playerId, fromTime, toTime, visitor)
+                            : scanActive(segmentFile(file[0], ACTIVE), playerId, fromTime, toTime, visitor);
+                    if (!more) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private boolean scanSealed(File file, String playerId, long fromTime, long toTime,
+                                   Predicate<ChatMessage> visitor) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getShort() > VERSION) {
+                    logger.warning("Пропущен поврежденный сегмент архива " + file.getName());
+                    return true;
+                }
+                Inflater inflater = new Inflater();
+                try {
+                    while (buffer.remaining() >= BLOCK_HEADER_SIZE) {
+                        buffer.getInt();
+                        long minTime = buffer.getLong();
+                        long maxTime = buffer.getLong();
+                        int rawLength = buffer.getInt();
+                        int compressedLength = buffer.getInt();
+                        int next = buffer.position() + compressedLength;
+                        // Блок вне периода даже не распаковываем
+                        if (maxTime >= fromTime && minTime <= toTime) {
+                            byte[] raw = new byte[rawLength];
+                            inflater.reset();
+                            inflater.setInput(buffer.slice(buffer.position(), compressedLength));
+                            inflater.inflate(raw);
+                            if (!visit(ByteBuffer.wrap(raw), playerId, fromTime, toTime, visitor)) {
+                                return false;
+                            }
+                        }
+                        buffer.position(next);
+                    }
+                } catch (DataFormatException e) {
+                    logger.warning("Поврежденный блок в сегменте архива " + file.getName());
+                } finally {
+                    inflater.end();
+                }
+            }
+            return true;
+        }
+
+        private boolean scanActive(File file, String playerId, long fromTime, long toTime,
+                                   Predicate<ChatMessage> visitor) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                return visit(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), playerId, fromTime,
+                        toTime, visitor);
+            }
+        }
+
+        /**
+         * Проходит по записям буфера; текст чужих и не попавших в период
+         * сообщений не декодируется
+         */
+        private boolean visit(ByteBuffer records, String playerId, long fromTime, long toTime,
+                              Predicate<ChatMessage> visitor) {
+            try {
+                while (records.hasRemaining()) {
+                    int start = records.position();
+                    long time = records.getLong();
+                    String player = readString(records);
+                    if (time < fromTime || time > toTime || playerId != null && !playerId.equals(player)) {
+                        records.position(recordEnd(records, start));
+                        continue;
+                    }
+                    String role = readString(records);
+                    String text = readString(records);
+                    if (!visitor.test(new ChatMessage(role, text, player, time))) {
+                        return false;
+                    }
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                // Недописанная запись в конце сегмента
+            }
+            return true;
+        }
+
+        /**
+         * Отрезает недописанную запись в конце .log после сбоя
+         */
+        private void repair(File file) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                int valid = 0;
+                try {
+                    while (records.hasRemaining()) {
+                        valid = recordEnd(records, valid);
+                        records.position(valid);
+                    }
+                } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+                    channel.truncate(records.position());
+                }
+            } catch (IOException e) {
+                logger.warning("Ошибка проверки сегмента архива " + file.getName() + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Номера (время начала) сегментов с окончанием suffix по возрастанию
+         */
+        private List<Long> starts(String suffix) {
+            List<Long> starts = new ArrayList<>();
+            String[] names = dir.list((d, name) -> name.endsWith(suffix));
+            if (names != null) {
+                for (String name : names) {
+                    try {
+                        starts.add(Long.parseLong(name.substring(0, name.length() - suffix.length())));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+            starts.sort(null);
+            return starts;
+        }
+
+        private File segmentFile(long start, String suffix) {
+            return new File(dir, start + suffix);
+        }
+    }
+
+    /**
+     * Конец записи, начинающейся с position: время и три строки
+     */
+    private static int recordEnd(ByteBuffer records, int position) {
+        int end = position + 8;
+        for (int i = 0; i < 3; i++) {
+            int length = records.getInt(end);
+            end += 4 + Math.max(0, length);
+        }
+        if (end > records.limit()) {
+            throw new BufferUnderflowException();
+        }
+        return end;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
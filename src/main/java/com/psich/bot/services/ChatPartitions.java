@@ -0,0 +1,177 @@
+package com.psich.bot.services;
+
+import com.psich.bot.PsichBot;
+import com.psich.bot.utils.ConfigManager;
+import net.kyori.adventure.text.Component;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Разделы чата: по какому id (chatId) хранится история, мут, сводка и лимит
+ * запросов для сообщения и куда уходит ответ бота.
+ * global - общий чат сервера, world:<мир> - чат мира, discord:<канал> - канал
+ * Discord, channel:<название> - канал плагина чата (по префиксу сообщения).
+ */
+public class ChatPartitions {
+
+    public static final String GLOBAL = "global";
+    private static final String WORLD = "world:";
+    private static final String DISCORD = "discord:";
+    private static final String CHANNEL = "channel:";
+
+    private final PsichBot plugin;
+    private final ConfigManager config;
+    // Каналы Discord (объекты JDA) по id раздела - ответ уходит туда же
+    private final Map<String, Object> discordChannels = new ConcurrentHashMap<>();
+
+    public ChatPartitions(PsichBot plugin, ConfigManager config) {
+        this.plugin = plugin;
+        this.config = config;
+    }
+
+    /**
+     * Раздел игрового чата, в котором находится игрок
+     */
+    public String forPlayer(Player player) {
+        if (config.isPartitionByWorld() && player.getWorld() != null) {
+            return WORLD + player.getWorld().getName();
+        }
+        return GLOBAL;
+    }
+
+    /**
+     * Раздел для команды: игрок - его раздел, консоль - общий чат
+     */
+    public String forSender(CommandSender sender) {
+        return sender instanceof Player ? forPlayer((Player) sender) : GLOBAL;
+    }
+
+    /**
+     * Раздел сообщения игрока: канал плагина чата, если сообщение начинается
+     * с его префикса и у игрока есть право, иначе раздел игрока
+     */
+    public Route route(Player player, String message) {
+        for (Map.Entry<String, String> channel : config.getPartitionChannelPrefixes().entrySet()) {
+            String prefix = channel.getValue();
+            if (message.startsWith(prefix) && hasChannelPermission(player, channel.getKey())) {
+                return new Route(CHANNEL + channel.getKey(), message.substring(prefix.length()).trim());
+            }
+        }
+        return new Route(forPlayer(player), message);
+    }
+
+    /**
+     * Раздел сообщения из Discord. Запоминает канал, чтобы ответить в него
+     *
+     * @param channel объект канала DiscordSRV (null - канал неизвестен)
+     */
+    public String forDiscord(String channelName, Object channel) {
+        if (!config.isPartitionByDiscordChannel() || channelName == null) {
+            return GLOBAL;
+        }
+        String chatId = DISCORD + channelName.toLowerCase();
+        if (channel != null) {
+            discordChannels.put(chatId, channel);
+        }
+        return chatId;
+    }
+
+    /**
+     * Существует ли раздел с таким id: уже есть в хранилище, либо это мир сервера
+     * или канал из настроек (в них еще могли не писать)
+     */
+    public boolean isKnown(String chatId) {
+        if (GLOBAL.equals(chatId) || plugin.getStorageService().getChatIds().contains(chatId)) {
+            return true;
+        }
+        if (chatId.startsWith(WORLD)) {
+            return plugin.getServer().getWorld(chatId.substring(WORLD.length())) != null;
+        }
+        if (chatId.startsWith(CHANNEL)) {
+            return config.getPartitionChannelPrefixes().containsKey(chatId.substring(CHANNEL.length()));
+        }
+        return discordChannels.containsKey(chatId);
+    }
+
+    /**
+     * Нужно ли дублировать ответ в Discord через вебхук: каналы плагинов
+     * закрытые, а в раздел Discord ответ и так уходит напрямую
+     */
+    public boolean isMirroredToDiscord(String chatId) {
+        return !chatId.startsWith(CHANNEL) && !chatId.startsWith(DISCORD);
+    }
+
+    /**
+     * Отправляет строки бота участникам раздела (из главного потока)
+     *
+     * @param plainText те же строки без форматирования - для канала Discord
+     */
+    public void broadcast(String chatId, List<Component> lines, String plainText) {
+        if (chatId.startsWith(DISCORD)) {
+            sendToDiscord(chatId, plainText);
+        } else if (chatId.startsWith(WORLD)) {
+            String world = chatId.substring(WORLD.length());
+            for (Player player : plugin.getServer().getOnlinePlayers()) {
+                if (player.getWorld() != null && world.equals(player.getWorld().getName())) {
+                    lines.forEach(player::sendMessage);
+                }
+            }
+        } else if (chatId.startsWith(CHANNEL)) {
+            String channel = chatId.substring(CHANNEL.length());
+            for (Player player : plugin.getServer().getOnlinePlayers()) {
+                if (hasChannelPermission(player, channel)) {
+                    lines.forEach(player::sendMessage);
+                }
+            }
+        } else {
+            lines.forEach(plugin.getServer()::broadcast);
+        }
+    }
+
+    private boolean hasChannelPermission(Player player, String channel) {
+        String permission = config.getPartitionChannelPermission(channel);
+        return permission.isEmpty() || player.hasPermission(permission);
+    }
+
+    /**
+     * Пишет в канал Discord через JDA (TextChannel.sendMessage(...).queue())
+     */
+    private void sendToDiscord(String chatId, String text) {
+        Object channel = discordChannels.get(chatId);
+        if (channel == null) {
+            plugin.getLogger().warning("Канал Discord для раздела " + chatId + " неизвестен, ответ не отправлен");
+            return;
+        }
+        try {
+            Method sendMessage = channel.getClass().getMethod("sendMessage", CharSequence.class);
+            Object action = sendMessage.invoke(channel, text);
+            action.getClass().getMethod("queue").invoke(action);
+        } catch (Exception e) {
+            plugin.getLogger().warning("Не удалось отправить ответ в Discord (" + chatId + "): " + e.getMessage());
+            if (config.isDebug()) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Раздел и текст сообщения без префикса канала
+     */
+    public static final class Route {
+        private final String chatId;
+        private final String text;
+
+        private Route(String chatId, String text) {
+            this.chatId = chatId;
+            this.text = text;
+        }
+
+        public String getChatId() { return chatId; }
+        public String getText() { return text; }
+    }
+}
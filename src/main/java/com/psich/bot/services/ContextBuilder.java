@@ -0,0 +1,266 @@
+package com.psich.bot.services;
+
+import com.psich.bot.services.StorageService.ChatMessage;
+import com.psich.bot.utils.ConfigManager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Сборка контекста для промпта под бюджет токенов.
+ * Сообщения берутся от новых к старым, пока укладываются в бюджет задачи и
+ * провайдера. Флуд (повторы символов, одинаковые сообщения) сжимается,
+ * слишком длинные сообщения обрезаются, и только потом отбрасываются целые
+ * реплики.
+ */
+public class ContextBuilder {
+
+    /**
+     * Для чего собирается контекст: у каждой задачи свой предел сообщений и
+     * бюджет по умолчанию
+     */
+    public enum Task {
+        RESPONSE("response", 20, 1200),
+        SHOULD_ANSWER("should-answer", 15, 400),
+        ANALYSIS("analysis", 6, 300);
+
+        private final String configKey;
+        private final int maxMessages;
+        private final int defaultTokens;
+
+        Task(String configKey, int maxMessages, int defaultTokens) {
+            this.configKey = configKey;
+            this.maxMessages = maxMessages;
+            this.defaultTokens = defaultTokens;
+        }
+
+        public String getConfigKey() {
+            return configKey;
+        }
+
+        public int getMaxMessages() {
+            return maxMessages;
+        }
+
+        public int getDefaultTokens() {
+            return defaultTokens;
+        }
+    }
+
+    // Сколько одинаковых символов подряд оставлять ("ааааааа" -> "ааа")
+    private static final int MAX_REPEATED_CHARS = 3;
+    // Меньше этого остатка бюджета последнюю реплику не обрезаем, а отбрасываем
+    private static final int MIN_PARTIAL_TOKENS = 15;
+    private static final String ELLIPSIS = "…";
+    private static final String SUMMARY_PREFIX = "[Ранее в чате: ";
+    private static final String RECALL_HEADER = "[Из старой переписки:]";
+    // Какую долю бюджета могут занять сообщения из долгой памяти
+    private static final int RECALL_BUDGET_DIVISOR = 4;
+
+    private final ConfigManager config;
+    private final TokenEstimator estimator;
+
+    public ContextBuilder(ConfigManager config, TokenEstimator estimator) {
+        this.config = config;
+        this.estimator = estimator;
+    }
+
+    public boolean isEnabled() {
+        return config.isContextBudgetEnabled();
+    }
+
+    /**
+     * Бюджет токенов задачи с поправкой на провайдера (null - без поправки)
+     */
+    public int budgetFor(Task task, String providerName) {
+        int tokens = config.getContextBudgetTokens(task.getConfigKey(), task.getDefaultTokens());
+        return (int) (tokens * config.getContextBudgetProviderFactor(providerName));
+    }
+
+    /**
+     * Подготавливает сообщение: строка "роль: текст" без флуда и с ограничением длины
+     */
+    public Line prepare(ChatMessage message) {
+        String raw = message.getRole() + ": " + message.getText();
+        String text = message.getRole() + ": " + truncate(collapseRepeats(message.getText()),
+                config.getContextBudgetMaxMessageChars());
+        // Повтором считаем то же сообщение от того же отправителя
+        String normalized = normalize(message.getText());
+        String key = normalized.isEmpty() ? "" : message.getRole() + ":" + normalized;
+        return new Line(raw, text, key, estimator.estimate(text));
+    }
+
+    /**
+     * Строка со сводкой старой переписки перед историей (пустая, если сводки нет)
+     */
+    public static String summaryLine(String summary) {
+        return summary == null || summary.isEmpty() ? "" : SUMMARY_PREFIX + summary + "]";
+    }
+
+    /**
+     * Вступление перед историей без учета бюджета: сводка и сообщения из долгой памяти
+     */
+    public static String preamble(String summary, List<String> recalled) {
+        List<String> parts = new ArrayList<>();
+        String summaryText = summaryLine(summary);
+        if (!summaryText.isEmpty()) {
+            parts.add(summaryText);
+        }
+        if (!recalled.isEmpty()) {
+            parts.add(RECALL_HEADER);
+            parts.addAll(recalled);
+        }
+        return String.join("\n", parts);
+    }
+
+    /**
+     * Собирает текст из подготовленных строк (от старых к новым), оставляя
+     * самые новые реплики, которые помещаются в бюджет
+     */
+    public String build(List<Line> lines, Task task, String providerName) {
+        return build(lines, null, List.of(), task, providerName);
+    }
+
+    /**
+     * То же, но со сводкой старой переписки и найденными в долгой памяти
+     * сообщениями в начале. Сводка занимает не больше половины бюджета,
+     * старые сообщения - не больше четверти, остальное - последние реплики.
+     */
+    public String build(List<Line> lines, String summary, List<String> recalled, Task task, String providerName) {
+        // Оценки строк посчитаны без поправки провайдера - переводим бюджет в те же единицы
+        double budget = budgetFor(task, providerName) / estimator.getFactor(providerName);
+        String summaryText = summaryLine(summary);
+        if (!summaryText.isEmpty()) {
+            int summaryTokens = Math.max(1, estimator.estimate(summaryText));
+            if (summaryTokens > budget / 2) {
+                summaryText = summaryLine(truncate(summary, (int) (summary.length() * budget / 2 / summaryTokens)));
+                summaryTokens = estimator.estimate(summaryText);
+            }
+            budget -= summaryTokens + 1;
+        }
+        List<String> recallText = new ArrayList<>();
+        if (!recalled.isEmpty()) {
+            double recallBudget = budget / RECALL_BUDGET_DIVISOR;
+            double recallUsed = estimator.estimate(RECALL_HEADER) + 1;
+            for (String line : recalled) {
+                String text = truncate(collapseRepeats(line), config.getContextBudgetMaxMessageChars());
+                int cost = estimator.estimate(text) + 1;
+                if (recallUsed + cost > recallBudget) {
+                    break;
+                }
+                recallText.add(text);
+                recallUsed += cost;
+            }
+            if (!recallText.isEmpty()) {
+                recallText.add(0, RECALL_HEADER);
+                budget -= recallUsed;
+            }
+        }
+        Deque<String> selected = new ArrayDeque<>();
+        Set<String> seen = new HashSet<>();
+        double used = 0;
+
+        for (int i = lines.size() - 1; i >= 0; i--) {
+            Line line = lines.get(i);
+            if (!line.key.isEmpty() && !seen.add(line.key)) {
+                // Такое же сообщение уже есть ближе к концу - повтор не нужен
+                continue;
+            }
+            // +1 на перевод строки
+            int cost = line.tokens + 1;
+            if (used + cost <= budget) {
+                selected.addFirst(line.text);
+                used += cost;
+                continue;
+            }
+            double remaining = budget - used - 1;
+            if (remaining >= MIN_PARTIAL_TOKENS || selected.isEmpty()) {
+                // Прежде чем отбрасывать реплику целиком, оставляем ее начало
+                int chars = (int) (line.text.length() * Math.max(0, remaining) / line.tokens);
+                String partial = truncate(line.text, chars);
+                if (!partial.isEmpty()) {
+                    selected.addFirst(partial);
+                }
+            }
+            break;
+        }
+        for (int i = recallText.size() - 1; i >= 0; i--) {
+            selected.addFirst(recallText.get(i));
+        }
+        if (!summaryText.isEmpty()) {
+            selected.addFirst(summaryText);
+        }
+        return String.join("\n", selected);
+    }
+
+    private static String collapseRepeats(String text) {
+        StringBuilder result = new StringBuilder(text.length());
+        int run = 0;
+        char previous = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            run = Character.toLowerCase(c) == Character.toLowerCase(previous) ? run + 1 : 1;
+            previous = c;
+            if (run <= MAX_REPEATED_CHARS) {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Обрезает текст по границе слова
+     */
+    private static String truncate(String text, int maxChars) {
+        if (maxChars <= 0 || text.length() <= maxChars) {
+            return maxChars <= 0 ? "" : text;
+        }
+        int cut = text.lastIndexOf(' ', maxChars - 1);
+        if (cut < maxChars / 2) {
+            // Пробела рядом нет (длинное слово или ссылка) - режем как есть
+            cut = maxChars - 1;
+        }
+        return text.substring(0, cut).stripTrailing() + ELLIPSIS;
+    }
+
+    /**
+     * Ключ для поиска повторов: только буквы и цифры в нижнем регистре
+     */
+    private static String normalize(String text) {
+        StringBuilder key = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                key.append(Character.toLowerCase(c));
+            }
+        }
+        return collapseRepeats(key.toString()).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Подготовленная строка контекста
+     */
+    public static final class Line {
+        private final String raw;
+        private final String text;
+        private final String key;
+        private final int tokens;
+
+        private Line(String raw, String text, String key, int tokens) {
+            this.raw = raw;
+            this.text = text;
+            this.key = key;
+            this.tokens = Math.max(1, tokens);
+        }
+
+        // Исходная строка "роль: текст" без сжатия
+        public String getRaw() { return raw; }
+        public String getText() { return text; }
+        public int getTokens() { return tokens; }
+    }
+}
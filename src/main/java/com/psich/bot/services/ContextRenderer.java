@@ -0,0 +1,191 @@
+package com.psich.bot.services;
+
+import com.psich.bot.services.ContextBuilder.Line;
+import com.psich.bot.services.ContextBuilder.Task;
+import com.psich.bot.services.StorageService.FactEntry;
+import com.psich.bot.services.StorageService.UserProfile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Общий рендер контекста для промптов.
+ * Держит по каждому чату готовый текст последних N сообщений ("роль: текст"
+ * через перевод строки) и при новых сообщениях дописывает только их, не
+ * пересобирая весь блок.
+ * Для промптов контекст дополнительно подгоняется под бюджет токенов
+ * (ContextBuilder); подготовленные строки и их оценки тоже кэшируются.
+ */
+public class ContextRenderer {
+
+    private final ContextBuilder builder;
+    private final Map<String, Rendered> cache = new ConcurrentHashMap<>();
+
+    public ContextRenderer(ContextBuilder builder) {
+        this.builder = builder;
+    }
+
+    /**
+     * Контекст для задачи, уложенный в ее бюджет токенов
+     *
+     * @param providerName провайдер, для которого собирается промпт (null - без поправки)
+     */
+    public String render(String chatId, HistoryRing.Window window, Task task, String providerName) {
+        return render(chatId, window, task.getMaxMessages(), task, providerName);
+    }
+
+    /**
+     * Не больше limit последних сообщений, уложенных в бюджет задачи
+     */
+    public String render(String chatId, HistoryRing.Window window, int limit, Task task, String providerName) {
+        return render(chatId, window, null, List.of(), limit, task, providerName);
+    }
+
+    /**
+     * Контекст для задачи со сводкой старой переписки и сообщениями из долгой
+     * памяти перед последними сообщениями
+     *
+     * @param summary  сводка чата (StorageService.getSummary)
+     * @param recalled старые сообщения, подходящие к запросу (LongTermMemory.recall)
+     */
+    public String render(String chatId, HistoryRing.Window window, String summary, List<String> recalled,
+            Task task, String providerName) {
+        return render(chatId, window, summary, recalled, task.getMaxMessages(), task, providerName);
+    }
+
+    public String render(String chatId, HistoryRing.Window window, String summary, List<String> recalled,
+            int limit, Task task, String providerName) {
+        Rendered rendered = lines(chatId, window, limit);
+        if (!builder.isEnabled()) {
+            String preamble = ContextBuilder.preamble(summary, recalled);
+            if (preamble.isEmpty()) {
+                return rendered.text;
+            }
+            return rendered.text.isEmpty() ? preamble : preamble + "\n" + rendered.text;
+        }
+        return builder.build(rendered.lines, summary, recalled, task, providerName);
+    }
+
+    /**
+     * Последние limit сообщений снимка в виде текста
+     *
+     * @param chatId ID чата (ключ кэша)
+     * @param window снимок истории (StorageService.getHistoryWindow)
+     * @param limit  сколько последних сообщений взять
+     */
+    public String render(String chatId, HistoryRing.Window window, int limit) {
+        return lines(chatId, window, limit).text;
+    }
+
+    /**
+     * Контекст для задачи без кэша - для разовых окон, которые не стоит держать
+     * в памяти (история обменов с одним игроком)
+     */
+    public String renderUncached(HistoryRing.Window window, Task task, String providerName) {
+        long end = window.getEnd();
+        long start = Math.max(window.getStart(), end - task.getMaxMessages());
+        List<Line> lines = new ArrayList<>((int) (end - start));
+        for (long i = start; i < end; i++) {
+            lines.add(builder.prepare(window.get(i)));
+        }
+        if (!builder.isEnabled()) {
+            return new Rendered(window.getEpoch(), window.getFloor(), start, end, lines).text;
+        }
+        return builder.build(lines, task, providerName);
+    }
+
+    private Rendered lines(String chatId, HistoryRing.Window window, int limit) {
+        long end = window.getEnd();
+        long start = Math.max(window.getStart(), end - limit);
+        String key = chatId + ":" + limit;
+
+        Rendered cached = cache.get(key);
+        if (cached != null && cached.matches(window, start, end)) {
+            return cached;
+        }
+
+        // Переиспользуем уже отформатированные строки, которые остались в окне
+        List<Line> lines = new ArrayList<>((int) (end - start));
+        long next = start;
+        if (cached != null && cached.overlaps(window, start, end)) {
+            int from = (int) (start - cached.start);
+            lines.addAll(cached.lines.subList(from, cached.lines.size()));
+            next = cached.end;
+        }
+        for (long i = next; i < end; i++) {
+            lines.add(builder.prepare(window.get(i)));
+        }
+
+        Rendered rendered = new Rendered(window.getEpoch(), window.getFloor(), start, end, lines);
+        // Старый снимок, пришедший позже нового, кэш не откатывает
+        cache.merge(key, rendered, (old, fresh) -> old.epoch == fresh.epoch && old.end > fresh.end ? old : fresh);
+        return rendered;
+    }
+
+    /**
+     * Текст досье игрока для промпта (пустая строка, если профиля нет).
+     * В досье идут только факты, подходящие к текущему сообщению.
+     *
+     * @param message  сообщение, на которое отвечает бот
+     * @param maxFacts сколько фактов взять
+     */
+    public static String renderDossier(UserProfile userProfile, String message, int maxFacts) {
+        if (userProfile == null) {
+            return "";
+        }
+
+        int score = userProfile.getRelationship();
+        String relationText = "";
+        if (score <= 20) {
+            relationText = "СТАТУС: ВРАГ (" + score + "/100). Отвечай грубо, с сарказмом.";
+        } else if (score <= 40) {
+            relationText = "СТАТУС: ХОЛОД (" + score + "/100). Язви, не доверяй.";
+        } else if (score >= 80) {
+            relationText = "СТАТУС: БРАТАН (" + score + "/100). Поддерживай, шути по-доброму.";
+        }
+
+        StringBuilder facts = new StringBuilder();
+        for (FactEntry fact : FactSelector.select(userProfile.getFactEntries(), message, maxFacts)) {
+            facts.append("\n- ").append(fact.getText());
+        }
+
+        return "\n--- ДОСЬЕ ---\nФакты:" + (facts.length() > 0 ? facts : " Нет") + "\n" + relationText
+                + "\n-----------------\n";
+    }
+
+    private static final class Rendered {
+        private final long epoch;
+        private final long floor;
+        private final long start;
+        private final long end;
+        private final List<Line> lines;
+        private final String text;
+
+        private Rendered(long epoch, long floor, long start, long end, List<Line> lines) {
+            this.epoch = epoch;
+            this.floor = floor;
+            this.start = start;
+            this.end = end;
+            this.lines = lines;
+            StringBuilder joined = new StringBuilder();
+            for (Line line : lines) {
+                if (joined.length() > 0) {
+                    joined.append('\n');
+                }
+                joined.append(line.getRaw());
+            }
+            this.text = joined.toString();
+        }
+
+        private boolean matches(HistoryRing.Window window, long start, long end) {
+            return epoch == window.getEpoch() && floor == window.getFloor() && this.start == start && this.end == end;
+        }
+
+        private boolean overlaps(HistoryRing.Window window, long start, long end) {
+            return epoch == window.getEpoch() && floor == window.getFloor()
+                    && this.start <= start && this.end > start && this.end <= end;
+        }
+    }
+}
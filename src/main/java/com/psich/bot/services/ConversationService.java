@@ -0,0 +1,194 @@
+package com.psich.bot.services;
+
+import com.psich.bot.utils.ConfigManager;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Отслеживает беседы бота с игроками.
+ * После ответа бота игроку открывается сессия: его следующие сообщения без
+ * триггера считаются продолжением разговора и идут сразу на генерацию ответа,
+ * без броска шанса и без проверки shouldAnswer.
+ * Сессия завершается при молчании, смене темы или когда к боту обращается
+ * другой игрок.
+ */
+public class ConversationService {
+
+    private static final Pattern WORD_SPLIT = Pattern.compile("[^\\p{L}\\p{Nd}]+");
+    private static final Pattern COLOR_CODES = Pattern.compile("§[0-9a-fk-or]");
+
+    // Минимальная длина слова, которое считается значимым для темы
+    private static final int MIN_WORD_LENGTH = 4;
+    // Длина "основы" слова - грубый стемминг для русского языка
+    private static final int STEM_LENGTH = 5;
+    // Если в сообщении меньше значимых слов, тема не проверяется ("а почему?", "ну да")
+    private static final int TOPIC_CHECK_MIN_WORDS = 3;
+
+    private static final Set<String> STOP_WORDS = Set.of(
+            "тебе", "тебя", "меня", "если", "когда", "потому", "этот", "этого", "этом", "того", "тоже",
+            "чтобы", "только", "вообще", "просто", "сейчас", "очень", "какой", "какая", "какие", "может",
+            "можно", "нужно", "надо", "будет", "было", "была", "были", "есть", "даже", "здесь", "свой",
+            "себя", "него", "нему", "they", "there", "that", "this", "what", "with", "have", "your");
+
+    private final ConfigManager config;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    public ConversationService(ConfigManager config) {
+        this.config = config;
+    }
+
+    /**
+     * Открывает (или продлевает) беседу после того, как бот ответил игроку
+     */
+    public void openSession(String chatId, String playerId, String playerMessage, String botReply) {
+        if (!config.isSessionEnabled()) {
+            return;
+        }
+        String key = key(chatId, playerId);
+        sessions.compute(key, (k, existing) -> {
+            Session session = existing != null ? existing : new Session(chatId, playerId);
+            session.lastActivity = System.currentTimeMillis();
+            session.topicWords = extractWords(playerMessage + " " + botReply);
+            return session;
+        });
+    }
+
+    /**
+     * Проверяет, является ли сообщение продолжением беседы с ботом.
+     * Если беседа истекла или игрок сменил тему, сессия закрывается.
+     *
+     * @param otherUserNames имена других участников чата - обращение к ним
+     *                       считается выходом из беседы с ботом
+     * @return true, если сообщение нужно обработать как обращение к боту
+     */
+    public boolean isFollowUp(String chatId, String playerId, String message, Collection<String> otherUserNames) {
+        if (!config.isSessionEnabled()) {
+            return false;
+        }
+        String key = key(chatId, playerId);
+        Session session = sessions.get(key);
+        if (session == null) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - session.lastActivity > config.getSessionWindowSeconds() * 1000L) {
+            sessions.remove(key, session);
+            return false;
+        }
+
+        if (session.turns >= config.getSessionMaxTurns()) {
+            sessions.remove(key, session);
+            return false;
+        }
+
+        String lower = COLOR_CODES.matcher(message).replaceAll("").toLowerCase(Locale.ROOT);
+        if (addressesSomeoneElse(lower, otherUserNames)) {
+            sessions.remove(key, session);
+            return false;
+        }
+
+        Set<String> words = extractWords(lower);
+        if (words.size() >= TOPIC_CHECK_MIN_WORDS && !intersects(words, session.topicWords)) {
+            // Игрок заговорил о другом - бот не лезет без приглашения
+            sessions.remove(key, session);
+            return false;
+        }
+
+        session.turns++;
+        session.lastActivity = now;
+        return true;
+    }
+
+    /**
+     * Вызывается при прямом обращении к боту: беседы с остальными игроками
+     * этого чата завершаются, с обратившимся - начинается заново
+     */
+    public void onBotAddressed(String chatId, String playerId) {
+        sessions.values().removeIf(s -> s.chatId.equals(chatId) && !s.playerId.equals(playerId));
+        Session own = sessions.get(key(chatId, playerId));
+        if (own != null) {
+            own.turns = 0;
+        }
+    }
+
+    public void endSession(String chatId, String playerId) {
+        sessions.remove(key(chatId, playerId));
+    }
+
+    public int getActiveSessionCount() {
+        long now = System.currentTimeMillis();
+        long window = config.getSessionWindowSeconds() * 1000L;
+        sessions.values().removeIf(s -> now - s.lastActivity > window);
+        return sessions.size();
+    }
+
+    private boolean addressesSomeoneElse(String lowerMessage, Collection<String> otherUserNames) {
+        if (otherUserNames == null) {
+            return false;
+        }
+        for (String name : otherUserNames) {
+            if (name == null || name.length() < 3) {
+                continue;
+            }
+            String lowerName = name.toLowerCase(Locale.ROOT);
+            int index = lowerMessage.indexOf(lowerName);
+            if (index < 0) {
+                continue;
+            }
+            int end = index + lowerName.length();
+            boolean wordStart = index == 0 || !Character.isLetterOrDigit(lowerMessage.charAt(index - 1));
+            boolean wordEnd = end >= lowerMessage.length() || !Character.isLetterOrDigit(lowerMessage.charAt(end));
+            if (wordStart && wordEnd) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Set<String> extractWords(String text) {
+        Set<String> words = new HashSet<>();
+        if (text == null) {
+            return words;
+        }
+        for (String word : WORD_SPLIT.split(text.toLowerCase(Locale.ROOT).replace('ё', 'е'))) {
+            if (word.length() < MIN_WORD_LENGTH || STOP_WORDS.contains(word)) {
+                continue;
+            }
+            words.add(word.length() > STEM_LENGTH ? word.substring(0, STEM_LENGTH) : word);
+        }
+        return words;
+    }
+
+    private static boolean intersects(Set<String> a, Set<String> b) {
+        for (String word : a) {
+            if (b.contains(word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String key(String chatId, String playerId) {
+        return chatId + ":" + playerId;
+    }
+
+    private static class Session {
+        private final String chatId;
+        private final String playerId;
+        private volatile long lastActivity;
+        private volatile int turns;
+        private volatile Set<String> topicWords = Set.of();
+
+        private Session(String chatId, String playerId) {
+            this.chatId = chatId;
+            this.playerId = playerId;
+        }
+    }
+}
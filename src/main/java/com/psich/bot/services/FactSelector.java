@@ -0,0 +1,76 @@
+package com.psich.bot.services;
+
+import com.psich.bot.services.StorageService.FactEntry;
+import com.psich.bot.utils.Keywords;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Подбор фактов об игроке, относящихся к текущему разговору.
+ * Факт подходит, если у него есть общие ключевые слова с текстом запроса.
+ * Среди подходящих выше те, что чаще подтверждались и узнаны позже.
+ */
+public final class FactSelector {
+
+    // Сколько "главных" фактов брать, если ни один не подошел по теме
+    private static final int FALLBACK_FACTS = 2;
+
+    private static final Comparator<FactEntry> BY_WEIGHT = Comparator.comparingInt(FactEntry::getHits)
+            .thenComparingLong(FactEntry::getCreatedAt).reversed();
+
+    private FactSelector() {
+    }
+
+    /**
+     * Не больше limit фактов, подходящих к тексту. Если по теме ничего нет,
+     * возвращает пару самых подтвержденных фактов.
+     */
+    public static List<FactEntry> select(List<FactEntry> facts, String text, int limit) {
+        if (facts.isEmpty() || limit <= 0) {
+            return List.of();
+        }
+        if (facts.size() <= limit) {
+            return facts;
+        }
+
+        Set<String> query = Keywords.extract(text);
+        List<Scored> scored = new ArrayList<>();
+        for (FactEntry fact : facts) {
+            int overlap = 0;
+            for (String keyword : fact.getKeywords()) {
+                if (query.contains(keyword)) {
+                    overlap++;
+                }
+            }
+            if (overlap > 0) {
+                scored.add(new Scored(fact, overlap));
+            }
+        }
+
+        List<FactEntry> result = new ArrayList<>();
+        if (scored.isEmpty()) {
+            List<FactEntry> sorted = new ArrayList<>(facts);
+            sorted.sort(BY_WEIGHT);
+            return sorted.subList(0, Math.min(FALLBACK_FACTS, Math.min(limit, sorted.size())));
+        }
+        scored.sort(Comparator.comparingInt((Scored s) -> s.overlap).reversed()
+                .thenComparing(s -> s.fact, BY_WEIGHT));
+        for (int i = 0; i < scored.size() && result.size() < limit; i++) {
+            result.add(scored.get(i).fact);
+        }
+        return result;
+    }
+
+    private static final class Scored {
+        private final FactEntry fact;
+        private final int overlap;
+
+        private Scored(FactEntry fact, int overlap) {
+            this.fact = fact;
+            this.overlap = overlap;
+        }
+    }
+}
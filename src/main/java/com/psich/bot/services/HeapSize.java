@@ -0,0 +1,60 @@
+package com.psich.bot.services;
+
+/**
+ * Оценка размера объектов в куче для /psich memory.
+ * Считается по раскладке 64-битной JVM со сжатыми указателями (заголовок
+ * 12 байт, ссылка 4 байта, выравнивание по 8), без обхода графа объектов.
+ */
+public final class HeapSize {
+
+    public static final int OBJECT_HEADER = 12;
+    public static final int REFERENCE = 4;
+    private static final int ARRAY_HEADER = 16;
+    // Объект String без массива: заголовок, ссылка на массив, hash, coder, hashIsZero
+    private static final int STRING = 24;
+    // Узел ConcurrentHashMap/HashMap и ячейка таблицы
+    private static final int MAP_ENTRY = 32 + REFERENCE;
+
+    private HeapSize() {
+    }
+
+    public static int align(long size) {
+        return (int) ((size + 7) & ~7L);
+    }
+
+    /**
+     * Массив байт длины length
+     */
+    public static int array(int length) {
+        return align(ARRAY_HEADER + length);
+    }
+
+    /**
+     * Массив ссылок длины length
+     */
+    public static int references(int length) {
+        return align(ARRAY_HEADER + (long) length * REFERENCE);
+    }
+
+    public static int string(String value) {
+        if (value == null) {
+            return 0;
+        }
+        // Строки только из Latin-1 хранятся по байту на символ, остальные - по два
+        int bytesPerChar = 1;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 0xff) {
+                bytesPerChar = 2;
+                break;
+            }
+        }
+        return STRING + array(value.length() * bytesPerChar);
+    }
+
+    /**
+     * Запись карты без ключа и значения
+     */
+    public static int mapEntry() {
+        return MAP_ENTRY;
+    }
+}
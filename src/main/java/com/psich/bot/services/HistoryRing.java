@@ -0,0 +1,256 @@
+package com.psich.bot.services;
+
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+import com.google.gson.reflect.TypeToken;
+import com.psich.bot.services.StorageService.ChatMessage;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * История чата фиксированного размера (кольцевой буфер).
+ * Добавление - O(1) без блокировок и безопасно из нескольких потоков.
+ * Читатели получают неизменяемый снимок последних N сообщений, который можно
+ * спокойно передавать в асинхронные задачи.
+ * Кроме числа сообщений размер можно ограничить байтами (trim): старые
+ * сообщения удаляются, пока история не уложится в лимит.
+ * В JSON сохраняется обычным массивом сообщений, как и раньше.
+ */
+public class HistoryRing {
+
+    private static final AtomicLong EPOCHS = new AtomicLong();
+
+    // Уникальный номер буфера: после resize нумерация сообщений начинается заново
+    private final long epoch = EPOCHS.incrementAndGet();
+    private final int capacity;
+    private final AtomicReferenceArray<ChatMessage> slots;
+    // Следующий номер для записи
+    private final AtomicLong claimed = new AtomicLong();
+    // Все записи с номером меньше этого уже видны читателям
+    private final AtomicLong published = new AtomicLong();
+    // Записи до этого номера удалены (clear)
+    private volatile long floor = 0;
+    // Записи до этого номера вытеснены по размеру (trim)
+    private volatile long trimmed = 0;
+    // Оценка памяти, занятой сообщениями в буфере
+    private final AtomicLong bytes = new AtomicLong();
+
+    public HistoryRing(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.slots = new AtomicReferenceArray<>(this.capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return сообщение, вытесненное из буфера этой записью (null, если буфер
+     *         еще не заполнен или вытесненное уже было очищено)
+     */
+    public ChatMessage add(ChatMessage message) {
+        long sequence = claimed.getAndIncrement();
+        ChatMessage evicted = slots.getAndSet((int) (sequence % capacity), message);
+        bytes.addAndGet(message.getHeapSize() - (evicted != null ? evicted.getHeapSize() : 0));
+        // Публикуем по порядку, чтобы читатель не увидел "дырку" от еще не
+        // дописавшего соседа
+        int spins = 0;
+        while (!published.compareAndSet(sequence, sequence + 1)) {
+            if (++spins < 100) {
+                Thread.onSpinWait();
+            } else {
+                // Сосед, видимо, вытеснен планировщиком - даем ему доработать
+                LockSupport.parkNanos(1_000);
+            }
+        }
+        return evicted != null && sequence - capacity >= floor ? evicted : null;
+    }
+
+    /**
+     * Неизменяемый снимок всей истории
+     */
+    public List<ChatMessage> snapshot() {
+        return snapshot(capacity);
+    }
+
+    /**
+     * Неизменяемый снимок последних limit сообщений (от старых к новым)
+     */
+    public List<ChatMessage> snapshot(int limit) {
+        return window(limit).getMessages();
+    }
+
+    /**
+     * Неизменяемый снимок всей истории вместе с номерами сообщений
+     */
+    public Window window() {
+        return window(capacity);
+    }
+
+    /**
+     * Неизменяемый снимок последних limit сообщений вместе с их номерами -
+     * по номерам можно понять, что именно изменилось с прошлого снимка
+     */
+    public Window window(int limit) {
+        while (true) {
+            long currentFloor = floor;
+            long currentTrimmed = trimmed;
+            long end = published.get();
+            long start = Math.max(Math.max(currentFloor, currentTrimmed), end - Math.min(limit, capacity));
+            if (start >= end) {
+                return new Window(epoch, end, end, currentFloor, Collections.emptyList());
+            }
+            List<ChatMessage> result = new ArrayList<>((int) (end - start));
+            for (long i = start; i < end; i++) {
+                result.add(slots.get((int) (i % capacity)));
+            }
+            // Если за время чтения писатели ушли на круг вперед или историю
+            // обрезали, часть слотов могла быть перезаписана - читаем заново
+            if (claimed.get() - capacity <= start && floor == currentFloor && trimmed == currentTrimmed) {
+                return new Window(epoch, start, end, currentFloor, Collections.unmodifiableList(result));
+            }
+        }
+    }
+
+    public int size() {
+        long end = published.get();
+        return (int) Math.min(capacity, end - Math.min(end, Math.max(floor, trimmed)));
+    }
+
+    /**
+     * Оценка памяти, занятой сообщениями (ChatMessage.getHeapSize)
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public synchronized void clear() {
+        long end = published.get();
+        floor = end;
+        for (long i = Math.max(0, end - capacity); i < end; i++) {
+            take(i);
+        }
+    }
+
+    /**
+     * Удаляет самые старые сообщения, пока история больше maxBytes
+     * (последнее сообщение остается всегда)
+     *
+     * @return удаленные сообщения, от старых к новым
+     */
+    public synchronized List<ChatMessage> trim(long maxBytes) {
+        if (bytes.get() <= maxBytes) {
+            return Collections.emptyList();
+        }
+        List<ChatMessage> removed = new ArrayList<>();
+        long end = published.get();
+        long sequence = Math.max(Math.max(floor, trimmed), Math.max(0, claimed.get() - capacity));
+        while (bytes.get() > maxBytes && sequence < end - 1) {
+            // Сначала граница, потом слот: читатель, увидевший пустой слот,
+            // увидит и новую границу и перечитает снимок
+            trimmed = sequence + 1;
+            ChatMessage message = take(sequence);
+            if (message != null) {
+                removed.add(message);
+            }
+            sequence++;
+        }
+        return removed;
+    }
+
+    /**
+     * Освобождает слот с номером sequence, если его еще не занял новый писатель
+     */
+    private ChatMessage take(long sequence) {
+        int index = (int) (sequence % capacity);
+        ChatMessage message = slots.get(index);
+        // Слот уже занят следующим кругом - вытесненное вернет add
+        if (message == null || claimed.get() > sequence + capacity) {
+            return null;
+        }
+        if (!slots.compareAndSet(index, message, null)) {
+            return null;
+        }
+        bytes.addAndGet(-message.getHeapSize());
+        return message;
+    }
+
+    /**
+     * Копия истории с другим размером (при изменении context-size)
+     */
+    public HistoryRing resize(int newCapacity) {
+        HistoryRing resized = new HistoryRing(newCapacity);
+        for (ChatMessage message : snapshot(newCapacity)) {
+            resized.add(message);
+        }
+        return resized;
+    }
+
+    /**
+     * Снимок истории: сообщения с номерами [start, end)
+     */
+    public static final class Window {
+        private final long epoch;
+        private final long start;
+        private final long end;
+        private final long floor;
+        private final List<ChatMessage> messages;
+
+        private Window(long epoch, long start, long end, long floor, List<ChatMessage> messages) {
+            this.epoch = epoch;
+            this.start = start;
+            this.end = end;
+            this.floor = floor;
+            this.messages = messages;
+        }
+
+        public long getEpoch() { return epoch; }
+        public long getStart() { return start; }
+        public long getEnd() { return end; }
+        // Номер, с которого история была последний раз очищена
+        public long getFloor() { return floor; }
+        public List<ChatMessage> getMessages() { return messages; }
+        public int size() { return messages.size(); }
+
+        public ChatMessage get(long sequence) {
+            return messages.get((int) (sequence - start));
+        }
+    }
+
+    /**
+     * Сериализация в JSON обычным массивом сообщений
+     */
+    public static class Adapter implements JsonSerializer<HistoryRing>, JsonDeserializer<HistoryRing> {
+
+        private static final Type LIST_TYPE = new TypeToken<List<ChatMessage>>() {}.getType();
+
+        @Override
+        public JsonElement serialize(HistoryRing src, Type typeOfSrc, JsonSerializationContext context) {
+            return context.serialize(src.snapshot(), LIST_TYPE);
+        }
+
+        @Override
+        public HistoryRing deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context)
+                throws JsonParseException {
+            List<ChatMessage> messages = context.deserialize(json, LIST_TYPE);
+            // Реальный размер выставляет StorageService после загрузки по context-size
+            HistoryRing ring = new HistoryRing(messages != null && !messages.isEmpty() ? messages.size() : 1);
+            if (messages != null) {
+                for (ChatMessage message : messages) {
+                    ring.add(message);
+                }
+            }
+            return ring;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.psich.bot.services;
+
+import com.psich.bot.PsichBot;
+import net.kyori.adventure.text.Component;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Конвейер входящих событий.
+ * Слушатели (чат, игровые события, Discord) только фиксируют неизменяемую
+ * запись о событии и кладут ее в lock-free очередь. Потоки-потребители
+ * выполняют всю остальную работу: обновляют хранилище, собирают контекст и
+ * передают задачи в очередь AI. Так обработчики событий почти ничего не стоят.
+ * Очередей несколько (partitions.threads), раздел чата закреплен за одной по
+ * хэшу id: события раздела обрабатываются по порядку одним потоком, а разные
+ * разделы - параллельно и не делят одну очередь.
+ */
+public class IngestionPipeline {
+
+    // Предел очереди, чтобы при зависании потребителя не съесть всю память
+    private static final int MAX_QUEUE_SIZE = 10_000;
+
+    private final PsichBot plugin;
+    private final Shard[] shards;
+    private final Map<IngestEvent.Type, Consumer<IngestEvent>> handlers = new EnumMap<>(IngestEvent.Type.class);
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean running = false;
+
+    public IngestionPipeline(PsichBot plugin) {
+        this.plugin = plugin;
+        this.shards = new Shard[plugin.getConfigManager().getPartitionThreads()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * Регистрирует обработчик для типа событий (до вызова start)
+     */
+    public void registerHandler(IngestEvent.Type type, Consumer<IngestEvent> handler) {
+        handlers.put(type, handler);
+    }
+
+    public void start() {
+        running = true;
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[i];
+            shard.consumer = new Thread(() -> consumeLoop(shard), "PsichBot-Ingest-" + (i + 1));
+            shard.consumer.setDaemon(true);
+            shard.consumer.start();
+        }
+    }
+
+    /**
+     * Останавливает потребителей, дав им дообработать очереди
+     */
+    public void shutdown() {
+        running = false;
+        List<Thread> threads = new ArrayList<>();
+        for (Shard shard : shards) {
+            if (shard.consumer != null) {
+                LockSupport.unpark(shard.consumer);
+                threads.add(shard.consumer);
+            }
+        }
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        for (Thread thread : threads) {
+            try {
+                thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Кладет событие в очередь. Безопасно вызывать из любого потока.
+     */
+    public void submit(IngestEvent event) {
+        if (depth.incrementAndGet() > MAX_QUEUE_SIZE) {
+            depth.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        Shard shard = shardFor(event.getChatId());
+        shard.queue.offer(event);
+        Thread thread = shard.consumer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Выполняет действие в потоке конвейера, который обрабатывает раздел chatId
+     * (для изменений хранилища из других потоков)
+     */
+    public void execute(String chatId, Runnable task) {
+        submit(IngestEvent.task(chatId, task));
+    }
+
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Число потоков-потребителей
+     */
+    public int getThreadCount() {
+        return shards.length;
+    }
+
+    private Shard shardFor(String chatId) {
+        int hash = chatId != null ? chatId.hashCode() : 0;
+        return shards[(hash & 0x7fffffff) % shards.length];
+    }
+
+    private void consumeLoop(Shard shard) {
+        Queue<IngestEvent> queue = shard.queue;
+        while (running || !queue.isEmpty()) {
+            IngestEvent event = queue.poll();
+            if (event == null) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                continue;
+            }
+            depth.decrementAndGet();
+            try {
+                if (event.getType() == IngestEvent.Type.TASK) {
+                    event.getTask().run();
+                } else {
+                    Consumer<IngestEvent> handler = handlers.get(event.getType());
+                    if (handler != null) {
+                        handler.accept(event);
+                    }
+                }
+            } catch (Exception e) {
+                plugin.getLogger().severe("Ошибка обработки события " + event.getType() + ": " + e.getMessage());
+                if (plugin.getConfigManager().isDebug()) {
+                    e.printStackTrace();
+                }
+            }
+            processed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Очередь и поток одной части конвейера
+     */
+    private static final class Shard {
+        private final Queue<IngestEvent> queue = new ConcurrentLinkedQueue<>();
+        private volatile Thread consumer;
+    }
+
+    /**
+     * Неизменяемая запись о входящем событии
+     */
+    public static final class IngestEvent {
+
+        public enum Type {
+            CHAT, DISCORD_CHAT, DEATH, ADVANCEMENT, JOIN, QUIT, TASK
+        }
+
+        private final Type type;
+        private final long timestamp = System.currentTimeMillis();
+        private final String chatId;
+        private final String playerId;
+        private final String playerName;
+        private final String text;
+        private final boolean firstJoin;
+        private final Component title;
+        private final Runnable task;
+
+        private IngestEvent(Type type, String chatId, String playerId, String playerName, String text,
+                boolean firstJoin, Component title, Runnable task) {
+            this.type = type;
+            this.chatId = chatId;
+            this.playerId = playerId;
+            this.playerName = playerName;
+            this.text = text;
+            this.firstJoin = firstJoin;
+            this.title = title;
+            this.task = task;
+        }
+
+        public static IngestEvent chat(String chatId, String playerId, String playerName, String message) {
+            return new IngestEvent(Type.CHAT, chatId, playerId, playerName, message, false, null, null);
+        }
+
+        public static IngestEvent discordChat(String chatId, String authorName, String message) {
+            return new IngestEvent(Type.DISCORD_CHAT, chatId, null, authorName, message, false, null, null);
+        }
+
+        public static IngestEvent death(String chatId, String playerId, String playerName, String deathMessage) {
+            return new IngestEvent(Type.DEATH, chatId, playerId, playerName, deathMessage, false, null, null);
+        }
+
+        public static IngestEvent advancement(String chatId, String playerId, String playerName,
+                String advancementKey, Component title) {
+            return new IngestEvent(Type.ADVANCEMENT, chatId, playerId, playerName, advancementKey, false, title, null);
+        }
+
+        public static IngestEvent join(String chatId, String playerId, String playerName, boolean firstJoin) {
+            return new IngestEvent(Type.JOIN, chatId, playerId, playerName, null, firstJoin, null, null);
+        }
+
+        public static IngestEvent quit(String chatId, String playerId, String playerName) {
+            return new IngestEvent(Type.QUIT, chatId, playerId, playerName, null, false, null, null);
+        }
+
+        public static IngestEvent task(String chatId, Runnable task) {
+            return new IngestEvent(Type.TASK, chatId, null, null, null, false, null, task);
+        }
+
+        public Type getType() { return type; }
+        public long getTimestamp() { return timestamp; }
+        public String getChatId() { return chatId; }
+        public String getPlayerId() { return playerId; }
+        public String getPlayerName() { return playerName; }
+        public String getText() { return text; }
+        public boolean isFirstJoin() { return firstJoin; }
+        public Component getTitle() { return title; }
+        public Runnable getTask() { return task; }
+    }
+}
@@ -0,0 +1,612 @@
+package com.psich.bot.services;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.psich.bot.PsichBot;
+import com.psich.bot.services.StorageService.ChatData;
+import com.psich.bot.services.StorageService.ChatMessage;
+import com.psich.bot.services.StorageService.UserProfile;
+import com.psich.bot.utils.ConfigManager;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.lang.reflect.Type;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+
+/**
+ * Хранилище в файлах (по умолчанию).
+ * Снимок - db.json и profiles.json целиком или двоичный snapshot.bin
+ * (storage.snapshot.format); изменения между снимками
+ * дописываются в журнал (StorageJournal). Без журнала изменения только
+ * помечают данные, и снимок пишется не чаще раза в flush-interval.
+ * Профили, которые сейчас не нужны, хранятся в памяти строками JSON и
+ * разбираются, только когда игрок снова понадобится.
+ */
+public class JsonStorageBackend implements StorageBackend {
+
+    private final PsichBot plugin;
+    private final ConfigManager config;
+    private final Gson gson;
+    // Для записей журнала - без отступов
+    private final Gson compactGson = new Gson();
+    private final File dbFile;
+    private final File profilesFile;
+    private final File snapshotFile;
+    private final StorageJournal journal;
+    // Блокировка на запись StorageService: пока она взята, изменения ждут
+    private final Lock snapshotLock;
+    // Будит фоновый поток, когда журнал пора сжимать
+    private final Runnable requestFlush;
+
+    private Map<String, ChatData> chats = new ConcurrentHashMap<>();
+    // Профили, измененные после снимка или вытеснения (те же объекты, что в ProfileCache)
+    private final Map<String, Map<String, UserProfile>> liveProfiles = new ConcurrentHashMap<>();
+    // Остальные профили - компактным JSON, как в profiles.json
+    private final Map<String, Map<String, String>> storedProfiles = new ConcurrentHashMap<>();
+    // Без журнала: данные изменились с последнего снимка
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    // Журнал вырос - при следующей записи нужен снимок
+    private final AtomicBoolean compactRequested = new AtomicBoolean();
+
+    public JsonStorageBackend(PsichBot plugin, File dataFolder, Lock snapshotLock, Runnable requestFlush) {
+        this.plugin = plugin;
+        this.config = plugin.getConfigManager();
+        this.gson = createGson();
+        this.dbFile = new File(dataFolder, "db.json");
+        this.profilesFile = new File(dataFolder, "profiles.json");
+        this.snapshotFile = new File(dataFolder, SnapshotFile.NAME);
+        this.journal = new StorageJournal(new File(dataFolder, "journal"), plugin.getLogger());
+        this.snapshotLock = snapshotLock;
+        this.requestFlush = requestFlush;
+    }
+
+    /**
+     * Gson для db.json; адаптер нужен и для историй игроков, лежащих в карте
+     */
+    static Gson createGson() {
+        return new GsonBuilder().setPrettyPrinting()
+                .registerTypeAdapter(HistoryRing.class, new HistoryRing.Adapter())
+                .create();
+    }
+
+    @Override
+    public String getName() {
+        return config.isSnapshotBinary() ? "файлы (snapshot.bin)" : "JSON";
+    }
+
+    /**
+     * Есть ли что переносить в другое хранилище
+     */
+    public boolean hasData() {
+        return dbFile.exists() || profilesFile.exists() || snapshotFile.exists();
+    }
+
+    /**
+     * Загружает снимок в формате из конфига, а если его файла нет - в другом
+     * (так JSON импортируется в snapshot.bin и обратно)
+     */
+    @Override
+    public void load(Map<String, ChatData> chats) {
+        this.chats = chats;
+        long started = System.nanoTime();
+        boolean binary = snapshotFile.exists()
+                && (config.isSnapshotBinary() || !dbFile.exists() && !profilesFile.exists());
+        if (binary) {
+            try {
+                SnapshotFile.read(snapshotFile, config.getContextSize(), config.getPlayerHistorySize(),
+                        chats, storedProfiles);
+            } catch (Exception e) {
+                plugin.getLogger().warning("Ошибка загрузки " + snapshotFile.getName() + ": " + e.getMessage());
+                chats.clear();
+                storedProfiles.clear();
+            }
+        } else {
+            readJson(gson, dbFile, profilesFile, config.getContextSize(), config.getPlayerHistorySize(),
+                    chats, storedProfiles, plugin.getLogger());
+        }
+        if (binary || dbFile.exists() || profilesFile.exists()) {
+            plugin.getLogger().info("Снимок загружен из " + (binary ? snapshotFile.getName() : "JSON") + " за "
+                    + (System.nanoTime() - started) / 1_000_000 + " мс");
+        }
+
+        // Проигрываем изменения, сделанные после снимка
+        int replayed = journal.replay(this::applyRecord);
+        for (ChatData chat : chats.values()) {
+            journal.advanceTo(chat.getJournalSeq());
+        }
+        if (replayed > 0) {
+            plugin.getLogger().info("Из журнала восстановлено изменений: " + replayed);
+            if (!config.isStorageJournalEnabled()) {
+                // Журнал выключили - переносим остаток в снимок
+                save();
+            }
+        }
+    }
+
+    /**
+     * Читает db.json и profiles.json потоком в UTF-8; профили остаются
+     * строками до первого обращения
+     */
+    static void readJson(Gson gson, File dbFile, File profilesFile, int contextSize, int playerHistorySize,
+                         Map<String, ChatData> chats, Map<String, Map<String, String>> profiles,
+                         Logger logger) {
+        if (dbFile.exists()) {
+            try (Reader reader = Files.newBufferedReader(dbFile.toPath(), StandardCharsets.UTF_8)) {
+                Type type = new TypeToken<Map<String, ChatData>>() {}.getType();
+                Map<String, ChatData> loaded = gson.fromJson(reader, type);
+                if (loaded != null) {
+                    chats.putAll(loaded);
+                }
+
+                // Приводим размер истории к context-size, участников - к потокобезопасной карте
+                for (ChatData chat : chats.values()) {
+                    chat.prepare(contextSize, playerHistorySize);
+                }
+            } catch (Exception e) {
+                logger.warning("Ошибка загрузки db.json: " + e.getMessage());
+                chats.clear();
+            }
+        }
+
+        if (profilesFile.exists()) {
+            try (JsonReader reader = new JsonReader(Files.newBufferedReader(profilesFile.toPath(),
+                    StandardCharsets.UTF_8))) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    Map<String, String> chatProfiles = profiles.computeIfAbsent(reader.nextName(),
+                            k -> new ConcurrentHashMap<>());
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String userId = reader.nextName();
+                        // Профиль переписывается в строку по токенам, без дерева объектов
+                        StringWriter profile = new StringWriter(256);
+                        copy(reader, new JsonWriter(profile));
+                        chatProfiles.put(userId, profile.toString());
+                    }
+                    reader.endObject();
+                }
+                reader.endObject();
+            } catch (Exception e) {
+                logger.warning("Ошибка загрузки profiles.json: " + e.getMessage());
+                profiles.clear();
+            }
+        }
+    }
+
+    private static void copy(JsonReader in, JsonWriter out) throws IOException {
+        switch (in.peek()) {
+            case BEGIN_ARRAY -> {
+                in.beginArray();
+                out.beginArray();
+                while (in.hasNext()) {
+                    copy(in, out);
+                }
+                in.endArray();
+                out.endArray();
+            }
+            case BEGIN_OBJECT -> {
+                in.beginObject();
+                out.beginObject();
+                while (in.hasNext()) {
+                    out.name(in.nextName());
+                    copy(in, out);
+                }
+                in.endObject();
+                out.endObject();
+            }
+            case STRING -> out.value(in.nextString());
+            // Число переносим как есть, без округления через double
+            case NUMBER -> out.jsonValue(in.nextString());
+            case BOOLEAN -> out.value(in.nextBoolean());
+            case NULL -> {
+                in.nextNull();
+                out.nullValue();
+            }
+            default -> in.skipValue();
+        }
+    }
+
+    /**
+     * Применяет запись журнала при загрузке. Записи чата, уже вошедшие в
+     * снимок, пропускаются по номеру, профиль - по версии.
+     */
+    private void applyRecord(JsonObject record) {
+        String op = record.get("o").getAsString();
+        String chatId = record.get("c").getAsString();
+        if ("profile".equals(op)) {
+            String userId = record.get("u").getAsString();
+            UserProfile profile = compactGson.fromJson(record.get("v"), UserProfile.class);
+            profile.migrateLegacyFacts();
+            UserProfile current = loadProfile(chatId, userId);
+            if (current == null || current.getVersion() < profile.getVersion()) {
+                live(chatId).put(userId, profile);
+            }
+            return;
+        }
+
+        ChatData chat = chats.computeIfAbsent(chatId, k -> new ChatData(chatId, config.getContextSize()));
+        long sequence = record.get("q").getAsLong();
+        if (sequence <= chat.getJournalSeq()) {
+            return;
+        }
+        switch (op) {
+            case "msg" -> {
+                ChatMessage message = compactGson.fromJson(record.get("m"), ChatMessage.class);
+                ChatMessage evicted = chat.addMessage(message);
+                // Слушателей при загрузке еще нет - сводке вытесненное передаем сами
+                if (evicted != null && config.isSummaryEnabled()) {
+                    chat.addUnsummarized(evicted);
+                }
+                if (message.getPlayerId() != null) {
+                    chat.addPlayerMessage(message.getPlayerId(), message, config.getPlayerHistorySize());
+                }
+            }
+            case "user" -> chat.addUser(record.get("u").getAsString(), record.get("n").getAsString());
+            case "forget" -> chat.forgetUser(record.get("u").getAsString());
+            case "mute" -> chat.setMuted(record.get("v").getAsBoolean());
+            case "clear" -> chat.clearHistory();
+            // Остаются только сообщения, вытесненные после начала сводки
+            case "summary" -> chat.applySummary(record.get("s").getAsString(), record.get("k").getAsInt());
+            default -> plugin.getLogger().warning("Неизвестная запись журнала: " + op);
+        }
+        chat.markJournaled(sequence);
+    }
+
+    @Override
+    public void appendMessage(ChatData chat, ChatMessage message) {
+        JsonObject record = new JsonObject();
+        record.add("m", compactGson.toJsonTree(message));
+        record(chat, "msg", record);
+    }
+
+    @Override
+    public void putUser(ChatData chat, String userId, String username) {
+        JsonObject record = new JsonObject();
+        record.addProperty("u", userId);
+        record.addProperty("n", username);
+        record(chat, "user", record);
+    }
+
+    @Override
+    public void forgetUser(ChatData chat, String userId) {
+        JsonObject record = new JsonObject();
+        record.addProperty("u", userId);
+        record(chat, "forget", record);
+    }
+
+    @Override
+    public void putMuted(ChatData chat, boolean muted) {
+        JsonObject record = new JsonObject();
+        record.addProperty("v", muted);
+        record(chat, "mute", record);
+    }
+
+    @Override
+    public void putSummary(ChatData chat, String summary, int pending) {
+        JsonObject record = new JsonObject();
+        record.addProperty("s", summary);
+        record.addProperty("k", pending);
+        record(chat, "summary", record);
+    }
+
+    @Override
+    public void clearHistory(ChatData chat) {
+        record(chat, "clear", new JsonObject());
+    }
+
+    @Override
+    public UserProfile loadProfile(String chatId, String userId) {
+        Map<String, UserProfile> live = liveProfiles.get(chatId);
+        UserProfile profile = live != null ? live.get(userId) : null;
+        if (profile != null) {
+            return profile;
+        }
+        Map<String, String> stored = storedProfiles.get(chatId);
+        String json = stored != null ? stored.get(userId) : null;
+        if (json == null) {
+            return null;
+        }
+        profile = compactGson.fromJson(json, UserProfile.class);
+        // Старое досье одним текстом -> отдельные факты
+        profile.migrateLegacyFacts();
+        return profile;
+    }
+
+    @Override
+    public Map<String, Map<String, UserProfile>> loadAllProfiles() {
+        Map<String, Map<String, UserProfile>> all = new HashMap<>();
+        Set<String> chatIds = new HashSet<>(storedProfiles.keySet());
+        chatIds.addAll(liveProfiles.keySet());
+        for (String chatId : chatIds) {
+            Set<String> userIds = new HashSet<>(stored(chatId).keySet());
+            userIds.addAll(live(chatId).keySet());
+            Map<String, UserProfile> chatProfiles = new HashMap<>();
+            for (String userId : userIds) {
+                chatProfiles.put(userId, loadProfile(chatId, userId));
+            }
+            all.put(chatId, chatProfiles);
+        }
+        return all;
+    }
+
+    @Override
+    public Map<String, Map<String, String>> loadAllProfileJson() {
+        Map<String, Map<String, String>> all = new HashMap<>();
+        storedProfiles.forEach((chatId, chatProfiles) -> all.put(chatId, new HashMap<>(chatProfiles)));
+        // Измененные профили еще не сериализованы - они новее сохраненных строк
+        liveProfiles.forEach((chatId, chatProfiles) -> chatProfiles.forEach((userId, profile) ->
+                all.computeIfAbsent(chatId, k -> new HashMap<>()).put(userId, compactGson.toJson(profile))));
+        return all;
+    }
+
+    @Override
+    public void putProfile(String chatId, String userId, UserProfile profile, UnaryOperator<UserProfile> merge) {
+        live(chatId).put(userId, profile);
+        if (!config.isStorageJournalEnabled()) {
+            dirty.set(true);
+            return;
+        }
+        JsonObject record = new JsonObject();
+        record.addProperty("o", "profile");
+        record.addProperty("c", chatId);
+        record.addProperty("u", userId);
+        record.add("v", compactGson.toJsonTree(profile));
+        journal.append(record);
+        compactIfNeeded();
+    }
+
+    /**
+     * Сворачивает профиль обратно в строку - сам объект больше не нужен
+     */
+    @Override
+    public void evictProfile(String chatId, String userId, UserProfile profile) {
+        Map<String, UserProfile> live = live(chatId);
+        if (live.get(userId) == profile) {
+            stored(chatId).put(userId, compactGson.toJson(profile));
+            // Новая версия, записанная параллельно, остается
+            live.remove(userId, profile);
+        }
+    }
+
+    private Map<String, UserProfile> live(String chatId) {
+        return liveProfiles.computeIfAbsent(chatId, k -> new ConcurrentHashMap<>());
+    }
+
+    private Map<String, String> stored(String chatId) {
+        return storedProfiles.computeIfAbsent(chatId, k -> new ConcurrentHashMap<>());
+    }
+
+    /**
+     * В JSON хранится только текущая история чата - ищем в ней
+     */
+    @Override
+    public List<ChatMessage> queryHistory(String chatId, String playerId, long fromTime, long toTime, int limit) {
+        ChatData chat = chats.get(chatId);
+        List<ChatMessage> result = new ArrayList<>();
+        if (chat == null) {
+            return result;
+        }
+        List<ChatMessage> source = playerId != null ? chat.getPlayerHistoryWindow(playerId).getMessages()
+                : chat.getHistory();
+        for (ChatMessage message : source) {
+            if (message.getTime() >= fromTime && message.getTime() <= toTime) {
+                result.add(message);
+            }
+        }
+        return result.size() > limit ? new ArrayList<>(result.subList(result.size() - limit, result.size())) : result;
+    }
+
+    /**
+     * Дописывает изменение чата в журнал. Вызывается под блокировкой
+     * StorageService вместе с самим изменением.
+     */
+    private void record(ChatData chat, String op, JsonObject record) {
+        if (!config.isStorageJournalEnabled()) {
+            dirty.set(true);
+            return;
+        }
+        record.addProperty("o", op);
+        record.addProperty("c", chat.getChatId());
+        chat.markJournaled(journal.append(record));
+        compactIfNeeded();
+    }
+
+    /**
+     * Журнал вырос - просим фоновый поток сделать снимок
+     */
+    private void compactIfNeeded() {
+        if (journal.getSize() >= config.getStorageJournalCompactBytes()
+                && compactRequested.compareAndSet(false, true)) {
+            requestFlush.run();
+        }
+    }
+
+    @Override
+    public boolean keepsFullHistory() {
+        return false;
+    }
+
+    /**
+     * Дописывает журнал, а снимок делает, только если журнал вырос или журнал
+     * выключен и данные менялись
+     */
+    @Override
+    public void flush() {
+        journal.flush();
+        if (compactRequested.getAndSet(false) | dirty.getAndSet(false)) {
+            save();
+        }
+    }
+
+    @Override
+    public void close() {
+        save();
+        journal.close();
+    }
+
+    /**
+     * Снимок: полностью записывает db.json и profiles.json (или snapshot.bin)
+     * и удаляет сегменты журнала, которые в него вошли
+     */
+    public synchronized void save() {
+        boolean binary = config.isSnapshotBinary();
+        String chatsJson = null;
+        String profilesJson = null;
+        byte[] body = null;
+        int sealed;
+        // Изменения на время сериализации ждут - снимок совпадает с границей сегмента
+        snapshotLock.lock();
+        try {
+            foldLiveProfiles();
+            if (binary) {
+                body = SnapshotFile.encode(chats, storedProfiles);
+            } else {
+                chatsJson = gson.toJson(chats);
+                profilesJson = profilesJson(storedProfiles);
+            }
+            sealed = journal.rotate();
+        } catch (IOException e) {
+            plugin.getLogger().warning("Ошибка снимка: " + e.getMessage());
+            return;
+        } finally {
+            snapshotLock.unlock();
+        }
+
+        boolean written;
+        if (binary) {
+            byte[] snapshot = body;
+            boolean compress = config.isSnapshotCompressed();
+            written = writeSnapshot(snapshotFile, out -> SnapshotFile.write(out, snapshot, compress));
+        } else {
+            written = writeSnapshot(dbFile, chatsJson);
+            written &= writeSnapshot(profilesFile, profilesJson);
+        }
+        if (written) {
+            journal.deleteUpTo(sealed);
+            // Снимок в другом формате устарел - убираем, чтобы он не загрузился вместо нового
+            for (File old : binary ? new File[] { dbFile, profilesFile } : new File[] { snapshotFile }) {
+                File backup = new File(old.getParentFile(), old.getName() + ".old");
+                if (old.exists() && (!backup.exists() || backup.delete()) && !old.renameTo(backup)) {
+                    plugin.getLogger().warning("Не удалось переименовать устаревший " + old.getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Измененные профили сворачиваются в строки - снимок пишет только их
+     */
+    private void foldLiveProfiles() {
+        liveProfiles.forEach((chatId, live) -> live.forEach((userId, profile) -> {
+            stored(chatId).put(userId, compactGson.toJson(profile));
+            live.remove(userId, profile);
+        }));
+    }
+
+    /**
+     * profiles.json из строк профилей (каждый профиль - одна строка)
+     */
+    static String profilesJson(Map<String, Map<String, String>> storedProfiles) {
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(out)) {
+            writer.setIndent("  ");
+            writer.beginObject();
+            for (Map.Entry<String, Map<String, String>> chat : storedProfiles.entrySet()) {
+                writer.name(chat.getKey()).beginObject();
+                for (Map.Entry<String, String> user : chat.getValue().entrySet()) {
+                    writer.name(user.getKey()).jsonValue(user.getValue());
+                }
+                writer.endObject();
+            }
+            writer.endObject();
+        } catch (IOException e) {
+            // StringWriter не бросает IOException
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Пишет файл снимка во временный файл, ждет fsync и только потом подменяет
+     * старый - при сбое остается либо прежний файл, либо новый целиком
+     */
+    private boolean writeSnapshot(File file, String json) {
+        return writeSnapshot(file, out -> out.write(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private boolean writeSnapshot(File file, SnapshotWriter writer) {
+        try {
+            Path temp = new File(file.getParentFile(), file.getName() + ".tmp").toPath();
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+                writer.write(out);
+                out.flush();
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (Exception e) {
+            plugin.getLogger().warning("Ошибка сохранения " + file.getName() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * После переноса в другое хранилище убирает файлы, чтобы перенос не повторился
+     */
+    public void retire() {
+        journal.close();
+        for (File file : new File[] { dbFile, profilesFile, snapshotFile, journal.getFolder() }) {
+            if (file.exists() && !file.renameTo(new File(file.getParentFile(), file.getName() + ".migrated"))) {
+                plugin.getLogger().warning("Не удалось переименовать " + file.getName() + " после переноса");
+            }
+        }
+    }
+
+    @Override
+    public List<String> getStatusLines() {
+        List<String> lines = new ArrayList<>();
+        if (config.isStorageJournalEnabled()) {
+            lines.add("§7Журнал: §f" + journal.getSize() / 1024 + "§7 из §f"
+                    + config.getStorageJournalCompactBytes() / 1024 + "§7 КБ до снимка");
+        } else {
+            lines.add("§7Журнал: §8выключен§7, сохраняется целиком");
+        }
+        return lines;
+    }
+
+    @FunctionalInterface
+    private interface SnapshotWriter {
+        void write(OutputStream out) throws IOException;
+    }
+}
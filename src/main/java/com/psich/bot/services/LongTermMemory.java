@@ -0,0 +1,524 @@
+package com.psich.bot.services;
+
+import com.google.gson.Gson;
+import com.psich.bot.PsichBot;
+import com.psich.bot.services.StorageService.ChatMessage;
+import com.psich.bot.utils.ConfigManager;
+import com.psich.bot.utils.Keywords;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Долгая память чата.
+ * Сообщения, вытесненные из истории, дописываются в data/memory/<чат>/<начало>.jsonl
+ * (одно сообщение - одна строка JSON) и сразу попадают в полнотекстовый
+ * индекс BM25. При ответе бот находит в архиве несколько старых сообщений,
+ * подходящих к вопросу, и добавляет их в промпт перед историей.
+ * Файлы старше memory.retention-days удаляются вместе с их документами в индексе.
+ */
+public class LongTermMemory {
+
+    // Сколько последних документов смотреть по каждому слову запроса
+    private static final int MAX_POSTINGS_PER_TERM = 50_000;
+    // Новый файл архива раз в сутки - по ним удаляются старые сообщения
+    private static final long SEGMENT_MILLIS = 86_400_000L;
+    // Проверка срока хранения раз в час (в тиках)
+    private static final long EXPIRE_PERIOD_TICKS = 20L * 60 * 60;
+    // Адрес документа: номер файла и смещение строки в нем (до 1 ТБ)
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private final PsichBot plugin;
+    private final ConfigManager config;
+    private final File folder;
+    private final Gson gson = new Gson();
+    private final Map<String, ChatMemory> chats = new ConcurrentHashMap<>();
+
+    public LongTermMemory(PsichBot plugin, ConfigManager config) {
+        this.plugin = plugin;
+        this.config = config;
+        this.folder = new File(new File(plugin.getDataFolder(), "data"), "memory");
+    }
+
+    /**
+     * Подписывается на вытеснение сообщений и загружает архивы в фоне
+     */
+    public void start() {
+        if (!folder.exists()) {
+            folder.mkdirs();
+        }
+        migrateFlatFiles();
+        // Архивы регистрируем до подписки: загрузка проиндексирует файлы до
+        // нынешнего размера, а сообщения, вытесненные во время загрузки, -
+        // из очереди после нее
+        List<ChatMemory> pending = new ArrayList<>();
+        File[] dirs = folder.listFiles(File::isDirectory);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                ChatMemory memory = new ChatMemory(dir, true);
+                chats.put(dir.getName(), memory);
+                pending.add(memory);
+            }
+        }
+        plugin.getStorageService().addEvictionListener(this::onEvicted);
+        plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, this::expire,
+                EXPIRE_PERIOD_TICKS, EXPIRE_PERIOD_TICKS);
+        if (pending.isEmpty()) {
+            return;
+        }
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+            long started = System.currentTimeMillis();
+            int total = 0;
+            for (ChatMemory memory : pending) {
+                total += memory.load();
+            }
+            plugin.getLogger().info("Долгая память загружена: " + total + " сообщений за "
+                    + (System.currentTimeMillis() - started) + " мс");
+            expire();
+        });
+    }
+
+    /**
+     * Архив одним файлом data/memory/<чат>.jsonl (до разбиения на файлы по дням)
+     * переносится в data/memory/<чат>/. Номер файла - время последнего изменения,
+     * так что срок хранения отсчитывается от самого нового сообщения в нем
+     */
+    private void migrateFlatFiles() {
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(".jsonl"));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            File dir = new File(folder, file.getName().substring(0, file.getName().length() - ".jsonl".length()));
+            dir.mkdirs();
+            if (!file.renameTo(new File(dir, file.lastModified() + ".jsonl"))) {
+                plugin.getLogger().warning("Не удалось перенести долгую память " + file.getName());
+            }
+        }
+    }
+
+    public void shutdown() {
+        for (ChatMemory memory : chats.values()) {
+            memory.close();
+        }
+    }
+
+    /**
+     * Старые сообщения чата, подходящие к запросу, в виде строк для промпта
+     *
+     * @param playerId игрок, который спрашивает (его сообщения в приоритете)
+     */
+    public List<String> recall(String chatId, String playerId, String query) {
+        if (!config.isMemoryEnabled()) {
+            return Collections.emptyList();
+        }
+        ChatMemory memory = chats.get(fileKey(chatId));
+        List<String> tokens = Keywords.tokenize(query);
+        if (memory == null || tokens.isEmpty()) {
+            return Collections.emptyList();
+        }
+        long started = System.nanoTime();
+        List<Bm25Index.Hit> hits = memory.index.search(tokens, playerId, config.getMemoryRecallLimit(),
+                MAX_POSTINGS_PER_TERM);
+        List<String> lines = new ArrayList<>();
+        SimpleDateFormat format = new SimpleDateFormat("dd.MM HH:mm");
+        for (Bm25Index.Hit hit : hits) {
+            if (hit.getScore() < config.getMemoryMinScore()) {
+                continue;
+            }
+            ChatMessage message = memory.read(hit.getOffset());
+            if (message != null) {
+                String time = message.getTime() > 0 ? "[" + format.format(new Date(message.getTime())) + "] " : "";
+                lines.add(time + message.getRole() + ": " + message.getText());
+            }
+        }
+        if (config.isDebug() && !lines.isEmpty()) {
+            plugin.getLogger().info(String.format("[DEBUG] Из долгой памяти найдено %d сообщений за %.2f мс",
+                    lines.size(), (System.nanoTime() - started) / 1_000_000.0));
+        }
+        return lines;
+    }
+
+    /**
+     * Забывает архив чата (при /psich reset)
+     */
+    public void clear(String chatId) {
+        ChatMemory memory = chats.get(fileKey(chatId));
+        if (memory != null) {
+            memory.clear();
+        }
+    }
+
+    /**
+     * Строки статистики для команды /psich status
+     */
+    public List<String> getStatusLines() {
+        List<String> lines = new ArrayList<>();
+        int documents = 0;
+        int terms = 0;
+        for (ChatMemory memory : chats.values()) {
+            documents += memory.index.getDocumentCount();
+            terms += memory.index.getTermCount();
+        }
+        lines.add("§7Долгая память: §f" + documents + "§7 сообщений, §f" + terms + "§7 слов в индексе"
+                + (config.isMemoryEnabled() ? "" : " §8(выключена)"));
+        return lines;
+    }
+
+    private void onEvicted(String chatId, ChatMessage message) {
+        if (!config.isMemoryEnabled()) {
+            return;
+        }
+        String key = fileKey(chatId);
+        chats.computeIfAbsent(key, k -> new ChatMemory(new File(folder, k), false)).append(message);
+    }
+
+    /**
+     * Удаляет сообщения старше memory.retention-days (фоновая задача раз в час)
+     */
+    private void expire() {
+        long retention = config.getMemoryRetentionMillis();
+        if (retention <= 0) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - retention;
+        for (ChatMemory memory : chats.values()) {
+            memory.expire(cutoff);
+        }
+    }
+
+    private static String fileKey(String chatId) {
+        return chatId.replaceAll("[^a-zA-Z0-9_-]", "_");
+    }
+
+    /**
+     * Архив и индекс одного чата: файлы data/memory/<чат>/<начало>.jsonl, новый -
+     * раз в сутки. Запись идет под монитором объекта, загрузка и чтение найденных
+     * строк - без него. Адрес документа в индексе - номер файла в старших битах
+     * и смещение строки в младших.
+     */
+    private final class ChatMemory {
+        private final File dir;
+        private final Bm25Index index = new Bm25Index();
+        // Файлы по номеру, от старых к новым
+        private final ConcurrentNavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+        private int nextSegment = 0;
+        private FileChannel channel;
+        // Что проиндексирует загрузка: файлы и их размер на момент регистрации
+        private final List<Segment> loadPlan = new ArrayList<>();
+        // Сообщения, записанные во время загрузки (null - индекс готов)
+        private List<Pending> pending;
+        // Меняется при очистке - загрузка, начатая до нее, отбрасывается
+        private volatile int generation;
+
+        private ChatMemory(File dir, boolean existing) {
+            this.dir = dir;
+            if (!existing) {
+                return;
+            }
+            List<Long> starts = new ArrayList<>();
+            String[] names = dir.list((d, name) -> name.endsWith(".jsonl"));
+            if (names != null) {
+                for (String name : names) {
+                    try {
+                        starts.add(Long.parseLong(name.substring(0, name.length() - ".jsonl".length())));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+            starts.sort(null);
+            for (long start : starts) {
+                Segment segment = new Segment(nextSegment++, start, new File(dir, start + ".jsonl"));
+                segments.put(segment.number, segment);
+                loadPlan.add(segment);
+            }
+            if (!loadPlan.isEmpty()) {
+                // Дописывать будем в последний файл - недописанную строку отрезаем сразу
+                repairTail(loadPlan.get(loadPlan.size() - 1).file);
+            }
+            for (Segment segment : loadPlan) {
+                segment.loadLength = segment.file.length();
+            }
+            pending = new ArrayList<>();
+        }
+
+        /**
+         * Строит индекс по файлам из loadPlan, не держа монитор: запись в это
+         * время продолжается, ее сообщения индексируются из очереди в конце
+         *
+         * @return число загруженных сообщений
+         */
+        private int load() {
+            int loadGeneration = generation;
+            int count = 0;
+            for (Segment segment : loadPlan) {
+                count += loadSegment(segment, loadGeneration);
+            }
+            synchronized (this) {
+                if (generation != loadGeneration) {
+                    // Во время загрузки чат сбросили - в очереди только новые сообщения
+                    index.clear();
+                    count = 0;
+                }
+                for (Pending entry : pending) {
+                    index.add(entry.address, entry.playerId, Keywords.tokenize(entry.text));
+                }
+                count += pending.size();
+                pending = null;
+                loadPlan.clear();
+            }
+            return count;
+        }
+
+        private int loadSegment(Segment segment, int loadGeneration) {
+            int count = 0;
+            long offset = 0;
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(segment.file.toPath()), 1 << 16)) {
+                ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+                int b;
+                while (offset + line.size() < segment.loadLength && (b = in.read()) != -1) {
+                    if (b != '\n') {
+                        line.write(b);
+                        continue;
+                    }
+                    if (generation != loadGeneration) {
+                        break;
+                    }
+                    int length = line.size() + 1;
+                    ChatMessage message = parse(line.toByteArray());
+                    if (message != null) {
+                        index.add(address(segment.number, offset), message.getPlayerId(),
+                                Keywords.tokenize(message.getText()));
+                        count++;
+                    }
+                    offset += length;
+                    line.reset();
+                }
+            } catch (IOException e) {
+                plugin.getLogger().warning("Ошибка загрузки долгой памяти " + dir.getName() + "/"
+                        + segment.file.getName() + ": " + e.getMessage());
+            }
+            return count;
+        }
+
+        private synchronized void append(ChatMessage message) {
+            try {
+                long now = System.currentTimeMillis();
+                Map.Entry<Integer, Segment> last = segments.lastEntry();
+                Segment segment;
+                if (last == null || now - last.getValue().start >= SEGMENT_MILLIS) {
+                    close();
+                    segment = new Segment(nextSegment++, now, new File(dir, now + ".jsonl"));
+                    segments.put(segment.number, segment);
+                } else {
+                    segment = last.getValue();
+                }
+                if (channel == null) {
+                    dir.mkdirs();
+                    channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+                long offset = channel.size();
+                byte[] bytes = (gson.toJson(message) + "\n").getBytes(StandardCharsets.UTF_8);
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                long address = address(segment.number, offset);
+                if (pending != null) {
+                    pending.add(new Pending(address, message.getPlayerId(), message.getText()));
+                } else {
+                    index.add(address, message.getPlayerId(), Keywords.tokenize(message.getText()));
+                }
+            } catch (IOException e) {
+                plugin.getLogger().warning("Ошибка записи в долгую память: " + e.getMessage());
+            }
+        }
+
+        private ChatMessage read(long address) {
+            Segment segment = segments.get((int) (address >>> OFFSET_BITS));
+            if (segment == null) {
+                return null;
+            }
+            try (FileChannel reader = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(4096);
+                ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+                long position = address & OFFSET_MASK;
+                while (reader.read(buffer, position) > 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        byte b = buffer.get();
+                        if (b == '\n') {
+                            return parse(line.toByteArray());
+                        }
+                        line.write(b);
+                    }
+                    position += buffer.limit();
+                    buffer.clear();
+                }
+                return parse(line.toByteArray());
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Удаляет файлы, все сообщения которых старше cutoff (по времени изменения
+         * файла), и их документы из индекса
+         */
+        private void expire(long cutoff) {
+            List<Segment> expired = new ArrayList<>();
+            long firstAddress;
+            synchronized (this) {
+                if (pending != null) {
+                    // Индекс еще загружается
+                    return;
+                }
+                while (!segments.isEmpty()) {
+                    Segment first = segments.firstEntry().getValue();
+                    if (first.file.lastModified() >= cutoff) {
+                        break;
+                    }
+                    if (segments.size() == 1) {
+                        // Это файл, в который идет запись
+                        close();
+                    }
+                    segments.remove(first.number);
+                    expired.add(first);
+                }
+                firstAddress = address(segments.isEmpty() ? nextSegment : segments.firstKey(), 0);
+            }
+            if (expired.isEmpty()) {
+                return;
+            }
+            int removed = index.removeBefore(firstAddress);
+            for (Segment segment : expired) {
+                if (!segment.file.delete()) {
+                    plugin.getLogger().warning("Не удалось удалить долгую память " + dir.getName() + "/"
+                            + segment.file.getName());
+                }
+            }
+            if (config.isDebug()) {
+                plugin.getLogger().info("[DEBUG] Долгая память " + dir.getName() + ": удалено " + expired.size()
+                        + " файлов, " + removed + " сообщений старше срока хранения");
+            }
+        }
+
+        private synchronized void clear() {
+            close();
+            generation++;
+            index.clear();
+            if (pending != null) {
+                pending.clear();
+            }
+            for (Segment segment : segments.values()) {
+                try {
+                    Files.deleteIfExists(segment.file.toPath());
+                } catch (IOException e) {
+                    plugin.getLogger().warning("Ошибка очистки долгой памяти: " + e.getMessage());
+                }
+            }
+            segments.clear();
+        }
+
+        private synchronized void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                channel = null;
+            }
+        }
+
+        private ChatMessage parse(byte[] bytes) {
+            try {
+                return gson.fromJson(new String(bytes, StandardCharsets.UTF_8), ChatMessage.class);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Отрезает недописанную последнюю строку (сбой при записи)
+     */
+    private void repairTail(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            long end = channel.size();
+            while (end > 0) {
+                long from = Math.max(0, end - buffer.capacity());
+                buffer.clear().limit((int) (end - from));
+                channel.read(buffer, from);
+                for (int i = buffer.position() - 1; i >= 0; i--) {
+                    if (buffer.get(i) == '\n') {
+                        if (from + i + 1 < channel.size()) {
+                            channel.truncate(from + i + 1);
+                        }
+                        return;
+                    }
+                }
+                end = from;
+            }
+            channel.truncate(0);
+        } catch (IOException e) {
+            plugin.getLogger().warning("Ошибка проверки долгой памяти " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private static long address(int segment, long offset) {
+        return (long) segment << OFFSET_BITS | offset;
+    }
+
+    /**
+     * Файл долгой памяти
+     */
+    private static final class Segment {
+        final int number;
+        final long start;
+        final File file;
+        // Сколько байт проиндексирует загрузка
+        long loadLength;
+
+        Segment(int number, long start, File file) {
+            this.number = number;
+            this.start = start;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Сообщение, записанное во время загрузки индекса
+     */
+    private static final class Pending {
+        final long address;
+        final String playerId;
+        final String text;
+
+        Pending(long address, String playerId, String text) {
+            this.address = address;
+            this.playerId = playerId;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.psich.bot.services;
+
+import com.psich.bot.services.StorageService.UserProfile;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Профили игроков в памяти.
+ * Профиль читается из хранилища при первом обращении (или заранее, когда
+ * игрок заходит на сервер) и остается в памяти, пока игрок онлайн. После
+ * выхода он вытесняется через idle-timeout без обращений, а при переполнении
+ * кэша - раньше, начиная с давно не использованных. Измененный профиль при
+ * вытеснении передается хранилищу (StorageBackend.evictProfile).
+ */
+public class ProfileCache {
+
+    private final StorageBackend backend;
+    private final IntSupplier maxSize;
+    private final LongSupplier idleMillis;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // Игроки онлайн - их профили не вытесняются
+    private final Set<String> online = ConcurrentHashMap.newKeySet();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxSize    сколько профилей держать в памяти (онлайн-игроки не считаются)
+     * @param idleMillis через сколько после последнего обращения вытеснять профиль вышедшего игрока
+     */
+    public ProfileCache(StorageBackend backend, IntSupplier maxSize, LongSupplier idleMillis) {
+        this.backend = backend;
+        this.maxSize = maxSize;
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * Профиль из памяти; если его там нет - читается из хранилища в вызывающем потоке
+     */
+    public UserProfile get(String chatId, String userId) {
+        return entry(chatId, userId).profile;
+    }
+
+    /**
+     * Заменяет профиль, если он не менялся с момента чтения
+     *
+     * @param persist запись новой версии в хранилище - выполняется под той же
+     *                блокировкой, что и замена, поэтому версии одного профиля
+     *                доходят до хранилища в том же порядке, в каком заменялись
+     * @return false, если профиль успели изменить параллельно
+     */
+    public boolean replace(String chatId, String userId, UserProfile current, UserProfile next, Runnable persist) {
+        return entry(chatId, userId).replace(current, next, persist);
+    }
+
+    /**
+     * Читает профиль заранее, чтобы первое обращение не ждало диск
+     * (вызывается не из главного потока)
+     */
+    public void prefetch(String chatId, String userId) {
+        entry(chatId, userId);
+    }
+
+    /**
+     * Другой сервер кластера сохранил более новую версию - заменяем ею профиль
+     * в памяти (если он загружен)
+     */
+    public void refresh(String chatId, String userId, UserProfile stored) {
+        Entry entry = entries.get(key(chatId, userId));
+        if (entry != null) {
+            entry.refresh(stored);
+        }
+    }
+
+    public void setOnline(String chatId, String userId, boolean isOnline) {
+        String key = key(chatId, userId);
+        if (isOnline) {
+            online.add(key);
+        } else {
+            online.remove(key);
+            // Отсчет idle-timeout идет с момента выхода
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                entry.lastUsed = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private Entry entry(String chatId, String userId) {
+        String key = key(chatId, userId);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            // Читаем вне computeIfAbsent, чтобы диск не держал блокировку карты
+            UserProfile loaded = backend.loadProfile(chatId, userId);
+            Entry created = new Entry(chatId, userId, loaded != null ? loaded : new UserProfile());
+            entry = entries.putIfAbsent(key, created);
+            if (entry == null) {
+                entry = created;
+                loads.incrementAndGet();
+            }
+        }
+        entry.lastUsed = System.currentTimeMillis();
+        return entry;
+    }
+
+    /**
+     * Вытесняет профили вышедших игроков: давно не использованные, а при
+     * переполнении - самые старые (вызывается фоновым потоком записи)
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        long idle = idleMillis.getAsLong();
+        List<Map.Entry<String, Entry>> offline = new ArrayList<>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (online.contains(e.getKey())) {
+                continue;
+            }
+            if (now - e.getValue().lastUsed >= idle) {
+                evict(e.getKey(), e.getValue());
+            } else {
+                offline.add(e);
+            }
+        }
+        int excess = offline.size() - maxSize.getAsInt();
+        if (excess > 0) {
+            offline.sort(Comparator.comparingLong(e -> e.getValue().lastUsed));
+            for (int i = 0; i < excess && i < offline.size(); i++) {
+                evict(offline.get(i).getKey(), offline.get(i).getValue());
+            }
+        }
+    }
+
+    private void evict(String key, Entry entry) {
+        if (entries.remove(key, entry)) {
+            evictions.incrementAndGet();
+            if (entry.dirty) {
+                backend.evictProfile(entry.chatId, entry.userId, entry.profile);
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Обходит профили, которые сейчас в памяти
+     */
+    public void forEach(Visitor visitor) {
+        for (Entry entry : entries.values()) {
+            visitor.visit(entry.chatId, entry.userId, entry.profile);
+        }
+    }
+
+    public long getLoads() {
+        return loads.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private static String key(String chatId, String userId) {
+        return chatId + '\n' + userId;
+    }
+
+    @FunctionalInterface
+    public interface Visitor {
+        void visit(String chatId, String userId, UserProfile profile);
+    }
+
+    private static final class Entry {
+        final String chatId;
+        final String userId;
+        volatile UserProfile profile;
+        volatile long lastUsed;
+        // Профиль менялся с момента чтения
+        volatile boolean dirty = false;
+
+        Entry(String chatId, String userId, UserProfile profile) {
+            this.chatId = chatId;
+            this.userId = userId;
+            this.profile = profile;
+        }
+
+        synchronized boolean replace(UserProfile current, UserProfile next, Runnable persist) {
+            // Сравнение по ссылке: сохраненные профили не изменяются на месте
+            if (profile != current) {
+                return false;
+            }
+            profile = next;
+            dirty = true;
+            persist.run();
+            return true;
+        }
+
+        synchronized void refresh(UserProfile stored) {
+            if (stored.getVersion() > profile.getVersion()) {
+                profile = stored;
+            }
+        }
+    }
+}
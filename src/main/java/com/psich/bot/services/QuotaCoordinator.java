@@ -0,0 +1,440 @@
+package com.psich.bot.services;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.psich.bot.PsichBot;
+import com.psich.bot.utils.ConfigManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Лимиты ключей AI на всю сеть серверов. Расход каждого ключа за текущую минуту
+ * (запросы и токены) хранится в общем файле под блокировкой. Сервер берет из него
+ * долю лимита (аренду) и расходует ее сам, к файлу обращается только за новой
+ * долей - так серверы с одними ключами вместе не превышают лимит и не ловят 429.
+ * Если файл недоступен, сервер считает лимит ключа только по своим запросам.
+ */
+public class QuotaCoordinator {
+
+    private static final long WINDOW_MILLIS = 60_000;
+    // Аренда - такая часть минутного лимита ключа
+    private static final int LEASE_PARTS = 10;
+    // Сколько ждать блокировку файла и сколько не обращаться к нему после ошибки
+    private static final long LOCK_TIMEOUT_MILLIS = 250;
+    private static final long RETRY_MILLIS = 30_000;
+    private static final Type STATE_TYPE = new TypeToken<Map<String, Window>>() {}.getType();
+
+    private final PsichBot plugin;
+    private final ConfigManager config;
+    private final TokenEstimator tokenEstimator;
+    // Общий файл (null - лимиты считаются только на этом сервере)
+    private final File file;
+    private final Gson gson = new Gson();
+
+    // Обращения к общему файлу из этого процесса - по одному, без монитора this:
+    // потоки с арендой на руках не ждут диск
+    private final Object fileMonitor = new Object();
+    private volatile long unreachableUntil = 0;
+
+    // Все поля ниже - под блокировкой this
+    private final Map<String, Lease> leases = new HashMap<>();
+    private final Map<String, Window> localWindows = new HashMap<>();
+    private final Map<String, String> keyIds = new HashMap<>();
+    private long leased = 0;
+    private long localLeased = 0;
+    private long denied = 0;
+
+    public QuotaCoordinator(PsichBot plugin, ConfigManager config, TokenEstimator tokenEstimator) {
+        this.plugin = plugin;
+        this.config = config;
+        this.tokenEstimator = tokenEstimator;
+        String path = config.getQuotaFile();
+        if (path == null || path.isEmpty()) {
+            this.file = null;
+        } else {
+            File shared = new File(path);
+            this.file = shared.isAbsolute() ? shared : new File(plugin.getDataFolder(), path);
+            this.file.getAbsoluteFile().getParentFile().mkdirs();
+        }
+    }
+
+    /**
+     * Списывает запрос и оценку входных токенов с лимита ключа на эту минуту
+     *
+     * @param promptText весь отправляемый текст (системный промпт + запрос)
+     * @return false, если у ключа не осталось лимита
+     */
+    public boolean tryAcquire(String provider, String key, String promptText) {
+        Limit limit = limitFor(provider);
+        if (limit == null) {
+            return true;
+        }
+        int tokens = limit.tokens > 0 ? tokenEstimator.estimate(provider, promptText) : 0;
+        Request request;
+        synchronized (this) {
+            Lease lease = leaseFor(provider, key);
+            // Долю этого ключа уже запрашивает другой поток - ждем его результат
+            while (lease.refilling) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                lease = leaseFor(provider, key);
+            }
+            if (take(lease, limit, tokens)) {
+                return true;
+            }
+            if (lease.exhausted) {
+                denied++;
+                return false;
+            }
+            request = new Request(bucket(provider, key), lease, limit, tokens);
+            lease.refilling = true;
+        }
+        // Файл читается и пишется без монитора, под ним только выдается результат
+        long[] granted = new long[2];
+        boolean shared = update(state -> grant(state, request, granted));
+        synchronized (this) {
+            Lease lease = request.lease;
+            lease.refilling = false;
+            notifyAll();
+            if (shared) {
+                leased++;
+            } else {
+                localLeased++;
+            }
+            if (lease.window == request.window) {
+                if (granted[0] == 0 && granted[1] == 0 && !request.covered()) {
+                    lease.exhausted = true;
+                }
+                lease.requests += granted[0];
+                lease.tokens += granted[1];
+            }
+            if (take(lease, limit, tokens)) {
+                return true;
+            }
+            denied++;
+            return false;
+        }
+    }
+
+    /**
+     * Списывает запрос с аренды, если ее хватает
+     */
+    private static boolean take(Lease lease, Limit limit, int tokens) {
+        if (!lease.covers(limit, tokens)) {
+            return false;
+        }
+        if (limit.requests > 0) {
+            lease.requests--;
+        }
+        lease.tokens -= tokens;
+        return true;
+    }
+
+    /**
+     * Списывает токены ответа (выход модели тоже входит в лимит токенов)
+     */
+    public synchronized void charge(String provider, String key, int tokens) {
+        Limit limit = limitFor(provider);
+        if (limit != null && limit.tokens > 0 && tokens > 0) {
+            // Аренда может уйти в минус - долг вычтется из следующей доли
+            leaseFor(provider, key).tokens -= tokens;
+        }
+    }
+
+    /**
+     * Ключ получил 429: до конца минуты его не использует ни один сервер
+     */
+    public void exhaust(String provider, String key) {
+        Limit limit = limitFor(provider);
+        if (limit == null) {
+            return;
+        }
+        String bucket;
+        long start;
+        synchronized (this) {
+            Lease lease = leaseFor(provider, key);
+            lease.requests = 0;
+            lease.tokens = 0;
+            lease.exhausted = true;
+            bucket = bucket(provider, key);
+            start = lease.window;
+        }
+        boolean shared = update(state -> {
+            Window window = windowFor(state, bucket, start);
+            window.requests = Math.max(window.requests, limit.requests);
+            window.tokens = Math.max(window.tokens, limit.tokens);
+        });
+        synchronized (this) {
+            if (shared) {
+                leased++;
+            } else {
+                localLeased++;
+            }
+        }
+    }
+
+    /**
+     * Строки статистики для команды /psich status
+     */
+    public synchronized List<String> getStatusLines() {
+        List<String> lines = new ArrayList<>();
+        String mode;
+        if (file == null) {
+            mode = "только этот сервер";
+        } else if (System.currentTimeMillis() < unreachableUntil) {
+            mode = "общий файл недоступен, считаем сами";
+        } else {
+            mode = "общий файл";
+        }
+        lines.add("§7Лимиты ключей: §f" + mode + "§7, обращений к файлу §f" + leased
+                + "§7, без файла §f" + localLeased + "§7, отказов §f" + denied);
+        long window = currentWindow();
+        int exhausted = 0;
+        for (Lease lease : leases.values()) {
+            if (lease.window == window && lease.exhausted) {
+                exhausted++;
+            }
+        }
+        if (exhausted > 0) {
+            lines.add("§7Ключей без лимита до конца минуты: §f" + exhausted);
+        }
+        return lines;
+    }
+
+    /**
+     * Выдает аренде долю остатка лимита, если ее хватает на запрос
+     *
+     * @param granted сюда пишется выданное: запросы и токены (0 и 0 - не хватило)
+     */
+    private static void grant(Map<String, Window> state, Request request, long[] granted) {
+        Limit limit = request.limit;
+        Window window = windowFor(state, request.bucket, request.window);
+        long requests = 0;
+        if (limit.requests > 0 && request.haveRequests < 1) {
+            requests = Math.min(Math.max(1, limit.requests / LEASE_PARTS), limit.requests - window.requests);
+        }
+        long needTokens = 0;
+        if (limit.tokens > 0 && request.haveTokens < request.tokens) {
+            needTokens = Math.min(Math.max(limit.tokens / LEASE_PARTS, request.tokens - request.haveTokens),
+                    limit.tokens - window.tokens);
+        }
+        if ((limit.requests > 0 && request.haveRequests + requests < 1)
+                || (limit.tokens > 0 && request.haveTokens + needTokens < request.tokens)) {
+            // Остатка не хватает - другим серверам он может пригодиться на запросы поменьше
+            return;
+        }
+        window.requests += requests;
+        window.tokens += needTokens;
+        granted[0] = requests;
+        granted[1] = needTokens;
+    }
+
+    /**
+     * Изменяет расход ключей в общем файле под его блокировкой, а если файл
+     * недоступен - в локальном учете. Вызывается без монитора this
+     *
+     * @return true, если изменен общий файл
+     */
+    private boolean update(Consumer<Map<String, Window>> action) {
+        long now = System.currentTimeMillis();
+        if (file != null && now >= unreachableUntil) {
+            synchronized (fileMonitor) {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                     FileLock lock = lock(channel)) {
+                    if (lock == null) {
+                        throw new IOException("файл занят дольше " + LOCK_TIMEOUT_MILLIS + " мс");
+                    }
+                    Map<String, Window> state = read(channel);
+                    long window = currentWindow();
+                    state.values().removeIf(entry -> entry.start < window);
+                    action.accept(state);
+                    write(channel, state);
+                    return true;
+                } catch (IOException | RuntimeException e) {
+                    unreachableUntil = now + RETRY_MILLIS;
+                    plugin.getLogger().warning("Файл лимитов ключей недоступен (" + e.getMessage()
+                            + "), лимиты считаются только на этом сервере");
+                }
+            }
+        }
+        synchronized (this) {
+            long window = currentWindow();
+            localWindows.values().removeIf(entry -> entry.start < window);
+            action.accept(localWindows);
+        }
+        return false;
+    }
+
+    private FileLock lock(FileChannel channel) throws IOException {
+        long deadline = System.currentTimeMillis() + LOCK_TIMEOUT_MILLIS;
+        while (true) {
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // Файл держит другой экземпляр в этом же процессе (например, после /reload)
+                lock = null;
+            }
+            if (lock != null || System.currentTimeMillis() >= deadline) {
+                return lock;
+            }
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    private Map<String, Window> read(FileChannel channel) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(channel.size(), 1 << 20));
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        channel.position(0);
+        while (channel.read(buffer) > 0) {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        String json = out.toString(StandardCharsets.UTF_8);
+        Map<String, Window> state = json.isBlank() ? null : gson.fromJson(json, STATE_TYPE);
+        return state != null ? state : new HashMap<>();
+    }
+
+    private void write(FileChannel channel, Map<String, Window> state) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(gson.toJson(state, STATE_TYPE).getBytes(StandardCharsets.UTF_8));
+        channel.truncate(0);
+        channel.position(0);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private Lease leaseFor(String provider, String key) {
+        Lease lease = leases.computeIfAbsent(bucket(provider, key), k -> new Lease());
+        long window = currentWindow();
+        if (lease.window != window) {
+            // Новая минута - неизрасходованная доля прошлой сгорает вместе с ней
+            lease.window = window;
+            lease.requests = 0;
+            lease.tokens = Math.min(0, lease.tokens);
+            lease.exhausted = false;
+        }
+        return lease;
+    }
+
+    private static Window windowFor(Map<String, Window> state, String bucket, long start) {
+        Window window = state.get(bucket);
+        if (window == null || window.start != start) {
+            window = new Window();
+            window.start = start;
+            state.put(bucket, window);
+        }
+        return window;
+    }
+
+    /**
+     * Id ключа в файле: сами ключи на диск не пишем
+     */
+    private String bucket(String provider, String key) {
+        String id = keyIds.computeIfAbsent(key, k ->
+                UUID.nameUUIDFromBytes(k.getBytes(StandardCharsets.UTF_8)).toString().substring(0, 8));
+        return provider.toLowerCase() + ":" + id;
+    }
+
+    private Limit limitFor(String provider) {
+        int requests = config.getQuotaRequestsPerMinute(provider);
+        int tokens = config.getQuotaTokensPerMinute(provider);
+        return requests > 0 || tokens > 0 ? new Limit(requests, tokens) : null;
+    }
+
+    private static long currentWindow() {
+        long now = System.currentTimeMillis();
+        return now - now % WINDOW_MILLIS;
+    }
+
+    private static final class Limit {
+        final int requests;
+        final int tokens;
+
+        Limit(int requests, int tokens) {
+            this.requests = requests;
+            this.tokens = tokens;
+        }
+    }
+
+    /**
+     * Доля лимита ключа, полученная этим сервером на текущую минуту
+     */
+    private static final class Lease {
+        long window;
+        long requests;
+        long tokens;
+        // Остатка лимита не хватило - до конца минуты ключ не спрашиваем
+        boolean exhausted;
+        // Поток запрашивает для аренды новую долю в общем файле
+        boolean refilling;
+
+        boolean covers(Limit limit, int needTokens) {
+            return (limit.requests <= 0 || requests >= 1) && (limit.tokens <= 0 || tokens >= needTokens);
+        }
+    }
+
+    /**
+     * Запрос новой доли: что было в аренде на момент запроса и сколько нужно
+     */
+    private static final class Request {
+        final String bucket;
+        final Lease lease;
+        final Limit limit;
+        final int tokens;
+        final long window;
+        final long haveRequests;
+        final long haveTokens;
+
+        Request(String bucket, Lease lease, Limit limit, int tokens) {
+            this.bucket = bucket;
+            this.lease = lease;
+            this.limit = limit;
+            this.tokens = tokens;
+            this.window = lease.window;
+            this.haveRequests = lease.requests;
+            this.haveTokens = lease.tokens;
+        }
+
+        /**
+         * Аренды хватало и без новой доли (запрашивать было нечего)
+         */
+        boolean covered() {
+            return (limit.requests <= 0 || haveRequests >= 1) && (limit.tokens <= 0 || haveTokens >= tokens);
+        }
+    }
+
+    /**
+     * Расход ключа всеми серверами за минуту (запись общего файла)
+     */
+    private static final class Window {
+        long start;
+        long requests;
+        long tokens;
+    }
+}
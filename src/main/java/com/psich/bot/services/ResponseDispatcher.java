@@ -0,0 +1,309 @@
+package com.psich.bot.services;
+
+import com.psich.bot.PsichBot;
+import com.psich.bot.integrations.DiscordWebhookIntegration;
+import com.psich.bot.utils.ConfigManager;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.format.NamedTextColor;
+import net.kyori.adventure.text.serializer.legacy.LegacyComponentSerializer;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Отправка ответов бота. Ответ делится на части по предложениям, первая часть
+ * уходит через chat.response-delay после сообщения игрока (время генерации
+ * ответа уже входит в задержку), части всех ответов рассылаются одной задачей
+ * раз в тик - в раздел чата и в Discord. После отправки ответ записывается в историю.
+ */
+public class ResponseDispatcher {
+
+    // Части до 250 символов, не больше двух на ответ (остальное отбрасывается)
+    private static final int MAX_PART_LENGTH = 250;
+    private static final int MAX_PARTS = 2;
+    // Пауза между частями одного ответа (2 тика)
+    private static final long PART_INTERVAL_MILLIS = 100;
+    private static final Pattern COLOR_CODES = Pattern.compile("§[0-9a-fk-or]");
+    // Конец предложения: знаки препинания, закрывающие кавычки/скобки и пробел
+    private static final Pattern SENTENCE_END = Pattern.compile("[.!?…]+[»\"')]*\\s+");
+
+    private final PsichBot plugin;
+    private final PriorityBlockingQueue<Reply> queue = new PriorityBlockingQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile Prefix prefix;
+    private volatile boolean running = true;
+    private BukkitTask task;
+
+    public ResponseDispatcher(PsichBot plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Запускает рассылку (задача главного потока, раз в тик)
+     */
+    public void start() {
+        task = new BukkitRunnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }.runTaskTimer(plugin, 1, 1);
+    }
+
+    /**
+     * Останавливает рассылку. Неотправленные ответы не рассылаются, но сразу
+     * записываются в историю (конвейер к этому моменту может быть уже остановлен) -
+     * вызывать до остановки конвейера и сохранения хранилища
+     */
+    public void shutdown() {
+        running = false;
+        if (task != null) {
+            task.cancel();
+        }
+        int recorded = 0;
+        Reply reply;
+        while ((reply = queue.poll()) != null) {
+            if (!reply.notice) {
+                store(reply);
+                recorded++;
+            }
+        }
+        if (recorded > 0 && plugin.getConfigManager().isDebug()) {
+            plugin.getLogger().info("[DEBUG] Неотправленных ответов записано в историю: " + recorded);
+        }
+    }
+
+    /**
+     * Ставит ответ бота в очередь отправки (из любого потока)
+     *
+     * @param playerId   игрок, которому отвечает бот (null - ответ не относится к игроку)
+     * @param receivedAt когда пришло сообщение или событие, на которое это ответ (мс)
+     */
+    public void dispatch(String chatId, String playerId, String response, long receivedAt) {
+        List<String> parts = split(response);
+        if (parts.isEmpty() || !running) {
+            return;
+        }
+        long delayMillis = (long) (Math.max(0, plugin.getConfigManager().getResponseDelay()) * 1000);
+        queue.add(new Reply(chatId, playerId, response, parts, receivedAt + delayMillis, false));
+    }
+
+    /**
+     * Служебное сообщение бота (ошибка и т.п.): без задержки, без Discord и без истории
+     */
+    public void notice(String chatId, String text) {
+        if (!running) {
+            return;
+        }
+        queue.add(new Reply(chatId, null, text, List.of(text), 0, true));
+    }
+
+    /**
+     * Сообщение отправлено самим ботом (начинается с "[Имя]" или "<Имя>")
+     */
+    public boolean isOwnMessage(String message) {
+        Prefix current = prefix();
+        String clean = COLOR_CODES.matcher(message).replaceAll("");
+        return clean.startsWith(current.playerTag) || clean.startsWith(current.consoleTag);
+    }
+
+    /**
+     * Делит ответ на части не длиннее MAX_PART_LENGTH: по концу предложения, если
+     * он не слишком близко к началу части, иначе по последнему пробелу
+     */
+    static List<String> split(String text) {
+        String rest = text.trim();
+        List<String> parts = new ArrayList<>(MAX_PARTS);
+        int start = 0;
+        while (start < rest.length() && parts.size() < MAX_PARTS) {
+            int end = rest.length() - start <= MAX_PART_LENGTH ? rest.length()
+                    : breakPoint(rest, start, start + MAX_PART_LENGTH);
+            String part = rest.substring(start, end).trim();
+            if (!part.isEmpty()) {
+                parts.add(part);
+            }
+            start = end;
+        }
+        return parts;
+    }
+
+    private static int breakPoint(String text, int start, int limit) {
+        int sentence = -1;
+        Matcher matcher = SENTENCE_END.matcher(text).region(start, limit);
+        while (matcher.find()) {
+            sentence = matcher.end();
+        }
+        if (sentence - start >= MAX_PART_LENGTH / 2) {
+            return sentence;
+        }
+        int space = text.lastIndexOf(' ', limit);
+        if (space - start > MAX_PART_LENGTH * 0.7) {
+            return space;
+        }
+        // Не разрываем суррогатную пару (эмодзи)
+        return Character.isLowSurrogate(text.charAt(limit)) ? limit - 1 : limit;
+    }
+
+    /**
+     * Рассылает все части, время которых пришло: строки одного раздела - вместе
+     */
+    private void tick() {
+        if (queue.isEmpty() || !running) {
+            return;
+        }
+        long started = System.nanoTime();
+        try {
+            long now = System.currentTimeMillis();
+            Map<String, List<Reply>> due = new LinkedHashMap<>();
+            Reply head;
+            while ((head = queue.peek()) != null && head.dueAt <= now) {
+                Reply reply = queue.poll();
+                due.computeIfAbsent(reply.chatId, k -> new ArrayList<>()).add(reply);
+            }
+            for (Map.Entry<String, List<Reply>> entry : due.entrySet()) {
+                send(entry.getKey(), entry.getValue());
+            }
+            for (List<Reply> replies : due.values()) {
+                for (Reply reply : replies) {
+                    if (++reply.next < reply.parts.size()) {
+                        reply.dueAt = now + PART_INTERVAL_MILLIS;
+                        queue.add(reply);
+                    } else if (!reply.notice) {
+                        record(reply);
+                    }
+                }
+            }
+        } finally {
+            plugin.getTickMonitor().recordMainThreadWork(started);
+        }
+    }
+
+    private void send(String chatId, List<Reply> replies) {
+        ConfigManager config = plugin.getConfigManager();
+        Prefix current = prefix();
+        List<Component> lines = new ArrayList<>(replies.size());
+        List<String> plain = new ArrayList<>(replies.size());
+        List<String> mirrored = new ArrayList<>(replies.size());
+        for (Reply reply : replies) {
+            String part = COLOR_CODES.matcher(reply.parts.get(reply.next)).replaceAll("");
+            lines.add(current.component.append(Component.text(part,
+                    reply.notice ? NamedTextColor.GRAY : NamedTextColor.WHITE)));
+            plain.add(current.plain + part);
+            if (!reply.notice) {
+                mirrored.add(part);
+            }
+            if (config.isDebug()) {
+                plugin.getLogger().info("[DEBUG] Отправлено сообщение #" + (reply.next + 1) + " в " + chatId
+                        + " (длина: " + part.length() + " символов)");
+            }
+        }
+        plugin.getChatPartitions().broadcast(chatId, lines, String.join("\n", plain));
+
+        // Дублируем в Discord через Webhook (если настроено)
+        if (!mirrored.isEmpty()
+                && config.isDiscordEnabled()
+                && plugin.getChatPartitions().isMirroredToDiscord(chatId)
+                && !config.getDiscordWebhookUrl().isEmpty()
+                && !plugin.getTickMonitor().shouldShed(TickMonitor.Work.DISCORD_MIRROR)) {
+            String discordMessage = String.join("\n", mirrored);
+            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () ->
+                    DiscordWebhookIntegration.sendMessage(
+                            config.getDiscordWebhookUrl(),
+                            discordMessage,
+                            config.getDiscordUsername(),
+                            config.getDiscordAvatarUrl()));
+        }
+    }
+
+    /**
+     * Ответ отправлен целиком - сохраняем в историю (в потоке конвейера)
+     */
+    private void record(Reply reply) {
+        plugin.getIngestionPipeline().execute(reply.chatId, () -> store(reply));
+    }
+
+    private void store(Reply reply) {
+        String botName = plugin.getConfigManager().getBotName();
+        if (reply.playerId != null) {
+            plugin.getStorageService().addToHistory(reply.chatId, botName, reply.text, reply.playerId);
+        } else {
+            plugin.getStorageService().addToHistory(reply.chatId, botName, reply.text);
+        }
+    }
+
+    /**
+     * Префикс "[Имя] " / "<Имя> " - пересобирается только после смены настроек
+     */
+    private Prefix prefix() {
+        ConfigManager config = plugin.getConfigManager();
+        Prefix current = prefix;
+        if (current == null || !current.matches(config)) {
+            current = new Prefix(config);
+            prefix = current;
+        }
+        return current;
+    }
+
+    private static final class Prefix {
+        final String botName;
+        final String colorCode;
+        final boolean sendAsPlayer;
+        final String playerTag;
+        final String consoleTag;
+        final String plain;
+        final Component component;
+
+        Prefix(ConfigManager config) {
+            this.botName = config.getBotName();
+            this.colorCode = config.getNameColorCode();
+            this.sendAsPlayer = config.isSendAsPlayer();
+            this.playerTag = "<" + botName + ">";
+            this.consoleTag = "[" + botName + "]";
+            // Формат игрока: <Имя> сообщение, формат консоли: [Имя] сообщение
+            this.plain = (sendAsPlayer ? playerTag : consoleTag) + " ";
+            this.component = LegacyComponentSerializer.legacySection().deserialize(colorCode + plain);
+        }
+
+        boolean matches(ConfigManager config) {
+            return botName.equals(config.getBotName()) && colorCode.equals(config.getNameColorCode())
+                    && sendAsPlayer == config.isSendAsPlayer();
+        }
+    }
+
+    /**
+     * Ответ в очереди: части и время отправки следующей
+     */
+    private final class Reply implements Comparable<Reply> {
+        final String chatId;
+        final String playerId;
+        final String text;
+        final List<String> parts;
+        final boolean notice;
+        final long order = sequence.incrementAndGet();
+        long dueAt;
+        int next = 0;
+
+        Reply(String chatId, String playerId, String text, List<String> parts, long dueAt, boolean notice) {
+            this.chatId = chatId;
+            this.playerId = playerId;
+            this.text = text;
+            this.parts = parts;
+            this.dueAt = dueAt;
+            this.notice = notice;
+        }
+
+        @Override
+        public int compareTo(Reply other) {
+            int byTime = Long.compare(dueAt, other.dueAt);
+            return byTime != 0 ? byTime : Long.compare(order, other.order);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.psich.bot.services;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Общая таблица отправителей сообщений (имя и id игрока).
+ * Одинаковые пары хранятся одним объектом, на который ссылаются все сообщения
+ * истории - вместо своей копии имени и UUID в каждом. Записи держатся слабыми
+ * ссылками и исчезают вместе с последним сообщением отправителя.
+ */
+public final class Senders {
+
+    private static final ConcurrentHashMap<String, Ref> TABLE = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Sender> RELEASED = new ReferenceQueue<>();
+
+    private Senders() {
+    }
+
+    public static Sender intern(String role, String playerId) {
+        expunge();
+        String key = playerId != null ? role + '\n' + playerId : role;
+        while (true) {
+            Ref ref = TABLE.get(key);
+            Sender sender = ref != null ? ref.get() : null;
+            if (sender != null) {
+                return sender;
+            }
+            Sender created = new Sender(role, playerId);
+            Ref createdRef = new Ref(key, created);
+            if (ref == null ? TABLE.putIfAbsent(key, createdRef) == null : TABLE.replace(key, ref, createdRef)) {
+                return created;
+            }
+        }
+    }
+
+    /**
+     * Сколько отправителей сейчас в таблице
+     */
+    public static int size() {
+        expunge();
+        return TABLE.size();
+    }
+
+    private static void expunge() {
+        Ref ref;
+        while ((ref = (Ref) RELEASED.poll()) != null) {
+            TABLE.remove(ref.key, ref);
+        }
+    }
+
+    /**
+     * Отправитель: имя (или имя бота) и игрок, к которому относится сообщение
+     */
+    public static final class Sender {
+        private final String role;
+        private final String playerId;
+
+        private Sender(String role, String playerId) {
+            this.role = role;
+            this.playerId = playerId;
+        }
+
+        public String getRole() { return role; }
+        public String getPlayerId() { return playerId; }
+    }
+
+    private static final class Ref extends WeakReference<Sender> {
+        final String key;
+
+        Ref(String key, Sender sender) {
+            super(sender, RELEASED);
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.psich.bot.services;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.psich.bot.services.StorageService.ChatData;
+import com.psich.bot.services.StorageService.UserProfile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Сравнение загрузки снимка: прежний путь (db.json и profiles.json целиком
+ * в строку и объекты), JSON потоком и snapshot.bin без сжатия и со сжатием.
+ * Данные - копия текущих, файлы пишутся во временную папку и удаляются.
+ * Для /psich bench, выполняется не в главном потоке.
+ */
+public class SnapshotBenchmark {
+
+    private static final int RUNS = 3;
+
+    private final File folder;
+    private final int contextSize;
+    private final int playerHistorySize;
+    private final Logger logger;
+    private final Gson gson = JsonStorageBackend.createGson();
+
+    public SnapshotBenchmark(File folder, int contextSize, int playerHistorySize, Logger logger) {
+        this.folder = folder;
+        this.contextSize = contextSize;
+        this.playerHistorySize = playerHistorySize;
+        this.logger = logger;
+    }
+
+    /**
+     * @param chatsJson    db.json текущих данных
+     * @param profilesJson profiles.json текущих данных (профили объектами, как раньше)
+     * @param body         тело snapshot.bin (SnapshotFile.encode)
+     * @return строки результата для отправки в чат
+     */
+    public List<String> run(String chatsJson, String profilesJson, byte[] body) throws IOException {
+        folder.mkdirs();
+        File db = new File(folder, "db.json");
+        File profiles = new File(folder, "profiles.json");
+        File raw = new File(folder, "snapshot.bin");
+        File deflated = new File(folder, "snapshot-deflate.bin");
+        List<String> lines = new ArrayList<>();
+        try {
+            Files.writeString(db.toPath(), chatsJson, StandardCharsets.UTF_8);
+            Files.writeString(profiles.toPath(), profilesJson, StandardCharsets.UTF_8);
+            try (OutputStream out = new FileOutputStream(raw)) {
+                SnapshotFile.write(out, body, false);
+            }
+            try (OutputStream out = new FileOutputStream(deflated)) {
+                SnapshotFile.write(out, body, true);
+            }
+
+            lines.add(measure("JSON, прежняя загрузка", db.length() + profiles.length(), () -> loadLegacy(db, profiles)));
+            lines.add(measure("JSON потоком", db.length() + profiles.length(), () -> {
+                Map<String, ChatData> chats = new ConcurrentHashMap<>();
+                Map<String, Map<String, String>> stored = new ConcurrentHashMap<>();
+                JsonStorageBackend.readJson(gson, db, profiles, contextSize, playerHistorySize, chats, stored, logger);
+                return new Object[] { chats, stored };
+            }));
+            lines.add(measure("snapshot.bin (mmap)", raw.length(), () -> loadBinary(raw)));
+            lines.add(measure("snapshot.bin (Deflate)", deflated.length(), () -> loadBinary(deflated)));
+        } finally {
+            for (File file : new File[] { db, profiles, raw, deflated }) {
+                file.delete();
+            }
+            folder.delete();
+        }
+        return lines;
+    }
+
+    /**
+     * Как StorageService.load() загружал данные раньше: файл целиком в строку
+     * в кодировке платформы и все профили сразу объектами
+     */
+    private Object loadLegacy(File db, File profiles) throws IOException {
+        Map<String, ChatData> chats = gson.fromJson(new String(Files.readAllBytes(db.toPath())),
+                new TypeToken<Map<String, ChatData>>() {}.getType());
+        for (ChatData chat : chats.values()) {
+            chat.prepare(contextSize, playerHistorySize);
+        }
+        Map<String, Map<String, UserProfile>> loaded = gson.fromJson(new String(Files.readAllBytes(profiles.toPath())),
+                new TypeToken<Map<String, Map<String, UserProfile>>>() {}.getType());
+        if (loaded != null) {
+            loaded.values().forEach(chatProfiles -> chatProfiles.values().forEach(UserProfile::migrateLegacyFacts));
+        }
+        return new Object[] { chats, loaded };
+    }
+
+    private Object loadBinary(File file) throws IOException {
+        Map<String, ChatData> chats = new HashMap<>();
+        Map<String, Map<String, String>> stored = new HashMap<>();
+        SnapshotFile.read(file, contextSize, playerHistorySize, chats, stored);
+        return new Object[] { chats, stored };
+    }
+
+    /**
+     * Лучшее время из RUNS запусков (после прогрева) и сколько памяти выделила
+     * загрузка. Выделение считается по потоку (без System.gc() - сборка на живом
+     * сервере дала бы паузу всем потокам)
+     */
+    private String measure(String name, long bytes, Loader loader) throws IOException {
+        loader.load();
+        com.sun.management.ThreadMXBean threads = allocationCounter();
+        long threadId = Thread.currentThread().getId();
+        long best = Long.MAX_VALUE;
+        long allocated = -1;
+        for (int i = 0; i < RUNS; i++) {
+            long before = threads != null ? threads.getThreadAllocatedBytes(threadId) : -1;
+            long started = System.nanoTime();
+            Object result = loader.load();
+            best = Math.min(best, System.nanoTime() - started);
+            if (before >= 0) {
+                allocated = threads.getThreadAllocatedBytes(threadId) - before;
+            }
+            if (result == null) {
+                logger.warning("Пустой результат загрузки: " + name);
+            }
+        }
+        String memory = allocated >= 0 ? allocated / (1024 * 1024) + " МБ" : "н/д";
+        return "§7" + name + ": §f" + best / 1_000_000 + " мс§7, выделено §f" + memory
+                + "§7, файл §f" + bytes / 1024 + " КБ";
+    }
+
+    /**
+     * Счетчик выделенной потоками памяти (null - JVM его не поддерживает)
+     */
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads)
+                || !threads.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        if (!threads.isThreadAllocatedMemoryEnabled()) {
+            threads.setThreadAllocatedMemoryEnabled(true);
+        }
+        return threads;
+    }
+
+    @FunctionalInterface
+    private interface Loader {
+        Object load() throws IOException;
+    }
+}
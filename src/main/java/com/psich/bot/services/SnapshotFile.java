@@ -0,0 +1,247 @@
+package com.psich.bot.services;
+
+import com.psich.bot.services.StorageService.ChatData;
+import com.psich.bot.services.StorageService.ChatMessage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Двоичный снимок хранилища (data/snapshot.bin).
+ * Заголовок: сигнатура PSNP, версия формата и флаги. Дальше чаты (история,
+ * участники, сводка, истории игроков) и профили; строки записаны как длина
+ * и байты UTF-8, профили - строками компактного JSON, как их держит
+ * JsonStorageBackend. Тело можно сжать Deflate. Несжатый файл читается
+ * через отображение в память, сжатый - потоком.
+ */
+public final class SnapshotFile {
+
+    public static final String NAME = "snapshot.bin";
+
+    private static final int MAGIC = 0x50534E50;
+    private static final int VERSION = 1;
+    private static final int FLAG_DEFLATE = 1;
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Кодирует чаты и профили (вызывается под блокировкой снимка, поэтому
+     * без сжатия - оно делается при записи в файл)
+     */
+    public static byte[] encode(Map<String, ChatData> chats, Map<String, Map<String, String>> profiles)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(chats.size());
+        for (ChatData chat : chats.values()) {
+            writeString(out, chat.getChatId());
+            out.writeBoolean(chat.isMuted());
+            writeString(out, chat.getSummary());
+            out.writeLong(chat.getJournalSeq());
+            Map<String, String> users = chat.getUsers();
+            out.writeInt(users.size());
+            for (Map.Entry<String, String> user : users.entrySet()) {
+                writeString(out, user.getKey());
+                writeString(out, user.getValue());
+            }
+            writeMessages(out, chat.getHistory());
+            writeMessages(out, chat.unsummarized());
+            out.writeInt(chat.getPlayerHistoryIds().size());
+            for (String playerId : chat.getPlayerHistoryIds()) {
+                writeString(out, playerId);
+                writeMessages(out, chat.getPlayerHistoryWindow(playerId).getMessages());
+            }
+        }
+        out.writeInt(profiles.size());
+        for (Map.Entry<String, Map<String, String>> chat : profiles.entrySet()) {
+            writeString(out, chat.getKey());
+            out.writeInt(chat.getValue().size());
+            for (Map.Entry<String, String> profile : chat.getValue().entrySet()) {
+                writeString(out, profile.getKey());
+                writeString(out, profile.getValue());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Заголовок и тело (сжатое, если compress) для записи в файл
+     */
+    public static void write(OutputStream file, byte[] body, boolean compress) throws IOException {
+        DataOutputStream header = new DataOutputStream(file);
+        header.writeInt(MAGIC);
+        header.writeShort(VERSION);
+        header.writeByte(compress ? FLAG_DEFLATE : 0);
+        header.flush();
+        if (compress) {
+            DeflaterOutputStream deflater = new DeflaterOutputStream(file, new Deflater(Deflater.BEST_SPEED), 1 << 16);
+            deflater.write(body);
+            deflater.finish();
+        } else {
+            file.write(body);
+        }
+        file.flush();
+    }
+
+    /**
+     * Читает снимок в chats и profiles; история приводится к текущим размерам
+     */
+    public static void read(File file, int contextSize, int playerHistorySize, Map<String, ChatData> chats,
+                            Map<String, Map<String, String>> profiles) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(7);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+            }
+            header.flip();
+            if (header.remaining() < 7 || header.getInt() != MAGIC) {
+                throw new IOException("это не снимок PsichBot");
+            }
+            int version = header.getShort();
+            if (version > VERSION) {
+                throw new IOException("снимок версии " + version + " записан более новой версией плагина");
+            }
+            int flags = header.get();
+            InputStream in;
+            if ((flags & FLAG_DEFLATE) != 0) {
+                in = new InflaterInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16),
+                        new Inflater(), 1 << 16);
+            } else {
+                in = new BufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 7, channel.size() - 7));
+            }
+            try (DataInputStream data = new DataInputStream(in)) {
+                readBody(data, contextSize, playerHistorySize, chats, profiles);
+            }
+        }
+    }
+
+    private static void readBody(DataInputStream in, int contextSize, int playerHistorySize,
+                                 Map<String, ChatData> chats, Map<String, Map<String, String>> profiles)
+            throws IOException {
+        int chatCount = in.readInt();
+        for (int i = 0; i < chatCount; i++) {
+            ChatData chat = new ChatData(readString(in), contextSize);
+            chat.prepare(contextSize, playerHistorySize);
+            chat.setMuted(in.readBoolean());
+            chat.setSummary(readString(in));
+            chat.markJournaled(in.readLong());
+            int users = in.readInt();
+            for (int j = 0; j < users; j++) {
+                chat.addUser(readString(in), readString(in));
+            }
+            // Кольцо истории само оставит последние context-size сообщений
+            int history = in.readInt();
+            for (int j = 0; j < history; j++) {
+                chat.addMessage(readMessage(in));
+            }
+            int pending = in.readInt();
+            for (int j = 0; j < pending; j++) {
+                chat.addUnsummarized(readMessage(in));
+            }
+            int players = in.readInt();
+            for (int j = 0; j < players; j++) {
+                String playerId = readString(in);
+                int count = in.readInt();
+                for (int k = 0; k < count; k++) {
+                    chat.addPlayerMessage(playerId, readMessage(in), playerHistorySize);
+                }
+            }
+            chats.put(chat.getChatId(), chat);
+        }
+        int profileChats = in.readInt();
+        for (int i = 0; i < profileChats; i++) {
+            Map<String, String> chatProfiles = profiles.computeIfAbsent(readString(in),
+                    k -> new ConcurrentHashMap<>());
+            int count = in.readInt();
+            for (int j = 0; j < count; j++) {
+                chatProfiles.put(readString(in), readString(in));
+            }
+        }
+    }
+
+    private static void writeMessages(DataOutputStream out, List<ChatMessage> messages) throws IOException {
+        out.writeInt(messages.size());
+        for (ChatMessage message : messages) {
+            writeString(out, message.getRole());
+            writeString(out, message.getText());
+            writeString(out, message.getPlayerId());
+            out.writeLong(message.getTime());
+        }
+    }
+
+    private static ChatMessage readMessage(DataInputStream in) throws IOException {
+        String role = readString(in);
+        String text = readString(in);
+        String playerId = readString(in);
+        return new ChatMessage(role, text, playerId, in.readLong());
+    }
+
+    /**
+     * Длина (-1 для null) и байты UTF-8. writeUTF не подходит: у него предел
+     * 64 КБ и измененная кодировка
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Поток поверх отображенного в память файла
+     */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(target, offset, count);
+            return count;
+        }
+    }
+}
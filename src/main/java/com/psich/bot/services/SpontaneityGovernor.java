@@ -0,0 +1,147 @@
+package com.psich.bot.services;
+
+import com.psich.bot.utils.ConfigManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Регулятор спонтанности: вместо фиксированных шансов держит заданный бюджет
+ * спонтанных проверок shouldAnswer в минуту.
+ * Шанс для сообщений и для событий пересчитывается по наблюдаемой скорости
+ * чата и событий: в тихую ночь бот отвечает охотнее, в час пик - реже,
+ * а расход запросов к AI остается примерно постоянным.
+ */
+public class SpontaneityGovernor {
+
+    private final ConfigManager config;
+    private final RateMeter messageRate = new RateMeter();
+    private final RateMeter eventRate = new RateMeter();
+    private final RateMeter callRate = new RateMeter();
+
+    public SpontaneityGovernor(ConfigManager config) {
+        this.config = config;
+    }
+
+    /**
+     * Учитывает подходящее для спонтанного ответа сообщение и бросает шанс
+     *
+     * @return true, если нужно проверить shouldAnswer
+     */
+    public boolean rollMessage() {
+        messageRate.record();
+        return roll(getMessageChance());
+    }
+
+    /**
+     * Учитывает игровое событие и бросает шанс
+     *
+     * @param fixedChance шанс из конфига для этого типа событий (используется,
+     *                    если регулятор выключен)
+     * @return true, если нужно проверить shouldAnswer
+     */
+    public boolean rollEvent(double fixedChance) {
+        eventRate.record();
+        return roll(config.isSpontaneityBudgetEnabled() ? getEventChance() : fixedChance);
+    }
+
+    /**
+     * Текущий шанс спонтанного ответа на сообщение
+     */
+    public double getMessageChance() {
+        if (!config.isSpontaneityBudgetEnabled()) {
+            return config.getSpontaneousChanceMessage();
+        }
+        double budget = config.getSpontaneityTargetPerMinute() * (1.0 - config.getSpontaneityEventShare());
+        return chanceFor(budget, messageRate.perMinute());
+    }
+
+    /**
+     * Текущий шанс реакции на игровое событие
+     */
+    public double getEventChance() {
+        if (!config.isSpontaneityBudgetEnabled()) {
+            return config.getSpontaneousChanceJoinQuit();
+        }
+        double budget = config.getSpontaneityTargetPerMinute() * config.getSpontaneityEventShare();
+        return chanceFor(budget, eventRate.perMinute());
+    }
+
+    /**
+     * Строки статистики для команды /psich status
+     */
+    public List<String> getStatusLines() {
+        List<String> lines = new ArrayList<>();
+        if (config.isSpontaneityBudgetEnabled()) {
+            lines.add(String.format("§7Бюджет: §f%.1f§7 проверок/мин, фактически §f%.1f",
+                    config.getSpontaneityTargetPerMinute(), callRate.perMinute()));
+            lines.add(String.format("§7Сообщения: §f%.1f§7/мин, шанс §f%.1f%%",
+                    messageRate.perMinute(), getMessageChance() * 100));
+            lines.add(String.format("§7События: §f%.1f§7/мин, шанс §f%.1f%%",
+                    eventRate.perMinute(), getEventChance() * 100));
+        } else {
+            lines.add(String.format("§7Фиксированные шансы, фактически §f%.1f§7 проверок/мин", callRate.perMinute()));
+            lines.add(String.format("§7Сообщения: §f%.1f§7/мин, шанс §f%.1f%%",
+                    messageRate.perMinute(), config.getSpontaneousChanceMessage() * 100));
+        }
+        return lines;
+    }
+
+    private boolean roll(double chance) {
+        if (ThreadLocalRandom.current().nextDouble() < chance) {
+            callRate.record();
+            return true;
+        }
+        return false;
+    }
+
+    private double chanceFor(double budgetPerMinute, double observedPerMinute) {
+        double min = config.getSpontaneityMinChance();
+        double max = config.getSpontaneityMaxChance();
+        if (observedPerMinute <= 0) {
+            return max;
+        }
+        return Math.max(min, Math.min(max, budgetPerMinute / observedPerMinute));
+    }
+
+    /**
+     * Скользящий счетчик событий за последнюю минуту (12 корзин по 5 секунд)
+     */
+    private static class RateMeter {
+        private static final int BUCKETS = 12;
+        private static final long BUCKET_MILLIS = 5000;
+
+        private final AtomicIntegerArray counts = new AtomicIntegerArray(BUCKETS);
+        private final AtomicLong[] bucketStarts = new AtomicLong[BUCKETS];
+
+        private RateMeter() {
+            for (int i = 0; i < BUCKETS; i++) {
+                bucketStarts[i] = new AtomicLong();
+            }
+        }
+
+        private void record() {
+            long slot = System.currentTimeMillis() / BUCKET_MILLIS;
+            int index = (int) (slot % BUCKETS);
+            long start = bucketStarts[index].get();
+            if (start != slot && bucketStarts[index].compareAndSet(start, slot)) {
+                counts.set(index, 0);
+            }
+            counts.incrementAndGet(index);
+        }
+
+        private double perMinute() {
+            long slot = System.currentTimeMillis() / BUCKET_MILLIS;
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (slot - bucketStarts[i].get() < BUCKETS) {
+                    total += counts.get(i);
+                }
+            }
+            return total * (60000.0 / (BUCKETS * BUCKET_MILLIS));
+        }
+    }
+}
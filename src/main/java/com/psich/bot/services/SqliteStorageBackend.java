@@ -0,0 +1,978 @@
+package com.psich.bot.services;
+
+import com.google.gson.Gson;
+import com.psich.bot.PsichBot;
+import com.psich.bot.services.StorageService.ChatData;
+import com.psich.bot.services.StorageService.ChatMessage;
+import com.psich.bot.services.StorageService.UserProfile;
+import com.psich.bot.utils.ConfigManager;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * Хранилище в SQLite (data/psich.db, драйвер входит в Paper).
+ * Сообщения не вытесняются, а копятся в таблице messages - по ней можно
+ * выбирать переписку по игроку и времени. Изменения складываются в очередь
+ * в памяти, а фоновый поток записывает ее одной транзакцией.
+ * В режиме кластера (storage.cluster) одну базу делят несколько серверов:
+ * каждое изменение дополнительно пишется в таблицу changes, а poll забирает
+ * сообщения и изменения других серверов. Профиль, который другой сервер
+ * успел изменить, не перезаписывается - новая версия заново строится из
+ * сохраненной внутри той же транзакции.
+ */
+public class SqliteStorageBackend implements StorageBackend {
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS messages (id INTEGER PRIMARY KEY AUTOINCREMENT, chat_id TEXT NOT NULL,"
+                    + " player_id TEXT, role TEXT NOT NULL, text TEXT NOT NULL, time INTEGER NOT NULL)",
+            "CREATE INDEX IF NOT EXISTS messages_chat_time ON messages (chat_id, time)",
+            "CREATE INDEX IF NOT EXISTS messages_chat_player_time ON messages (chat_id, player_id, time)",
+            "CREATE INDEX IF NOT EXISTS messages_time ON messages (time)",
+            // summary_mark - последнее сообщение, вошедшее в сводку: все, что после
+            // него и уже вытеснено из истории, ждет следующей сводки
+            "CREATE TABLE IF NOT EXISTS chats (chat_id TEXT PRIMARY KEY, muted INTEGER NOT NULL DEFAULT 0,"
+                    + " summary TEXT NOT NULL DEFAULT '', summary_mark INTEGER NOT NULL DEFAULT 0)",
+            "CREATE TABLE IF NOT EXISTS users (chat_id TEXT NOT NULL, user_id TEXT NOT NULL, name TEXT NOT NULL,"
+                    + " PRIMARY KEY (chat_id, user_id))",
+            "CREATE TABLE IF NOT EXISTS profiles (chat_id TEXT NOT NULL, user_id TEXT NOT NULL,"
+                    + " version INTEGER NOT NULL, data TEXT NOT NULL, PRIMARY KEY (chat_id, user_id))",
+            // Журнал изменений для остальных серверов кластера (сообщения берутся из messages)
+            "CREATE TABLE IF NOT EXISTS changes (seq INTEGER PRIMARY KEY AUTOINCREMENT, node TEXT NOT NULL,"
+                    + " time INTEGER NOT NULL, kind TEXT NOT NULL, chat_id TEXT NOT NULL, user_id TEXT, data TEXT)",
+            "CREATE INDEX IF NOT EXISTS changes_time ON changes (time)"
+    };
+
+    // Сколько хранить журнал изменений: сервер, отставший сильнее, перечитает данные при перезапуске
+    private static final long CHANGE_RETENTION_MILLIS = 60 * 60 * 1000L;
+    // Не больше стольких сообщений и изменений за один опрос
+    private static final int POLL_LIMIT = 2000;
+    private static final long PRUNE_INTERVAL_MILLIS = 10 * 60 * 1000L;
+    // Отметка изменения профиля, объединенного с чужой версией
+    private static final String MERGED = "merged";
+    // Узел сообщений, перенесенных из JSON в общую базу: другие серверы их не
+    // получают в текущую историю (это старая переписка, а не новые сообщения)
+    private static final String IMPORTED = "import";
+
+    private final PsichBot plugin;
+    private final ConfigManager config;
+    private final File file;
+    // Id этого сервера в кластере (null - база только у этого сервера)
+    private final String node;
+    private final Gson gson = new Gson();
+
+    // Изменения, еще не записанные в базу, в порядке выполнения
+    private final Queue<Op> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    // Изменения из неудавшейся транзакции - повторяются первыми
+    private List<Op> retry = new ArrayList<>();
+    // Профили, стоящие в очереди: их читаем отсюда, а не из базы
+    private final Map<String, UserProfile> unflushedProfiles = new ConcurrentHashMap<>();
+
+    private Connection connection;
+    // Чтение для load и poll: в кластере - отдельное соединение с обычными
+    // (отложенными) транзакциями, чтобы чтение не брало блокировку записи общей базы.
+    // Без кластера - то же соединение
+    private Connection reader;
+    private PreparedStatement readerSelectProfile;
+    // Порядок опросов кластера - poll не держит монитор объекта, пока читает базу
+    private final Object pollMonitor = new Object();
+    private PreparedStatement insertMessage;
+    private PreparedStatement upsertUser;
+    private PreparedStatement deleteUser;
+    private PreparedStatement upsertMuted;
+    private PreparedStatement upsertSummary;
+    private PreparedStatement deleteMessages;
+    private PreparedStatement upsertProfile;
+    private PreparedStatement selectProfile;
+    private PreparedStatement insertChange;
+    // Сообщения, добавленные в пакет insertMessage и еще не выполненные
+    private int batched = 0;
+
+    // Последние сообщение и изменение кластера, уже примененные к памяти
+    private long lastMessageId = 0;
+    private long lastChangeSeq = 0;
+    private long lastPrune = 0;
+    private final AtomicLong remoteChanges = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+
+    public SqliteStorageBackend(PsichBot plugin, File file) {
+        this(plugin, file, null);
+    }
+
+    /**
+     * @param node id сервера, если база общая для кластера
+     */
+    public SqliteStorageBackend(PsichBot plugin, File file, String node) {
+        this.plugin = plugin;
+        this.config = plugin.getConfigManager();
+        this.file = file;
+        this.node = node;
+    }
+
+    @Override
+    public String getName() {
+        return node != null ? "SQLite (кластер)" : "SQLite";
+    }
+
+    public boolean isClustered() {
+        return node != null;
+    }
+
+    /**
+     * Открывает базу и создает таблицы
+     */
+    public synchronized void open() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        Properties properties = new Properties();
+        if (node != null) {
+            // Запись в общую базу читает профиль перед обновлением - блокировку записи
+            // берем сразу, иначе чужая запись между чтением и обновлением сорвет транзакцию.
+            // Только для соединения записи (write), чтение идет через reader
+            properties.setProperty("transaction_mode", "IMMEDIATE");
+        }
+        connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath(), properties);
+        if (node != null) {
+            reader = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+            try (Statement statement = reader.createStatement()) {
+                statement.execute("PRAGMA busy_timeout=5000");
+                statement.execute("PRAGMA query_only=1");
+            }
+        } else {
+            reader = connection;
+        }
+        try (Statement statement = connection.createStatement()) {
+            // WAL: чтение не ждет запись, fsync только на контрольных точках
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.execute("PRAGMA synchronous=NORMAL");
+            // Общую базу кластера пишут несколько серверов - ждем блокировку, а не падаем
+            statement.execute("PRAGMA busy_timeout=5000");
+            for (String sql : SCHEMA) {
+                statement.execute(sql);
+            }
+            if (!hasColumn(statement, "messages", "node")) {
+                statement.execute("ALTER TABLE messages ADD COLUMN node TEXT");
+            }
+        }
+        insertMessage = connection.prepareStatement(
+                "INSERT INTO messages (chat_id, player_id, role, text, time, node) VALUES (?, ?, ?, ?, ?, ?)");
+        upsertUser = connection.prepareStatement(
+                "INSERT INTO users (chat_id, user_id, name) VALUES (?, ?, ?)"
+                        + " ON CONFLICT (chat_id, user_id) DO UPDATE SET name = excluded.name");
+        deleteUser = connection.prepareStatement("DELETE FROM users WHERE chat_id = ? AND user_id = ?");
+        upsertMuted = connection.prepareStatement(
+                "INSERT INTO chats (chat_id, muted) VALUES (?, ?)"
+                        + " ON CONFLICT (chat_id) DO UPDATE SET muted = excluded.muted");
+        upsertSummary = connection.prepareStatement(
+                "INSERT INTO chats (chat_id, summary, summary_mark) VALUES (?, ?, COALESCE((SELECT id FROM messages"
+                        + " WHERE chat_id = ? ORDER BY id DESC LIMIT 1 OFFSET ?), 0))"
+                        + " ON CONFLICT (chat_id) DO UPDATE SET summary = excluded.summary,"
+                        + " summary_mark = excluded.summary_mark");
+        deleteMessages = connection.prepareStatement("DELETE FROM messages WHERE chat_id = ?");
+        upsertProfile = connection.prepareStatement(
+                "INSERT INTO profiles (chat_id, user_id, version, data) VALUES (?, ?, ?, ?)"
+                        + " ON CONFLICT (chat_id, user_id) DO UPDATE SET version = excluded.version,"
+                        + " data = excluded.data WHERE excluded.version > profiles.version");
+        selectProfile = connection.prepareStatement(
+                "SELECT version, data FROM profiles WHERE chat_id = ? AND user_id = ?");
+        readerSelectProfile = reader.prepareStatement(
+                "SELECT version, data FROM profiles WHERE chat_id = ? AND user_id = ?");
+        insertChange = connection.prepareStatement(
+                "INSERT INTO changes (node, time, kind, chat_id, user_id, data) VALUES (?, ?, ?, ?, ?, ?)");
+    }
+
+    private static boolean hasColumn(Statement statement, String table, String column) throws SQLException {
+        try (ResultSet rs = statement.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * В базе еще ничего нет (первый запуск - можно переносить данные из JSON)
+     */
+    public synchronized boolean isEmpty() throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT EXISTS (SELECT 1 FROM messages)"
+                     + " OR EXISTS (SELECT 1 FROM chats) OR EXISTS (SELECT 1 FROM users)"
+                     + " OR EXISTS (SELECT 1 FROM profiles)")) {
+            return !rs.next() || rs.getInt(1) == 0;
+        }
+    }
+
+    @Override
+    public synchronized void load(Map<String, ChatData> chats) {
+        int contextSize = config.getContextSize();
+        int playerHistorySize = config.getPlayerHistorySize();
+        try {
+            // Одна транзакция чтения: отметки кластера совпадают с загруженными данными
+            reader.setAutoCommit(false);
+            if (node != null) {
+                lastMessageId = queryLong(reader, "SELECT COALESCE(MAX(id), 0) FROM messages");
+                lastChangeSeq = queryLong(reader, "SELECT COALESCE(MAX(seq), 0) FROM changes");
+            }
+            Set<String> chatIds = new LinkedHashSet<>();
+            try (Statement statement = reader.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT chat_id FROM chats UNION SELECT chat_id FROM users"
+                         + " UNION SELECT DISTINCT chat_id FROM messages")) {
+                while (rs.next()) {
+                    chatIds.add(rs.getString(1));
+                }
+            }
+            for (String chatId : chatIds) {
+                ChatData chat = new ChatData(chatId, contextSize);
+                chat.prepare(contextSize, playerHistorySize);
+                loadChat(chat, contextSize, playerHistorySize);
+                chats.put(chatId, chat);
+            }
+
+            try (Statement statement = reader.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT chat_id, user_id, name FROM users")) {
+                while (rs.next()) {
+                    ChatData chat = chats.get(rs.getString(1));
+                    if (chat != null) {
+                        chat.addUser(rs.getString(2), rs.getString(3));
+                    }
+                }
+            }
+
+        } catch (SQLException e) {
+            plugin.getLogger().warning("Ошибка загрузки из SQLite: " + e.getMessage());
+        } finally {
+            try {
+                reader.commit();
+                reader.setAutoCommit(true);
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+
+    private static long queryLong(Connection db, String sql) throws SQLException {
+        try (Statement statement = db.createStatement();
+             ResultSet rs = statement.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Последние сообщения чата в историю, вытесненные после сводки - в
+     * ожидающие сводки, обмены каждого игрока - в его историю
+     */
+    private void loadChat(ChatData chat, int contextSize, int playerHistorySize) throws SQLException {
+        String chatId = chat.getChatId();
+        long mark = 0;
+        try (PreparedStatement statement = reader.prepareStatement(
+                "SELECT muted, summary, summary_mark FROM chats WHERE chat_id = ?")) {
+            statement.setString(1, chatId);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next()) {
+                    chat.setMuted(rs.getInt(1) != 0);
+                    chat.setSummary(rs.getString(2));
+                    mark = rs.getLong(3);
+                }
+            }
+        }
+        int pending = 0;
+        if (config.isSummaryEnabled()) {
+            try (PreparedStatement statement = reader.prepareStatement(
+                    "SELECT COUNT(*) FROM messages WHERE chat_id = ? AND id > ?")) {
+                statement.setString(1, chatId);
+                statement.setLong(2, mark);
+                try (ResultSet rs = statement.executeQuery()) {
+                    // Ждут сводки те, что после отметки уже не помещаются в историю
+                    pending = rs.next() ? Math.max(0, rs.getInt(1) - contextSize) : 0;
+                }
+            }
+        }
+        pending = Math.min(pending, StorageService.MAX_UNSUMMARIZED);
+
+        List<ChatMessage> recent = new ArrayList<>();
+        try (PreparedStatement statement = reader.prepareStatement(
+                "SELECT role, text, player_id, time FROM messages WHERE chat_id = ? ORDER BY id DESC LIMIT ?")) {
+            statement.setString(1, chatId);
+            statement.setInt(2, contextSize + pending);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    recent.add(readMessage(rs));
+                }
+            }
+        }
+        Collections.reverse(recent);
+        // Сводка ждет только то, что уже вытеснено из истории
+        int evicted = Math.max(0, recent.size() - contextSize);
+        for (int i = 0; i < recent.size(); i++) {
+            if (i < evicted && i >= evicted - pending) {
+                chat.addUnsummarized(recent.get(i));
+            } else if (i >= evicted) {
+                chat.addMessage(recent.get(i));
+            }
+        }
+
+        try (PreparedStatement statement = reader.prepareStatement(
+                "SELECT role, text, player_id, time FROM (SELECT id, role, text, player_id, time,"
+                        + " ROW_NUMBER() OVER (PARTITION BY player_id ORDER BY id DESC) AS rn"
+                        + " FROM messages WHERE chat_id = ? AND player_id IS NOT NULL) WHERE rn <= ? ORDER BY id")) {
+            statement.setString(1, chatId);
+            statement.setInt(2, playerHistorySize);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    ChatMessage message = readMessage(rs);
+                    chat.addPlayerMessage(message.getPlayerId(), message, playerHistorySize);
+                }
+            }
+        }
+    }
+
+    private ChatMessage readMessage(ResultSet rs) throws SQLException {
+        return new ChatMessage(rs.getString(1), rs.getString(2), rs.getString(3), rs.getLong(4));
+    }
+
+    /**
+     * Переносит данные, загруженные из JSON, в базу одной транзакцией.
+     * В общую базу кластера, где уже есть данные других серверов, они
+     * добавляются: сообщения дописываются, профиль заменяет сохраненный, только
+     * если его версия новее, а сводка и мут общих чатов не перезаписываются
+     *
+     * @param merge база не пустая - данные добавляются к имеющимся
+     */
+    public synchronized void importAll(Map<String, ChatData> chats, Map<String, Map<String, UserProfile>> profiles,
+                                       boolean merge) throws SQLException {
+        for (ChatData chat : chats.values()) {
+            String chatId = chat.getChatId();
+            // Сообщения лежат и в истории чата, и в историях игроков - убираем повторы
+            Map<String, ChatMessage> unique = new LinkedHashMap<>();
+            List<ChatMessage> pending = chat.unsummarized();
+            for (ChatMessage message : pending) {
+                unique.putIfAbsent(key(message), message);
+            }
+            for (ChatMessage message : chat.getHistory()) {
+                unique.putIfAbsent(key(message), message);
+            }
+            for (String playerId : chat.getPlayerHistoryIds()) {
+                for (ChatMessage message : chat.getPlayerHistoryWindow(playerId).getMessages()) {
+                    unique.putIfAbsent(key(message), message);
+                }
+            }
+            List<ChatMessage> messages = new ArrayList<>(unique.values());
+            messages.sort(Comparator.comparingLong(ChatMessage::getTime));
+            String messageNode = merge ? IMPORTED : node;
+            for (ChatMessage message : messages) {
+                enqueue(new Op(true, () -> bindMessage(chatId, message, messageNode)));
+            }
+            chat.getUsers().forEach((userId, name) -> putUser(chat, userId, name));
+            if (!merge) {
+                putMuted(chat, chat.isMuted());
+                putSummary(chat, chat.getSummary(), pending.size());
+            } else if (chat.isMuted()) {
+                putMuted(chat, true);
+            }
+        }
+        if (!merge) {
+            profiles.forEach((chatId, chatProfiles) ->
+                    chatProfiles.forEach((userId, profile) -> putProfile(chatId, userId, profile, null)));
+        } else {
+            // upsertProfile не заменяет запись с той же или более новой версией
+            profiles.forEach((chatId, chatProfiles) -> chatProfiles.forEach((userId, profile) ->
+                    enqueue(new Op(false, () -> {
+                        writeProfile(chatId, userId, profile);
+                        recordChange("profile", chatId, userId, null);
+                    }))));
+        }
+        if (!write()) {
+            throw new SQLException("транзакция переноса не записана");
+        }
+    }
+
+    private static String key(ChatMessage message) {
+        return message.getTime() + "|" + message.getRole() + "|" + message.getPlayerId() + "|" + message.getText();
+    }
+
+    @Override
+    public void appendMessage(ChatData chat, ChatMessage message) {
+        String chatId = chat.getChatId();
+        enqueue(new Op(true, () -> bindMessage(chatId, message)));
+    }
+
+    private void bindMessage(String chatId, ChatMessage message) throws SQLException {
+        bindMessage(chatId, message, node);
+    }
+
+    private void bindMessage(String chatId, ChatMessage message, String messageNode) throws SQLException {
+        insertMessage.setString(1, chatId);
+        insertMessage.setString(2, message.getPlayerId());
+        insertMessage.setString(3, message.getRole());
+        insertMessage.setString(4, message.getText());
+        insertMessage.setLong(5, message.getTime());
+        insertMessage.setString(6, messageNode);
+        insertMessage.addBatch();
+        batched++;
+    }
+
+    @Override
+    public void putUser(ChatData chat, String userId, String username) {
+        String chatId = chat.getChatId();
+        enqueue(new Op(false, () -> {
+            upsertUser.setString(1, chatId);
+            upsertUser.setString(2, userId);
+            upsertUser.setString(3, username);
+            upsertUser.executeUpdate();
+            recordChange("user", chatId, userId, username);
+        }));
+    }
+
+    @Override
+    public void forgetUser(ChatData chat, String userId) {
+        String chatId = chat.getChatId();
+        enqueue(new Op(false, () -> {
+            deleteUser.setString(1, chatId);
+            deleteUser.setString(2, userId);
+            deleteUser.executeUpdate();
+            recordChange("forget", chatId, userId, null);
+        }));
+    }
+
+    @Override
+    public void putMuted(ChatData chat, boolean muted) {
+        String chatId = chat.getChatId();
+        enqueue(new Op(false, () -> {
+            upsertMuted.setString(1, chatId);
+            upsertMuted.setInt(2, muted ? 1 : 0);
+            upsertMuted.executeUpdate();
+            recordChange("muted", chatId, null, muted ? "1" : "0");
+        }));
+    }
+
+    /**
+     * Отметка сводки - сообщение перед ждущими сводки и текущей историей
+     */
+    @Override
+    public void putSummary(ChatData chat, String summary, int pending) {
+        String chatId = chat.getChatId();
+        int newer = pending + chat.getHistoryWindow().size();
+        enqueue(new Op(false, () -> {
+            upsertSummary.setString(1, chatId);
+            upsertSummary.setString(2, summary);
+            upsertSummary.setString(3, chatId);
+            upsertSummary.setInt(4, newer);
+            upsertSummary.executeUpdate();
+            recordChange("summary", chatId, null, summary);
+        }));
+    }
+
+    /**
+     * Сброс удаляет и сохраненную переписку чата
+     */
+    @Override
+    public void clearHistory(ChatData chat) {
+        String chatId = chat.getChatId();
+        enqueue(new Op(false, () -> {
+            // Другие серверы сбрасывают историю и не применяют удаленные сообщения до этой отметки
+            if (node != null) {
+                executeBatch();
+                recordChange("clear", chatId, null,
+                        String.valueOf(queryLong(connection, "SELECT COALESCE(MAX(id), 0) FROM messages")));
+            }
+            deleteMessages.setString(1, chatId);
+            deleteMessages.executeUpdate();
+            // Сообщений нет - отметка сводки 0
+            upsertSummary.setString(1, chatId);
+            upsertSummary.setString(2, "");
+            upsertSummary.setString(3, chatId);
+            upsertSummary.setInt(4, 0);
+            upsertSummary.executeUpdate();
+        }));
+    }
+
+    @Override
+    public UserProfile loadProfile(String chatId, String userId) {
+        UserProfile pending = unflushedProfiles.get(profileKey(chatId, userId));
+        if (pending != null) {
+            return pending;
+        }
+        synchronized (this) {
+            if (connection == null) {
+                return null;
+            }
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT data FROM profiles WHERE chat_id = ? AND user_id = ?")) {
+                statement.setString(1, chatId);
+                statement.setString(2, userId);
+                try (ResultSet rs = statement.executeQuery()) {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    UserProfile profile = gson.fromJson(rs.getString(1), UserProfile.class);
+                    profile.migrateLegacyFacts();
+                    return profile;
+                }
+            } catch (SQLException e) {
+                plugin.getLogger().warning("Ошибка чтения профиля из SQLite: " + e.getMessage());
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public synchronized Map<String, Map<String, UserProfile>> loadAllProfiles() {
+        Map<String, Map<String, UserProfile>> all = new HashMap<>();
+        if (connection == null) {
+            return all;
+        }
+        write();
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT chat_id, user_id, data FROM profiles")) {
+            while (rs.next()) {
+                UserProfile profile = gson.fromJson(rs.getString(3), UserProfile.class);
+                profile.migrateLegacyFacts();
+                all.computeIfAbsent(rs.getString(1), k -> new HashMap<>()).put(rs.getString(2), profile);
+            }
+        } catch (SQLException e) {
+            plugin.getLogger().warning("Ошибка чтения профилей из SQLite: " + e.getMessage());
+        }
+        return all;
+    }
+
+    @Override
+    public synchronized Map<String, Map<String, String>> loadAllProfileJson() {
+        Map<String, Map<String, String>> all = new HashMap<>();
+        if (connection == null) {
+            return all;
+        }
+        write();
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT chat_id, user_id, data FROM profiles")) {
+            while (rs.next()) {
+                all.computeIfAbsent(rs.getString(1), k -> new HashMap<>()).put(rs.getString(2), rs.getString(3));
+            }
+        } catch (SQLException e) {
+            plugin.getLogger().warning("Ошибка чтения профилей из SQLite: " + e.getMessage());
+        }
+        return all;
+    }
+
+    /**
+     * Сохраненные профили не изменяются на месте, поэтому сериализуем при записи.
+     * Если в базе версия не старше (ее записал другой сервер), merge применяется
+     * к сохраненной версии - изменения обоих серверов не теряются
+     */
+    @Override
+    public void putProfile(String chatId, String userId, UserProfile profile, UnaryOperator<UserProfile> merge) {
+        String key = profileKey(chatId, userId);
+        unflushedProfiles.put(key, profile);
+        enqueue(new Op(false, () -> {
+            if (node != null) {
+                // Версии серверов кластера растут независимо и по ним нельзя понять,
+                // учтены ли чужие изменения, - применяем изменение к записи из базы
+                // (без merge - перезапись, побеждает последняя)
+                UserProfile stored = readProfile(selectProfile, chatId, userId);
+                if (stored != null) {
+                    if (stored.getVersion() >= profile.getVersion()) {
+                        conflicts.incrementAndGet();
+                    }
+                    UserProfile merged = merge != null ? merge.apply(new UserProfile(stored)) : new UserProfile(profile);
+                    merged.setVersion(Math.max(stored.getVersion(), profile.getVersion()) + 1);
+                    writeProfile(chatId, userId, merged);
+                    // В памяти этого сервера может не быть чужих изменений - заберет объединенную
+                    recordChange("profile", chatId, userId, MERGED);
+                    return;
+                }
+            }
+            writeProfile(chatId, userId, profile);
+            recordChange("profile", chatId, userId, null);
+        }, () -> unflushedProfiles.remove(key, profile)));
+    }
+
+    private void writeProfile(String chatId, String userId, UserProfile profile) throws SQLException {
+        upsertProfile.setString(1, chatId);
+        upsertProfile.setString(2, userId);
+        upsertProfile.setLong(3, profile.getVersion());
+        upsertProfile.setString(4, gson.toJson(profile));
+        upsertProfile.executeUpdate();
+    }
+
+    private UserProfile readProfile(PreparedStatement select, String chatId, String userId) throws SQLException {
+        select.setString(1, chatId);
+        select.setString(2, userId);
+        try (ResultSet rs = select.executeQuery()) {
+            if (!rs.next()) {
+                return null;
+            }
+            UserProfile profile = gson.fromJson(rs.getString(2), UserProfile.class);
+            profile.migrateLegacyFacts();
+            profile.setVersion(rs.getLong(1));
+            return profile;
+        }
+    }
+
+    private void recordChange(String kind, String chatId, String userId, String data) throws SQLException {
+        if (node == null) {
+            return;
+        }
+        insertChange.setString(1, node);
+        insertChange.setLong(2, System.currentTimeMillis());
+        insertChange.setString(3, kind);
+        insertChange.setString(4, chatId);
+        insertChange.setString(5, userId);
+        insertChange.setString(6, data);
+        insertChange.executeUpdate();
+    }
+
+    /**
+     * Каждое изменение профиля уже стоит в очереди записи - держать нечего
+     */
+    @Override
+    public void evictProfile(String chatId, String userId, UserProfile profile) {
+    }
+
+    private static String profileKey(String chatId, String userId) {
+        return chatId + '\n' + userId;
+    }
+
+    private void enqueue(Op op) {
+        queue.add(op);
+        queued.incrementAndGet();
+    }
+
+    /**
+     * Сначала записывает очередь, чтобы в выборку попали и последние сообщения
+     */
+    @Override
+    public synchronized List<ChatMessage> queryHistory(String chatId, String playerId, long fromTime, long toTime,
+                                                       int limit) {
+        write();
+        List<ChatMessage> result = new ArrayList<>();
+        String sql = "SELECT role, text, player_id, time FROM messages WHERE chat_id = ? AND time BETWEEN ? AND ?"
+                + (playerId != null ? " AND player_id = ?" : "") + " ORDER BY id DESC LIMIT ?";
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            int index = 1;
+            statement.setString(index++, chatId);
+            statement.setLong(index++, fromTime);
+            statement.setLong(index++, toTime);
+            if (playerId != null) {
+                statement.setString(index++, playerId);
+            }
+            statement.setInt(index, limit);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    result.add(readMessage(rs));
+                }
+            }
+        } catch (SQLException e) {
+            plugin.getLogger().warning("Ошибка выборки из SQLite: " + e.getMessage());
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    @Override
+    public boolean keepsFullHistory() {
+        return true;
+    }
+
+    @Override
+    public synchronized void flush() {
+        write();
+    }
+
+    /**
+     * Записывает очередь одной транзакцией. Сообщения идут пакетами, пакет
+     * выполняется перед любым другим изменением - порядок сохраняется.
+     *
+     * @return false, если транзакция не удалась (изменения повторятся)
+     */
+    private boolean write() {
+        List<Op> ops = retry;
+        retry = new ArrayList<>();
+        Op op;
+        while ((op = queue.poll()) != null) {
+            ops.add(op);
+        }
+        if (ops.isEmpty() || connection == null) {
+            return true;
+        }
+        long start = System.nanoTime();
+        try {
+            connection.setAutoCommit(false);
+            batched = 0;
+            for (Op next : ops) {
+                if (!next.message) {
+                    executeBatch();
+                }
+                next.action.run();
+            }
+            executeBatch();
+            connection.commit();
+            queued.addAndGet(-ops.size());
+            for (Op next : ops) {
+                if (next.committed != null) {
+                    next.committed.run();
+                }
+            }
+            if (config.isDebug()) {
+                plugin.getLogger().info("[DEBUG] SQLite: записано изменений " + ops.size() + " за "
+                        + (System.nanoTime() - start) / 1_000_000 + " мс");
+            }
+            return true;
+        } catch (SQLException e) {
+            plugin.getLogger().warning("Ошибка записи в SQLite: " + e.getMessage());
+            try {
+                insertMessage.clearBatch();
+                connection.rollback();
+            } catch (SQLException ignored) {
+            }
+            retry = ops;
+            return false;
+        } finally {
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+
+    private void executeBatch() throws SQLException {
+        if (batched > 0) {
+            insertMessage.executeBatch();
+            batched = 0;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (connection == null) {
+            return;
+        }
+        write();
+        synchronized (pollMonitor) {
+            try {
+                if (reader != null && reader != connection) {
+                    reader.close();
+                }
+                connection.close();
+            } catch (SQLException e) {
+                plugin.getLogger().warning("Ошибка закрытия SQLite: " + e.getMessage());
+            }
+            reader = null;
+        }
+        connection = null;
+    }
+
+    /**
+     * Забирает сообщения и изменения других серверов кластера (поток записи).
+     * Все читается одной транзакцией, слушатель вызывается уже без блокировки базы
+     */
+    public void poll(ClusterListener listener) {
+        List<Runnable> applied = new ArrayList<>();
+        synchronized (pollMonitor) {
+            if (node == null || reader == null) {
+                return;
+            }
+            long messageMark = lastMessageId;
+            long changeMark = lastChangeSeq;
+            try {
+                reader.setAutoCommit(false);
+                // Сброс чата: сообщения до отметки удалены и не применяются
+                Map<String, Long> clears = new HashMap<>();
+                Map<String, String[]> changedProfiles = new LinkedHashMap<>();
+                int changes = 0;
+                try (PreparedStatement statement = reader.prepareStatement("SELECT seq, node, kind, chat_id,"
+                        + " user_id, data FROM changes WHERE seq > ? ORDER BY seq LIMIT ?")) {
+                    statement.setLong(1, changeMark);
+                    statement.setInt(2, POLL_LIMIT);
+                    try (ResultSet rs = statement.executeQuery()) {
+                        while (rs.next()) {
+                            changes++;
+                            changeMark = rs.getLong(1);
+                            String kind = rs.getString(3);
+                            String chatId = rs.getString(4);
+                            String userId = rs.getString(5);
+                            String data = rs.getString(6);
+                            if (node.equals(rs.getString(2)) && !("profile".equals(kind) && MERGED.equals(data))) {
+                                continue;
+                            }
+                            remoteChanges.incrementAndGet();
+                            switch (kind) {
+                                case "user":
+                                    applied.add(() -> listener.onUser(chatId, userId, data));
+                                    break;
+                                case "forget":
+                                    applied.add(() -> listener.onForget(chatId, userId));
+                                    break;
+                                case "muted":
+                                    applied.add(() -> listener.onMuted(chatId, "1".equals(data)));
+                                    break;
+                                case "summary":
+                                    applied.add(() -> listener.onSummary(chatId, data));
+                                    break;
+                                case "clear":
+                                    clears.merge(chatId, Long.parseLong(data), Math::max);
+                                    applied.add(() -> listener.onClear(chatId));
+                                    break;
+                                case "profile":
+                                    changedProfiles.put(profileKey(chatId, userId), new String[] { chatId, userId });
+                                    break;
+                                default:
+                                    break;
+                            }
+                        }
+                    }
+                }
+                for (String[] key : changedProfiles.values()) {
+                    UserProfile profile = readProfile(readerSelectProfile, key[0], key[1]);
+                    if (profile != null) {
+                        applied.add(() -> listener.onProfile(key[0], key[1], profile));
+                    }
+                }
+                // Изменения прочитаны не все - сообщения заберем в следующий раз, чтобы
+                // не применить сообщение раньше предшествующего ему сброса
+                if (changes < POLL_LIMIT) {
+                    messageMark = readRemoteMessages(messageMark, clears, listener, applied);
+                }
+                reader.commit();
+            } catch (SQLException | RuntimeException e) {
+                plugin.getLogger().warning("Ошибка чтения изменений кластера: " + e.getMessage());
+                try {
+                    reader.rollback();
+                } catch (SQLException ignored) {
+                }
+                return;
+            } finally {
+                try {
+                    reader.setAutoCommit(true);
+                } catch (SQLException ignored) {
+                }
+            }
+            lastMessageId = messageMark;
+            lastChangeSeq = changeMark;
+        }
+        pruneChanges();
+        for (Runnable change : applied) {
+            change.run();
+        }
+    }
+
+    /**
+     * @return id последнего прочитанного сообщения
+     */
+    private long readRemoteMessages(long mark, Map<String, Long> clears, ClusterListener listener,
+                                    List<Runnable> applied) throws SQLException {
+        try (PreparedStatement statement = reader.prepareStatement("SELECT id, node, chat_id, role, text,"
+                + " player_id, time FROM messages WHERE id > ? ORDER BY id LIMIT ?")) {
+            statement.setLong(1, mark);
+            statement.setInt(2, POLL_LIMIT);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    long id = rs.getLong(1);
+                    mark = id;
+                    String chatId = rs.getString(3);
+                    if (node.equals(rs.getString(2)) || IMPORTED.equals(rs.getString(2))
+                            || id <= clears.getOrDefault(chatId, 0L)) {
+                        continue;
+                    }
+                    ChatMessage message = new ChatMessage(rs.getString(4), rs.getString(5), rs.getString(6),
+                            rs.getLong(7));
+                    applied.add(() -> listener.onMessage(chatId, message));
+                }
+            }
+        }
+        return mark;
+    }
+
+    /**
+     * Удаляет старые записи журнала изменений (не чаще раза в 10 минут)
+     */
+    private synchronized void pruneChanges() {
+        long now = System.currentTimeMillis();
+        if (connection == null || now - lastPrune < PRUNE_INTERVAL_MILLIS) {
+            return;
+        }
+        lastPrune = now;
+        try (PreparedStatement statement = connection.prepareStatement("DELETE FROM changes WHERE time < ?")) {
+            statement.setLong(1, now - CHANGE_RETENTION_MILLIS);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            plugin.getLogger().warning("Ошибка очистки журнала кластера: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public List<String> getStatusLines() {
+        List<String> lines = new ArrayList<>();
+        lines.add("§7База: §f" + file.length() / 1024 + "§7 КБ, ждут записи: §f" + queued.get());
+        if (node != null) {
+            lines.add("§7Кластер: узел §f" + node + "§7, получено изменений §f" + remoteChanges.get()
+                    + "§7, конфликтов профилей §f" + conflicts.get());
+        }
+        return lines;
+    }
+
+    /**
+     * Получает изменения, сделанные другими серверами кластера
+     */
+    public interface ClusterListener {
+        void onMessage(String chatId, ChatMessage message);
+
+        void onUser(String chatId, String userId, String username);
+
+        void onForget(String chatId, String userId);
+
+        void onMuted(String chatId, boolean muted);
+
+        void onSummary(String chatId, String summary);
+
+        void onClear(String chatId);
+
+        void onProfile(String chatId, String userId, UserProfile profile);
+    }
+
+    /**
+     * Изменение в очереди на запись
+     */
+    private static class Op {
+        // Вставка сообщения - выполняется пакетом
+        final boolean message;
+        final SqlAction action;
+        // Что сделать после успешной транзакции
+        final Runnable committed;
+
+        Op(boolean message, SqlAction action) {
+            this(message, action, null);
+        }
+
+        Op(boolean message, SqlAction action, Runnable committed) {
+            this.message = message;
+            this.action = action;
+            this.committed = committed;
+        }
+    }
+
+    @FunctionalInterface
+    private interface SqlAction {
+        void run() throws SQLException;
+    }
+}
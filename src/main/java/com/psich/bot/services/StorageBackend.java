@@ -0,0 +1,111 @@
+package com.psich.bot.services;
+
+import com.psich.bot.services.StorageService.ChatData;
+import com.psich.bot.services.StorageService.ChatMessage;
+import com.psich.bot.services.StorageService.UserProfile;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * Долговременное хранилище данных бота.
+ * StorageService держит рабочие данные в памяти (истории, профили) и сообщает
+ * бэкенду о каждом изменении; бэкенд отвечает только за то, чтобы изменения
+ * пережили перезапуск. Вызовы изменений идут под блокировкой StorageService
+ * вместе с самим изменением и не должны ждать диск - запись делает flush
+ * в фоновом потоке.
+ */
+public interface StorageBackend {
+
+    /**
+     * Название для /psich status и логов
+     */
+    String getName();
+
+    /**
+     * Загружает сохраненные чаты при запуске. Профили читаются позже, по одному
+     * (loadProfile)
+     *
+     * @param chats сюда кладутся чаты (с историей по текущему context-size)
+     */
+    void load(Map<String, ChatData> chats);
+
+    /**
+     * Сохраненный профиль игрока с учетом еще не записанных изменений.
+     * Вызывается из любого потока.
+     *
+     * @return null, если профиля нет
+     */
+    UserProfile loadProfile(String chatId, String userId);
+
+    /**
+     * Все сохраненные профили (для переноса и выгрузки; может быть долго)
+     */
+    Map<String, Map<String, UserProfile>> loadAllProfiles();
+
+    /**
+     * Все сохраненные профили строками JSON, без разбора (разбирает вызывающий,
+     * уже вне блокировок; старые досье еще не разделены на факты)
+     */
+    Map<String, Map<String, String>> loadAllProfileJson();
+
+    void appendMessage(ChatData chat, ChatMessage message);
+
+    void putUser(ChatData chat, String userId, String username);
+
+    void putMuted(ChatData chat, boolean muted);
+
+    /**
+     * Участник давно не писал - убрать его из участников чата
+     */
+    void forgetUser(ChatData chat, String userId);
+
+    /**
+     * @param pending сколько вытесненных сообщений осталось ждать следующей сводки
+     */
+    void putSummary(ChatData chat, String summary, int pending);
+
+    void clearHistory(ChatData chat);
+
+    /**
+     * @param merge как получить новую версию из сохраненной, если ее успел
+     *              изменить другой сервер кластера (null - просто заменить)
+     */
+    void putProfile(String chatId, String userId, UserProfile profile, UnaryOperator<UserProfile> merge);
+
+    /**
+     * Измененный профиль вытеснен из памяти StorageService. Последняя версия
+     * уже передана в putProfile - бэкенд может убрать свою копию из памяти.
+     */
+    void evictProfile(String chatId, String userId, UserProfile profile);
+
+    /**
+     * Сохраненные сообщения чата за период, от старых к новым
+     *
+     * @param playerId только обмены с этим игроком (null - все сообщения)
+     * @param limit    не больше стольких последних сообщений
+     */
+    List<ChatMessage> queryHistory(String chatId, String playerId, long fromTime, long toTime, int limit);
+
+    /**
+     * Хранит ли бэкенд переписку, вытесненную из истории. Если нет, ее
+     * сохраняет ChatArchive
+     */
+    boolean keepsFullHistory();
+
+    /**
+     * Записывает накопленные изменения (вызывается фоновым потоком)
+     */
+    void flush();
+
+    /**
+     * Записывает все и освобождает файлы (при выключении)
+     */
+    void close();
+
+    /**
+     * Строки статистики для команды /psich status
+     */
+    List<String> getStatusLines();
+}
@@ -0,0 +1,84 @@
+package com.psich.bot.services;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Фоновая запись хранилища.
+ * Изменения только копят записи журнала в памяти или помечают данные как
+ * измененные, а единственный поток "PsichBot-Storage" раз в flush-interval
+ * сбрасывает все накопленное одной записью. Так частые изменения сливаются,
+ * один файл никогда не пишут два потока сразу, а главный поток и конвейер
+ * не ждут диск.
+ */
+public class StorageFlusher {
+
+    private final Runnable flush;
+    private final LongSupplier intervalMillis;
+    private final Logger logger;
+
+    private volatile Thread thread;
+    private volatile boolean running = false;
+
+    /**
+     * @param flush          что делать раз в интервал (StorageService.flush)
+     * @param intervalMillis интервал записи; читается каждый раз, чтобы reload
+     *                       конфига применялся сразу
+     */
+    public StorageFlusher(Runnable flush, LongSupplier intervalMillis, Logger logger) {
+        this.flush = flush;
+        this.intervalMillis = intervalMillis;
+        this.logger = logger;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this::flushLoop, "PsichBot-Storage");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Будит поток раньше срока (например, когда журнал пора сжимать)
+     */
+    public void wakeUp() {
+        Thread current = thread;
+        if (current != null) {
+            LockSupport.unpark(current);
+        }
+    }
+
+    /**
+     * Останавливает поток, дождавшись текущей записи. Накопленное после этого
+     * сбрасывает вызывающий (StorageService.forceSave).
+     */
+    public void shutdown() {
+        running = false;
+        Thread current = thread;
+        if (current != null) {
+            LockSupport.unpark(current);
+            try {
+                current.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        thread = null;
+    }
+
+    private void flushLoop() {
+        while (running) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Math.max(50, intervalMillis.getAsLong())));
+            if (!running) {
+                break;
+            }
+            try {
+                flush.run();
+            } catch (Exception e) {
+                logger.warning("Ошибка фоновой записи данных: " + e.getMessage());
+            }
+        }
+    }
+}
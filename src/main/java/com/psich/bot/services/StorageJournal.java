@@ -0,0 +1,257 @@
+package com.psich.bot.services;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Журнал изменений хранилища.
+ * Каждое изменение (сообщение, профиль, тишина, сброс) получает порядковый
+ * номер и копится в памяти одной короткой строкой JSON; фоновый поток
+ * (StorageFlusher) дописывает накопленное в конец текущего сегмента
+ * data/journal/journal-N.log и вызывает fsync. При сжатии начинается новый
+ * сегмент, а старые удаляются, как только снимок (db.json и profiles.json)
+ * записан. При запуске снимок загружается, а оставшиеся сегменты
+ * проигрываются поверх него.
+ */
+public class StorageJournal {
+
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+
+    private final File folder;
+    private final Logger logger;
+    // Порядок записи на диск: flush и rotate не пересекаются. Берется раньше
+    // монитора самого журнала, чтобы append не ждал диск
+    private final Object writeMonitor = new Object();
+
+    // Записи, еще не сброшенные на диск
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(4096);
+    private FileChannel channel;
+    // Номер текущего сегмента
+    private int segment = 1;
+    // Последний выданный номер записи
+    private long sequence = 0;
+    // Суммарный размер еще не сжатых сегментов
+    private long size = 0;
+
+    public StorageJournal(File folder, Logger logger) {
+        this.folder = folder;
+        this.logger = logger;
+    }
+
+    /**
+     * Проигрывает все сегменты по порядку. Недописанная строка в конце
+     * сегмента (сбой при записи) отрезается, испорченные строки пропускаются.
+     * Новые записи пойдут в следующий сегмент.
+     *
+     * @return число проигранных записей
+     */
+    public synchronized int replay(Consumer<JsonObject> handler) {
+        int count = 0;
+        for (int number : segments()) {
+            File file = segmentFile(number);
+            long offset = 0;
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()), 1 << 16)) {
+                ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+                int b;
+                while ((b = in.read()) != -1) {
+                    if (b != '\n') {
+                        line.write(b);
+                        continue;
+                    }
+                    offset += line.size() + 1;
+                    try {
+                        JsonObject record = JsonParser.parseString(line.toString(StandardCharsets.UTF_8))
+                                .getAsJsonObject();
+                        sequence = Math.max(sequence, record.get("q").getAsLong());
+                        handler.accept(record);
+                        count++;
+                    } catch (Exception e) {
+                        logger.warning("Пропущена испорченная запись журнала " + file.getName() + ": "
+                                + e.getMessage());
+                    }
+                    line.reset();
+                }
+                if (line.size() > 0) {
+                    try (FileChannel truncate = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                        truncate.truncate(offset);
+                    }
+                }
+            } catch (IOException e) {
+                logger.warning("Ошибка чтения журнала " + file.getName() + ": " + e.getMessage());
+            }
+            size += offset;
+            segment = number + 1;
+        }
+        return count;
+    }
+
+    /**
+     * Не выдавать номера меньше уже сохраненных в снимке
+     */
+    public synchronized void advanceTo(long sequence) {
+        this.sequence = Math.max(this.sequence, sequence);
+    }
+
+    /**
+     * Добавляет запись в очередь на запись, присваивая ей следующий номер.
+     * На диск она попадет при следующем flush.
+     *
+     * @return номер записи
+     */
+    public synchronized long append(JsonObject record) {
+        long number = ++sequence;
+        record.addProperty("q", number);
+        byte[] bytes = (record + "\n").getBytes(StandardCharsets.UTF_8);
+        pending.write(bytes, 0, bytes.length);
+        size += bytes.length;
+        return number;
+    }
+
+    /**
+     * Дописывает накопленные записи в текущий сегмент и ждет fsync
+     */
+    public void flush() {
+        synchronized (writeMonitor) {
+            byte[] bytes;
+            int number;
+            synchronized (this) {
+                if (pending.size() == 0) {
+                    return;
+                }
+                bytes = pending.toByteArray();
+                pending.reset();
+                number = segment;
+            }
+            write(number, bytes);
+        }
+    }
+
+    /**
+     * Сбрасывает накопленное и закрывает текущий сегмент, следующие записи
+     * пойдут в новый
+     *
+     * @return номер закрытого сегмента
+     */
+    public int rotate() {
+        synchronized (writeMonitor) {
+            byte[] bytes;
+            int number;
+            synchronized (this) {
+                bytes = pending.toByteArray();
+                pending.reset();
+                number = segment++;
+            }
+            if (bytes.length > 0) {
+                write(number, bytes);
+            }
+            closeChannel();
+            return number;
+        }
+    }
+
+    private void write(int number, byte[] bytes) {
+        try {
+            if (channel == null) {
+                if (!folder.exists()) {
+                    folder.mkdirs();
+                }
+                channel = FileChannel.open(segmentFile(number).toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            logger.warning("Ошибка записи в журнал: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Удаляет сегменты до номера включительно - они уже вошли в снимок
+     */
+    public synchronized void deleteUpTo(int last) {
+        for (int number : segments()) {
+            if (number > last) {
+                break;
+            }
+            File file = segmentFile(number);
+            size -= file.length();
+            if (!file.delete()) {
+                logger.warning("Не удалось удалить сегмент журнала " + file.getName());
+            }
+        }
+        size = Math.max(0, size);
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * Размер еще не сжатых сегментов в байтах
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Сбрасывает накопленное и закрывает файл
+     */
+    public void close() {
+        synchronized (writeMonitor) {
+            flush();
+            closeChannel();
+        }
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+    }
+
+    private File segmentFile(int number) {
+        return new File(folder, PREFIX + number + SUFFIX);
+    }
+
+    /**
+     * Номера существующих сегментов по возрастанию
+     */
+    private List<Integer> segments() {
+        List<Integer> numbers = new ArrayList<>();
+        File[] files = folder.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                try {
+                    numbers.add(Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+}
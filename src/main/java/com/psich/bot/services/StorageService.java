@@ -1,233 +1,1348 @@
 package com.psich.bot.services;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import com.psich.bot.PsichBot;
+import com.psich.bot.utils.Keywords;
 import org.bukkit.configuration.file.FileConfiguration;
 
 import java.io.*;
-import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
 
 public class StorageService {
     
+    // Число блокировок для составных операций над чатами (степень двойки)
+    private static final int LOCK_STRIPES = 64;
+    // Сколько вытесненных сообщений ждут сводки, прежде чем старые отбрасываются
+    static final int MAX_UNSUMMARIZED = 100;
+    // Как часто искать участников, давно не писавших боту
+    private static final long INACTIVE_CHECK_MILLIS = 60_000;
+    // Пустая история для игроков, с которыми еще не было обменов
+    private static final HistoryRing EMPTY_HISTORY = new HistoryRing(1);
+    
     private final PsichBot plugin;
-    private final Gson gson;
     private final File dataFolder;
-    private final File dbFile;
-    private final File profilesFile;
+    private final StorageBackend backend;
+    private final StorageFlusher flusher;
+    // Профили читаются по требованию и вытесняются после выхода игрока
+    private final ProfileCache profiles;
+    // Вытесненная из истории переписка, если бэкенд сам ее не хранит (null - нет архива)
+    private final ChatArchive archive;
+    // Общая база кластера (null - данные только у этого сервера)
+    private final SqliteStorageBackend cluster;
     
     // В памяти храним данные
-    private Map<String, ChatData> chats = new ConcurrentHashMap<>();
-    private Map<String, Map<String, UserProfile>> profiles = new ConcurrentHashMap<>();
-    private Set<String> mutedChats = new HashSet<>();
+    private final Map<String, ChatData> chats = new ConcurrentHashMap<>();
+    private final Set<String> mutedChats = ConcurrentHashMap.newKeySet();
+    // Чаты делят блокировки по хэшу id: разные чаты почти не конкурируют,
+    // а составные операции над одним чатом атомарны
+    private final ReentrantLock[] chatLocks = new ReentrantLock[LOCK_STRIPES];
+    // Получают сообщения, вытесненные из истории (сводка, долгая память)
+    private final List<BiConsumer<String, ChatMessage>> evictionListeners = new CopyOnWriteArrayList<>();
+    // Изменения берут блокировку на чтение вместе с вызовом бэкенда, снимок -
+    // на запись. Так снимок всегда совпадает с границей записей бэкенда
+    private final ReentrantReadWriteLock persistLock = new ReentrantReadWriteLock();
+    // Когда последний раз искали неактивных участников (только поток записи)
+    private long lastInactiveCheck = 0;
     
     public StorageService(PsichBot plugin) {
         this.plugin = plugin;
-        this.gson = new GsonBuilder().setPrettyPrinting().create();
         this.dataFolder = new File(plugin.getDataFolder(), "data");
-        this.dbFile = new File(dataFolder, "db.json");
-        this.profilesFile = new File(dataFolder, "profiles.json");
+        this.flusher = new StorageFlusher(this::flush,
+                () -> plugin.getConfigManager().getStorageFlushIntervalMillis(), plugin.getLogger());
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            chatLocks[i] = new ReentrantLock();
+        }
         
         // Создаем папки
         if (!dataFolder.exists()) {
             dataFolder.mkdirs();
         }
         
+        this.backend = createBackend();
+        this.cluster = backend instanceof SqliteStorageBackend && ((SqliteStorageBackend) backend).isClustered()
+                ? (SqliteStorageBackend) backend : null;
+        this.profiles = new ProfileCache(backend, () -> plugin.getConfigManager().getProfileCacheSize(),
+                () -> plugin.getConfigManager().getProfileIdleMillis());
+        if (plugin.getConfigManager().isArchiveEnabled() && !backend.keepsFullHistory()) {
+            this.archive = new ChatArchive(new File(dataFolder, "archive"), plugin.getConfigManager(),
+                    plugin.getLogger());
+            // Долгая память подписывается отдельно и хранит свою копию (см. ChatArchive)
+            addEvictionListener(archive::append);
+        } else {
+            this.archive = null;
+        }
         load();
     }
     
+    /**
+     * Хранилище из storage.backend (или общая база при storage.cluster).
+     * При первом запуске с SQLite данные из db.json и profiles.json переносятся в базу
+     */
+    private StorageBackend createBackend() {
+        JsonStorageBackend json = new JsonStorageBackend(plugin, dataFolder, persistLock.writeLock(), flusher::wakeUp);
+        if (plugin.getConfigManager().isClusterEnabled()) {
+            File file = new File(plugin.getConfigManager().getClusterFile());
+            if (!file.isAbsolute()) {
+                file = new File(plugin.getDataFolder(), plugin.getConfigManager().getClusterFile());
+            }
+            file.getAbsoluteFile().getParentFile().mkdirs();
+            // Id узла нужен только чтобы отличать свои изменения - новый при каждом запуске
+            String node = UUID.randomUUID().toString().substring(0, 8);
+            SqliteStorageBackend shared = openSqlite(new SqliteStorageBackend(plugin, file, node), json);
+            if (shared != null) {
+                plugin.getLogger().info("Кластер: общая база " + file.getPath() + ", узел " + node);
+                return shared;
+            }
+            plugin.getLogger().severe("Общая база кластера недоступна, сервер работает со своими данными");
+        }
+        if (!"sqlite".equalsIgnoreCase(plugin.getConfigManager().getStorageBackend())) {
+            return json;
+        }
+        SqliteStorageBackend sqlite = openSqlite(new SqliteStorageBackend(plugin, new File(dataFolder, "psich.db")),
+                json);
+        return sqlite != null ? sqlite : json;
+    }
+    
+    /**
+     * Открывает базу и переносит в нее данные из JSON, если база пустая. В общую
+     * базу кластера данные каждого сервера добавляются к уже перенесенным
+     *
+     * @return null, если базу открыть не удалось
+     */
+    private SqliteStorageBackend openSqlite(SqliteStorageBackend sqlite, JsonStorageBackend json) {
+        try {
+            sqlite.open();
+            boolean merge = !sqlite.isEmpty();
+            if (json.hasData() && (!merge || sqlite.isClustered())) {
+                plugin.getLogger().info(merge
+                        ? "Добавление данных этого сервера из db.json и profiles.json в общую базу кластера..."
+                        : "Перенос данных из db.json и profiles.json в SQLite...");
+                Map<String, ChatData> oldChats = new ConcurrentHashMap<>();
+                json.load(oldChats);
+                Map<String, Map<String, UserProfile>> oldProfiles = json.loadAllProfiles();
+                sqlite.importAll(oldChats, oldProfiles, merge);
+                json.retire();
+                plugin.getLogger().info("Перенесено чатов: " + oldChats.size() + ", профилей: "
+                        + oldProfiles.values().stream().mapToInt(Map::size).sum());
+            }
+            return sqlite;
+        } catch (Exception | LinkageError e) {
+            plugin.getLogger().severe("Не удалось открыть SQLite (" + e.getMessage() + ")");
+            sqlite.close();
+            return null;
+        }
+    }
+    
     public void load() {
-        // Загружаем db.json
-        if (dbFile.exists()) {
+        backend.load(chats);
+        
+        // Загружаем muted chats
+        mutedChats.clear();
+        for (ChatData chat : chats.values()) {
+            if (chat.isMuted()) {
+                mutedChats.add(chat.getChatId());
+            }
+        }
+    }
+    
+    /**
+     * Запускает фоновую запись данных
+     */
+    public void start() {
+        flusher.start();
+    }
+    
+    /**
+     * Фоновая запись (поток StorageFlusher)
+     */
+    private void flush() {
+        profiles.evictIdle();
+        long now = System.currentTimeMillis();
+        if (now - lastInactiveCheck >= INACTIVE_CHECK_MILLIS) {
+            lastInactiveCheck = now;
+            forgetInactiveUsers(now);
+        }
+        backend.flush();
+        if (cluster != null) {
+            cluster.poll(new RemoteChanges());
+        }
+        if (archive != null) {
+            archive.flush();
+        }
+    }
+    
+    /**
+     * Применяет к памяти изменения других серверов кластера. В хранилище они
+     * уже записаны, поэтому бэкенду не передаются
+     */
+    private class RemoteChanges implements SqliteStorageBackend.ClusterListener {
+        @Override
+        public void onMessage(String chatId, ChatMessage message) {
+            addToHistory(chatId, message);
+            if (message.getPlayerId() != null) {
+                addPlayerMessage(chatId, message.getPlayerId(), message);
+            }
+        }
+        
+        @Override
+        public void onUser(String chatId, String userId, String username) {
+            getChat(chatId).addUser(userId, username);
+        }
+        
+        @Override
+        public void onForget(String chatId, String userId) {
+            ReentrantLock lock = lockFor(chatId);
+            lock.lock();
             try {
-                String json = new String(Files.readAllBytes(dbFile.toPath()));
-                Type type = new TypeToken<Map<String, ChatData>>() {}.getType();
-                Map<String, ChatData> loaded = gson.fromJson(json, type);
-                if (loaded != null) {
-                    chats = new ConcurrentHashMap<>(loaded);
-                }
-                
-                // Загружаем muted chats
-                mutedChats.clear();
-                for (ChatData chat : chats.values()) {
-                    if (chat.isMuted()) {
-                        mutedChats.add(chat.getChatId());
-                    }
-                }
-            } catch (Exception e) {
-                plugin.getLogger().warning("Ошибка загрузки db.json: " + e.getMessage());
-                chats = new ConcurrentHashMap<>();
+                getChat(chatId).forgetUser(userId);
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        @Override
+        public void onMuted(String chatId, boolean muted) {
+            if (muted) {
+                mutedChats.add(chatId);
+            } else {
+                mutedChats.remove(chatId);
             }
+            getChat(chatId).setMuted(muted);
+        }
+        
+        @Override
+        public void onSummary(String chatId, String summary) {
+            getChat(chatId).setSummary(summary);
         }
         
-        // Загружаем profiles.json
-        if (profilesFile.exists()) {
+        @Override
+        public void onClear(String chatId) {
+            ReentrantLock lock = lockFor(chatId);
+            lock.lock();
             try {
-                String json = new String(Files.readAllBytes(profilesFile.toPath()));
-                Type type = new TypeToken<Map<String, Map<String, UserProfile>>>() {}.getType();
-                Map<String, Map<String, UserProfile>> loaded = gson.fromJson(json, type);
-                if (loaded != null) {
-                    profiles = new ConcurrentHashMap<>(loaded);
-                }
-            } catch (Exception e) {
-                plugin.getLogger().warning("Ошибка загрузки profiles.json: " + e.getMessage());
-                profiles = new ConcurrentHashMap<>();
+                getChat(chatId).clearHistory();
+            } finally {
+                lock.unlock();
+            }
+            if (plugin.getLongTermMemory() != null) {
+                plugin.getLongTermMemory().clear(chatId);
             }
         }
+        
+        @Override
+        public void onProfile(String chatId, String userId, UserProfile profile) {
+            profiles.refresh(chatId, userId, profile);
+        }
     }
     
+    /**
+     * Записывает накопленные изменения сейчас, в вызывающем потоке
+     */
     public void save() {
-        // Сохраняем db.json
+        backend.flush();
+    }
+    
+    /**
+     * Останавливает фоновую запись и сохраняет все, что она не успела (при выключении)
+     */
+    public void forceSave() {
+        flusher.shutdown();
+        backend.close();
+        if (archive != null) {
+            archive.flush();
+        }
+    }
+    
+    /**
+     * Строки статистики для команды /psich status
+     */
+    public List<String> getStatusLines() {
+        List<String> lines = new ArrayList<>();
+        lines.add("§7Хранилище: §f" + backend.getName());
+        lines.addAll(backend.getStatusLines());
+        lines.add("§7Профилей в памяти: §f" + profiles.size() + "§7, прочитано: §f" + profiles.getLoads()
+                + "§7, вытеснено: §f" + profiles.getEvictions());
+        if (archive != null) {
+            lines.addAll(archive.getStatusLines());
+        }
+        return lines;
+    }
+    
+    /**
+     * Убирает участников, не писавших дольше chat.user-retention-days, вместе
+     * с их историей обменов - иначе список участников растет бесконечно
+     */
+    private void forgetInactiveUsers(long now) {
+        long retention = plugin.getConfigManager().getUserRetentionMillis();
+        if (retention <= 0) {
+            return;
+        }
+        for (ChatData chat : chats.values()) {
+            List<String> inactive = chat.getInactivePlayers(now - retention);
+            if (inactive.isEmpty()) {
+                continue;
+            }
+            persistLock.readLock().lock();
+            ReentrantLock lock = lockFor(chat.getChatId());
+            lock.lock();
+            try {
+                for (String userId : inactive) {
+                    chat.forgetUser(userId);
+                    backend.forgetUser(chat, userId);
+                }
+            } finally {
+                lock.unlock();
+                persistLock.readLock().unlock();
+            }
+            if (plugin.getConfigManager().isDebug()) {
+                plugin.getLogger().info("[DEBUG] Забыто неактивных участников в " + chat.getChatId() + ": "
+                        + inactive.size());
+            }
+        }
+    }
+    
+    /**
+     * Оценка памяти по чатам и профилям для /psich memory
+     */
+    public List<String> getMemoryLines() {
+        List<String> lines = new ArrayList<>();
+        long total = 0;
+        for (ChatData chat : chats.values()) {
+            long[] usage = chat.getHeapUsage();
+            long chatTotal = 0;
+            for (long part : usage) {
+                chatTotal += part;
+            }
+            total += chatTotal;
+            lines.add("§e" + chat.getChatId() + "§7: §f" + kb(chatTotal) + "§7 КБ - история §f" + kb(usage[0])
+                    + "§7 (" + chat.getHistoryWindow().size() + " сообщ.), ждут сводки §f" + kb(usage[1])
+                    + "§7, сводка §f" + kb(usage[4]) + "§7, истории игроков §f" + kb(usage[2]) + "§7 ("
+                    + chat.getPlayerHistoryCount() + "), участники §f" + kb(usage[3]) + "§7 ("
+                    + chat.getUsers().size() + ")");
+        }
+        List<String> names = new ArrayList<>();
+        List<long[]> sizes = new ArrayList<>();
+        long[] profileTotal = {0};
+        profiles.forEach((chatId, userId, profile) -> {
+            long size = profile.getHeapSize();
+            profileTotal[0] += size;
+            ChatData chat = chats.get(chatId);
+            String name = chat != null ? chat.getUsers().get(userId) : null;
+            sizes.add(new long[] { size, names.size() });
+            names.add(name != null ? name : userId);
+        });
+        total += profileTotal[0];
+        lines.add("§7Профили: §f" + sizes.size() + "§7 в памяти, §f" + kb(profileTotal[0]) + "§7 КБ");
+        sizes.sort((a, b) -> Long.compare(b[0], a[0]));
+        for (int i = 0; i < Math.min(5, sizes.size()); i++) {
+            lines.add("§7  " + names.get((int) sizes.get(i)[1]) + ": §f" + sizes.get(i)[0] + "§7 байт");
+        }
+        lines.add("§7Отправителей в общей таблице: §f" + Senders.size());
+        lines.add("§7Всего (оценка): §f" + kb(total) + "§7 КБ");
+        return lines;
+    }
+    
+    private static long kb(long bytes) {
+        return (bytes + 1023) / 1024;
+    }
+    
+    /**
+     * Выгружает текущие данные в data/export/db.json и profiles.json
+     * (вызывается не из главного потока)
+     *
+     * @return папка с выгрузкой
+     */
+    public File exportJson() throws IOException {
+        Gson gson = JsonStorageBackend.createGson();
+        String chatsJson;
+        Map<String, Map<String, String>> stored;
+        persistLock.writeLock().lock();
         try {
-            String json = gson.toJson(chats);
-            Files.write(dbFile.toPath(), json.getBytes());
-        } catch (Exception e) {
-            plugin.getLogger().warning("Ошибка сохранения db.json: " + e.getMessage());
+            chatsJson = gson.toJson(chats);
+            stored = backend.loadAllProfileJson();
+        } finally {
+            persistLock.writeLock().unlock();
         }
-        
-        // Сохраняем profiles.json
+        // Профили разбираем уже без блокировки - сохранение и запись истории не ждут
+        String profilesJson = JsonStorageBackend.profilesJson(profileStrings(parseProfiles(stored)));
+        File folder = new File(dataFolder, "export");
+        folder.mkdirs();
+        Files.writeString(new File(folder, "db.json").toPath(), chatsJson, StandardCharsets.UTF_8);
+        Files.writeString(new File(folder, "profiles.json").toPath(), profilesJson, StandardCharsets.UTF_8);
+        return folder;
+    }
+    
+    /**
+     * Сравнивает загрузку текущих данных из JSON и из snapshot.bin
+     * (вызывается не из главного потока)
+     */
+    public List<String> benchmarkSnapshots() throws IOException {
+        Gson gson = JsonStorageBackend.createGson();
+        String chatsJson;
+        byte[] body;
+        Map<String, Map<String, String>> stored;
+        persistLock.writeLock().lock();
         try {
-            String json = gson.toJson(profiles);
-            Files.write(profilesFile.toPath(), json.getBytes());
-        } catch (Exception e) {
-            plugin.getLogger().warning("Ошибка сохранения profiles.json: " + e.getMessage());
+            stored = backend.loadAllProfileJson();
+            chatsJson = gson.toJson(chats);
+            // В snapshot.bin профили и так хранятся строками - разбор не нужен
+            body = SnapshotFile.encode(chats, stored);
+        } finally {
+            persistLock.writeLock().unlock();
         }
+        String profilesJson = gson.toJson(parseProfiles(stored));
+        return new SnapshotBenchmark(new File(dataFolder, "bench"), plugin.getConfigManager().getContextSize(),
+                plugin.getConfigManager().getPlayerHistorySize(), plugin.getLogger())
+                .run(chatsJson, profilesJson, body);
     }
     
-    public void forceSave() {
-        save();
+    private static Map<String, Map<String, UserProfile>> parseProfiles(Map<String, Map<String, String>> stored) {
+        Gson compact = new Gson();
+        Map<String, Map<String, UserProfile>> all = new HashMap<>();
+        stored.forEach((chatId, chatProfiles) -> chatProfiles.forEach((userId, json) -> {
+            UserProfile profile = compact.fromJson(json, UserProfile.class);
+            profile.migrateLegacyFacts();
+            all.computeIfAbsent(chatId, k -> new HashMap<>()).put(userId, profile);
+        }));
+        return all;
+    }
+
+    private static Map<String, Map<String, String>> profileStrings(Map<String, Map<String, UserProfile>> all) {
+        Gson compact = new Gson();
+        Map<String, Map<String, String>> strings = new HashMap<>();
+        all.forEach((chatId, chatProfiles) -> chatProfiles.forEach((userId, profile) ->
+                strings.computeIfAbsent(chatId, k -> new HashMap<>()).put(userId, compact.toJson(profile))));
+        return strings;
+    }
+    
+    /**
+     * Сохраненные сообщения чата за период, от старых к новым. SQLite хранит
+     * всю переписку, JSON - текущую историю, а вытесненное берется из архива.
+     *
+     * @param playerId только обмены с этим игроком (null - все сообщения)
+     */
+    public List<ChatMessage> queryHistory(String chatId, String playerId, long fromTime, long toTime, int limit) {
+        if (archive == null) {
+            return backend.queryHistory(chatId, playerId, fromTime, toTime, limit);
+        }
+        // Архив и текущая история не пересекаются: в архив попадает только вытесненное
+        Deque<ChatMessage> result = new ArrayDeque<>(archive.query(chatId, playerId, fromTime, toTime, limit));
+        ChatData chat = chats.get(chatId);
+        if (chat != null) {
+            for (ChatMessage message : chat.getHistory()) {
+                if (message.getTime() >= fromTime && message.getTime() <= toTime
+                        && (playerId == null || playerId.equals(message.getPlayerId()))) {
+                    result.addLast(message);
+                    if (result.size() > limit) {
+                        result.removeFirst();
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(result);
+    }
+    
+    /**
+     * Id разделов чата, известных хранилищу
+     */
+    public List<String> getChatIds() {
+        return new ArrayList<>(chats.keySet());
     }
     
     public ChatData getChat(String chatId) {
-        return chats.computeIfAbsent(chatId, k -> new ChatData(chatId));
+        return chats.computeIfAbsent(chatId,
+                k -> new ChatData(chatId, plugin.getConfigManager().getContextSize()));
     }
     
     public void addToHistory(String chatId, String sender, String text) {
+        persistLock.readLock().lock();
+        try {
+            ChatMessage message = new ChatMessage(sender, text);
+            addToHistory(chatId, message);
+            backend.appendMessage(getChat(chatId), message);
+        } finally {
+            persistLock.readLock().unlock();
+        }
+    }
+    
+    private void addToHistory(String chatId, ChatMessage message) {
         ChatData chat = getChat(chatId);
-        chat.addMessage(sender, text);
-        
-        // Ограничиваем размер истории
-        if (chat.getHistory().size() > plugin.getConfigManager().getContextSize()) {
-            chat.getHistory().remove(0);
+        int contextSize = plugin.getConfigManager().getContextSize();
+        if (chat.getHistoryCapacity() != contextSize) {
+            // context-size изменился после reload - пересоздаем буфер под блокировкой,
+            // чтобы не потерять сообщения, добавленные во время копирования
+            ReentrantLock lock = lockFor(chatId);
+            lock.lock();
+            try {
+                chat.ensureCapacity(contextSize);
+                notifyEvicted(chatId, chat.addMessage(message));
+            } finally {
+                lock.unlock();
+            }
+        } else {
+            // Обычный путь без блокировки - кольцевой буфер сам безопасен для параллельных записей
+            notifyEvicted(chatId, chat.addMessage(message));
+        }
+        long maxBytes = plugin.getConfigManager().getContextMaxBytes();
+        if (maxBytes > 0) {
+            // Длинные сообщения вытесняются раньше, чем история заполнится по числу
+            for (ChatMessage trimmed : chat.trimHistory(maxBytes)) {
+                notifyEvicted(chatId, trimmed);
+            }
+        }
+    }
+    
+    /**
+     * Добавляет сообщение в историю чата и в историю обменов игрока
+     *
+     * @param playerId игрок, к которому относится сообщение: автор для реплик
+     *                 игрока, адресат для ответов бота
+     */
+    public void addToHistory(String chatId, String sender, String text, String playerId) {
+        persistLock.readLock().lock();
+        try {
+            ChatMessage message = new ChatMessage(sender, text, playerId);
+            addToHistory(chatId, message);
+            if (playerId != null) {
+                addPlayerMessage(chatId, playerId, message);
+            }
+            backend.appendMessage(getChat(chatId), message);
+        } finally {
+            persistLock.readLock().unlock();
+        }
+    }
+    
+    private void addPlayerMessage(String chatId, String playerId, ChatMessage message) {
+        ChatData chat = getChat(chatId);
+        int size = plugin.getConfigManager().getPlayerHistorySize();
+        if (!chat.addPlayerMessage(playerId, message, size)) {
+            // Размер изменился после reload - пересоздаем буфер игрока под блокировкой
+            ReentrantLock lock = lockFor(chatId);
+            lock.lock();
+            try {
+                chat.ensurePlayerCapacity(size);
+                chat.addPlayerMessage(playerId, message, size);
+            } finally {
+                lock.unlock();
+            }
+        }
+        long maxBytes = plugin.getConfigManager().getPlayerHistoryMaxBytes();
+        if (maxBytes > 0) {
+            chat.trimPlayerHistory(playerId, maxBytes);
+        }
+    }
+    
+    /**
+     * Последние обмены с игроком (его сообщения и ответы бота ему), O(1)
+     */
+    public HistoryRing.Window getPlayerHistoryWindow(String chatId, String playerId) {
+        ChatData chat = chats.get(chatId);
+        return chat != null ? chat.getPlayerHistoryWindow(playerId) : EMPTY_HISTORY.window();
+    }
+    
+    public void addEvictionListener(BiConsumer<String, ChatMessage> listener) {
+        evictionListeners.add(listener);
+    }
+    
+    private void notifyEvicted(String chatId, ChatMessage evicted) {
+        if (evicted != null) {
+            for (BiConsumer<String, ChatMessage> listener : evictionListeners) {
+                listener.accept(chatId, evicted);
+            }
+        }
+    }
+    
+    /**
+     * Сводка старой переписки чата (пустая строка, если ее нет)
+     */
+    public String getSummary(String chatId) {
+        ChatData chat = chats.get(chatId);
+        return chat != null ? chat.getSummary() : "";
+    }
+    
+    /**
+     * Запоминает вытесненное сообщение до следующей сводки
+     *
+     * @return сколько сообщений ждут сводки
+     */
+    public int addUnsummarized(String chatId, ChatMessage message) {
+        ReentrantLock lock = lockFor(chatId);
+        lock.lock();
+        try {
+            return getChat(chatId).addUnsummarized(message);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Копия сообщений, ждущих сводки (от старых к новым)
+     */
+    public List<ChatMessage> getUnsummarized(String chatId) {
+        ReentrantLock lock = lockFor(chatId);
+        lock.lock();
+        try {
+            return new ArrayList<>(getChat(chatId).unsummarized());
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Сохраняет новую сводку и убирает вошедшие в нее сообщения
+     *
+     * @param folded сообщения, по которым строилась сводка (из getUnsummarized)
+     */
+    public void applySummary(String chatId, String summary, List<ChatMessage> folded) {
+        persistLock.readLock().lock();
+        ReentrantLock lock = lockFor(chatId);
+        lock.lock();
+        try {
+            ChatData chat = getChat(chatId);
+            // Сравнение по ссылке: сообщения не переопределяют equals
+            chat.unsummarized().removeAll(folded);
+            chat.setSummary(summary);
+            backend.putSummary(chat, summary, chat.unsummarized().size());
+        } finally {
+            lock.unlock();
+            persistLock.readLock().unlock();
         }
     }
     
+    /**
+     * Неизменяемый снимок истории чата
+     */
     public List<ChatMessage> getHistory(String chatId) {
         return getChat(chatId).getHistory();
     }
     
+    /**
+     * Неизменяемый снимок последних limit сообщений
+     */
+    public List<ChatMessage> getHistory(String chatId, int limit) {
+        return getChat(chatId).getHistory(limit);
+    }
+    
+    /**
+     * Снимок истории вместе с номерами сообщений (для кэша ContextRenderer)
+     */
+    public HistoryRing.Window getHistoryWindow(String chatId) {
+        return getChat(chatId).getHistoryWindow();
+    }
+    
     public void trackUser(String chatId, String userId, String username) {
-        ChatData chat = getChat(chatId);
-        chat.addUser(userId, username);
+        persistLock.readLock().lock();
+        try {
+            ChatData chat = getChat(chatId);
+            if (chat.addUser(userId, username)) {
+                backend.putUser(chat, userId, username);
+            }
+        } finally {
+            persistLock.readLock().unlock();
+        }
     }
     
     public UserProfile getProfile(String chatId, String userId) {
-        if (!profiles.containsKey(chatId)) {
-            profiles.put(chatId, new ConcurrentHashMap<>());
-        }
-        return profiles.get(chatId).computeIfAbsent(userId, k -> new UserProfile());
+        return profiles.get(profileScope(chatId), userId);
+    }
+    
+    /**
+     * Игрок зашел: его профиль читается заранее в асинхронной задаче и не
+     * вытесняется, пока игрок онлайн
+     */
+    public void prefetchProfile(String chatId, String userId) {
+        String scope = profileScope(chatId);
+        profiles.setOnline(scope, userId, true);
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> profiles.prefetch(scope, userId));
+    }
+    
+    /**
+     * Игрок вышел: профиль вытеснится после storage.profiles.idle-timeout
+     */
+    public void releaseProfile(String chatId, String userId) {
+        profiles.setOnline(profileScope(chatId), userId, false);
+    }
+    
+    /**
+     * Под каким чатом хранится профиль: при partitions.shared-profiles у игрока
+     * один профиль на все разделы (тот же, что до разделения чатов)
+     */
+    private String profileScope(String chatId) {
+        return plugin.getConfigManager().isPartitionSharedProfiles() ? ChatPartitions.GLOBAL : chatId;
     }
     
     public void updateProfile(String chatId, String userId, UserProfile profile) {
-        if (!profiles.containsKey(chatId)) {
-            profiles.put(chatId, new ConcurrentHashMap<>());
+        updateProfile(chatId, userId, current -> new UserProfile(profile));
+    }
+    
+    /**
+     * Оптимистичное обновление профиля: merge получает копию текущей версии и
+     * возвращает новую. Если профиль успели изменить параллельно, merge
+     * вызывается заново уже на свежей версии - изменения не теряются.
+     *
+     * @return сохраненная версия профиля
+     */
+    public UserProfile updateProfile(String chatId, String userId, UnaryOperator<UserProfile> merge) {
+        String scope = profileScope(chatId);
+        persistLock.readLock().lock();
+        try {
+            while (true) {
+                UserProfile current = profiles.get(scope, userId);
+                UserProfile next = merge.apply(new UserProfile(current));
+                next.version = current.version + 1;
+                if (profiles.replace(scope, userId, current, next,
+                        () -> backend.putProfile(scope, userId, next, merge))) {
+                    return next;
+                }
+            }
+        } finally {
+            persistLock.readLock().unlock();
         }
-        profiles.get(chatId).put(userId, profile);
+    }
+    
+    /**
+     * Применяет изменения, найденные анализом, к актуальной версии профиля
+     */
+    public UserProfile applyProfileDelta(String chatId, String userId, ProfileDelta delta) {
+        int maxFacts = plugin.getConfigManager().getFactsMaxEntries();
+        return updateProfile(chatId, userId, profile -> delta.applyTo(profile, maxFacts));
     }
     
     public void bulkUpdateProfiles(String chatId, Map<String, UserProfile> updates) {
-        if (!profiles.containsKey(chatId)) {
-            profiles.put(chatId, new ConcurrentHashMap<>());
-        }
-        profiles.get(chatId).putAll(updates);
+        updates.forEach((userId, profile) -> updateProfile(chatId, userId, profile));
     }
     
     public boolean isMuted(String chatId) {
         return mutedChats.contains(chatId);
     }
     
-    public void toggleMute(String chatId) {
-        if (mutedChats.contains(chatId)) {
-            mutedChats.remove(chatId);
-            getChat(chatId).setMuted(false);
-        } else {
-            mutedChats.add(chatId);
-            getChat(chatId).setMuted(true);
+    /**
+     * Переключает режим тишины
+     *
+     * @return новое состояние (true - чат заглушен)
+     */
+    public boolean toggleMute(String chatId) {
+        boolean muted;
+        persistLock.readLock().lock();
+        ReentrantLock lock = lockFor(chatId);
+        lock.lock();
+        try {
+            muted = !mutedChats.remove(chatId);
+            if (muted) {
+                mutedChats.add(chatId);
+            }
+            ChatData chat = getChat(chatId);
+            chat.setMuted(muted);
+            backend.putMuted(chat, muted);
+        } finally {
+            lock.unlock();
+            persistLock.readLock().unlock();
         }
-        save();
+        return muted;
     }
     
+    /**
+     * Сброс чата: история, архив и долгая память. Как и в SQLite, где сброс
+     * удаляет сохраненную переписку, вытесненные сообщения забываются везде
+     */
     public void clearHistory(String chatId) {
-        ChatData chat = getChat(chatId);
-        chat.getHistory().clear();
-        save();
+        persistLock.readLock().lock();
+        ReentrantLock lock = lockFor(chatId);
+        lock.lock();
+        try {
+            ChatData chat = getChat(chatId);
+            chat.clearHistory();
+            backend.clearHistory(chat);
+            // Под блокировкой чата - вытесненное до сброса не допишется после очистки
+            if (archive != null) {
+                archive.clear(chatId);
+            }
+            if (plugin.getLongTermMemory() != null) {
+                plugin.getLongTermMemory().clear(chatId);
+            }
+        } finally {
+            lock.unlock();
+            persistLock.readLock().unlock();
+        }
+    }
+    
+    private ReentrantLock lockFor(String chatId) {
+        return chatLocks[(chatId.hashCode() & 0x7fffffff) & (LOCK_STRIPES - 1)];
     }
     
     // Внутренние классы для хранения данных
     public static class ChatData {
         private String chatId;
-        private List<ChatMessage> history = new ArrayList<>();
-        private Map<String, String> users = new HashMap<>();
-        private boolean muted = false;
+        @JsonAdapter(HistoryRing.Adapter.class)
+        private volatile HistoryRing history;
+        private ConcurrentMap<String, String> users = new ConcurrentHashMap<>();
+        private volatile boolean muted = false;
+        // Сжатый пересказ сообщений, вытесненных из истории
+        private volatile String summary = "";
+        // Вытесненные сообщения, еще не вошедшие в сводку. Меняются под блокировкой
+        // чата, копия при записи - чтобы асинхронное сохранение читало без гонки
+        private List<ChatMessage> unsummarized = new CopyOnWriteArrayList<>();
+        // Последние обмены с каждым игроком: его сообщения и ответы бота ему
+        private ConcurrentMap<String, HistoryRing> playerHistory = new ConcurrentHashMap<>();
+        // Номер последней записи журнала, вошедшей в это состояние чата
+        private volatile long journalSeq = 0;
         
-        public ChatData(String chatId) {
+        public ChatData(String chatId, int historySize) {
             this.chatId = chatId;
+            this.history = new HistoryRing(historySize);
+        }
+        
+        /**
+         * @return сообщение, вытесненное из истории (или null)
+         */
+        public ChatMessage addMessage(String sender, String text) {
+            return addMessage(new ChatMessage(sender, text));
+        }
+        
+        public ChatMessage addMessage(ChatMessage message) {
+            return history.add(message);
+        }
+        
+        /**
+         * Пересоздает буфер истории, если изменился context-size
+         */
+        public void ensureCapacity(int historySize) {
+            HistoryRing current = history;
+            if (current == null) {
+                history = new HistoryRing(historySize);
+            } else if (current.getCapacity() != historySize) {
+                history = current.resize(historySize);
+            }
+        }
+        
+        /**
+         * @return false, если буфер игрока другого размера и сообщение не добавлено
+         */
+        public boolean addPlayerMessage(String playerId, ChatMessage message, int size) {
+            HistoryRing ring = playerHistory.computeIfAbsent(playerId, k -> new HistoryRing(size));
+            if (ring.getCapacity() != size) {
+                return false;
+            }
+            ring.add(message);
+            return true;
+        }
+        
+        /**
+         * Удаляет старые сообщения истории сверх maxBytes
+         *
+         * @return удаленные сообщения (вытеснены так же, как при переполнении)
+         */
+        public List<ChatMessage> trimHistory(long maxBytes) {
+            return history.trim(maxBytes);
+        }
+        
+        public void trimPlayerHistory(String playerId, long maxBytes) {
+            HistoryRing ring = playerHistory.get(playerId);
+            if (ring != null) {
+                ring.trim(maxBytes);
+            }
+        }
+        
+        /**
+         * Игроки, чье последнее сообщение в истории обменов старше before
+         * (пустые после сброса истории не считаются)
+         */
+        List<String> getInactivePlayers(long before) {
+            List<String> inactive = new ArrayList<>();
+            for (Map.Entry<String, HistoryRing> entry : playerHistory.entrySet()) {
+                List<ChatMessage> last = entry.getValue().snapshot(1);
+                if (!last.isEmpty() && last.get(0).getTime() < before) {
+                    inactive.add(entry.getKey());
+                }
+            }
+            return inactive;
+        }
+        
+        /**
+         * Убирает участника и его историю обменов
+         */
+        void forgetUser(String userId) {
+            users.remove(userId);
+            playerHistory.remove(userId);
+        }
+        
+        /**
+         * Оценка памяти: история, ждущие сводки, истории игроков, участники
+         */
+        long[] getHeapUsage() {
+            long pending = 0;
+            for (ChatMessage message : unsummarized()) {
+                pending += message.getHeapSize() + HeapSize.REFERENCE;
+            }
+            long players = 0;
+            for (Map.Entry<String, HistoryRing> entry : playerHistory.entrySet()) {
+                players += HeapSize.mapEntry() + HeapSize.string(entry.getKey()) + entry.getValue().getBytes()
+                        + HeapSize.references(entry.getValue().getCapacity());
+            }
+            long userBytes = 0;
+            for (Map.Entry<String, String> user : users.entrySet()) {
+                userBytes += HeapSize.mapEntry() + HeapSize.string(user.getKey()) + HeapSize.string(user.getValue());
+            }
+            return new long[] { history.getBytes() + HeapSize.references(history.getCapacity()), pending, players,
+                    userBytes, HeapSize.string(summary) };
+        }
+        
+        public int getPlayerHistoryCount() {
+            return playerHistory.size();
+        }
+        
+        public void ensurePlayerCapacity(int size) {
+            playerHistory.replaceAll((playerId, ring) -> ring.getCapacity() != size ? ring.resize(size) : ring);
+        }
+        
+        Set<String> getPlayerHistoryIds() {
+            return playerHistory.keySet();
+        }
+        
+        public HistoryRing.Window getPlayerHistoryWindow(String playerId) {
+            HistoryRing ring = playerHistory.get(playerId);
+            return (ring != null ? ring : EMPTY_HISTORY).window();
+        }
+        
+        public void clearHistory() {
+            history.clear();
+            playerHistory.values().forEach(HistoryRing::clear);
+            summary = "";
+            unsummarized().clear();
+        }
+        
+        /**
+         * Запоминает вытесненное сообщение до следующей сводки (не больше MAX_UNSUMMARIZED)
+         *
+         * @return сколько сообщений ждут сводки
+         */
+        int addUnsummarized(ChatMessage message) {
+            List<ChatMessage> pending = unsummarized();
+            pending.add(message);
+            if (pending.size() > MAX_UNSUMMARIZED) {
+                pending.remove(0);
+            }
+            return pending.size();
+        }
+        
+        /**
+         * Новая сводка; остаются только keep последних сообщений, вытесненных
+         * после ее начала
+         */
+        void applySummary(String summary, int keep) {
+            setSummary(summary);
+            List<ChatMessage> pending = unsummarized();
+            while (pending.size() > keep) {
+                pending.remove(0);
+            }
+        }
+        
+        List<ChatMessage> unsummarized() {
+            // Старые db.json без этого поля или загруженные в обычный список
+            if (unsummarized == null) {
+                unsummarized = new CopyOnWriteArrayList<>();
+            } else if (!(unsummarized instanceof CopyOnWriteArrayList)) {
+                unsummarized = new CopyOnWriteArrayList<>(unsummarized);
+            }
+            return unsummarized;
+        }
+        
+        /**
+         * @return true, если игрок новый или сменил имя
+         */
+        public boolean addUser(String userId, String username) {
+            // Не пишем в карту, если имя не изменилось - это почти всегда так
+            if (!username.equals(users.get(userId))) {
+                users.put(userId, username);
+                return true;
+            }
+            return false;
+        }
+        
+        /**
+         * Подгоняет загруженный чат под текущие настройки
+         */
+        void prepare(int historySize, int playerHistorySize) {
+            ensureCapacity(historySize);
+            ensureConcurrentMaps();
+            ensurePlayerCapacity(playerHistorySize);
         }
         
-        public void addMessage(String sender, String text) {
-            history.add(new ChatMessage(sender, text));
+        long getJournalSeq() {
+            return journalSeq;
         }
         
-        public void addUser(String userId, String username) {
-            users.put(userId, username);
+        synchronized void markJournaled(long sequence) {
+            if (sequence > journalSeq) {
+                journalSeq = sequence;
+            }
+        }
+        
+        public int getHistoryCapacity() {
+            return history != null ? history.getCapacity() : 0;
+        }
+        
+        /**
+         * Старые db.json без участников и историй игроков или загруженные в обычные карты
+         */
+        private void ensureConcurrentMaps() {
+            if (users == null) {
+                users = new ConcurrentHashMap<>();
+            } else if (!(users instanceof ConcurrentHashMap)) {
+                users = new ConcurrentHashMap<>(users);
+            }
+            if (playerHistory == null) {
+                playerHistory = new ConcurrentHashMap<>();
+            } else if (!(playerHistory instanceof ConcurrentHashMap)) {
+                playerHistory = new ConcurrentHashMap<>(playerHistory);
+            }
         }
         
         // Getters and setters
         public String getChatId() { return chatId; }
-        public List<ChatMessage> getHistory() { return history; }
+        public List<ChatMessage> getHistory() { return history.snapshot(); }
+        public List<ChatMessage> getHistory(int limit) { return history.snapshot(limit); }
+        public HistoryRing.Window getHistoryWindow() { return history.window(); }
         public Map<String, String> getUsers() { return users; }
         public boolean isMuted() { return muted; }
         public void setMuted(boolean muted) { this.muted = muted; }
+        public String getSummary() { return summary != null ? summary : ""; }
+        public void setSummary(String summary) { this.summary = summary; }
     }
     
+    /**
+     * Сообщение истории. Хранится компактно: отправитель - общая ссылка из
+     * таблицы Senders, текст - байты UTF-8 (для кириллицы вдвое меньше строки
+     * Java), в JSON пишется как раньше (role, text, time, playerId).
+     */
+    @JsonAdapter(ChatMessage.Adapter.class)
     public static class ChatMessage {
-        private String role;
-        private String text;
+        private static final byte[] EMPTY = new byte[0];
+        
+        private final Senders.Sender sender;
+        private final byte[] text;
+        // Время сообщения (мс); 0 у сообщений из старых db.json
+        private final long time;
         
         public ChatMessage(String role, String text) {
-            this.role = role;
+            this(role, text, null);
+        }
+        
+        /**
+         * @param playerId игрок, к которому относится сообщение (автор или адресат ответа бота)
+         */
+        public ChatMessage(String role, String text, String playerId) {
+            this(role, text, playerId, System.currentTimeMillis());
+        }
+        
+        /**
+         * Сообщение с сохраненным временем (загрузка из базы)
+         */
+        ChatMessage(String role, String text, String playerId, long time) {
+            this.sender = Senders.intern(role, playerId);
+            this.text = text != null ? text.getBytes(StandardCharsets.UTF_8) : EMPTY;
+            this.time = time;
+        }
+        
+        public String getRole() { return sender.getRole(); }
+        public String getText() { return new String(text, StandardCharsets.UTF_8); }
+        public long getTime() { return time; }
+        public String getPlayerId() { return sender.getPlayerId(); }
+        
+        /**
+         * Оценка занимаемой памяти: объект сообщения и массив текста
+         * (отправитель общий и не считается)
+         */
+        public int getHeapSize() {
+            return HeapSize.OBJECT_HEADER + 2 * HeapSize.REFERENCE + 8 + HeapSize.array(text.length);
+        }
+        
+        /**
+         * JSON в прежнем виде: {"role", "text", "time", "playerId"}
+         */
+        public static class Adapter extends TypeAdapter<ChatMessage> {
+            @Override
+            public void write(JsonWriter out, ChatMessage message) throws IOException {
+                if (message == null) {
+                    out.nullValue();
+                    return;
+                }
+                out.beginObject();
+                out.name("role").value(message.getRole());
+                out.name("text").value(message.getText());
+                out.name("time").value(message.time);
+                if (message.getPlayerId() != null) {
+                    out.name("playerId").value(message.getPlayerId());
+                }
+                out.endObject();
+            }
+            
+            @Override
+            public ChatMessage read(JsonReader in) throws IOException {
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    return null;
+                }
+                String role = null;
+                String text = null;
+                String playerId = null;
+                long time = 0;
+                in.beginObject();
+                while (in.hasNext()) {
+                    String name = in.nextName();
+                    if (in.peek() == JsonToken.NULL) {
+                        in.nextNull();
+                        continue;
+                    }
+                    switch (name) {
+                        case "role" -> role = in.nextString();
+                        case "text" -> text = in.nextString();
+                        case "time" -> time = in.nextLong();
+                        case "playerId" -> playerId = in.nextString();
+                        default -> in.skipValue();
+                    }
+                }
+                in.endObject();
+                return new ChatMessage(role, text, playerId, time);
+            }
+        }
+    }
+    
+    /**
+     * Один факт об игроке. Неизменяемый, поэтому делится между версиями профиля.
+     */
+    public static class FactEntry {
+        private final String text;
+        // Когда факт узнали впервые (мс)
+        private final long createdAt;
+        // Сколько раз анализ подтверждал этот факт
+        private final int hits;
+        // Ключевые слова для подбора по теме (считаются один раз)
+        private transient volatile Set<String> keywords;
+        
+        public FactEntry(String text, long createdAt, int hits) {
             this.text = text;
+            this.createdAt = createdAt;
+            this.hits = hits;
         }
         
-        public String getRole() { return role; }
         public String getText() { return text; }
+        public long getCreatedAt() { return createdAt; }
+        public int getHits() { return hits; }
+        
+        long getHeapSize() {
+            long size = HeapSize.align(HeapSize.OBJECT_HEADER + 2L * HeapSize.REFERENCE + 8 + 4)
+                    + HeapSize.string(text);
+            Set<String> computed = keywords;
+            if (computed != null) {
+                for (String keyword : computed) {
+                    size += HeapSize.mapEntry() + HeapSize.string(keyword);
+                }
+            }
+            return size;
+        }
+        
+        public Set<String> getKeywords() {
+            Set<String> result = keywords;
+            if (result == null) {
+                result = Keywords.extract(text);
+                keywords = result;
+            }
+            return result;
+        }
+        
+        /**
+         * Ключ для сравнения фактов: только буквы и цифры в нижнем регистре
+         */
+        static String normalize(String text) {
+            StringBuilder key = new StringBuilder(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (Character.isLetterOrDigit(c)) {
+                    key.append(Character.toLowerCase(c));
+                }
+            }
+            return key.toString();
+        }
     }
     
+    /**
+     * Профиль игрока. Сохраненный в хранилище экземпляр не изменяется на месте -
+     * обновления идут через updateProfile, который создает новую версию.
+     */
     public static class UserProfile {
         private String realName;
-        private String facts = "";
+        // Старое досье одним текстом - при загрузке переносится в factEntries
+        private String facts;
+        private List<FactEntry> factEntries = new ArrayList<>();
         private String attitude = "Нейтральное";
         private int relationship = 50;
+        // Номер версии, растет с каждым обновлением
+        private long version = 0;
         
         public UserProfile() {}
         
+        public UserProfile(UserProfile other) {
+            this.realName = other.realName;
+            this.factEntries = new ArrayList<>(other.getFactEntries());
+            this.attitude = other.attitude;
+            this.relationship = other.relationship;
+            this.version = other.version;
+        }
+        
+        public long getVersion() { return version; }
+        void setVersion(long version) { this.version = version; }
+        
+        /**
+         * Переносит старое досье (один текст) в отдельные факты по предложениям
+         */
+        void migrateLegacyFacts() {
+            if (factEntries == null) {
+                factEntries = new ArrayList<>();
+            }
+            if (facts != null && !facts.isBlank() && factEntries.isEmpty()) {
+                long now = System.currentTimeMillis();
+                for (String sentence : facts.split("(?<=[.!?\\n])\\s*")) {
+                    String trimmed = sentence.trim();
+                    if (!trimmed.isEmpty()) {
+                        factEntries.add(new FactEntry(trimmed, now, 0));
+                    }
+                }
+            }
+            facts = null;
+        }
+        
         // Getters and setters
         public String getRealName() { return realName; }
         public void setRealName(String realName) { this.realName = realName; }
         
-        public String getFacts() { return facts; }
-        public void setFacts(String facts) { this.facts = facts; }
+        public List<FactEntry> getFactEntries() {
+            return factEntries != null ? Collections.unmodifiableList(factEntries) : Collections.emptyList();
+        }
+        
+        /**
+         * Все факты одной строкой (для логов)
+         */
+        public String getFacts() {
+            StringBuilder joined = new StringBuilder();
+            for (FactEntry entry : getFactEntries()) {
+                if (joined.length() > 0) {
+                    joined.append(' ');
+                }
+                joined.append(entry.getText());
+            }
+            return joined.toString();
+        }
         
         public String getAttitude() { return attitude; }
         public void setAttitude(String attitude) { this.attitude = attitude; }
         
         public int getRelationship() { return relationship; }
         public void setRelationship(int relationship) { this.relationship = relationship; }
+        
+        /**
+         * Оценка памяти профиля вместе с фактами
+         */
+        public long getHeapSize() {
+            long size = HeapSize.align(HeapSize.OBJECT_HEADER + 4L * HeapSize.REFERENCE + 4 + 8)
+                    + HeapSize.string(realName) + HeapSize.string(facts) + HeapSize.string(attitude);
+            List<FactEntry> entries = getFactEntries();
+            size += 24 + HeapSize.references(entries.size());
+            for (FactEntry entry : entries) {
+                size += entry.getHeapSize();
+            }
+            return size;
+        }
+    }
+    
+    /**
+     * Изменения профиля, найденные одним анализом: сдвиг репутации, новые и
+     * устаревшие факты. Применяется к актуальной версии, поэтому параллельные
+     * анализы складываются, а не перезаписывают друг друга.
+     */
+    public static class ProfileDelta {
+        private final int relationshipDelta;
+        private final List<String> addedFacts;
+        private final List<String> removedFacts;
+        private final String newAttitude;
+        
+        public ProfileDelta(int relationshipDelta, List<String> addedFacts, List<String> removedFacts,
+                String newAttitude) {
+            this.relationshipDelta = relationshipDelta;
+            this.addedFacts = addedFacts;
+            this.removedFacts = removedFacts;
+            this.newAttitude = newAttitude;
+        }
+        
+        public boolean isEmpty() {
+            return relationshipDelta == 0 && addedFacts.isEmpty() && removedFacts.isEmpty() && newAttitude == null;
+        }
+        
+        public int getRelationshipDelta() { return relationshipDelta; }
+        public List<String> getAddedFacts() { return addedFacts; }
+        public List<String> getRemovedFacts() { return removedFacts; }
+        
+        private UserProfile applyTo(UserProfile profile, int maxFacts) {
+            profile.setRelationship(Math.max(0, Math.min(100, profile.getRelationship() + relationshipDelta)));
+            if (newAttitude != null) {
+                profile.setAttitude(newAttitude);
+            }
+            if (addedFacts.isEmpty() && removedFacts.isEmpty()) {
+                return profile;
+            }
+            
+            Set<String> removed = new HashSet<>();
+            for (String text : removedFacts) {
+                removed.add(FactEntry.normalize(text));
+            }
+            List<FactEntry> entries = new ArrayList<>();
+            for (FactEntry entry : profile.getFactEntries()) {
+                if (!removed.contains(FactEntry.normalize(entry.getText()))) {
+                    entries.add(entry);
+                }
+            }
+            long now = System.currentTimeMillis();
+            for (String text : addedFacts) {
+                String key = FactEntry.normalize(text);
+                if (key.isEmpty()) {
+                    continue;
+                }
+                boolean confirmed = false;
+                for (int i = 0; i < entries.size(); i++) {
+                    FactEntry entry = entries.get(i);
+                    if (FactEntry.normalize(entry.getText()).equals(key)) {
+                        // Анализ снова узнал то же самое - факт подтвержден
+                        entries.set(i, new FactEntry(entry.getText(), entry.getCreatedAt(), entry.getHits() + 1));
+                        confirmed = true;
+                        break;
+                    }
+                }
+                if (!confirmed) {
+                    entries.add(new FactEntry(text.trim(), now, 0));
+                }
+            }
+            // При переполнении забываем редко подтверждаемые старые факты
+            while (entries.size() > maxFacts) {
+                FactEntry weakest = Collections.min(entries, Comparator.comparingInt(FactEntry::getHits)
+                        .thenComparingLong(FactEntry::getCreatedAt));
+                entries.remove(weakest);
+            }
+            profile.factEntries = entries;
+            return profile;
+        }
     }
 }
-
@@ -0,0 +1,100 @@
+package com.psich.bot.services;
+
+import com.psich.bot.PsichBot;
+import com.psich.bot.services.StorageService.ChatMessage;
+import com.psich.bot.utils.ConfigManager;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сводка старой переписки.
+ * Сообщения, вытесненные из истории чата, копятся в ChatData; когда их
+ * набирается batch-size, дешевая модель сворачивает их вместе с прежней
+ * сводкой в новый короткий пересказ. Пересказ идет в промпт перед последними
+ * сообщениями, так что бот помнит давние темы, не пересылая их дословно.
+ */
+public class SummaryService {
+
+    // Если задача сводки пропала из очереди AI, через это время пробуем снова
+    private static final long IN_FLIGHT_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final PsichBot plugin;
+    private final ConfigManager config;
+    // Чаты, для которых сводка уже считается (время постановки в очередь)
+    private final Map<String, Long> inFlight = new ConcurrentHashMap<>();
+
+    public SummaryService(PsichBot plugin, ConfigManager config) {
+        this.plugin = plugin;
+        this.config = config;
+    }
+
+    /**
+     * Подписывается на вытеснение сообщений из истории
+     */
+    public void start() {
+        plugin.getStorageService().addEvictionListener(this::onEvicted);
+    }
+
+    private void onEvicted(String chatId, ChatMessage evicted) {
+        if (!config.isSummaryEnabled()) {
+            return;
+        }
+        StorageService storage = plugin.getStorageService();
+        int pending = storage.addUnsummarized(chatId, evicted);
+        if (pending < config.getSummaryBatchSize()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Long started = inFlight.putIfAbsent(chatId, now);
+        if (started != null) {
+            if (now - started < IN_FLIGHT_TIMEOUT_MILLIS || !inFlight.replace(chatId, started, now)) {
+                return;
+            }
+        }
+
+        final List<ChatMessage> batch = storage.getUnsummarized(chatId);
+        final String previousSummary = storage.getSummary(chatId);
+        boolean accepted = plugin.getAdmissionController().submit(AdmissionController.Priority.ANALYSIS, chatId, null,
+                "сводка чата " + chatId, () -> summarize(chatId, previousSummary, batch));
+        if (!accepted) {
+            inFlight.remove(chatId);
+        }
+    }
+
+    private void summarize(String chatId, String previousSummary, List<ChatMessage> batch) {
+        try {
+            StringBuilder messages = new StringBuilder();
+            for (ChatMessage message : batch) {
+                messages.append(message.getRole()).append(": ").append(message.getText()).append('\n');
+            }
+            String summary = plugin.getAIManager().summarize(previousSummary, messages.toString());
+            if (summary.isEmpty()) {
+                inFlight.remove(chatId);
+                return;
+            }
+            int maxChars = config.getSummaryMaxChars();
+            if (summary.length() > maxChars) {
+                summary = summary.substring(0, maxChars);
+            }
+
+            final String newSummary = summary;
+            plugin.getIngestionPipeline().execute(chatId, () -> {
+                plugin.getStorageService().applySummary(chatId, newSummary, batch);
+                // Снимаем отметку только после применения, иначе следующая
+                // сводка успеет взять те же сообщения
+                inFlight.remove(chatId);
+            });
+            if (config.isDebug()) {
+                plugin.getLogger().info("[DEBUG] Сводка чата " + chatId + " обновлена (" + batch.size()
+                        + " сообщений, " + newSummary.length() + " символов)");
+            }
+        } catch (Exception e) {
+            plugin.getLogger().warning("Ошибка обновления сводки чата: " + e.getMessage());
+            inFlight.remove(chatId);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.psich.bot.services;
+
+import com.destroystokyo.paper.event.server.ServerTickEndEvent;
+import com.psich.bot.PsichBot;
+import com.psich.bot.utils.ConfigManager;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Следит за нагрузкой на главный поток сервера.
+ * Измеряет MSPT сервера (через тиковые события Paper) и собственное время
+ * плагина в главном потоке за тик. Когда сервер не укладывается в бюджет,
+ * второстепенная работа (спонтанные проверки, реакции на события,
+ * зеркалирование в Discord) пропускается, а пропущенное периодически
+ * пишется в лог.
+ */
+public class TickMonitor {
+
+    /**
+     * Второстепенная работа, которую можно пропустить при лагах
+     */
+    public enum Work {
+        SPONTANEOUS_CHECK("спонтанные проверки"),
+        EVENT_REACTION("реакции на события"),
+        DISCORD_MIRROR("отправка в Discord");
+
+        private final String displayName;
+
+        Work(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    // Коэффициент сглаживания для скользящего среднего
+    private static final double EWMA_ALPHA = 0.1;
+    private static final long SHED_LOG_INTERVAL_MILLIS = 30_000;
+
+    private final PsichBot plugin;
+    private final ConfigManager config;
+
+    // Время работы плагина в главном потоке за текущий тик (нс)
+    private final AtomicLong pluginNanosThisTick = new AtomicLong();
+    private final AtomicLongArray shedSinceLog = new AtomicLongArray(Work.values().length);
+    private final AtomicLongArray shedTotal = new AtomicLongArray(Work.values().length);
+
+    private volatile double averageMspt = 0;
+    private volatile double averagePluginMspt = 0;
+    private volatile boolean paperTickEvents = false;
+    private long lastTickNanos = 0;
+    private long lastShedLog = System.currentTimeMillis();
+
+    public TickMonitor(PsichBot plugin, ConfigManager config) {
+        this.plugin = plugin;
+        this.config = config;
+    }
+
+    /**
+     * Запускает измерения: на Paper через ServerTickEndEvent, на остальных
+     * ядрах - по интервалу между тиками
+     */
+    public void start() {
+        try {
+            Class.forName("com.destroystokyo.paper.event.server.ServerTickEndEvent");
+            plugin.getServer().getPluginManager().registerEvents(new PaperTickListener(), plugin);
+            paperTickEvents = true;
+        } catch (ClassNotFoundException e) {
+            new BukkitRunnable() {
+                @Override
+                public void run() {
+                    long now = System.nanoTime();
+                    if (lastTickNanos != 0) {
+                        onTickEnd((now - lastTickNanos) / 1_000_000.0);
+                    }
+                    lastTickNanos = now;
+                }
+            }.runTaskTimer(plugin, 1, 1);
+        }
+    }
+
+    /**
+     * Учитывает работу плагина в главном потоке
+     *
+     * @param startedNanos значение System.nanoTime() в начале работы
+     */
+    public void recordMainThreadWork(long startedNanos) {
+        pluginNanosThisTick.addAndGet(System.nanoTime() - startedNanos);
+    }
+
+    /**
+     * Проверяет, нужно ли пропустить второстепенную работу из-за перегрузки
+     * сервера. Пропущенная работа учитывается в статистике.
+     */
+    public boolean shouldShed(Work work) {
+        if (!isOverBudget()) {
+            return false;
+        }
+        shedSinceLog.incrementAndGet(work.ordinal());
+        shedTotal.incrementAndGet(work.ordinal());
+        if (config.isDebug()) {
+            plugin.getLogger().info("[DEBUG] Сервер перегружен, пропускаем: " + work.getDisplayName());
+        }
+        return true;
+    }
+
+    public boolean isOverBudget() {
+        return averageMspt > config.getPerformanceMaxMspt()
+                || averagePluginMspt > config.getPerformanceMaxPluginMs();
+    }
+
+    public double getAverageMspt() {
+        return averageMspt;
+    }
+
+    public double getAveragePluginMspt() {
+        return averagePluginMspt;
+    }
+
+    /**
+     * Строки статистики для команды /psich status
+     */
+    public List<String> getStatusLines() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("§7MSPT сервера: §f%.1f§7 мс (лимит %.1f)%s, плагин: §f%.3f§7 мс/тик (лимит %.1f)",
+                averageMspt, config.getPerformanceMaxMspt(), paperTickEvents ? "" : " §8(оценка)§7",
+                averagePluginMspt, config.getPerformanceMaxPluginMs()));
+        lines.add("§7Состояние: " + (isOverBudget() ? "§cперегрузка, второстепенное отключено" : "§aнорма"));
+        for (Work work : Work.values()) {
+            long shed = shedTotal.get(work.ordinal());
+            if (shed > 0) {
+                lines.add("§7• пропущено (" + work.getDisplayName() + "): §f" + shed);
+            }
+        }
+        return lines;
+    }
+
+    private void onTickEnd(double tickMillis) {
+        double pluginMillis = pluginNanosThisTick.getAndSet(0) / 1_000_000.0;
+        averageMspt = averageMspt + EWMA_ALPHA * (tickMillis - averageMspt);
+        averagePluginMspt = averagePluginMspt + EWMA_ALPHA * (pluginMillis - averagePluginMspt);
+
+        long now = System.currentTimeMillis();
+        if (now - lastShedLog >= SHED_LOG_INTERVAL_MILLIS) {
+            lastShedLog = now;
+            logShedWork();
+        }
+    }
+
+    private void logShedWork() {
+        Map<Work, Long> shed = new EnumMap<>(Work.class);
+        for (Work work : Work.values()) {
+            long count = shedSinceLog.getAndSet(work.ordinal(), 0);
+            if (count > 0) {
+                shed.put(work, count);
+            }
+        }
+        if (shed.isEmpty()) {
+            return;
+        }
+        StringBuilder message = new StringBuilder(String.format(
+                "Сервер перегружен (MSPT %.1f, плагин %.2f мс/тик), пропущено за 30 сек:",
+                averageMspt, averagePluginMspt));
+        shed.forEach((work, count) -> message.append(' ').append(work.getDisplayName()).append(" - ").append(count)
+                .append(';'));
+        plugin.getLogger().warning(message.toString());
+    }
+
+    /**
+     * Отдельный класс, чтобы на ядрах без Paper не загружались его события
+     */
+    private class PaperTickListener implements Listener {
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void onTickEnd(ServerTickEndEvent event) {
+            TickMonitor.this.onTickEnd(event.getTickDuration());
+        }
+    }
+}
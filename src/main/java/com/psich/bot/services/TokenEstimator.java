@@ -0,0 +1,117 @@
+package com.psich.bot.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Оценка числа токенов в тексте без настоящего токенизатора.
+ * Учитывает, что кириллица у большинства моделей "дороже" латиницы: слово на
+ * русском разбивается на большее число токенов. Для каждого провайдера оценка
+ * подстраивается по фактическому расходу из поля usage его ответов.
+ */
+public class TokenEstimator {
+
+    // Средняя длина токена в символах (по замерам на русском чате)
+    private static final double CYRILLIC_CHARS_PER_TOKEN = 2.3;
+    private static final double LATIN_CHARS_PER_TOKEN = 4.0;
+    private static final double DIGITS_PER_TOKEN = 2.5;
+    private static final double SYMBOLS_PER_TOKEN = 1.3;
+
+    // Коэффициент сглаживания калибровки и его допустимые границы
+    private static final double CALIBRATION_ALPHA = 0.2;
+    private static final double MIN_FACTOR = 0.4;
+    private static final double MAX_FACTOR = 2.5;
+
+    private final Map<String, Calibration> calibrations = new ConcurrentHashMap<>();
+
+    /**
+     * Оценка без поправки на провайдера
+     */
+    public int estimate(String text) {
+        return (int) Math.ceil(rawEstimate(text));
+    }
+
+    /**
+     * Оценка с поправкой, накопленной для провайдера
+     */
+    public int estimate(String providerName, String text) {
+        return (int) Math.ceil(rawEstimate(text) * getFactor(providerName));
+    }
+
+    /**
+     * Учитывает фактический расход токенов на запрос
+     *
+     * @param promptText   весь отправленный текст (системный промпт + запрос)
+     * @param promptTokens число входных токенов из ответа API
+     */
+    public void calibrate(String providerName, String promptText, int promptTokens) {
+        double estimated = rawEstimate(promptText);
+        if (estimated < 50 || promptTokens <= 0) {
+            // На коротких текстах погрешность слишком велика
+            return;
+        }
+        double observed = Math.max(MIN_FACTOR, Math.min(MAX_FACTOR, promptTokens / estimated));
+        calibrations.computeIfAbsent(providerName, k -> new Calibration()).update(observed);
+    }
+
+    public double getFactor(String providerName) {
+        Calibration calibration = providerName != null ? calibrations.get(providerName) : null;
+        return calibration != null ? calibration.factor : 1.0;
+    }
+
+    /**
+     * Строки статистики для команды /psich status
+     */
+    public List<String> getStatusLines() {
+        List<String> lines = new ArrayList<>();
+        if (calibrations.isEmpty()) {
+            lines.add("§7Калибровка токенов: §fнет данных");
+            return lines;
+        }
+        calibrations.forEach((provider, calibration) -> lines.add(String.format(
+                "§7• %s: поправка §f%.2f§7 (%d замеров)", provider, calibration.factor, calibration.samples)));
+        return lines;
+    }
+
+    private static double rawEstimate(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        int cyrillic = 0;
+        int latin = 0;
+        int digits = 0;
+        int symbols = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                // Пробел обычно входит в следующий токен
+                continue;
+            }
+            if (Character.UnicodeBlock.of(c) == Character.UnicodeBlock.CYRILLIC) {
+                cyrillic++;
+            } else if (Character.isLetter(c)) {
+                latin++;
+            } else if (Character.isDigit(c)) {
+                digits++;
+            } else {
+                symbols++;
+            }
+        }
+        return cyrillic / CYRILLIC_CHARS_PER_TOKEN
+                + latin / LATIN_CHARS_PER_TOKEN
+                + digits / DIGITS_PER_TOKEN
+                + symbols / SYMBOLS_PER_TOKEN;
+    }
+
+    private static class Calibration {
+        private volatile double factor = 1.0;
+        private volatile int samples = 0;
+
+        private synchronized void update(double observed) {
+            factor = samples == 0 ? observed : factor + CALIBRATION_ALPHA * (observed - factor);
+            samples++;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.psich.bot.services.providers;
 
+import com.google.gson.JsonObject;
+import com.psich.bot.services.QuotaCoordinator;
 import com.psich.bot.utils.ConfigManager;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -10,6 +12,8 @@ public abstract class BaseProvider {
     protected List<String> keys;
     protected AtomicInteger currentKeyIndex;
     protected ConfigManager config;
+    private volatile UsageListener usageListener;
+    private volatile QuotaCoordinator quotaCoordinator;
     
     public BaseProvider(String name, List<String> keys, ConfigManager config) {
         this.name = name;
@@ -43,10 +47,101 @@ public abstract class BaseProvider {
         return newIndex != oldIndex;
     }
     
+    public void setUsageListener(UsageListener usageListener) {
+        this.usageListener = usageListener;
+    }
+    
+    public void setQuotaCoordinator(QuotaCoordinator quotaCoordinator) {
+        this.quotaCoordinator = quotaCoordinator;
+    }
+    
+    /**
+     * Ключ для запроса. С учетом лимитов - первый по кругу ключ, у которого
+     * остался лимит на эту минуту, иначе текущий
+     *
+     * @return null, если лимит исчерпан у всех ключей
+     */
+    protected String acquireKey(String prompt, GenerateOptions options) {
+        QuotaCoordinator quota = quotaCoordinator;
+        if (quota == null || !isAvailable()) {
+            return getCurrentKey();
+        }
+        String promptText = promptText(prompt, options);
+        int start = currentKeyIndex.get();
+        for (int i = 0; i < keys.size(); i++) {
+            int index = (start + i) % keys.size();
+            if (quota.tryAcquire(name, keys.get(index), promptText)) {
+                currentKeyIndex.set(index);
+                return keys.get(index);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Ключ получил 429 - до конца минуты его не берут и другие серверы
+     */
+    protected void onRateLimited(String apiKey) {
+        QuotaCoordinator quota = quotaCoordinator;
+        if (quota != null) {
+            quota.exhaust(name, apiKey);
+        }
+    }
+    
+    /**
+     * Ошибка "лимит всех ключей исчерпан" (AIManager переходит к другому провайдеру)
+     */
+    protected Exception quotaExhausted() {
+        return new Exception(name + ": Лимит всех ключей на эту минуту исчерпан (quota)");
+    }
+    
+    /**
+     * Сообщает фактический расход токенов из ответа API: входные уточняют оценку
+     * (usage.prompt_tokens у OpenAI-совместимых API, usageMetadata.promptTokenCount у Gemini),
+     * выходные списываются с лимита ключа
+     */
+    protected void reportUsage(String apiKey, String prompt, GenerateOptions options, JsonObject json) {
+        if (json == null) {
+            return;
+        }
+        int promptTokens = 0;
+        int completionTokens = 0;
+        if (json.has("usage")) {
+            JsonObject usage = json.getAsJsonObject("usage");
+            promptTokens = usage.has("prompt_tokens") ? usage.get("prompt_tokens").getAsInt() : 0;
+            completionTokens = usage.has("completion_tokens") ? usage.get("completion_tokens").getAsInt() : 0;
+        } else if (json.has("usageMetadata")) {
+            JsonObject usage = json.getAsJsonObject("usageMetadata");
+            promptTokens = usage.has("promptTokenCount") ? usage.get("promptTokenCount").getAsInt() : 0;
+            completionTokens = usage.has("candidatesTokenCount") ? usage.get("candidatesTokenCount").getAsInt() : 0;
+        }
+        UsageListener listener = usageListener;
+        if (listener != null && promptTokens > 0) {
+            listener.onUsage(name, promptText(prompt, options), promptTokens);
+        }
+        QuotaCoordinator quota = quotaCoordinator;
+        if (quota != null) {
+            quota.charge(name, apiKey, completionTokens);
+        }
+    }
+    
+    private static String promptText(String prompt, GenerateOptions options) {
+        String systemPrompt = options.getSystemPrompt();
+        return systemPrompt != null ? systemPrompt + "\n" + prompt : prompt;
+    }
+    
     public abstract boolean supportsVision();
     public abstract boolean supportsSearch();
     public abstract String generate(String prompt, GenerateOptions options) throws Exception;
     
+    /**
+     * Получатель фактического расхода токенов (для калибровки оценки)
+     */
+    @FunctionalInterface
+    public interface UsageListener {
+        void onUsage(String providerName, String promptText, int promptTokens);
+    }
+    
     public static class GenerateOptions {
         private String systemPrompt;
         private Integer maxTokens = 2500;
@@ -41,7 +41,10 @@ public class DeepSeekProvider extends BaseProvider {
             throw new Exception("DeepSeek: Все ключи исчерпали лимиты");
         }
         
-        String apiKey = getCurrentKey();
+        String apiKey = acquireKey(prompt, options);
+        if (apiKey == null) {
+            throw quotaExhausted();
+        }
         
         // Формируем запрос
         JsonObject request = new JsonObject();
@@ -87,6 +90,7 @@ public class DeepSeekProvider extends BaseProvider {
             if (!response.isSuccessful()) {
                 String errorBody = response.body() != null ? response.body().string() : "";
                 if (response.code() == 429) {
+                    onRateLimited(apiKey);
                     if (rotateKey() && retryCount < keys.size() - 1) {
                         return generate(prompt, options, retryCount + 1); // Повторяем с новым ключом
                     }
@@ -100,6 +104,7 @@ public class DeepSeekProvider extends BaseProvider {
             String responseBody = response.body().string();
             com.google.gson.Gson gson = new com.google.gson.Gson();
             JsonObject json = gson.fromJson(responseBody, JsonObject.class);
+            reportUsage(apiKey, prompt, options, json);
             
             if (json.has("choices") && json.getAsJsonArray("choices").size() > 0) {
                 JsonObject choice = json.getAsJsonArray("choices").get(0).getAsJsonObject();
@@ -40,7 +40,10 @@ public class GeminiProvider extends BaseProvider {
             throw new Exception("Gemini: Все ключи исчерпали лимиты");
         }
         
-        String apiKey = getCurrentKey();
+        String apiKey = acquireKey(prompt, options);
+        if (apiKey == null) {
+            throw quotaExhausted();
+        }
         String url = API_URL + "?key=" + apiKey;
         
         // Формируем запрос
@@ -91,6 +94,7 @@ public class GeminiProvider extends BaseProvider {
             if (!response.isSuccessful()) {
                 String errorBody = response.body() != null ? response.body().string() : "";
                 if (response.code() == 429) {
+                    onRateLimited(apiKey);
                     if (rotateKey() && retryCount < keys.size() - 1) {
                         return generate(prompt, options, retryCount + 1); // Повторяем с новым ключом
                     }
@@ -102,6 +106,7 @@ public class GeminiProvider extends BaseProvider {
             String responseBody = response.body().string();
             com.google.gson.Gson gson = new com.google.gson.Gson();
             JsonObject json = gson.fromJson(responseBody, JsonObject.class);
+            reportUsage(apiKey, prompt, options, json);
             
             if (json.has("candidates") && json.getAsJsonArray("candidates").size() > 0) {
                 JsonObject candidate = json.getAsJsonArray("candidates").get(0).getAsJsonObject();
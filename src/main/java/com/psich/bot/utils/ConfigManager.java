@@ -4,7 +4,10 @@ import com.psich.bot.PsichBot;
 import org.bukkit.configuration.file.FileConfiguration;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ConfigManager {
 
@@ -14,23 +17,81 @@ public class ConfigManager {
     private List<String> geminiKeys;
     private List<String> groqKeys;
     private List<String> deepseekKeys;
+    private boolean quotaEnabled;
+    private String quotaFile;
+    private Map<String, Integer> quotaRequestsPerMinute;
+    private Map<String, Integer> quotaTokensPerMinute;
     private String trigger;
     private double spontaneousChanceMessage;
     private double spontaneousChanceJoinQuit;
     private double spontaneousChanceAdvancement;
     private double spontaneousChanceDeath;
+    private boolean spontaneityBudgetEnabled;
+    private double spontaneityTargetPerMinute;
+    private double spontaneityEventShare;
+    private double spontaneityMinChance;
+    private double spontaneityMaxChance;
     private int contextSize;
+    private int playerHistorySize;
+    private long contextMaxBytes;
+    private long playerHistoryMaxBytes;
+    private long userRetentionMillis;
     private int minMessageLength;
     private String botName;
     private String systemPrompt;
     private String nameColor;
     private boolean sendAsPlayer;
     private double responseDelay;
+    private boolean sessionEnabled;
+    private int sessionWindowSeconds;
+    private int sessionMaxTurns;
     private boolean discordEnabled;
     private String discordWebhookUrl;
     private String discordUsername;
     private String discordAvatarUrl;
     private boolean debug;
+    private double performanceMaxMspt;
+    private double performanceMaxPluginMs;
+    private boolean summaryEnabled;
+    private int summaryBatchSize;
+    private int summaryMaxChars;
+    private int factsDossierSize;
+    private int factsAnalysisSize;
+    private int factsMaxEntries;
+    private boolean memoryEnabled;
+    private int memoryRecallLimit;
+    private double memoryMinScore;
+    private long memoryRetentionMillis;
+    private String storageBackend;
+    private boolean clusterEnabled;
+    private String clusterFile;
+    private boolean storageJournalEnabled;
+    private long storageJournalCompactBytes;
+    private long storageFlushIntervalMillis;
+    private int profileCacheSize;
+    private long profileIdleMillis;
+    private boolean snapshotBinary;
+    private boolean snapshotCompressed;
+    private boolean archiveEnabled;
+    private long archiveSegmentMillis;
+    private long archiveRetentionMillis;
+    private boolean contextBudgetEnabled;
+    private Map<String, Integer> contextBudgetTokens;
+    private int contextBudgetMaxMessageChars;
+    private Map<String, Double> contextBudgetProviderFactors;
+    private int admissionMaxConcurrent;
+    private int admissionMaxQueueSize;
+    private int admissionPlayerBurst;
+    private double admissionPlayerRefillPerMinute;
+    private Map<String, Integer> admissionMaxQueueAge;
+    private int admissionChatBurst;
+    private double admissionChatRefillPerMinute;
+    private String partitionMinecraft;
+    private String partitionDiscord;
+    private boolean partitionSharedProfiles;
+    private int partitionThreads;
+    private Map<String, String> partitionChannelPrefixes;
+    private Map<String, String> partitionChannelPermissions;
     private boolean proxyEnabled;
     private String proxyHost;
     private int proxyPort;
@@ -55,6 +116,19 @@ public class ConfigManager {
         groqKeys = config.getStringList("ai.groq-keys");
         deepseekKeys = config.getStringList("ai.deepseek-keys");
 
+        // Загружаем лимиты ключей (по имени провайдера в нижнем регистре)
+        quotaEnabled = config.getBoolean("ai.quota.enabled", false);
+        quotaFile = config.getString("ai.quota.file", "");
+        quotaRequestsPerMinute = new HashMap<>();
+        quotaTokensPerMinute = new HashMap<>();
+        if (config.isConfigurationSection("ai.quota.limits")) {
+            for (String key : config.getConfigurationSection("ai.quota.limits").getKeys(false)) {
+                String path = "ai.quota.limits." + key;
+                quotaRequestsPerMinute.put(key.toLowerCase(), Math.max(0, config.getInt(path + ".requests-per-minute", 0)));
+                quotaTokensPerMinute.put(key.toLowerCase(), Math.max(0, config.getInt(path + ".tokens-per-minute", 0)));
+            }
+        }
+
         // Загружаем настройки чата
         trigger = config.getString("chat.trigger", "псич");
         // Загружаем отдельные шансы для разных типов событий
@@ -70,17 +144,115 @@ public class ConfigManager {
             spontaneousChanceAdvancement = oldChance;
             spontaneousChanceDeath = oldChance;
         }
+        // Бюджет спонтанных проверок shouldAnswer (вместо фиксированных шансов)
+        spontaneityBudgetEnabled = config.getBoolean("chat.spontaneous-budget.enabled", false);
+        spontaneityTargetPerMinute = config.getDouble("chat.spontaneous-budget.calls-per-minute", 3.0);
+        spontaneityEventShare = config.getDouble("chat.spontaneous-budget.event-share", 0.3);
+        spontaneityMinChance = config.getDouble("chat.spontaneous-budget.min-chance", 0.01);
+        spontaneityMaxChance = config.getDouble("chat.spontaneous-budget.max-chance", 0.5);
         contextSize = config.getInt("chat.context-size", 20);
+        playerHistorySize = config.getInt("chat.player-history-size", 10);
+        contextMaxBytes = Math.max(0, config.getInt("chat.context-max-kb", 32)) * 1024L;
+        playerHistoryMaxBytes = Math.max(0, config.getInt("chat.player-history-max-kb", 8)) * 1024L;
+        userRetentionMillis = Math.max(0, config.getInt("chat.user-retention-days", 30)) * 86_400_000L;
         minMessageLength = config.getInt("chat.min-message-length", 10);
         botName = config.getString("chat.bot-name", "Псич");
         nameColor = config.getString("chat.name-color", "yellow");
         sendAsPlayer = config.getBoolean("chat.send-as-player", false);
         responseDelay = config.getDouble("chat.response-delay", 1.5);
+        sessionEnabled = config.getBoolean("chat.session.enabled", true);
+        sessionWindowSeconds = config.getInt("chat.session.window", 45);
+        sessionMaxTurns = config.getInt("chat.session.max-turns", 6);
+        summaryEnabled = config.getBoolean("chat.summary.enabled", true);
+        summaryBatchSize = config.getInt("chat.summary.batch-size", 10);
+        summaryMaxChars = config.getInt("chat.summary.max-chars", 600);
         discordEnabled = config.getBoolean("discord.enabled", true);
         discordWebhookUrl = config.getString("discord.webhook-url", "");
         discordUsername = config.getString("discord.username", "Псич");
         discordAvatarUrl = config.getString("discord.avatar-url", "");
 
+        // Загружаем настройки очереди AI-запросов
+        admissionMaxConcurrent = config.getInt("admission.max-concurrent", 3);
+        admissionMaxQueueSize = config.getInt("admission.max-queue-size", 50);
+        admissionPlayerBurst = config.getInt("admission.player-burst", 3);
+        admissionPlayerRefillPerMinute = config.getDouble("admission.player-refill-per-minute", 6);
+        admissionMaxQueueAge = new HashMap<>();
+        if (config.isConfigurationSection("admission.max-queue-age")) {
+            for (String key : config.getConfigurationSection("admission.max-queue-age").getKeys(false)) {
+                admissionMaxQueueAge.put(key, config.getInt("admission.max-queue-age." + key, 60));
+            }
+        }
+        admissionChatBurst = config.getInt("admission.chat-burst", 0);
+        admissionChatRefillPerMinute = config.getDouble("admission.chat-refill-per-minute", 20);
+
+        // Загружаем разделение чатов
+        partitionMinecraft = config.getString("partitions.minecraft", "global");
+        partitionDiscord = config.getString("partitions.discord", "shared");
+        partitionSharedProfiles = config.getBoolean("partitions.shared-profiles", true);
+        partitionThreads = Math.max(1, config.getInt("partitions.threads", 2));
+        partitionChannelPrefixes = new LinkedHashMap<>();
+        partitionChannelPermissions = new HashMap<>();
+        if (config.isConfigurationSection("partitions.channels")) {
+            for (String key : config.getConfigurationSection("partitions.channels").getKeys(false)) {
+                String prefix = config.getString("partitions.channels." + key + ".prefix", "");
+                if (prefix != null && !prefix.isEmpty()) {
+                    partitionChannelPrefixes.put(key, prefix);
+                    partitionChannelPermissions.put(key,
+                            config.getString("partitions.channels." + key + ".permission", ""));
+                }
+            }
+        }
+
+        // Загружаем пороги нагрузки на сервер
+        performanceMaxMspt = config.getDouble("performance.max-mspt", 45.0);
+        performanceMaxPluginMs = config.getDouble("performance.max-plugin-ms", 2.0);
+
+        // Загружаем настройки фактов об игроках
+        factsDossierSize = config.getInt("facts.dossier-size", 5);
+        factsAnalysisSize = config.getInt("facts.analysis-size", 10);
+        factsMaxEntries = config.getInt("facts.max-entries", 40);
+
+        // Загружаем настройки долгой памяти
+        memoryEnabled = config.getBoolean("memory.enabled", true);
+        memoryRecallLimit = config.getInt("memory.recall-limit", 3);
+        memoryMinScore = config.getDouble("memory.min-score", 2.0);
+        memoryRetentionMillis = Math.max(0, config.getInt("memory.retention-days", 90)) * 86_400_000L;
+
+        // Загружаем настройки журнала хранилища
+        storageBackend = config.getString("storage.backend", "json");
+        clusterEnabled = config.getBoolean("storage.cluster.enabled", false);
+        clusterFile = config.getString("storage.cluster.file", "");
+        storageJournalEnabled = config.getBoolean("storage.journal.enabled", true);
+        storageJournalCompactBytes = config.getInt("storage.journal.compact-size-kb", 1024) * 1024L;
+        storageFlushIntervalMillis = (long) (config.getDouble("storage.flush-interval", 2.0) * 1000);
+        profileCacheSize = Math.max(0, config.getInt("storage.profiles.cache-size", 500));
+        profileIdleMillis = (long) (config.getDouble("storage.profiles.idle-timeout", 30.0) * 60_000);
+        snapshotBinary = "binary".equalsIgnoreCase(config.getString("storage.snapshot.format", "json"));
+        snapshotCompressed = config.getBoolean("storage.snapshot.compress", true);
+        archiveEnabled = config.getBoolean("storage.archive.enabled", true);
+        archiveSegmentMillis = (long) (Math.max(0.1, config.getDouble("storage.archive.segment-hours", 24.0)) * 3_600_000);
+        archiveRetentionMillis = Math.max(0, config.getInt("storage.archive.retention-days", 90)) * 86_400_000L;
+
+        // Загружаем бюджеты контекста в токенах
+        contextBudgetEnabled = config.getBoolean("context-budget.enabled", true);
+        contextBudgetTokens = new HashMap<>();
+        for (String key : new String[] { "response", "should-answer", "analysis" }) {
+            if (config.contains("context-budget." + key)) {
+                contextBudgetTokens.put(key, config.getInt("context-budget." + key, 0));
+            }
+        }
+        contextBudgetMaxMessageChars = config.getInt("context-budget.max-message-chars", 300);
+        if (contextBudgetMaxMessageChars <= 0) {
+            // 0 - сообщения не обрезаются
+            contextBudgetMaxMessageChars = Integer.MAX_VALUE;
+        }
+        contextBudgetProviderFactors = new HashMap<>();
+        if (config.isConfigurationSection("context-budget.providers")) {
+            for (String key : config.getConfigurationSection("context-budget.providers").getKeys(false)) {
+                contextBudgetProviderFactors.put(key, config.getDouble("context-budget.providers." + key, 1.0));
+            }
+        }
+
         // Загружаем режим отладки
         debug = config.getBoolean("debug", false);
 
@@ -123,6 +295,34 @@ public class ConfigManager {
         return deepseekKeys;
     }
 
+    /**
+     * Учитывать ли лимиты ключей (общие для серверов с файлом ai.quota.file)
+     */
+    public boolean isQuotaEnabled() {
+        return quotaEnabled;
+    }
+
+    /**
+     * Путь к общему файлу лимитов ключей (пусто - лимиты считает каждый сервер сам)
+     */
+    public String getQuotaFile() {
+        return quotaFile;
+    }
+
+    /**
+     * Лимит запросов в минуту на один ключ провайдера (0 - без лимита)
+     */
+    public int getQuotaRequestsPerMinute(String providerName) {
+        return quotaRequestsPerMinute.getOrDefault(providerName.toLowerCase(), 0);
+    }
+
+    /**
+     * Лимит токенов (запрос + ответ) в минуту на один ключ провайдера (0 - без лимита)
+     */
+    public int getQuotaTokensPerMinute(String providerName) {
+        return quotaTokensPerMinute.getOrDefault(providerName.toLowerCase(), 0);
+    }
+
     public String getTrigger() {
         return trigger;
     }
@@ -163,10 +363,65 @@ public class ConfigManager {
         return spontaneousChanceDeath;
     }
 
+    /**
+     * Включен ли регулятор спонтанности (бюджет проверок в минуту вместо
+     * фиксированных шансов)
+     */
+    public boolean isSpontaneityBudgetEnabled() {
+        return spontaneityBudgetEnabled;
+    }
+
+    /**
+     * Целевое число спонтанных проверок shouldAnswer в минуту
+     */
+    public double getSpontaneityTargetPerMinute() {
+        return spontaneityTargetPerMinute;
+    }
+
+    /**
+     * Доля бюджета, отводимая на реакции на игровые события
+     */
+    public double getSpontaneityEventShare() {
+        return spontaneityEventShare;
+    }
+
+    public double getSpontaneityMinChance() {
+        return spontaneityMinChance;
+    }
+
+    public double getSpontaneityMaxChance() {
+        return spontaneityMaxChance;
+    }
+
     public int getContextSize() {
         return contextSize;
     }
 
+    /**
+     * Сколько последних обменов с каждым игроком хранится для анализа репутации
+     */
+    public int getPlayerHistorySize() {
+        return playerHistorySize;
+    }
+
+    /**
+     * Предел памяти истории чата в байтах (0 - только context-size)
+     */
+    public long getContextMaxBytes() {
+        return contextMaxBytes;
+    }
+
+    public long getPlayerHistoryMaxBytes() {
+        return playerHistoryMaxBytes;
+    }
+
+    /**
+     * Через сколько мс без сообщений участник забывается (0 - никогда)
+     */
+    public long getUserRetentionMillis() {
+        return userRetentionMillis;
+    }
+
     public int getMinMessageLength() {
         return minMessageLength;
     }
@@ -250,6 +505,295 @@ public class ConfigManager {
         return debug;
     }
 
+    /**
+     * Сколько запросов к AI может выполняться одновременно
+     * (применяется после перезапуска сервера)
+     */
+    public int getAdmissionMaxConcurrent() {
+        return admissionMaxConcurrent;
+    }
+
+    /**
+     * Максимальное число задач, ожидающих в очереди AI
+     */
+    public int getAdmissionMaxQueueSize() {
+        return admissionMaxQueueSize;
+    }
+
+    /**
+     * Запас запросов к AI на одного игрока
+     */
+    public int getAdmissionPlayerBurst() {
+        return admissionPlayerBurst;
+    }
+
+    /**
+     * Скорость пополнения запаса запросов игрока (в минуту)
+     */
+    public double getAdmissionPlayerRefillPerMinute() {
+        return admissionPlayerRefillPerMinute;
+    }
+
+    /**
+     * Запас запросов к AI на один раздел чата (0 - без лимита)
+     */
+    public int getAdmissionChatBurst() {
+        return admissionChatBurst;
+    }
+
+    /**
+     * Скорость пополнения запаса запросов раздела (в минуту)
+     */
+    public double getAdmissionChatRefillPerMinute() {
+        return admissionChatRefillPerMinute;
+    }
+
+    /**
+     * Разделение игрового чата: global - один чат, world - по мирам
+     */
+    public boolean isPartitionByWorld() {
+        return "world".equalsIgnoreCase(partitionMinecraft);
+    }
+
+    /**
+     * Разделение Discord: shared - вместе с игровым чатом, channel - по каналам
+     */
+    public boolean isPartitionByDiscordChannel() {
+        return "channel".equalsIgnoreCase(partitionDiscord);
+    }
+
+    /**
+     * Один профиль игрока на все разделы
+     */
+    public boolean isPartitionSharedProfiles() {
+        return partitionSharedProfiles;
+    }
+
+    /**
+     * Потоков конвейера входящих событий (применяется после перезапуска)
+     */
+    public int getPartitionThreads() {
+        return partitionThreads;
+    }
+
+    /**
+     * Свои каналы: название -> префикс сообщения
+     */
+    public Map<String, String> getPartitionChannelPrefixes() {
+        return partitionChannelPrefixes;
+    }
+
+    /**
+     * Право, нужное для канала (пустая строка - доступен всем)
+     */
+    public String getPartitionChannelPermission(String channel) {
+        return partitionChannelPermissions.getOrDefault(channel, "");
+    }
+
+    /**
+     * Сколько секунд задача данного класса может ждать в очереди
+     */
+    public int getAdmissionMaxQueueAge(String priorityKey, int defaultSeconds) {
+        return admissionMaxQueueAge.getOrDefault(priorityKey, defaultSeconds);
+    }
+
+    /**
+     * MSPT сервера, выше которого второстепенная работа бота отключается
+     */
+    public double getPerformanceMaxMspt() {
+        return performanceMaxMspt;
+    }
+
+    /**
+     * Допустимое время работы плагина в главном потоке за тик (мс)
+     */
+    public double getPerformanceMaxPluginMs() {
+        return performanceMaxPluginMs;
+    }
+
+    /**
+     * Сворачивать ли вытесненные из истории сообщения в сводку чата
+     */
+    public boolean isSummaryEnabled() {
+        return summaryEnabled;
+    }
+
+    /**
+     * Сколько вытесненных сообщений копится перед обновлением сводки
+     */
+    public int getSummaryBatchSize() {
+        return summaryBatchSize;
+    }
+
+    /**
+     * Максимальная длина сводки чата (символов)
+     */
+    public int getSummaryMaxChars() {
+        return summaryMaxChars;
+    }
+
+    /**
+     * Сколько фактов об игроке, подходящих к сообщению, попадает в досье ответа
+     */
+    public int getFactsDossierSize() {
+        return factsDossierSize;
+    }
+
+    /**
+     * Сколько фактов об игроке видит анализ репутации
+     */
+    public int getFactsAnalysisSize() {
+        return factsAnalysisSize;
+    }
+
+    /**
+     * Максимум фактов на одного игрока
+     */
+    public int getFactsMaxEntries() {
+        return factsMaxEntries;
+    }
+
+    /**
+     * Включена ли долгая память (архив и поиск старых сообщений)
+     */
+    public boolean isMemoryEnabled() {
+        return memoryEnabled;
+    }
+
+    /**
+     * Сколько старых сообщений из долгой памяти добавлять в промпт
+     */
+    public int getMemoryRecallLimit() {
+        return memoryRecallLimit;
+    }
+
+    /**
+     * Минимальная оценка BM25 для сообщения из долгой памяти
+     */
+    public double getMemoryMinScore() {
+        return memoryMinScore;
+    }
+
+    /**
+     * Сколько мс хранить сообщения долгой памяти (0 - всегда)
+     */
+    public long getMemoryRetentionMillis() {
+        return memoryRetentionMillis;
+    }
+
+    /**
+     * Где хранятся данные: json (db.json и журнал) или sqlite (data/psich.db)
+     */
+    public String getStorageBackend() {
+        return storageBackend;
+    }
+
+    /**
+     * Общая база SQLite для нескольких серверов (применяется после перезапуска)
+     */
+    public boolean isClusterEnabled() {
+        return clusterEnabled;
+    }
+
+    /**
+     * Путь к общей базе кластера (относительно папки плагина или абсолютный)
+     */
+    public String getClusterFile() {
+        return clusterFile;
+    }
+
+    /**
+     * Дописывать ли изменения в журнал вместо полной перезаписи данных
+     */
+    public boolean isStorageJournalEnabled() {
+        return storageJournalEnabled;
+    }
+
+    /**
+     * Размер журнала в байтах, после которого делается снимок
+     */
+    public long getStorageJournalCompactBytes() {
+        return storageJournalCompactBytes;
+    }
+
+    /**
+     * Интервал фоновой записи данных на диск в миллисекундах
+     */
+    public long getStorageFlushIntervalMillis() {
+        return storageFlushIntervalMillis;
+    }
+
+    /**
+     * Сколько профилей вышедших игроков держать в памяти
+     */
+    public int getProfileCacheSize() {
+        return profileCacheSize;
+    }
+
+    /**
+     * Через сколько мс без обращений профиль вышедшего игрока выгружается
+     */
+    public long getProfileIdleMillis() {
+        return profileIdleMillis;
+    }
+
+    /**
+     * Писать снимок в двоичный snapshot.bin вместо db.json и profiles.json
+     */
+    public boolean isSnapshotBinary() {
+        return snapshotBinary;
+    }
+
+    public boolean isSnapshotCompressed() {
+        return snapshotCompressed;
+    }
+
+    public boolean isArchiveEnabled() {
+        return archiveEnabled;
+    }
+
+    /**
+     * Через сколько мс текущий сегмент архива запечатывается
+     */
+    public long getArchiveSegmentMillis() {
+        return archiveSegmentMillis;
+    }
+
+    /**
+     * Сколько мс хранить сегменты архива (0 - всегда)
+     */
+    public long getArchiveRetentionMillis() {
+        return archiveRetentionMillis;
+    }
+
+    /**
+     * Подгонять ли контекст промптов под бюджет токенов
+     */
+    public boolean isContextBudgetEnabled() {
+        return contextBudgetEnabled;
+    }
+
+    /**
+     * Бюджет контекста в токенах для задачи (response, should-answer, analysis)
+     */
+    public int getContextBudgetTokens(String taskKey, int defaultTokens) {
+        return contextBudgetTokens.getOrDefault(taskKey, defaultTokens);
+    }
+
+    /**
+     * Максимальная длина одного сообщения в контексте (символов, Integer.MAX_VALUE - без ограничения)
+     */
+    public int getContextBudgetMaxMessageChars() {
+        return contextBudgetMaxMessageChars;
+    }
+
+    /**
+     * Множитель бюджета для провайдера (1.0, если не задан)
+     */
+    public double getContextBudgetProviderFactor(String providerName) {
+        return providerName != null ? contextBudgetProviderFactors.getOrDefault(providerName, 1.0) : 1.0;
+    }
+
     public boolean isProxyEnabled() {
         return proxyEnabled;
     }
@@ -278,6 +822,27 @@ public class ConfigManager {
         return responseDelay;
     }
 
+    /**
+     * Включен ли режим беседы (продолжение разговора без триггера)
+     */
+    public boolean isSessionEnabled() {
+        return sessionEnabled;
+    }
+
+    /**
+     * Окно беседы в секундах после последнего ответа бота
+     */
+    public int getSessionWindowSeconds() {
+        return sessionWindowSeconds;
+    }
+
+    /**
+     * Максимум ответов подряд в одной беседе без повторного обращения к боту
+     */
+    public int getSessionMaxTurns() {
+        return sessionMaxTurns;
+    }
+
     public boolean isDiscordEnabled() {
         return discordEnabled;
     }
@@ -0,0 +1,71 @@
+package com.psich.bot.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Ключевые слова текста для грубого поиска по смыслу без внешних библиотек.
+ * Слова приводятся к нижнему регистру и обрезаются до основы, чтобы разные
+ * формы ("город", "городе", "городом") совпадали.
+ */
+public final class Keywords {
+
+    private static final int MIN_WORD_LENGTH = 3;
+    private static final int MIN_STEM_LENGTH = 4;
+    private static final int MAX_STEM_LENGTH = 6;
+
+    // Частые слова, которые ничего не говорят о теме
+    private static final Set<String> STOP_WORDS = Set.of(
+            "это", "как", "что", "так", "где", "когда", "для", "или", "его", "она", "они", "оно",
+            "тебя", "меня", "мне", "тебе", "есть", "был", "была", "было", "были", "уже", "еще",
+            "все", "всё", "там", "тут", "вот", "ещё", "только", "очень", "если", "чтобы", "нет",
+            "the", "and", "you", "are", "was", "this", "that");
+
+    private Keywords() {
+    }
+
+    /**
+     * Основы слов текста без стоп-слов (в порядке появления, без повторов)
+     */
+    public static Set<String> extract(String text) {
+        return new LinkedHashSet<>(tokenize(text));
+    }
+
+    /**
+     * Основы всех слов текста без стоп-слов, с повторами (для полнотекстового поиска)
+     */
+    public static List<String> tokenize(String text) {
+        List<String> result = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return result;
+        }
+        String lower = text.toLowerCase(Locale.ROOT).replace('ё', 'е');
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean letter = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                String word = lower.substring(start, i);
+                if (word.length() >= MIN_WORD_LENGTH && !STOP_WORDS.contains(word)) {
+                    result.add(stem(word));
+                }
+                start = -1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Грубая основа слова: отрезаем окончание, но оставляем не меньше 4 букв
+     */
+    public static String stem(String word) {
+        if (word.length() <= MIN_STEM_LENGTH) {
+            return word;
+        }
+        return word.substring(0, Math.min(MAX_STEM_LENGTH, Math.max(MIN_STEM_LENGTH, word.length() - 2)));
+    }
+}
@@ -1,10 +1,13 @@
 package com.psich.bot.utils;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.psich.bot.services.StorageService;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 public class Prompts {
@@ -101,14 +104,37 @@ public class Prompts {
                 "Ответ (YES/NO):";
     }
 
-    public static String getAnalyzeImmediatePrompt(StorageService.UserProfile currentProfile, String lastMessages) {
+    public static String getSummaryPrompt(String previousSummary, String messages, String botName, int maxChars) {
+        return "Ты ведешь краткую память чата Minecraft-сервера, в котором сидит бот " + botName + ".\n\n" +
+                "ТЕКУЩАЯ СВОДКА: \"" + (previousSummary.isEmpty() ? "пока пусто" : previousSummary) + "\"\n\n" +
+                "НОВЫЕ СООБЩЕНИЯ (старые, уже ушли из истории):\n" +
+                messages + "\n\n" +
+                "Обнови сводку с учетом новых сообщений:\n" +
+                "- Оставь только то, что пригодится в разговоре дальше: темы, договоренности, шутки, кто что делал.\n" +
+                "- Пиши в третьем лице, сжато, без вступлений.\n" +
+                "- Устаревшее и мелочи выбрасывай.\n" +
+                "- Не больше " + maxChars + " символов.\n\n" +
+                "Верни только текст сводки.";
+    }
+
+    /**
+     * @param shownFacts факты, которые видит анализ (номера в промпте - индексы в этом списке + 1)
+     */
+    public static String getAnalyzeImmediatePrompt(StorageService.UserProfile currentProfile,
+            List<StorageService.FactEntry> shownFacts, String lastMessages) {
         int relationship = currentProfile.getRelationship();
-        String facts = currentProfile.getFacts() != null ? currentProfile.getFacts() : "";
+        StringBuilder facts = new StringBuilder();
+        for (int i = 0; i < shownFacts.size(); i++) {
+            facts.append(i + 1).append(". ").append(shownFacts.get(i).getText()).append('\n');
+        }
+        if (facts.length() == 0) {
+            facts.append("пока ничего\n");
+        }
 
         return "АНАЛИЗ ДИНАМИКИ ОТНОШЕНИЙ.\n\n" +
                 "ТЕКУЩАЯ РЕПУТАЦИЯ: " + relationship + " / 100.\n" +
                 "(0 = Враг, 50 = Нейтрально, 100 = Брат)\n\n" +
-                "ДОСЬЕ (ФАКТЫ): \"" + facts + "\"\n\n" +
+                "ИЗВЕСТНЫЕ ФАКТЫ (по теме диалога):\n" + facts + "\n" +
                 "НОВЫЙ ДИАЛОГ:\n" +
                 lastMessages + "\n\n" +
                 "ТВОЯ ЗАДАЧА: Изменить репутацию, соблюдая \"Законы Инерции\":\n\n" +
@@ -126,15 +152,20 @@ public class Prompts {
                 "   - Ты не можешь изменить счет больше чем на 20 пунктов за одно сообщение (в любую сторону).\n" +
                 "   - Минимум 0, Максимум 100.\n\n" +
                 "ОБНОВЛЕНИЕ ФАКТОВ:\n" +
-                "   - Если факты те же — верни старый текст.\n" +
-                "   - Если узнал новое (имя, город, хобби) — дополни.\n" +
-                "   - ВАЖНО: Старайся писать сжато. Убирай старый мусор, оставляй только важную суть. Не дай тексту превысить 4000 символов.\n\n"
-                +
-                "Верни JSON: { \"relationship\": число, \"facts\": \"текст\", \"attitude\": \"текст\" }";
+                "   - Не переписывай досье. Верни только изменения.\n" +
+                "   - Узнал новое (имя, город, хобби) — добавь короткими отдельными фактами в add_facts.\n" +
+                "   - Если известный факт подтвердился — повтори его текст в add_facts.\n" +
+                "   - Если известный факт оказался неверным или устарел — укажи его номер в remove_facts.\n" +
+                "   - Ничего нового — верни пустые списки.\n\n" +
+                "Верни JSON: { \"relationship\": число, \"attitude\": \"текст\", " +
+                "\"add_facts\": [\"текст\"], \"remove_facts\": [номер] }";
     }
 
-    public static StorageService.UserProfile parseProfileJson(String jsonText,
-            StorageService.UserProfile currentProfile) {
+    /**
+     * Разбирает ответ анализа в изменения профиля (пустые изменения при ошибке)
+     */
+    public static StorageService.ProfileDelta parseProfileDelta(String jsonText,
+            StorageService.UserProfile currentProfile, List<StorageService.FactEntry> shownFacts) {
         try {
             // Очищаем JSON от markdown
             jsonText = jsonText.replace("```json", "").replace("```", "").trim();
@@ -147,25 +178,38 @@ public class Prompts {
             com.google.gson.Gson gson = new com.google.gson.Gson();
             JsonObject json = gson.fromJson(jsonText, JsonObject.class);
 
-            StorageService.UserProfile profile = new StorageService.UserProfile();
-            profile.setRelationship(currentProfile.getRelationship());
-            profile.setFacts(currentProfile.getFacts());
-            profile.setAttitude(currentProfile.getAttitude());
-            profile.setRealName(currentProfile.getRealName());
-
+            int relationshipDelta = 0;
             if (json.has("relationship")) {
-                profile.setRelationship(json.get("relationship").getAsInt());
+                relationshipDelta = json.get("relationship").getAsInt() - currentProfile.getRelationship();
+            }
+            String attitude = null;
+            if (json.has("attitude") && !json.get("attitude").getAsString().equals(currentProfile.getAttitude())) {
+                attitude = json.get("attitude").getAsString();
             }
-            if (json.has("facts")) {
-                profile.setFacts(json.get("facts").getAsString());
+            List<String> added = new ArrayList<>();
+            if (json.has("add_facts") && json.get("add_facts").isJsonArray()) {
+                for (JsonElement fact : json.getAsJsonArray("add_facts")) {
+                    String text = fact.getAsString().trim();
+                    if (!text.isEmpty()) {
+                        added.add(text);
+                    }
+                }
             }
-            if (json.has("attitude")) {
-                profile.setAttitude(json.get("attitude").getAsString());
+            List<String> removed = new ArrayList<>();
+            if (json.has("remove_facts") && json.get("remove_facts").isJsonArray()) {
+                for (JsonElement number : json.getAsJsonArray("remove_facts")) {
+                    // Номер из промпта -> текст факта (профиль мог измениться, пока шел анализ)
+                    int index = number.getAsInt() - 1;
+                    if (index >= 0 && index < shownFacts.size()) {
+                        removed.add(shownFacts.get(index).getText());
+                    }
+                }
             }
 
-            return profile;
+            return new StorageService.ProfileDelta(relationshipDelta, added, removed, attitude);
         } catch (Exception e) {
-            return currentProfile; // Возвращаем текущий профиль при ошибке
+            // При ошибке профиль не меняем
+            return new StorageService.ProfileDelta(0, List.of(), List.of(), null);
         }
     }
 }